@@ -0,0 +1,75 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmarks;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmark for turning entities into managed objects with EntityUtils.entityToPojo, without any
+ * datastore access. Each operation converts a batch of entities in a new PersistenceManager.
+ */
+public class EntityToPojoBenchmark extends LocalDatastoreBenchmark {
+
+  @Param({"100"})
+  public int numEntities;
+
+  private List<Entity> entities;
+
+  @Override
+  protected void populate() {
+    entities = new ArrayList<Entity>();
+    for (int i = 0; i < numEntities; i++) {
+      Entity entity = new Entity(KeyFactory.createKey(Flight.class.getSimpleName(), i + 1));
+      Flight.addData(entity, "name" + i, "bos", "mia", i, i, 300);
+      entities.add(entity);
+    }
+  }
+
+  @Benchmark
+  public int entityToPojo() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      ExecutionContext ec = ((JDOPersistenceManager) pm).getExecutionContext();
+      ClassLoaderResolver clr = ec.getClassLoaderResolver();
+      AbstractClassMetaData acmd = ec.getMetaDataManager().getMetaDataForClass(Flight.class, clr);
+      int count = 0;
+      for (Entity entity : entities) {
+        Flight flight = (Flight) EntityUtils.entityToPojo(entity, acmd, clr, ec, false, ec.getFetchPlan());
+        if (flight.getName() != null) {
+          count++;
+        }
+      }
+      return count;
+    } finally {
+      pm.close();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmarks;
+
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmarks for an owned one-to-many List (FKListStore) : appending an element, and loading and
+ * iterating the whole List.
+ */
+public class FKListStoreBenchmark extends LocalDatastoreBenchmark {
+
+  @Param({"10", "100"})
+  public int numChildren;
+
+  /** Parent that the iterate benchmark reads, with numChildren elements. */
+  private String populatedParentId;
+
+  /** Parent that the add benchmark appends to, replaced each iteration so the List doesn't grow without bound. */
+  private String addParentId;
+
+  @Override
+  protected void populate() {
+    populatedParentId = persistParent(numChildren);
+  }
+
+  @Setup(Level.Iteration)
+  public void newAddParent() {
+    addParentId = persistParent(0);
+  }
+
+  private String persistParent(int children) {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      HasOneToManyListJDO parent = new HasOneToManyListJDO();
+      for (int i = 0; i < children; i++) {
+        parent.addFlight(new Flight("bos", "mia", "name" + i, i, i));
+      }
+      pm.makePersistent(parent);
+      pm.currentTransaction().commit();
+      return parent.getId();
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+  }
+
+  @Benchmark
+  public Object add() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      HasOneToManyListJDO parent = pm.getObjectById(HasOneToManyListJDO.class, addParentId);
+      Flight flight = new Flight("bos", "mia", "added", 1, 2);
+      parent.addFlight(flight);
+      pm.currentTransaction().commit();
+      return flight.getId();
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+  }
+
+  @Benchmark
+  public int iterate() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      HasOneToManyListJDO parent = pm.getObjectById(HasOneToManyListJDO.class, populatedParentId);
+      int count = 0;
+      for (Flight flight : parent.getFlights()) {
+        if (flight.getName() != null) {
+          count++;
+        }
+      }
+      return count;
+    } finally {
+      pm.close();
+    }
+  }
+}
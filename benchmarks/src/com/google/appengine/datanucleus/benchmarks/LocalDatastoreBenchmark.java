@@ -0,0 +1,98 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmarks;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManagerFactory;
+
+/**
+ * Base class for benchmarks that run against the local datastore stubs, in the same way as the test suite.
+ * Each benchmark thread gets its own local datastore and PersistenceManagerFactory (the "transactional" one
+ * from the test jdoconfig.xml), created once per trial. The ApiProxy environment is bound to the thread that
+ * sets it up, which is why the state is per thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class LocalDatastoreBenchmark {
+
+  private LocalServiceTestHelper helper;
+
+  protected PersistenceManagerFactory pmf;
+
+  protected DatastoreService ds;
+
+  @Setup(Level.Trial)
+  public void setUpDatastore() throws Exception {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()).setEnvAppId("DNBenchmark");
+    helper.setUp();
+    pmf = JDOHelper.getPersistenceManagerFactory(getPersistenceManagerFactoryName());
+    ds = DatastoreServiceFactory.getDatastoreService();
+    populate();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownDatastore() {
+    if (pmf != null) {
+      release();
+      pmf.close();
+      pmf = null;
+    }
+    helper.tearDown();
+  }
+
+  /**
+   * Name of the PMF (in jdoconfig.xml) to benchmark with.
+   * @return The PMF name
+   */
+  protected String getPersistenceManagerFactoryName() {
+    return "transactional";
+  }
+
+  /**
+   * Method to put any data needed by the benchmark, called once the datastore is available.
+   */
+  protected void populate() throws Exception {
+  }
+
+  /**
+   * Method to release anything held across the trial, called before the PersistenceManagerFactory is closed.
+   */
+  protected void release() {
+  }
+}
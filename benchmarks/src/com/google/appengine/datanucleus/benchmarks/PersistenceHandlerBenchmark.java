@@ -0,0 +1,65 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmarks;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmarks for the single object paths of the persistence handler : insertObject and fetchObject.
+ * Each operation uses its own PersistenceManager so that nothing is served from the L1 cache.
+ */
+public class PersistenceHandlerBenchmark extends LocalDatastoreBenchmark {
+
+  private String flightId;
+
+  @Override
+  protected void populate() {
+    flightId = KeyFactory.keyToString(ds.put(Flight.newFlightEntity("1", "bos", "mia", 23, 24)));
+  }
+
+  @Benchmark
+  public Object insertObject() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      Flight flight = new Flight("bos", "mia", "insert", 23, 24);
+      pm.makePersistent(flight);
+      pm.currentTransaction().commit();
+      return flight.getId();
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+  }
+
+  @Benchmark
+  public Object fetchObject() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      Flight flight = pm.getObjectById(Flight.class, flightId);
+      return flight.getName();
+    } finally {
+      pm.close();
+    }
+  }
+}
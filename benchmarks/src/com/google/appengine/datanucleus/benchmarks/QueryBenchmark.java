@@ -0,0 +1,63 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmarks;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+/**
+ * Benchmark for executing a JDOQL query (DatastoreQuery.performExecute) and reading every result.
+ */
+public class QueryBenchmark extends LocalDatastoreBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int numResults;
+
+  @Override
+  protected void populate() {
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i = 0; i < numResults; i++) {
+      entities.add(Flight.newFlightEntity("name" + i, "bos", "mia", i, i));
+    }
+    ds.put(entities);
+  }
+
+  @Benchmark
+  public int executeAndIterate() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      Query q = pm.newQuery(Flight.class, "origin == 'bos'");
+      int count = 0;
+      for (Object o : (List<?>) q.execute()) {
+        if (((Flight) o).getName() != null) {
+          count++;
+        }
+      }
+      return count;
+    } finally {
+      pm.close();
+    }
+  }
+}
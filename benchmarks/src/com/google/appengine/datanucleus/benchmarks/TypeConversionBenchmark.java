@@ -0,0 +1,100 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmarks;
+
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.TypeConversionUtils;
+import com.google.appengine.datanucleus.mapping.DatastoreTable;
+import com.google.appengine.datanucleus.test.jdo.HasMultiValuePropsJDO;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.store.types.TypeManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmarks for TypeConversionUtils, converting a multi-value property in both directions, both with a
+ * codec built for each conversion and with the codec cached on the DatastoreTable.
+ * The member is a Collection&lt;Integer&gt;, stored in the datastore as a List of Longs.
+ */
+public class TypeConversionBenchmark extends LocalDatastoreBenchmark {
+
+  @Param({"100"})
+  public int numValues;
+
+  private PersistenceManager pm;
+  private TypeConversionUtils typeConversionUtils;
+  private DatastoreTable table;
+  private TypeManager typeMgr;
+  private ClassLoaderResolver clr;
+  private AbstractMemberMetaData intCollMmd;
+  private List<Long> datastoreValue;
+  private List<Integer> pojoValue;
+
+  @Override
+  protected void populate() {
+    pm = pmf.getPersistenceManager();
+    ExecutionContext ec = ((JDOPersistenceManager) pm).getExecutionContext();
+    typeConversionUtils = ((DatastoreManager) ec.getStoreManager()).getTypeConversionUtils();
+    typeMgr = ec.getNucleusContext().getTypeManager();
+    clr = ec.getClassLoaderResolver();
+    intCollMmd = ec.getMetaDataManager().getMetaDataForClass(HasMultiValuePropsJDO.class, clr)
+        .getMetaDataForMember("intColl");
+    table = ((DatastoreManager) ec.getStoreManager()).getDatastoreClass(HasMultiValuePropsJDO.class.getName(), clr);
+
+    datastoreValue = new ArrayList<Long>();
+    pojoValue = new ArrayList<Integer>();
+    for (int i = 0; i < numValues; i++) {
+      datastoreValue.add((long) i);
+      pojoValue.add(i);
+    }
+  }
+
+  @Override
+  protected void release() {
+    if (!pm.isClosed()) {
+      pm.close();
+    }
+  }
+
+  @Benchmark
+  public Object datastoreValueToPojoValueNewCodec() {
+    return typeConversionUtils.newMemberCodec(typeMgr, intCollMmd).toPojoValue(clr, datastoreValue);
+  }
+
+  @Benchmark
+  public Object datastoreValueToPojoValueCachedCodec() {
+    return table.getMemberCodec(intCollMmd, typeMgr).toPojoValue(clr, datastoreValue);
+  }
+
+  @Benchmark
+  public Object pojoValueToDatastoreValueNewCodec() {
+    return typeConversionUtils.newMemberCodec(typeMgr, intCollMmd).toDatastoreValue(clr, pojoValue);
+  }
+
+  @Benchmark
+  public Object pojoValueToDatastoreValueCachedCodec() {
+    return table.getMemberCodec(intCollMmd, typeMgr).toDatastoreValue(clr, pojoValue);
+  }
+}
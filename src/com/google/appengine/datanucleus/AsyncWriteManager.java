@@ -0,0 +1,220 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.store.connection.ManagedConnection;
+import org.datanucleus.util.NucleusLogger;
+
+import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapConcurrentModificationException;
+import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapDatastoreFailureException;
+import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapIllegalArgumentException;
+
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Issues puts and deletes through an {@link AsyncDatastoreService} and keeps hold of the resulting
+ * futures so that they can be joined later, typically at flush or commit. This lets writes of unrelated
+ * entities overlap, so a flush costs roughly the longest RPC rather than the sum of them.
+ * <p>
+ * Ordering is preserved per key : if a write is requested for a key that already has a write in flight
+ * then everything outstanding is joined first. Reads through {@link EntityUtils} join any pending writes for
+ * the keys being read so that the plugin always sees its own writes.
+ * </p>
+ * <p>
+ * Entities with an incomplete key are never put here since the caller needs the datastore-assigned id
+ * straight away. One instance exists per connection, in the same way as the {@link KeyRegistry}.
+ * </p>
+ */
+public class AsyncWriteManager {
+
+  /**
+   * Convenience accessor for the {@link AsyncWriteManager} associated with the current datasource connection.
+   * @param ec ExecutionContext
+   * @return The AsyncWriteManager, or null if async writes are not enabled
+   */
+  public static AsyncWriteManager getAsyncWriteManager(ExecutionContext ec) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    if (!storeMgr.isAsyncWrites()) {
+      return null;
+    }
+    ManagedConnection mconn = storeMgr.getConnection(ec);
+    return ((EmulatedXAResource) mconn.getXAResource()).getAsyncWriteManager();
+  }
+
+  private final AsyncDatastoreService asyncDatastoreService;
+
+  /** Futures for the writes that have been issued but not yet joined. */
+  private final List<Future<?>> pendingWrites = Utils.newArrayList();
+
+  /** Keys that have a write in flight. */
+  private final Set<Key> pendingKeys = Utils.newHashSet();
+
+  public AsyncWriteManager(AsyncDatastoreService asyncDatastoreService) {
+    this.asyncDatastoreService = asyncDatastoreService;
+  }
+
+  /**
+   * Method to issue a put of the supplied entities without waiting for the result.
+   * @param txn The datastore transaction (or null if none)
+   * @param entities The entities to put. All must have complete keys.
+   */
+  void put(DatastoreTransaction txn, List<Entity> entities) {
+    List<Key> keys = Utils.newArrayList();
+    for (Entity entity : entities) {
+      keys.add(entity.getKey());
+    }
+    awaitKeys(keys);
+
+    Transaction innerTxn = txn == null ? null : txn.getInnerTxn();
+    try {
+      if (entities.size() == 1) {
+        pendingWrites.add(asyncDatastoreService.put(innerTxn, entities.get(0)));
+      } else {
+        pendingWrites.add(asyncDatastoreService.put(innerTxn, entities));
+      }
+    } catch (IllegalArgumentException e) {
+      throw wrapIllegalArgumentException(e);
+    }
+    pendingKeys.addAll(keys);
+  }
+
+  /**
+   * Method to issue a delete of the supplied keys without waiting for the result.
+   * @param txn The datastore transaction (or null if none)
+   * @param keys The keys to delete
+   */
+  void delete(DatastoreTransaction txn, List<Key> keys) {
+    awaitKeys(keys);
+
+    Transaction innerTxn = txn == null ? null : txn.getInnerTxn();
+    try {
+      if (keys.size() == 1) {
+        pendingWrites.add(asyncDatastoreService.delete(innerTxn, keys.get(0)));
+      } else {
+        pendingWrites.add(asyncDatastoreService.delete(innerTxn, keys));
+      }
+    } catch (IllegalArgumentException e) {
+      throw wrapIllegalArgumentException(e);
+    }
+    pendingKeys.addAll(keys);
+  }
+
+  /**
+   * Accessor for whether there are writes that have not yet been joined.
+   * @return Whether any writes are outstanding
+   */
+  public boolean hasPendingWrites() {
+    return !pendingWrites.isEmpty();
+  }
+
+  /**
+   * Method to join all outstanding writes if any of them involve one of the supplied keys.
+   * @param keys The keys about to be read or written
+   */
+  public void awaitKeys(Collection<Key> keys) {
+    if (pendingKeys.isEmpty()) {
+      return;
+    }
+    for (Key key : keys) {
+      if (pendingKeys.contains(key)) {
+        awaitAll();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Method to join all outstanding writes. All futures are waited on even if one of them fails, and the
+   * first failure is then rethrown as the appropriate DataNucleus exception.
+   */
+  public void awaitAll() {
+    if (pendingWrites.isEmpty()) {
+      return;
+    }
+
+    List<Future<?>> futures = Utils.newArrayList();
+    futures.addAll(pendingWrites);
+    pendingWrites.clear();
+    pendingKeys.clear();
+
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Waiting for " + futures.size() + " asynchronous writes to complete");
+    }
+
+    NucleusException failure = null;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (failure == null) {
+          failure = new NucleusDataStoreException("Interrupted waiting for asynchronous write", e);
+        }
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = translate(e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Method to join all outstanding writes, logging rather than throwing any failure. Used when the
+   * transaction is being rolled back anyway.
+   */
+  void awaitAllQuietly() {
+    try {
+      awaitAll();
+    } catch (NucleusException ne) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Asynchronous write failed during rollback", ne);
+    }
+  }
+
+  /**
+   * Method to translate the failure of an asynchronous datastore call into the appropriate DataNucleus exception.
+   * @param cause The cause of the ExecutionException thrown by the Future of the call
+   * @return The exception to throw
+   */
+  public static NucleusException translate(Throwable cause) {
+    if (cause instanceof IllegalArgumentException) {
+      return wrapIllegalArgumentException((IllegalArgumentException) cause);
+    } else if (cause instanceof ConcurrentModificationException) {
+      return wrapConcurrentModificationException((ConcurrentModificationException) cause);
+    } else if (cause instanceof DatastoreFailureException) {
+      return wrapDatastoreFailureException((DatastoreFailureException) cause);
+    } else if (cause instanceof NucleusException) {
+      return (NucleusException) cause;
+    }
+    return new NucleusDataStoreException("Asynchronous write failed", cause);
+  }
+}
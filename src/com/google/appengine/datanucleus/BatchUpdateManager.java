@@ -0,0 +1,89 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import org.datanucleus.ExecutionContext;
+
+/**
+ * Manages batch updates, which happen when the dirty objects of an ExecutionContext are flushed.
+ * While a batch is running the puts of updated entities are held back in the {@link KeyRegistry}
+ * and written with multi-entity puts when the batch finishes. Anything that needs to see those
+ * writes in the datastore (a get, query or delete, or a put of an entity with an incomplete key)
+ * writes out what has been held back first, so ordering against other operations is preserved.
+ * <p>
+ * DataNucleus has no batch type for updates, so the batch is started and finished by
+ * {@link DatastoreFlushProcess} rather than through batchStart/batchEnd.
+ * </p>
+ */
+public class BatchUpdateManager {
+
+  private final ExecutionContext ec;
+
+  /** Whether a batch is running. */
+  private boolean inProgress = false;
+
+  /** Whether this batch switched on buffering of puts, and so has to write them and switch it off. */
+  private boolean ownsBuffer = false;
+
+  public BatchUpdateManager(ExecutionContext ec) {
+    this.ec = ec;
+  }
+
+  public void start() {
+    if (inProgress) {
+      throw new IllegalStateException("Batch update already running.");
+    }
+    inProgress = true;
+    KeyRegistry keyReg = KeyRegistry.getKeyRegistry(ec);
+    if (!keyReg.isBufferingPuts()) {
+      keyReg.startBufferingPuts();
+      ownsBuffer = true;
+    }
+  }
+
+  /**
+   * Method to finish the batch, writing all puts held back since it started.
+   */
+  public void finish() {
+    if (!inProgress) {
+      throw new IllegalStateException("Batch update not running.");
+    }
+    try {
+      if (ownsBuffer) {
+        EntityUtils.flushBufferedPuts(ec);
+      }
+    } finally {
+      end();
+    }
+  }
+
+  /**
+   * Method to finish the batch after a failure, discarding any puts held back since it started.
+   */
+  public void abandon() {
+    if (inProgress) {
+      end();
+    }
+  }
+
+  private void end() {
+    if (ownsBuffer) {
+      KeyRegistry.getKeyRegistry(ec).stopBufferingPuts();
+      ownsBuffer = false;
+    }
+    inProgress = false;
+  }
+}
@@ -0,0 +1,552 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Blob;
+
+import org.datanucleus.exceptions.NucleusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link SerializationStrategy} writing a compact, schema-less binary form instead of java serialization.
+ * Each value is written as a one byte type tag followed by its data, with numbers and lengths as variable
+ * length integers. Strings, boxed primitives, dates, big numbers, enums, arrays and the common collection and
+ * map implementations are supported directly. The name of any other class is written once per blob and
+ * afterwards referred to by its id, and values of other {@link Serializable} types fall back to java
+ * serialization.
+ * <p>
+ * To use it for a serialized member :
+ * <pre>
+ * &#64;Persistent(serialized = "true")
+ * &#64;Extension(vendorName = "datanucleus", key="serialization-strategy",
+ *            value="com.google.appengine.datanucleus.CompactSerializationStrategy")
+ * private Map&lt;String, Long&gt; counts;
+ * </pre>
+ * Blobs written by this strategy can only be read by it, so a member that already has data in the datastore
+ * can't be switched to it without migrating that data.
+ *
+ * This class is part of the public interface of the DataNucleus App Engine
+ * Plugin and can be safely referenced in user code.
+ */
+public class CompactSerializationStrategy implements SerializationStrategy {
+
+  /** First byte of every blob, followed by the format version. */
+  private static final int MAGIC = 0xC5;
+  private static final int VERSION = 1;
+
+  private static final int NULL = 0;
+  private static final int TRUE = 1;
+  private static final int FALSE = 2;
+  private static final int BYTE = 3;
+  private static final int SHORT = 4;
+  private static final int INTEGER = 5;
+  private static final int LONG = 6;
+  private static final int FLOAT = 7;
+  private static final int DOUBLE = 8;
+  private static final int CHARACTER = 9;
+  private static final int STRING = 10;
+  private static final int DATE = 11;
+  private static final int BIG_INTEGER = 12;
+  private static final int BIG_DECIMAL = 13;
+  private static final int ENUM = 14;
+  private static final int BYTE_ARRAY = 15;
+  private static final int INT_ARRAY = 16;
+  private static final int LONG_ARRAY = 17;
+  private static final int DOUBLE_ARRAY = 18;
+  private static final int OBJECT_ARRAY = 19;
+  private static final int ARRAY_LIST = 20;
+  private static final int LINKED_LIST = 21;
+  private static final int HASH_SET = 22;
+  private static final int LINKED_HASH_SET = 23;
+  private static final int HASH_MAP = 24;
+  private static final int LINKED_HASH_MAP = 25;
+  private static final int SERIALIZABLE = 26;
+
+  public Blob serialize(Object obj) {
+    if (obj == null) {
+      throw new NullPointerException("Object cannot be null.");
+    }
+    // No need to actually serialize byte arrays
+    if (obj instanceof byte[]) {
+      return new Blob((byte[]) obj);
+    } else if (obj instanceof Byte[]) {
+      return new Blob(PrimitiveArrays.toByteArray(Arrays.asList((Byte[]) obj)));
+    }
+    Output out = new Output();
+    out.write(MAGIC);
+    out.write(VERSION);
+    out.writeValue(obj);
+    return new Blob(out.toByteArray());
+  }
+
+  public Object deserialize(Blob blob, Class<?> targetClass) {
+    if (blob == null) {
+      throw new NullPointerException("Blob cannot be null.");
+    }
+    if (targetClass.equals(byte[].class)) {
+      return blob.getBytes();
+    } else if (targetClass.equals(Byte[].class)){
+      byte[] bytes = blob.getBytes();
+      return PrimitiveArrays.asList(bytes).toArray(new Byte[bytes.length]);
+    }
+    byte[] bytes = blob.getBytes();
+    if (bytes.length < 2 || (bytes[0] & 0xFF) != MAGIC || bytes[1] != VERSION) {
+      throw new NucleusException("Bytes in datastore were not written by " + getClass().getName());
+    }
+    ClassLoader loader = targetClass.getClassLoader();
+    if (loader == null) {
+      loader = Thread.currentThread().getContextClassLoader();
+    }
+    Input in = new Input(bytes, 2, loader);
+    Object obj = in.readValue();
+    if (obj != null && !targetClass.isPrimitive() && !targetClass.isAssignableFrom(obj.getClass())) {
+      throw new NucleusException("Bytes in datastore comprise an object of type "
+          + obj.getClass().getName() + " but expected type is " + targetClass.getName());
+    }
+    return obj;
+  }
+
+  /**
+   * Writer for a single blob, holding the ids of the classes named so far.
+   */
+  private static final class Output extends ByteArrayOutputStream {
+    private final Map<Class<?>, Integer> classIds = new HashMap<Class<?>, Integer>();
+
+    Output() {
+      super(64);
+    }
+
+    void writeValue(Object value) {
+      if (value == null) {
+        write(NULL);
+      } else if (value instanceof String) {
+        write(STRING);
+        writeString((String) value);
+      } else if (value instanceof Boolean) {
+        write((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Integer) {
+        write(INTEGER);
+        writeVarLong(zigZag((Integer) value));
+      } else if (value instanceof Long) {
+        write(LONG);
+        writeVarLong(zigZag((Long) value));
+      } else if (value instanceof Double) {
+        write(DOUBLE);
+        writeFixedLong(Double.doubleToLongBits((Double) value));
+      } else if (value instanceof Float) {
+        write(FLOAT);
+        writeVarLong(Float.floatToIntBits((Float) value) & 0xFFFFFFFFL);
+      } else if (value instanceof Short) {
+        write(SHORT);
+        writeVarLong(zigZag((Short) value));
+      } else if (value instanceof Byte) {
+        write(BYTE);
+        write((Byte) value);
+      } else if (value instanceof Character) {
+        write(CHARACTER);
+        writeVarLong((Character) value);
+      } else if (value.getClass() == Date.class) {
+        write(DATE);
+        writeVarLong(zigZag(((Date) value).getTime()));
+      } else if (value.getClass() == BigInteger.class) {
+        write(BIG_INTEGER);
+        writeBytes(((BigInteger) value).toByteArray());
+      } else if (value.getClass() == BigDecimal.class) {
+        write(BIG_DECIMAL);
+        writeVarLong(zigZag(((BigDecimal) value).scale()));
+        writeBytes(((BigDecimal) value).unscaledValue().toByteArray());
+      } else if (value instanceof Enum) {
+        write(ENUM);
+        writeClass(((Enum<?>) value).getDeclaringClass());
+        writeString(((Enum<?>) value).name());
+      } else if (value instanceof byte[]) {
+        write(BYTE_ARRAY);
+        writeBytes((byte[]) value);
+      } else if (value instanceof int[]) {
+        write(INT_ARRAY);
+        int[] array = (int[]) value;
+        writeVarLong(array.length);
+        for (int element : array) {
+          writeVarLong(zigZag(element));
+        }
+      } else if (value instanceof long[]) {
+        write(LONG_ARRAY);
+        long[] array = (long[]) value;
+        writeVarLong(array.length);
+        for (long element : array) {
+          writeVarLong(zigZag(element));
+        }
+      } else if (value instanceof double[]) {
+        write(DOUBLE_ARRAY);
+        double[] array = (double[]) value;
+        writeVarLong(array.length);
+        for (double element : array) {
+          writeFixedLong(Double.doubleToLongBits(element));
+        }
+      } else if (value instanceof Object[] && !value.getClass().getComponentType().isArray()) {
+        write(OBJECT_ARRAY);
+        Object[] array = (Object[]) value;
+        writeClass(value.getClass().getComponentType());
+        writeVarLong(array.length);
+        for (Object element : array) {
+          writeValue(element);
+        }
+      } else if (value.getClass() == ArrayList.class) {
+        writeCollection(ARRAY_LIST, (Collection<?>) value);
+      } else if (value.getClass() == LinkedList.class) {
+        writeCollection(LINKED_LIST, (Collection<?>) value);
+      } else if (value.getClass() == HashSet.class) {
+        writeCollection(HASH_SET, (Collection<?>) value);
+      } else if (value.getClass() == LinkedHashSet.class) {
+        writeCollection(LINKED_HASH_SET, (Collection<?>) value);
+      } else if (value.getClass() == HashMap.class) {
+        writeMap(HASH_MAP, (Map<?, ?>) value);
+      } else if (value.getClass() == LinkedHashMap.class) {
+        writeMap(LINKED_HASH_MAP, (Map<?, ?>) value);
+      } else if (value instanceof Serializable) {
+        write(SERIALIZABLE);
+        writeBytes(javaSerialize(value));
+      } else {
+        throw new NucleusException("Cannot serialize object of type " + value.getClass().getName() +
+            " since it is not Serializable");
+      }
+    }
+
+    private void writeCollection(int tag, Collection<?> coll) {
+      write(tag);
+      writeVarLong(coll.size());
+      for (Object element : coll) {
+        writeValue(element);
+      }
+    }
+
+    private void writeMap(int tag, Map<?, ?> map) {
+      write(tag);
+      writeVarLong(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeValue(entry.getKey());
+        writeValue(entry.getValue());
+      }
+    }
+
+    private void writeClass(Class<?> cls) {
+      Integer id = classIds.get(cls);
+      if (id == null) {
+        // Name the class the first time, and refer to it by id afterwards
+        writeVarLong(0);
+        writeString(cls.getName());
+        classIds.put(cls, classIds.size() + 1);
+      } else {
+        writeVarLong(id);
+      }
+    }
+
+    private void writeString(String str) {
+      try {
+        writeBytes(str.getBytes("UTF-8"));
+      } catch (IOException e) {
+        throw new NucleusException("UTF-8 is not supported", e);
+      }
+    }
+
+    private void writeBytes(byte[] bytes) {
+      writeVarLong(bytes.length);
+      write(bytes, 0, bytes.length);
+    }
+
+    private void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    private void writeFixedLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        write((int) (value >>> shift));
+      }
+    }
+
+    private static long zigZag(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+
+    private static byte[] javaSerialize(Object value) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try {
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        try {
+          oos.writeObject(value);
+        } finally {
+          oos.close();
+        }
+      } catch (IOException ioe) {
+        throw new NucleusException("Received IOException serializing object of type "
+            + value.getClass().getName(), ioe);
+      }
+      return baos.toByteArray();
+    }
+  }
+
+  /**
+   * Reader for a single blob, holding the classes named so far.
+   */
+  private static final class Input {
+    private final byte[] bytes;
+    private int pos;
+    private final ClassLoader loader;
+    private final List<Class<?>> classes = new ArrayList<Class<?>>();
+
+    Input(byte[] bytes, int pos, ClassLoader loader) {
+      this.bytes = bytes;
+      this.pos = pos;
+      this.loader = loader;
+    }
+
+    @SuppressWarnings("unchecked")
+    Object readValue() {
+      int tag = read();
+      switch (tag) {
+        case NULL:
+          return null;
+        case TRUE:
+          return Boolean.TRUE;
+        case FALSE:
+          return Boolean.FALSE;
+        case BYTE:
+          return (byte) read();
+        case SHORT:
+          return (short) unZigZag(readVarLong());
+        case INTEGER:
+          return (int) unZigZag(readVarLong());
+        case LONG:
+          return unZigZag(readVarLong());
+        case FLOAT:
+          return Float.intBitsToFloat((int) readVarLong());
+        case DOUBLE:
+          return Double.longBitsToDouble(readFixedLong());
+        case CHARACTER:
+          return (char) readVarLong();
+        case STRING:
+          return readString();
+        case DATE:
+          return new Date(unZigZag(readVarLong()));
+        case BIG_INTEGER:
+          return new BigInteger(readBytes());
+        case BIG_DECIMAL: {
+          int scale = (int) unZigZag(readVarLong());
+          return new BigDecimal(new BigInteger(readBytes()), scale);
+        }
+        case ENUM: {
+          Class enumClass = readClass();
+          return Enum.valueOf(enumClass, readString());
+        }
+        case BYTE_ARRAY:
+          return readBytes();
+        case INT_ARRAY: {
+          int[] array = new int[readLength()];
+          for (int i = 0; i < array.length; i++) {
+            array[i] = (int) unZigZag(readVarLong());
+          }
+          return array;
+        }
+        case LONG_ARRAY: {
+          long[] array = new long[readLength()];
+          for (int i = 0; i < array.length; i++) {
+            array[i] = unZigZag(readVarLong());
+          }
+          return array;
+        }
+        case DOUBLE_ARRAY: {
+          double[] array = new double[readLength()];
+          for (int i = 0; i < array.length; i++) {
+            array[i] = Double.longBitsToDouble(readFixedLong());
+          }
+          return array;
+        }
+        case OBJECT_ARRAY: {
+          Class<?> componentType = readClass();
+          Object[] array = (Object[]) Array.newInstance(componentType, readLength());
+          for (int i = 0; i < array.length; i++) {
+            array[i] = readValue();
+          }
+          return array;
+        }
+        case ARRAY_LIST: {
+          int size = readLength();
+          return readElements(new ArrayList<Object>(size), size);
+        }
+        case LINKED_LIST:
+          return readElements(new LinkedList<Object>(), readLength());
+        case HASH_SET: {
+          int size = readLength();
+          return readElements(new HashSet<Object>(Math.max(16, size * 4 / 3 + 1)), size);
+        }
+        case LINKED_HASH_SET: {
+          int size = readLength();
+          return readElements(new LinkedHashSet<Object>(Math.max(16, size * 4 / 3 + 1)), size);
+        }
+        case HASH_MAP: {
+          int size = readLength();
+          return readEntries(new HashMap<Object, Object>(Math.max(16, size * 4 / 3 + 1)), size);
+        }
+        case LINKED_HASH_MAP: {
+          int size = readLength();
+          return readEntries(new LinkedHashMap<Object, Object>(Math.max(16, size * 4 / 3 + 1)), size);
+        }
+        case SERIALIZABLE:
+          return javaDeserialize(readBytes());
+        default:
+          throw new NucleusException("Unknown type " + tag + " in serialized bytes");
+      }
+    }
+
+    private Collection<Object> readElements(Collection<Object> coll, int size) {
+      for (int i = 0; i < size; i++) {
+        coll.add(readValue());
+      }
+      return coll;
+    }
+
+    private Map<Object, Object> readEntries(Map<Object, Object> map, int size) {
+      for (int i = 0; i < size; i++) {
+        Object key = readValue();
+        map.put(key, readValue());
+      }
+      return map;
+    }
+
+    private Class<?> readClass() {
+      int id = readLength();
+      if (id > 0) {
+        return classes.get(id - 1);
+      }
+      String name = readString();
+      try {
+        Class<?> cls = Class.forName(name, false, loader);
+        classes.add(cls);
+        return cls;
+      } catch (ClassNotFoundException cnfe) {
+        throw new NucleusException("Received ClassNotFoundException deserializing a byte array.", cnfe);
+      }
+    }
+
+    private String readString() {
+      try {
+        return new String(readBytes(), "UTF-8");
+      } catch (IOException e) {
+        throw new NucleusException("UTF-8 is not supported", e);
+      }
+    }
+
+    private byte[] readBytes() {
+      int length = readLength();
+      if (length > bytes.length - pos) {
+        throw new NucleusException("Serialized bytes are truncated");
+      }
+      byte[] result = new byte[length];
+      System.arraycopy(bytes, pos, result, 0, length);
+      pos += length;
+      return result;
+    }
+
+    private int read() {
+      if (pos >= bytes.length) {
+        throw new NucleusException("Serialized bytes are truncated");
+      }
+      return bytes[pos++] & 0xFF;
+    }
+
+    private int readLength() {
+      long length = readVarLong();
+      if (length < 0 || length > Integer.MAX_VALUE) {
+        throw new NucleusException("Invalid length " + length + " in serialized bytes");
+      }
+      return (int) length;
+    }
+
+    private long readVarLong() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = read();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new NucleusException("Invalid number in serialized bytes");
+    }
+
+    private long readFixedLong() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | read();
+      }
+      return value;
+    }
+
+    private static long unZigZag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private Object javaDeserialize(byte[] data) {
+      try {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data)) {
+          @Override
+          protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+              return Class.forName(desc.getName(), false, loader);
+            } catch (ClassNotFoundException cnfe) {
+              return super.resolveClass(desc);
+            }
+          }
+        };
+        try {
+          return ois.readObject();
+        } finally {
+          ois.close();
+        }
+      } catch (IOException ioe) {
+        throw new NucleusException("Received IOException deserializing a byte array.", ioe);
+      } catch (ClassNotFoundException cnfe) {
+        throw new NucleusException(
+            "Received ClassNotFoundException deserializing a byte array.", cnfe);
+      }
+    }
+  }
+}
@@ -117,11 +117,15 @@ public class DatastoreConnectionFactoryImpl extends AbstractConnectionFactory {
           NucleusLogger.CONNECTION.debug("Created ManagedConnection using DatastoreService = " + datastoreService);
         }
       }
+      AsyncWriteManager asyncWriteManager = null;
+      if (datastoreManager.isAsyncWrites()) {
+        asyncWriteManager = new AsyncWriteManager(DatastoreServiceFactoryInternal.getAsyncDatastoreService(config));
+      }
       if (autoCreateTransaction) {
         datastoreXAResource = new DatastoreXAResource(
-            datastoreService, datastoreManager.getDefaultDatastoreTransactionOptions());
+            datastoreService, datastoreManager.getDefaultDatastoreTransactionOptions(), asyncWriteManager);
       } else {
-        datastoreXAResource = new EmulatedXAResource(datastoreService);
+        datastoreXAResource = new EmulatedXAResource(datastoreService, asyncWriteManager);
       }
     }
 
@@ -179,15 +183,19 @@ public class DatastoreConnectionFactoryImpl extends AbstractConnectionFactory {
     }
 
     public void close() {
-      // Take copy since listeners can de-register themselves at close
-      List<ManagedConnectionResourceListener> resourceListeners = new ArrayList(listeners);
-
-      for (ManagedConnectionResourceListener listener : resourceListeners) {
-        listener.managedConnectionPreClose();
-      }
-      // nothing to actually close
-      for (ManagedConnectionResourceListener listener : resourceListeners) {
-        listener.managedConnectionPostClose();
+      try {
+        awaitAsyncWrites();
+      } finally {
+        // Take copy since listeners can de-register themselves at close
+        List<ManagedConnectionResourceListener> resourceListeners = new ArrayList(listeners);
+
+        for (ManagedConnectionResourceListener listener : resourceListeners) {
+          listener.managedConnectionPreClose();
+        }
+        // nothing to actually close
+        for (ManagedConnectionResourceListener listener : resourceListeners) {
+          listener.managedConnectionPostClose();
+        }
       }
     }
 
@@ -208,11 +216,22 @@ public class DatastoreConnectionFactoryImpl extends AbstractConnectionFactory {
     }
 
     public void transactionFlushed() {
+      awaitAsyncWrites();
       for (ManagedConnectionResourceListener listener : listeners) {
         listener.transactionFlushed();
       }
     }
 
+    /**
+     * Join any writes that were issued asynchronously on this connection.
+     */
+    private void awaitAsyncWrites() {
+      AsyncWriteManager asyncWriteManager = ((EmulatedXAResource)datastoreXAResource).getAsyncWriteManager();
+      if (asyncWriteManager != null) {
+        asyncWriteManager.awaitAll();
+      }
+    }
+
     public void transactionPreClose() {
       for (ManagedConnectionResourceListener listener : listeners) {
         listener.transactionPreClose();
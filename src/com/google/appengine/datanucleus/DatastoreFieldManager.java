@@ -27,6 +27,7 @@ import org.datanucleus.metadata.EmbeddedMetaData;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.state.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
+import org.datanucleus.store.types.TypeManager;
 
 import java.util.LinkedList;
 
@@ -157,6 +158,19 @@ public abstract class DatastoreFieldManager extends AbstractFieldManager {
     return getStoreManager().getDatastoreClass(getClassMetaData().getFullClassName(), getClassLoaderResolver());
   }
 
+  /**
+   * Returns the codec converting values of the given basic member, reusing the one cached
+   * on the table where there is one.
+   */
+  TypeConversionUtils.MemberCodec getMemberCodec(AbstractMemberMetaData mmd) {
+    TypeManager typeMgr = ec.getNucleusContext().getTypeManager();
+    DatastoreTable table = getDatastoreTable();
+    if (table == null) {
+      return getStoreManager().getTypeConversionUtils().newMemberCodec(typeMgr, mmd);
+    }
+    return table.getMemberCodec(mmd, typeMgr);
+  }
+
   protected RuntimeException exceptionForUnexpectedKeyType(String fieldType, int fieldNumber) {
     return new IllegalStateException(fieldType + " for type " + getClassMetaData().getName()
             + " is of unexpected type " + getMetaData(fieldNumber).getType().getName()
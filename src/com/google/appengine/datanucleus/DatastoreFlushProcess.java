@@ -0,0 +1,78 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import java.util.List;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusOptimisticException;
+import org.datanucleus.flush.FlushOrdered;
+import org.datanucleus.flush.OperationQueue;
+import org.datanucleus.state.ObjectProvider;
+
+/**
+ * Flush process that flushes objects in the same order as {@link FlushOrdered}, with two optional additions.
+ * <ul>
+ * <li>When {@link DatastoreManager#BATCH_VERSION_CHECKS_PROPERTY} is enabled the versions of all versioned
+ * objects about to be flushed are checked with a single multi-key get. If any of the checks fail then nothing
+ * is flushed, and all of the failures are returned together.</li>
+ * <li>When {@link DatastoreManager#BATCH_UPDATES_PROPERTY} is enabled the puts of updated objects are held
+ * back by a {@link BatchUpdateManager} and written with multi-entity puts at the end of the flush.</li>
+ * </ul>
+ */
+public class DatastoreFlushProcess extends FlushOrdered {
+
+  @Override
+  public List<NucleusOptimisticException> execute(ExecutionContext ec, List<ObjectProvider> primaryOPs,
+      List<ObjectProvider> secondaryOPs, OperationQueue opQueue) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    DatastorePersistenceHandler handler = (DatastorePersistenceHandler) storeMgr.getPersistenceHandler();
+
+    if (storeMgr.isBatchVersionChecks()) {
+      List<ObjectProvider> ops = Utils.newArrayList();
+      if (primaryOPs != null) {
+        ops.addAll(primaryOPs);
+      }
+      if (secondaryOPs != null) {
+        ops.addAll(secondaryOPs);
+      }
+      List<NucleusOptimisticException> failures = handler.verifyVersions(ec, ops);
+      if (!failures.isEmpty()) {
+        handler.clearVerifiedVersions(ec);
+        return failures;
+      }
+    }
+
+    boolean batchUpdates = storeMgr.isBatchUpdates();
+    if (batchUpdates) {
+      handler.batchUpdateStart(ec);
+    }
+    boolean success = false;
+    try {
+      List<NucleusOptimisticException> result = super.execute(ec, primaryOPs, secondaryOPs, opQueue);
+      success = true;
+      return result;
+    } finally {
+      try {
+        if (batchUpdates) {
+          handler.batchUpdateEnd(ec, success);
+        }
+      } finally {
+        handler.clearVerifiedVersions(ec);
+      }
+    }
+  }
+}
@@ -21,6 +21,8 @@ import com.google.appengine.api.datastore.ReadPolicy;
 import com.google.appengine.api.datastore.ReadPolicy.Consistency;
 import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.datanucleus.mapping.DatastoreTable;
+import com.google.appengine.datanucleus.query.QueryPlanCache;
+import com.google.appengine.datanucleus.query.QueryResultCache;
 import com.google.appengine.datanucleus.scostore.FKListStore;
 import com.google.appengine.datanucleus.scostore.FKSetStore;
 
@@ -122,6 +124,13 @@ public class DatastoreManager extends MappedStoreManager {
   /** The name of the metadata extension that marks a field as unindexed. */
   public static final String UNINDEXED_PROPERTY = EXTENSION_PREFIX + "unindexed";
 
+  /**
+   * The name of the metadata extension that marks an owned collection as paged, giving the number of children
+   * read with each batch get. The collection is then not cached in its wrapper; iteration reads ahead a page
+   * at a time and a List get(i) only reads the page holding i.
+   */
+  public static final String PAGE_SIZE = EXTENSION_PREFIX + "page-size";
+
   public static final String DATASTORE_READ_CONSISTENCY_PROPERTY =
       "datanucleus.appengine.datastoreReadConsistency";
 
@@ -131,6 +140,166 @@ public class DatastoreManager extends MappedStoreManager {
   public static final String GET_EXTENT_CAN_RETURN_SUBCLASSES_PROPERTY =
       "datanucleus.appengine.getExtentCanReturnSubclasses";
 
+  /**
+   * Property to issue datastore puts and deletes asynchronously, joining them at flush/commit
+   * rather than waiting for each RPC in turn. Defaults to false.
+   */
+  public static final String DATASTORE_ASYNC_WRITES_PROPERTY = "datanucleus.appengine.datastoreAsyncWrites";
+
+  /**
+   * Property to allocate keys for a new object and its new owned children before anything is put, so that
+   * the whole graph can be written in a single batch put. Only honoured with a storageVersion of
+   * READ_OWNED_CHILD_KEYS_FROM_PARENTS. Defaults to false.
+   */
+  public static final String PREALLOCATE_KEYS_ON_INSERT_PROPERTY = "datanucleus.appengine.preallocateKeysOnInsert";
+
+  /**
+   * Property to check the versions of all versioned objects being flushed with a single multi-key get at the
+   * start of the flush, rather than with one get per object as it is written. Defaults to false.
+   */
+  public static final String BATCH_VERSION_CHECKS_PROPERTY = "datanucleus.appengine.batchVersionChecks";
+
+  /**
+   * Property to skip the datastore read when checking the version of an object whose entity was read in the
+   * current datastore transaction. The version is compared with the one read, and the transaction commit
+   * detects any later change. Defaults to false.
+   */
+  public static final String SKIP_VERSION_CHECK_IN_TXN_PROPERTY =
+      "datanucleus.appengine.skipVersionCheckForEntitiesReadInTxn";
+
+  /**
+   * Property to hold back the puts of updated objects during a flush, and write them together with
+   * multi-entity puts at the end of the flush (see {@link BatchUpdateManager}). Defaults to false.
+   */
+  public static final String BATCH_UPDATES_PROPERTY = "datanucleus.appengine.batchUpdates";
+
+  /**
+   * Property to store the number of children of each owned collection in an unindexed property of the owner
+   * entity, written whenever the child keys are, so that the size of a collection whose children are found by
+   * ancestor query can be read from the owner. Existing owners get the count when next updated, or from
+   * {@link Migrator}. Like the child keys, the count doesn't see children deleted directly rather than
+   * removed from the collection until the owner is next updated. Defaults to false.
+   */
+  public static final String OWNED_COLLECTION_SIZE_PROPERTY = "datanucleus.appengine.maintainOwnedCollectionSize";
+
+  /**
+   * Property to skip the put when updating an object whose entity has the same properties as when it was last
+   * read or written by this persistence manager, judged by a fingerprint (see {@link EntityFingerprint}) kept
+   * with the object. A change made to the entity by someone else in between is then left in place rather than
+   * overwritten. Defaults to false.
+   */
+  public static final String SKIP_UNCHANGED_PUTS_PROPERTY = "datanucleus.appengine.skipUnchangedPuts";
+
+  /**
+   * Property to answer size() of a query result that has not been read yet by counting the matching
+   * entities in the datastore, rather than creating an object for every result. Can be overridden per
+   * query with {@link #QUERYEXT_SIZE_BY_COUNT}. Defaults to false.
+   */
+  public static final String QUERY_SIZE_BY_COUNT_PROPERTY = "datanucleus.appengine.query.sizeByCount";
+
+  /**
+   * Property to record per-operation counts, latencies and payload sizes of the datastore calls made by the
+   * plugin, exposed through JMX (see {@link DatastoreRpcMetrics}). Defaults to false.
+   */
+  public static final String DATASTORE_RPC_METRICS_PROPERTY = "datanucleus.appengine.datastoreRpcMetrics";
+
+  /**
+   * Property naming a {@link DatastoreRpcListener} implementation to be told about each datastore call.
+   * The class needs a default constructor. Setting this also enables {@link #DATASTORE_RPC_METRICS_PROPERTY}.
+   */
+  public static final String DATASTORE_RPC_LISTENER_PROPERTY = "datanucleus.appengine.datastoreRpcListener";
+
+  /**
+   * Property to cache the entities returned by ancestor queries that have a range and run outside a transaction,
+   * invalidating the results for a kind whenever the plugin writes an entity of that kind (see
+   * {@link QueryResultCache}). Other queries are eventually consistent and are never cached. Writes made by other
+   * instances of the application aren't seen until a result expires (see {@link #QUERY_RESULT_CACHE_EXPIRY_PROPERTY}).
+   * Can be overridden per query with {@link #QUERYEXT_RESULT_CACHE}. Defaults to false.
+   */
+  public static final String QUERY_RESULT_CACHE_PROPERTY = "datanucleus.appengine.query.resultCache";
+
+  /** Property giving the maximum number of query results held by the query result cache. Defaults to 100. */
+  public static final String QUERY_RESULT_CACHE_MAX_SIZE_PROPERTY = "datanucleus.appengine.query.resultCache.maxSize";
+
+  /**
+   * Property giving the number of seconds a query result can be held for. Writes made by other instances of the
+   * application aren't seen until then. Defaults to 0, no limit.
+   */
+  public static final String QUERY_RESULT_CACHE_EXPIRY_PROPERTY =
+      "datanucleus.appengine.query.resultCache.expirySeconds";
+
+  /**
+   * Property to cache the parts of each query compilation that don't depend on parameter values, so that repeated
+   * executions only build the filters (see {@link QueryPlanCache}). Can be overridden per query with
+   * {@link #QUERYEXT_PLAN_CACHE}. Defaults to false.
+   */
+  public static final String QUERY_PLAN_CACHE_PROPERTY = "datanucleus.appengine.query.planCache";
+
+  /** Property giving the maximum number of plans held by the query plan cache. Defaults to 1000. */
+  public static final String QUERY_PLAN_CACHE_MAX_SIZE_PROPERTY = "datanucleus.appengine.query.planCache.maxSize";
+
+  /**
+   * Property to run queries with OR filters or IN filters as several datastore queries executed concurrently,
+   * merging their results. Allows OR filters with inequalities and IN filters with more values than the
+   * datastore accepts. Can be overridden per query with {@link #QUERYEXT_FAN_OUT}. Defaults to false.
+   */
+  public static final String QUERY_FAN_OUT_PROPERTY = "datanucleus.appengine.query.fanOut";
+
+  /** Property giving the maximum number of datastore queries a query can be split into. Defaults to 100. */
+  public static final String QUERY_FAN_OUT_MAX_QUERIES_PROPERTY = "datanucleus.appengine.query.fanOut.maxQueries";
+
+  /**
+   * Property giving the number of keys deleted per datastore call by a bulk delete query. The keys are read in
+   * pages of this size as the deletes proceed. Defaults to 500, the most the datastore accepts in one call.
+   */
+  public static final String BULK_DELETE_BATCH_SIZE_PROPERTY = "datanucleus.appengine.bulkDelete.batchSize";
+
+  /**
+   * Property giving the number of asynchronous deletes a bulk delete query can have in flight while it reads
+   * more keys. Defaults to 1, deleting each batch before reading the next.
+   */
+  public static final String BULK_DELETE_MAX_BATCHES_IN_FLIGHT_PROPERTY =
+      "datanucleus.appengine.bulkDelete.maxBatchesInFlight";
+
+  /**
+   * Property giving the number of keys per datastore get when loading the children of a collection from the
+   * child keys stored in its owner. Defaults to 1000, the most the datastore accepts in one call.
+   */
+  public static final String CHILD_FETCH_BATCH_SIZE_PROPERTY = "datanucleus.appengine.childFetch.batchSize";
+
+  /**
+   * Property giving the number of asynchronous gets for the children of a collection that can be in flight
+   * ahead of the batch being read. Defaults to 1, getting each batch when it is reached.
+   */
+  public static final String CHILD_FETCH_MAX_BATCHES_IN_FLIGHT_PROPERTY =
+      "datanucleus.appengine.childFetch.maxBatchesInFlight";
+
+  /**
+   * Property giving the number of ids left in a sequence's block of ids at which the next block is requested
+   * asynchronously, so that inserts don't wait on the datastore at the block boundary. Can be overridden per
+   * sequence with the "key-cache-low-water-mark" extension. Defaults to 0, fetching blocks only when exhausted.
+   * A prefetched block is only used if the thread that requested it exhausts the current block, otherwise it is
+   * abandoned and the next block is fetched synchronously.
+   */
+  public static final String SEQUENCE_PREFETCH_LOW_WATER_MARK_PROPERTY =
+      "datanucleus.appengine.sequence.prefetchLowWaterMark";
+
+  /**
+   * Property to enable a second level cache of entities, consulted for gets made outside a datastore transaction
+   * (see {@link EntityCache}). Either "memcache", "lru" (held in this JVM), or the name of an {@link EntityCache}
+   * implementation with a default constructor. Not set by default.
+   */
+  public static final String ENTITY_CACHE_PROPERTY = "datanucleus.appengine.entityCache";
+
+  /** Property giving a comma-separated list of the kinds to cache in the entity cache. All kinds by default. */
+  public static final String ENTITY_CACHE_KINDS_PROPERTY = "datanucleus.appengine.entityCache.kinds";
+
+  /** Property giving the maximum number of entities held by the "lru" entity cache. Defaults to 1000. */
+  public static final String ENTITY_CACHE_MAX_SIZE_PROPERTY = "datanucleus.appengine.entityCache.maxSize";
+
+  /** Property giving the number of seconds an entity can be held in the entity cache. Defaults to 0, no limit. */
+  public static final String ENTITY_CACHE_EXPIRY_PROPERTY = "datanucleus.appengine.entityCache.expirySeconds";
+
   /** Property to set the default type of relations ("owned", "unowned") with default as "owned". */
   public static final String RELATION_DEFAULT_MODE = "datanucleus.appengine.relationDefault";
 
@@ -178,6 +347,34 @@ public class DatastoreManager extends MappedStoreManager {
   /** Query extension to enable/disable use of in-memory evaluation when some syntax is unsupported in datastore. */
   public static final String QUERYEXT_INMEMORY_WHEN_UNSUPPORTED = EXTENSION_PREFIX + "inmemory-when-unsupported";
 
+  /**
+   * Query extension that requests a forward-only result. The result can be iterated once, and each object
+   * is released as soon as it has been returned, so that very large results can be walked without holding
+   * them all in memory. Access by index, size() and a second iterator are not supported, and any rows not
+   * read before the connection is closed are discarded rather than loaded.
+   */
+  public static final String QUERYEXT_FORWARD_ONLY = EXTENSION_PREFIX + "forward-only-results";
+
+  /** Query extension to enable/disable counting in the datastore for size() of an unread result. */
+  public static final String QUERYEXT_SIZE_BY_COUNT = EXTENSION_PREFIX + "size-by-count";
+
+  /** Query extension to use the query result cache for this query, see {@link #QUERY_RESULT_CACHE_PROPERTY}. */
+  public static final String QUERYEXT_RESULT_CACHE = EXTENSION_PREFIX + "result-cache";
+
+  /** Query extension to use the query plan cache for this query, see {@link #QUERY_PLAN_CACHE_PROPERTY}. */
+  public static final String QUERYEXT_PLAN_CACHE = EXTENSION_PREFIX + "plan-cache";
+
+  /** Query extension to split this query into concurrent datastore queries, see {@link #QUERY_FAN_OUT_PROPERTY}. */
+  public static final String QUERYEXT_FAN_OUT = EXTENSION_PREFIX + "fan-out";
+
+  /**
+   * Query extension giving the number of results left to read in a chunk at which the next chunk of a query
+   * without a limit is requested, so that it is fetched while the current chunk is being processed. The chunk
+   * size is the fetch size of the fetch plan. Not set by default, fetching each chunk once the previous one
+   * has been read.
+   */
+  public static final String QUERYEXT_CHUNK_PREFETCH = EXTENSION_PREFIX + "chunk-prefetch-threshold";
+
   /**
    * Classes whose metadata we've validated.  This set gets hit on every
    * insert, update, and fetch.  I don't expect it to be a bottleneck but
@@ -189,7 +386,30 @@ public class DatastoreManager extends MappedStoreManager {
   private final Map<String, AbstractMemberMetaData> parentMemberMetaDataByClass =
     new ConcurrentHashMap<String, AbstractMemberMetaData>();
 
+  /**
+   * Map of the fully built tables keyed by class name, so that lookups of classes that have already been
+   * initialised don't need the lock in {@link #getDatastoreClass(String, ClassLoaderResolver)}.
+   */
+  private final Map<String, DatastoreTable> datastoreClassByClassName = new ConcurrentHashMap<String, DatastoreTable>();
+
+  /** Depth of nested calls to initialise tables. Only accessed while holding the lock on this object. */
+  private int datastoreClassInitDepth = 0;
+
   private final boolean defaultToOwnedRelations;
+  private final boolean asyncWrites;
+  private final boolean preallocateKeysOnInsert;
+  private final boolean skipVersionCheckInTxn;
+  private final boolean batchVersionChecks;
+  private final boolean batchUpdates;
+  private final boolean maintainOwnedCollectionSize;
+  private final boolean skipUnchangedPuts;
+  private final boolean rpcMetrics;
+  private final DatastoreRpcListener rpcListener;
+  private final EntityCache entityCache;
+  private final QueryResultCache queryResultCache;
+  private final QueryPlanCache queryPlanCache;
+  /** Kinds to hold in the entity cache, or null for all kinds. */
+  private final Set<String> entityCacheKinds;
   private final TypeConversionUtils typeConversionUtils;
   private final StorageVersion storageVersion;
   private final DatastoreServiceConfig defaultDatastoreServiceConfigPrototypeForReads;
@@ -248,6 +468,47 @@ public class DatastoreManager extends MappedStoreManager {
     String defaultRelationMode = getStringProperty(RELATION_DEFAULT_MODE);
     defaultToOwnedRelations = defaultRelationMode.equalsIgnoreCase("unowned") ? false : true;
 
+    asyncWrites = getBooleanProperty(DATASTORE_ASYNC_WRITES_PROPERTY, false);
+    preallocateKeysOnInsert = getBooleanProperty(PREALLOCATE_KEYS_ON_INSERT_PROPERTY, false) &&
+        storageVersionAtLeast(StorageVersion.READ_OWNED_CHILD_KEYS_FROM_PARENTS);
+    skipVersionCheckInTxn = getBooleanProperty(SKIP_VERSION_CHECK_IN_TXN_PROPERTY, false);
+    batchVersionChecks = getBooleanProperty(BATCH_VERSION_CHECKS_PROPERTY, false);
+    batchUpdates = getBooleanProperty(BATCH_UPDATES_PROPERTY, false);
+    maintainOwnedCollectionSize = getBooleanProperty(OWNED_COLLECTION_SIZE_PROPERTY, false);
+    skipUnchangedPuts = getBooleanProperty(SKIP_UNCHANGED_PUTS_PROPERTY, false);
+    if (batchVersionChecks || batchUpdates) {
+      flushProcess = new DatastoreFlushProcess();
+    }
+
+    rpcListener = createRpcListener(clr, getStringProperty(DATASTORE_RPC_LISTENER_PROPERTY));
+    rpcMetrics = getBooleanProperty(DATASTORE_RPC_METRICS_PROPERTY, false) || rpcListener != null;
+    if (rpcListener != null) {
+      DatastoreRpcMetrics.getInstance().addListener(rpcListener);
+    } else if (rpcMetrics) {
+      DatastoreRpcMetrics.getInstance().enable();
+    }
+
+    entityCache = createEntityCache(clr, getStringProperty(ENTITY_CACHE_PROPERTY),
+        getIntProperty(ENTITY_CACHE_MAX_SIZE_PROPERTY), getIntProperty(ENTITY_CACHE_EXPIRY_PROPERTY));
+    String cacheKinds = getStringProperty(ENTITY_CACHE_KINDS_PROPERTY);
+    if (cacheKinds != null && cacheKinds.trim().length() > 0) {
+      entityCacheKinds = Utils.newHashSet();
+      for (String kind : cacheKinds.split(",")) {
+        if (kind.trim().length() > 0) {
+          entityCacheKinds.add(kind.trim());
+        }
+      }
+    } else {
+      entityCacheKinds = null;
+    }
+
+    int queryResultCacheSize = getIntProperty(QUERY_RESULT_CACHE_MAX_SIZE_PROPERTY);
+    queryResultCache = new QueryResultCache(queryResultCacheSize > 0 ? queryResultCacheSize : 100,
+        getIntProperty(QUERY_RESULT_CACHE_EXPIRY_PROPERTY));
+
+    int queryPlanCacheSize = getIntProperty(QUERY_PLAN_CACHE_MAX_SIZE_PROPERTY);
+    queryPlanCache = new QueryPlanCache(queryPlanCacheSize > 0 ? queryPlanCacheSize : 1000);
+
     String bigDecimalsEncoding = getStringProperty(BIG_DECIMALS_ENCODEING);
     typeConversionUtils =
         "String".equalsIgnoreCase(bigDecimalsEncoding) ? new TypeConversionUtils(true)
@@ -265,9 +526,44 @@ public class DatastoreManager extends MappedStoreManager {
   @Override
   public void close() {
     validatedClasses.clear();
+    datastoreClassByClassName.clear();
+    if (rpcListener != null) {
+      DatastoreRpcMetrics.getInstance().removeListener(rpcListener);
+    } else if (rpcMetrics) {
+      DatastoreRpcMetrics.getInstance().disable();
+    }
     super.close();
   }
 
+  private static EntityCache createEntityCache(ClassLoaderResolver clr, String cacheType, int maxSize,
+      int expirySeconds) {
+    if (cacheType == null || cacheType.trim().length() == 0 || cacheType.trim().equalsIgnoreCase("none")) {
+      return null;
+    } else if (cacheType.trim().equalsIgnoreCase("memcache")) {
+      return new MemcacheEntityCache(expirySeconds);
+    } else if (cacheType.trim().equalsIgnoreCase("lru")) {
+      return new LruEntityCache(maxSize > 0 ? maxSize : 1000, expirySeconds);
+    }
+    try {
+      return (EntityCache) clr.classForName(cacheType.trim()).newInstance();
+    } catch (Exception e) {
+      throw new NucleusFatalUserException(
+          "Unable to create " + ENTITY_CACHE_PROPERTY + " " + cacheType + " : " + e, e);
+    }
+  }
+
+  private static DatastoreRpcListener createRpcListener(ClassLoaderResolver clr, String listenerClassName) {
+    if (listenerClassName == null || listenerClassName.trim().length() == 0) {
+      return null;
+    }
+    try {
+      return (DatastoreRpcListener) clr.classForName(listenerClassName.trim()).newInstance();
+    } catch (Exception e) {
+      throw new NucleusFatalUserException(
+          "Unable to create " + DATASTORE_RPC_LISTENER_PROPERTY + " " + listenerClassName + " : " + e, e);
+    }
+  }
+
   public SerializationManager getSerializationManager() {
     if (serializationMgr == null) {
       serializationMgr = new SerializationManager();
@@ -279,6 +575,102 @@ public class DatastoreManager extends MappedStoreManager {
     return defaultToOwnedRelations;
   }
 
+  /**
+   * Accessor for whether puts and deletes are issued asynchronously (see {@link AsyncWriteManager}).
+   * @return Whether async writes are enabled
+   */
+  public boolean isAsyncWrites() {
+    return asyncWrites;
+  }
+
+  /**
+   * Accessor for whether keys are allocated up front when inserting an object graph, so that the
+   * graph goes to the datastore in one batch put.
+   * @return Whether keys are preallocated on insert
+   */
+  public boolean isPreallocateKeysOnInsert() {
+    return preallocateKeysOnInsert;
+  }
+
+  /**
+   * Accessor for whether the version check of an object can be made against the version read in the
+   * current datastore transaction, without reading the entity again.
+   * @return Whether to skip the version read for entities read in the current txn
+   */
+  public boolean isSkipVersionCheckInTxn() {
+    return skipVersionCheckInTxn;
+  }
+
+  /**
+   * Accessor for whether the versions of the objects in a flush are checked with one multi-key get.
+   * @return Whether version checks are batched
+   */
+  public boolean isBatchVersionChecks() {
+    return batchVersionChecks;
+  }
+
+  /**
+   * Accessor for whether the puts of updated objects are held back and written in batches at the end of a flush.
+   * @return Whether updates are batched
+   */
+  public boolean isBatchUpdates() {
+    return batchUpdates;
+  }
+
+  /**
+   * Accessor for whether owner entities hold the number of children of their owned collections.
+   * @return Whether owned collection sizes are stored in the owner
+   */
+  public boolean isMaintainOwnedCollectionSize() {
+    return maintainOwnedCollectionSize;
+  }
+
+  /**
+   * Accessor for whether updates that leave an entity as it was read or last written skip their put.
+   * @return Whether unchanged puts are skipped
+   */
+  public boolean isSkipUnchangedPuts() {
+    return skipUnchangedPuts;
+  }
+
+  /**
+   * Accessor for the entity cache to use for entities of the supplied kind.
+   * @param kind The kind
+   * @return The entity cache, or null if entities of this kind aren't cached
+   */
+  public EntityCache getEntityCache(String kind) {
+    if (entityCache == null || (entityCacheKinds != null && !entityCacheKinds.contains(kind))) {
+      return null;
+    }
+    return entityCache;
+  }
+
+  /**
+   * Accessor for the query result cache. Always available, since individual queries can opt in with
+   * {@link #QUERYEXT_RESULT_CACHE}.
+   * @return The query result cache
+   */
+  public QueryResultCache getQueryResultCache() {
+    return queryResultCache;
+  }
+
+  /**
+   * Accessor for the query plan cache. Always available, since individual queries can opt in with
+   * {@link #QUERYEXT_PLAN_CACHE}.
+   * @return The query plan cache
+   */
+  public QueryPlanCache getQueryPlanCache() {
+    return queryPlanCache;
+  }
+
+  /**
+   * Accessor for whether puts may be held back in the {@link KeyRegistry} to be written later in one batch.
+   * @return Whether put buffering can be used
+   */
+  boolean isPutBufferingEnabled() {
+    return preallocateKeysOnInsert || batchUpdates;
+  }
+
   /**
    * Convenience method to log the configuration of this store manager.
    */
@@ -290,6 +682,21 @@ public class DatastoreManager extends MappedStoreManager {
     {
         NucleusLogger.DATASTORE.debug("StorageVersion : " + storageVersion.toString());
         NucleusLogger.DATASTORE.debug("Default Relation Mode : " + getStringProperty(RELATION_DEFAULT_MODE));
+        NucleusLogger.DATASTORE.debug("Async Writes : " + asyncWrites);
+        NucleusLogger.DATASTORE.debug("Preallocate Keys On Insert : " + preallocateKeysOnInsert);
+        NucleusLogger.DATASTORE.debug("Batch Updates : " + batchUpdates);
+        NucleusLogger.DATASTORE.debug("Maintain Owned Collection Size : " + maintainOwnedCollectionSize);
+        NucleusLogger.DATASTORE.debug("Skip Unchanged Puts : " + skipUnchangedPuts);
+        NucleusLogger.DATASTORE.debug("Entity Cache : " + (entityCache != null ? entityCache.getClass().getName() +
+            (entityCacheKinds != null ? " for kinds " + entityCacheKinds : "") : "none"));
+        NucleusLogger.DATASTORE.debug("Query Result Cache : " + getBooleanProperty(QUERY_RESULT_CACHE_PROPERTY));
+        NucleusLogger.DATASTORE.debug("Query Plan Cache : " + getBooleanProperty(QUERY_PLAN_CACHE_PROPERTY));
+        NucleusLogger.DATASTORE.debug("Query Fan Out : " + getBooleanProperty(QUERY_FAN_OUT_PROPERTY));
+        NucleusLogger.DATASTORE.debug("Sequence Prefetch Low Water Mark : " +
+            getIntProperty(SEQUENCE_PREFETCH_LOW_WATER_MARK_PROPERTY));
+        NucleusLogger.DATASTORE.debug("Datastore RPC Metrics : " + rpcMetrics +
+            (rpcListener != null ? " (listener " + rpcListener.getClass().getName() + ")" : ""));
+        NucleusLogger.DATASTORE.debug("Flush Process : " + flushProcess.getClass().getName());
         NucleusLogger.DATASTORE.debug("===========================================================");
     }
   }
@@ -515,15 +922,29 @@ public class DatastoreManager extends MappedStoreManager {
 
   @Override
   public DatastoreTable getDatastoreClass(String className, ClassLoaderResolver clr) {
+    DatastoreTable table = datastoreClassByClassName.get(className);
+    if (table != null) {
+      return table;
+    }
+
     try {
       // We see the occasional race condition when multiple threads concurrently
       // perform an operation using a persistence-capable class for which DataNucleus
       // has not yet generated the meta-data.  The result is usually
       // AbstractMemberMetaData objects with the same column listed twice in the meta-data.
-      // Locking at this level is a bit more coarse-grained than I'd like but once the
-      // meta-data has been built this will return super fast so it shouldn't be an issue.
+      // So we lock while the table is initialised, and only publish it for lock-free lookup once
+      // the outermost call has returned, since a nested call can see a table that is still being built.
       synchronized(this) {
-        return (DatastoreTable) super.getDatastoreClass(className, clr);
+        datastoreClassInitDepth++;
+        try {
+          table = (DatastoreTable) super.getDatastoreClass(className, clr);
+        } finally {
+          datastoreClassInitDepth--;
+        }
+        if (table != null && datastoreClassInitDepth == 0) {
+          datastoreClassByClassName.put(className, table);
+        }
+        return table;
       }
     } catch (NoTableManagedException e) {
       // Our parent class throws this when the class isn't PersistenceCapable also.
@@ -15,10 +15,12 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus;
 
+import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
 import com.google.appengine.datanucleus.mapping.DatastoreTable;
 import com.google.appengine.datanucleus.mapping.DependentDeleteRequest;
 import com.google.appengine.datanucleus.mapping.FetchMappingConsumer;
@@ -55,9 +57,11 @@ import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -135,6 +139,11 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
 
   private final Map<ExecutionContext, BatchDeleteManager> batchDeleteManagerByExecutionContext = new ConcurrentHashMap();
 
+  private final Map<ExecutionContext, BatchUpdateManager> batchUpdateManagerByExecutionContext = new ConcurrentHashMap();
+
+  /** Keys of the entities whose version was checked at the start of the current flush, keyed by ExecutionContext. */
+  private final Map<ExecutionContext, Set<Key>> verifiedVersionKeysByExecutionContext = new ConcurrentHashMap();
+
   private final DatastoreManager datastoreMgr;
 
   /**
@@ -166,6 +175,15 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     return deleteMgr;
   }
 
+  protected BatchUpdateManager getBatchUpdateManager(ExecutionContext ec) {
+    BatchUpdateManager updateMgr = batchUpdateManagerByExecutionContext.get(ec);
+    if (updateMgr == null) {
+      updateMgr = new BatchUpdateManager(ec);
+      batchUpdateManagerByExecutionContext.put(ec, updateMgr);
+    }
+    return updateMgr;
+  }
+
   /* (non-Javadoc)
    * @see org.datanucleus.store.AbstractPersistenceHandler#batchStart(org.datanucleus.store.ExecutionContext, org.datanucleus.store.PersistenceBatchType)
    */
@@ -194,6 +212,33 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     }
   }
 
+  /**
+   * Method to start holding back the puts of updated objects so that they are written in batches
+   * (see {@link DatastoreManager#BATCH_UPDATES_PROPERTY}). Called by {@link DatastoreFlushProcess}
+   * since DataNucleus has no batch type for updates.
+   * @param ec ExecutionContext
+   */
+  void batchUpdateStart(ExecutionContext ec) {
+    getBatchUpdateManager(ec).start();
+  }
+
+  /**
+   * Method to end a batch of updates started by {@link #batchUpdateStart(ExecutionContext)}.
+   * @param ec ExecutionContext
+   * @param write Whether to write the held back puts, or discard them because the flush failed
+   */
+  void batchUpdateEnd(ExecutionContext ec, boolean write) {
+    try {
+      if (write) {
+        getBatchUpdateManager(ec).finish();
+      } else {
+        getBatchUpdateManager(ec).abandon();
+      }
+    } finally {
+      batchUpdateManagerByExecutionContext.remove(ec);
+    }
+  }
+
   /**
    * Method to insert the specified managed object into the datastore.
    * @param op ObjectProvider for the managed object
@@ -217,6 +262,12 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * Method to perform the work of inserting the specified objects. If multiple are to be inserted then
    * performs it initially as a batch PUT. If some of these need subsequent work (e.g forcing the persist of 
    * children followed by a repersist to link to the children) then this is done one-by-one.
+   * <p>
+   * When {@link DatastoreManager#PREALLOCATE_KEYS_ON_INSERT_PROPERTY} is enabled, an object with relations to
+   * store, and its new owned children, are given keys from <i>allocateIds</i> up front. The initial PUT of such
+   * an object is then skipped, and the puts of the object and everything persisted along with it are held back
+   * in the {@link KeyRegistry} and written as one batch PUT at the end.
+   * </p>
    */
   void insertObjectsInternal(List<ObjectProvider> opsToInsert) {
     if (opsToInsert == null || opsToInsert.isEmpty()) {
@@ -225,6 +276,8 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
 
     // All must be in same ExecutionContext
     ExecutionContext ec = opsToInsert.get(0).getExecutionContext();
+    boolean preallocateKeys = datastoreMgr.isPreallocateKeysOnInsert();
+    KeyRegistry keyReg = preallocateKeys ? KeyRegistry.getKeyRegistry(ec) : null;
     List<PutState> putStateList = Utils.newArrayList();
     for (ObjectProvider op : opsToInsert) {
       AbstractClassMetaData cmd = op.getClassMetaData();
@@ -237,6 +290,9 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
 
       // Make sure the Entity parent is set (if any)
       Object assignedParentPk = fieldMgr.establishEntityGroup();
+      if (preallocateKeys) {
+        preallocateKeys(op, fieldMgr, keyReg);
+      }
       Entity entity = fieldMgr.getEntity();
 
       if (!datastoreMgr.storageVersionAtLeast(StorageVersion.READ_OWNED_CHILD_KEYS_FROM_PARENTS)) {
@@ -287,10 +343,46 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
         op.replaceField(parentPkMmd.getAbsoluteFieldNumber(), assignedParentPk);
       }
 
-      // Add the "state" for this put to the list.
-      putStateList.add(new PutState(op, fieldMgr, entity));
+      // Add the "state" for this put to the list. When the key is already known and there are relations to store
+      // we don't need an initial put, since the only put can happen once the child keys are set.
+      boolean deferPut = preallocateKeys && entity.getKey().isComplete() && fieldMgr.hasRelationsToStore();
+      putStateList.add(new PutState(op, fieldMgr, entity, deferPut));
     }
 
+    // Start holding back puts if we are the outermost insert of an object graph with preallocated keys
+    boolean bufferingPuts = false;
+    if (preallocateKeys && !keyReg.isBufferingPuts()) {
+      for (PutState putState : putStateList) {
+        if (putState.deferPut) {
+          keyReg.startBufferingPuts();
+          bufferingPuts = true;
+          break;
+        }
+      }
+    }
+
+    try {
+      insertEntities(ec, putStateList);
+
+      if (bufferingPuts) {
+        // PUT the whole object graph in single call
+        EntityUtils.flushBufferedPuts(ec);
+      }
+    } finally {
+      if (bufferingPuts) {
+        keyReg.stopBufferingPuts();
+        keyReg.clearPreallocatedKeys();
+      }
+    }
+  }
+
+  /**
+   * Method to put the entities for the supplied states, and then perform all post-processing (setting of ids,
+   * storing of relations etc).
+   * @param ec ExecutionContext
+   * @param putStateList The states of the objects being inserted
+   */
+  private void insertEntities(ExecutionContext ec, List<PutState> putStateList) {
     // PUT all entities in single call
     if (!putStateList.isEmpty()) {
       DatastoreTransaction txn = null;
@@ -303,12 +395,19 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
         if (acmd == null) {
           acmd = putState.op.getClassMetaData();
         }
-        entityList.add(putState.entity);
+        if (!putState.deferPut) {
+          entityList.add(putState.entity);
+        }
       }
 
-      EntityUtils.putEntitiesIntoDatastore(ec, entityList);
+      if (!entityList.isEmpty()) {
+        EntityUtils.putEntitiesIntoDatastore(ec, entityList);
+      }
       for (PutState putState : putStateList) {
         putState.op.setAssociatedValue(txn, putState.entity);
+        if (datastoreMgr.isSkipUnchangedPuts() && !putState.deferPut) {
+          EntityFingerprint.record(putState.op, putState.entity);
+        }
       }
     }
 
@@ -320,28 +419,8 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
       // If the pk field is a String, convert the Key to a String, similarly for long.
       // Assumes we only have a single pk member position
       Object newId = null;
-      Class pkType = null;
-      boolean identityStrategyUsed = false;
-      if (cmd.pkIsDatastoreAttributed(storeMgr)) {
-        if (cmd.getIdentityType() == IdentityType.APPLICATION) {
-          // Assume only 1 PK field
-          identityStrategyUsed = true;
-          pkType = cmd.getMetaDataForManagedMemberAtAbsolutePosition(cmd.getPKMemberPositions()[0]).getType();
-        } else if (cmd.getIdentityType() == IdentityType.DATASTORE) {
-          identityStrategyUsed = true;
-          pkType = Key.class;
-          ColumnMetaData colmd = cmd.getIdentityMetaData().getColumnMetaData();
-          if (colmd != null) {
-            if ("varchar".equalsIgnoreCase(colmd.getJdbcType()) || "char".equalsIgnoreCase(colmd.getJdbcType())) {
-              pkType = String.class;
-            } else if ("integer".equalsIgnoreCase(colmd.getJdbcType()) || "numeric".equalsIgnoreCase(colmd.getJdbcType())) {
-              pkType = Long.class;
-            }
-          }
-        }
-      }
-
-      if (identityStrategyUsed) {
+      Class pkType = getDatastoreAttributedPkType(cmd);
+      if (pkType != null) {
         // Update the identity of the object with the datastore-assigned id
         if (pkType.equals(Key.class)) {
           newId = putState.entity.getKey();
@@ -359,7 +438,7 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
       }
 
       // Update relation fields (including cascade-persist etc)
-      if (putState.fieldMgr.storeRelations(KeyRegistry.getKeyRegistry(ec))) {
+      if (putState.fieldMgr.storeRelations(KeyRegistry.getKeyRegistry(ec)) || putState.deferPut) {
         // PUT Entity into datastore with these changes
         EntityUtils.putEntityIntoDatastore(ec, putState.entity);
       }
@@ -372,6 +451,155 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     }
   }
 
+  /**
+   * Accessor for the type of the PK when it is assigned by the datastore.
+   * Assumes we only have a single pk member position.
+   * @param cmd Metadata for the class
+   * @return The PK type, or null if the PK isn't datastore-attributed
+   */
+  private Class getDatastoreAttributedPkType(AbstractClassMetaData cmd) {
+    Class pkType = null;
+    if (cmd.pkIsDatastoreAttributed(storeMgr)) {
+      if (cmd.getIdentityType() == IdentityType.APPLICATION) {
+        // Assume only 1 PK field
+        pkType = cmd.getMetaDataForManagedMemberAtAbsolutePosition(cmd.getPKMemberPositions()[0]).getType();
+      } else if (cmd.getIdentityType() == IdentityType.DATASTORE) {
+        pkType = Key.class;
+        ColumnMetaData colmd = cmd.getIdentityMetaData().getColumnMetaData();
+        if (colmd != null) {
+          if ("varchar".equalsIgnoreCase(colmd.getJdbcType()) || "char".equalsIgnoreCase(colmd.getJdbcType())) {
+            pkType = String.class;
+          } else if ("integer".equalsIgnoreCase(colmd.getJdbcType()) || "numeric".equalsIgnoreCase(colmd.getJdbcType())) {
+            pkType = Long.class;
+          }
+        }
+      }
+    }
+    return pkType;
+  }
+
+  /**
+   * Convenience method for whether objects of this class can be given a key from <i>allocateIds</i>.
+   * That requires the datastore to be assigning the id, and the PK to be able to hold a numeric id.
+   * @param cmd Metadata for the class
+   * @return Whether we can preallocate a key
+   */
+  private boolean canPreallocateKey(AbstractClassMetaData cmd) {
+    Class pkType = getDatastoreAttributedPkType(cmd);
+    if (pkType == null) {
+      return false;
+    } else if (pkType.equals(String.class)) {
+      return MetaDataUtils.hasEncodedPKField(cmd);
+    }
+    return true;
+  }
+
+  /**
+   * Method to give a new object a key allocated in advance, when it has relations to store (so would otherwise
+   * need putting just to get its key), or when one was allocated for it by its parent. If the object then has a
+   * complete key, keys are also allocated for its new owned children.
+   * @param op ObjectProvider of the object being inserted
+   * @param fieldMgr The field manager holding its Entity
+   * @param keyReg The KeyRegistry
+   */
+  private void preallocateKeys(ObjectProvider op, StoreFieldManager fieldMgr, KeyRegistry keyReg) {
+    Key key = fieldMgr.getEntity().getKey();
+    if (!key.isComplete()) {
+      Key preallocatedKey = keyReg.getPreallocatedKey(op.getObject());
+      if (preallocatedKey == null && fieldMgr.hasRelationsToStore() && canPreallocateKey(op.getClassMetaData())) {
+        preallocatedKey = allocateKeys(op.getExecutionContext(), key.getParent(), key.getKind(), 1).get(0);
+      }
+      if (preallocatedKey != null && preallocatedKey.getKind().equals(key.getKind()) &&
+          (key.getParent() == null ? preallocatedKey.getParent() == null :
+            key.getParent().equals(preallocatedKey.getParent()))) {
+        fieldMgr.assignPreallocatedKey(preallocatedKey);
+        key = preallocatedKey;
+      }
+    }
+
+    if (key.isComplete() && fieldMgr.hasRelationsToStore()) {
+      preallocateChildKeys(op, key, keyReg);
+    }
+  }
+
+  /**
+   * Method to allocate keys for the new owned children of an object, using one <i>allocateIds</i> call per kind.
+   * @param op ObjectProvider of the parent object
+   * @param parentKey Key of the parent
+   * @param keyReg The KeyRegistry to register the allocated keys with
+   */
+  private void preallocateChildKeys(ObjectProvider op, Key parentKey, KeyRegistry keyReg) {
+    ExecutionContext ec = op.getExecutionContext();
+    ClassLoaderResolver clr = ec.getClassLoaderResolver();
+    AbstractClassMetaData acmd = op.getClassMetaData();
+    int[] relationFieldNums = acmd.getRelationMemberPositions(clr, ec.getMetaDataManager());
+    if (relationFieldNums == null) {
+      return;
+    }
+
+    DatastoreTable table = datastoreMgr.getDatastoreClass(acmd.getFullClassName(), clr);
+    Map<String, List<Object>> newChildrenByKind = Utils.newHashMap();
+    for (int i = 0; i < relationFieldNums.length; i++) {
+      AbstractMemberMetaData mmd = acmd.getMetaDataForManagedMemberAtAbsolutePosition(relationFieldNums[i]);
+      if (!MetaDataUtils.isOwnedRelation(mmd, datastoreMgr) || table.isParentKeyProvider(mmd)) {
+        continue;
+      }
+
+      Object value = op.provideField(mmd.getAbsoluteFieldNumber());
+      if (value == null || value instanceof Map) {
+        continue;
+      }
+      Iterable children;
+      if (value instanceof Object[]) {
+        children = Arrays.asList((Object[]) value);
+      } else if (value instanceof Iterable) {
+        children = (Iterable) value;
+      } else {
+        children = Collections.singleton(value);
+      }
+
+      for (Object child : children) {
+        if (child == null || !ec.getApiAdapter().isPersistable(child) || ec.getApiAdapter().isPersistent(child) ||
+            ec.getApiAdapter().isDetached(child) || keyReg.getPreallocatedKey(child) != null) {
+          continue;
+        }
+        AbstractClassMetaData childCmd = ec.getMetaDataManager().getMetaDataForClass(child.getClass(), clr);
+        if (childCmd == null || !canPreallocateKey(childCmd)) {
+          continue;
+        }
+        String kind = EntityUtils.determineKind(childCmd, ec);
+        List<Object> kindChildren = newChildrenByKind.get(kind);
+        if (kindChildren == null) {
+          kindChildren = Utils.newArrayList();
+          newChildrenByKind.put(kind, kindChildren);
+        }
+        kindChildren.add(child);
+      }
+    }
+
+    for (Map.Entry<String, List<Object>> entry : newChildrenByKind.entrySet()) {
+      List<Object> children = entry.getValue();
+      List<Key> keys = allocateKeys(ec, parentKey, entry.getKey(), children.size());
+      for (int i = 0; i < children.size(); i++) {
+        keyReg.registerPreallocatedKey(children.get(i), keys.get(i));
+      }
+    }
+  }
+
+  private List<Key> allocateKeys(ExecutionContext ec, Key parentKey, String kind, int num) {
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Allocating " + num + " keys of kind " + kind + 
+          (parentKey != null ? " with parent " + parentKey : ""));
+    }
+    DatastoreService ds = datastoreMgr.getDatastoreService(ec);
+    KeyRange range = parentKey == null ? ds.allocateIds(kind, num) : ds.allocateIds(parentKey, kind, num);
+    List<Key> keys = Utils.newArrayList();
+    for (Key key : range) {
+      keys.add(key);
+    }
+    return keys;
+  }
+
   /**
    * Method to update the specified fields of the managed object in the datastore.
    * @param op ObjectProvider of the managed object
@@ -420,8 +648,19 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     // Update relation fields (including cascade-persist etc)
     fieldMgr.storeRelations(KeyRegistry.getKeyRegistry(op.getExecutionContext()));
 
-    // PUT Entity into datastore
-    DatastoreTransaction txn = EntityUtils.putEntityIntoDatastore(ec, entity);
+    // PUT Entity into datastore, unless it is just as it was last read or written
+    DatastoreTransaction txn;
+    if (datastoreMgr.isSkipUnchangedPuts() && EntityFingerprint.isUnchanged(op, entity)) {
+      if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_PERSIST.debug("Entity with key " + entity.getKey() + " is unchanged so not put");
+      }
+      txn = datastoreMgr.getDatastoreTransaction(ec);
+    } else {
+      txn = EntityUtils.putEntityIntoDatastore(ec, entity);
+      if (datastoreMgr.isSkipUnchangedPuts()) {
+        EntityFingerprint.record(op, entity);
+      }
+    }
     op.setAssociatedValue(txn, entity);
 
     op.replaceAllLoadedSCOFieldsWithWrappers();
@@ -569,6 +808,7 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
         versionValue = new Timestamp((Long)versionValue);
       }
       op.setVersion(versionValue);
+      EntityUtils.registerReadVersion(op.getExecutionContext(), entity.getKey(), versionValue);
     }
 
     // Run post-fetch mapping callbacks. What is this actually achieving?
@@ -661,7 +901,22 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
       ExecutionContext ec = op.getExecutionContext();
       String versionPropertyName = EntityUtils.getVersionPropertyName(datastoreMgr.getIdentifierFactory(), vmd);
       Object curVersion = op.getVersion();
-      if (curVersion != null) {
+      DatastoreTransaction txn = datastoreMgr.getDatastoreTransaction(ec);
+      Set<Object> knownVersions = null;
+      if (curVersion != null && datastoreMgr.isSkipVersionCheckInTxn() && txn != null) {
+        knownVersions = txn.getKnownVersions(entity.getKey());
+      }
+
+      if (curVersion != null && consumeVerifiedVersion(ec, entity.getKey())) {
+        // Already checked at the start of this flush
+      } else if (knownVersions != null) {
+        // Entity was read in this txn, so the commit will fail if anyone changes it underneath us.
+        // We just need to check that the object hasn't come from somewhere older
+        if (!knownVersions.contains(curVersion)) {
+          throw new NucleusOptimisticException(GAE_LOCALISER.msg("AppEngine.OptimisticError.EntityHasBeenUpdated", operation,
+              cmd.getFullClassName(), entity.getKey()));
+        }
+      } else if (curVersion != null) {
         // Fetch the latest and greatest version of the entity from the datastore
         // to see if anyone has made a change underneath us.  We need to execute
         // the fetch outside a txn to guarantee that we see the latest version.
@@ -673,6 +928,11 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
           if (ec.getStatistics() != null) {
             ec.getStatistics().incrementNumReads();
           }
+          EntityUtils.flushBufferedPuts(ec, Collections.singletonList(entity.getKey()));
+          AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+          if (asyncWriteMgr != null) {
+            asyncWriteMgr.awaitKeys(Collections.singletonList(entity.getKey()));
+          }
           refreshedEntity = datastoreMgr.getDatastoreServiceForReads(op.getExecutionContext()).get(entity.getKey());
         } catch (EntityNotFoundException e) {
           // someone deleted out from under us
@@ -693,6 +953,9 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
 
       Object nextVersion = VersionHelper.getNextVersion(vmd.getVersionStrategy(), curVersion);
       op.setTransactionalVersion(nextVersion);
+      if (knownVersions != null) {
+        knownVersions.add(nextVersion);
+      }
       if (vmd.getVersionStrategy() == VersionStrategy.DATE_TIME) {
         EntityUtils.setEntityProperty(entity, vmd, versionPropertyName, ((Timestamp)nextVersion).getTime());
       } else {
@@ -719,6 +982,103 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     }
   }
 
+  /**
+   * Method to check the versions of the supplied objects against the datastore using a single multi-key get.
+   * Only objects that are versioned, already persistent, and dirty or deleted are checked. Those that pass
+   * are remembered so that the write itself doesn't need to read the entity again.
+   * @param ec ExecutionContext
+   * @param ops The objects about to be flushed
+   * @return The failures (if any)
+   */
+  List<NucleusOptimisticException> verifyVersions(ExecutionContext ec, List<ObjectProvider> ops) {
+    List<NucleusOptimisticException> failures = Utils.newArrayList();
+    DatastoreTransaction txn = datastoreMgr.getDatastoreTransaction(ec);
+    Map<Key, ObjectProvider> opsByKey = new LinkedHashMap<Key, ObjectProvider>();
+    for (ObjectProvider op : ops) {
+      AbstractClassMetaData cmd = op.getClassMetaData();
+      if (!cmd.isVersioned() || op.getVersion() == null || op.isEmbedded() || op.getLifecycleState().isNew()) {
+        continue;
+      }
+      if (!op.getLifecycleState().isDirty() && !op.getLifecycleState().isDeleted()) {
+        continue;
+      }
+      Key key = EntityUtils.getPkAsKey(op);
+      if (datastoreMgr.isSkipVersionCheckInTxn() && txn != null && txn.getKnownVersions(key) != null) {
+        // Will be checked against the version read in this txn
+        continue;
+      }
+      opsByKey.put(key, op);
+    }
+    if (opsByKey.isEmpty()) {
+      return failures;
+    }
+
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Getting entities for version check with keys " + 
+          StringUtils.collectionToString(opsByKey.keySet()));
+    }
+    if (ec.getStatistics() != null) {
+      ec.getStatistics().incrementNumReads();
+    }
+    EntityUtils.flushBufferedPuts(ec, opsByKey.keySet());
+    AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+    if (asyncWriteMgr != null) {
+      asyncWriteMgr.awaitKeys(opsByKey.keySet());
+    }
+    // Read outside of any txn, to guarantee that we see the latest versions
+    Map<Key, Entity> entities = datastoreMgr.getDatastoreServiceForReads(ec).get(opsByKey.keySet());
+
+    Set<Key> verifiedKeys = Utils.newHashSet();
+    for (Map.Entry<Key, ObjectProvider> entry : opsByKey.entrySet()) {
+      Key key = entry.getKey();
+      ObjectProvider op = entry.getValue();
+      AbstractClassMetaData cmd = op.getClassMetaData();
+      String operation = op.getLifecycleState().isDeleted() ? "deleting" : "updating";
+      Entity entity = entities.get(key);
+      if (entity == null) {
+        // someone deleted out from under us
+        failures.add(new NucleusOptimisticException(GAE_LOCALISER.msg("AppEngine.OptimisticError.EntityHasBeenDeleted",
+            operation, cmd.getFullClassName(), key), op.getObject()));
+        continue;
+      }
+
+      VersionMetaData vmd = cmd.getVersionMetaDataForClass();
+      Object datastoreVersion =
+        entity.getProperty(EntityUtils.getVersionPropertyName(datastoreMgr.getIdentifierFactory(), vmd));
+      if (vmd.getVersionStrategy() == VersionStrategy.DATE_TIME) {
+        datastoreVersion = new Timestamp((Long) datastoreVersion);
+      }
+      if (!datastoreVersion.equals(op.getVersion())) {
+        failures.add(new NucleusOptimisticException(GAE_LOCALISER.msg("AppEngine.OptimisticError.EntityHasBeenUpdated",
+            operation, cmd.getFullClassName(), key), op.getObject()));
+      } else {
+        verifiedKeys.add(key);
+      }
+    }
+
+    if (failures.isEmpty()) {
+      verifiedVersionKeysByExecutionContext.put(ec, verifiedKeys);
+    }
+    return failures;
+  }
+
+  /**
+   * Method to discard any versions checked by {@link #verifyVersions(ExecutionContext, List)}, at the end of the flush.
+   * @param ec ExecutionContext
+   */
+  void clearVerifiedVersions(ExecutionContext ec) {
+    verifiedVersionKeysByExecutionContext.remove(ec);
+  }
+
+  /**
+   * Convenience method to find whether the version of the entity with this key was checked at the start of the
+   * current flush. Each check is only used once.
+   */
+  private boolean consumeVerifiedVersion(ExecutionContext ec, Key key) {
+    Set<Key> verifiedKeys = verifiedVersionKeysByExecutionContext.get(ec);
+    return verifiedKeys != null && verifiedKeys.remove(key);
+  }
+
   /**
    * All the information needed to perform a put on an Entity.
    */
@@ -726,11 +1086,14 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     private final ObjectProvider op;
     private final StoreFieldManager fieldMgr;
     private final Entity entity;
+    /** Whether the only put of this Entity happens after its relations are stored. */
+    private final boolean deferPut;
 
-    private PutState(ObjectProvider op, StoreFieldManager fieldMgr, Entity entity) {
+    private PutState(ObjectProvider op, StoreFieldManager fieldMgr, Entity entity, boolean deferPut) {
       this.op = op;
       this.fieldMgr = fieldMgr;
       this.entity = entity;
+      this.deferPut = deferPut;
     }
   }
 }
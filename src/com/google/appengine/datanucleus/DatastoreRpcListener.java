@@ -0,0 +1,39 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+/**
+ * Listener notified after each datastore call made through {@link WrappedDatastoreService}, while
+ * {@link DatastoreRpcMetrics} is enabled. Register with {@link DatastoreRpcMetrics#addListener}, or by class
+ * name using {@link DatastoreManager#DATASTORE_RPC_LISTENER_PROPERTY}. Implementations are called on the
+ * thread that made the call, so should return quickly.
+ */
+public interface DatastoreRpcListener {
+
+  /**
+   * Method called when a datastore call completes.
+   * @param operation The operation ("get", "put", "delete", "query", "beginTransaction", "allocateIds",
+   * "allocateIdRange")
+   * @param kind The kind involved, "(none)" if there is none, or "(multiple)" if the call spans several kinds
+   * @param durationNanos Time taken by the call
+   * @param numEntities Number of entities written or returned
+   * @param numKeys Number of keys passed in
+   * @param approximateBytes Approximate size of the entities written or returned
+   * @param succeeded Whether the call completed without an exception
+   */
+  void rpcCompleted(String operation, String kind, long durationNanos, int numEntities, int numKeys,
+      long approximateBytes, boolean succeeded);
+}
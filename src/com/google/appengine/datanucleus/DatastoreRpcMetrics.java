@@ -0,0 +1,435 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+import org.datanucleus.util.NucleusLogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records the datastore calls made through {@link WrappedDatastoreService} and {@link WrappedAsyncDatastoreService} :
+ * call counts, failures, latency histograms, entity and key counts and approximate entity sizes, per operation
+ * and kind. The statistics are exposed through JMX (see {@link DatastoreRpcMetricsMBean}) and each call is also
+ * passed to any registered {@link DatastoreRpcListener}.
+ * <p>
+ * There is one instance per JVM, since datastore services are created statically. Nothing is recorded until
+ * it is enabled, either by {@link DatastoreManager#DATASTORE_RPC_METRICS_PROPERTY} or by adding a listener, and
+ * recording stops, with the statistics cleared, once every store manager that enabled it has closed.
+ * A query is recorded when its results have been read (see {@link WrappedPreparedQuery}), with the time spent
+ * in the datastore fetching them. An asynchronous call is recorded when its result is first waited for, with
+ * the time from when it was issued.
+ * </p>
+ */
+public class DatastoreRpcMetrics implements DatastoreRpcMetricsMBean {
+
+  /** Name that the MBean is registered under. */
+  public static final String OBJECT_NAME = "com.google.appengine.datanucleus:type=DatastoreRpcMetrics";
+
+  static final String NO_KIND = "(none)";
+  static final String MULTIPLE_KINDS = "(multiple)";
+
+  private static final long[] LATENCY_BUCKET_BOUNDS_MILLIS =
+      new long[] {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+  private static final DatastoreRpcMetrics INSTANCE = new DatastoreRpcMetrics();
+
+  public static DatastoreRpcMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Method to start recording a call.
+   * @param operation The operation being called
+   * @return The call to record details against, or null if metrics are not enabled
+   */
+  static Call startCall(String operation) {
+    return INSTANCE.enabled ? new Call(operation) : null;
+  }
+
+  private volatile boolean enabled = false;
+
+  /** Number of enable() calls, including those made by addListener(), not yet matched by a disable(). */
+  private int enableCount = 0;
+
+  private boolean registeredMBean = false;
+
+  private final ConcurrentMap<String, OperationStatistics> statisticsByKey =
+      new ConcurrentHashMap<String, OperationStatistics>();
+
+  private final List<DatastoreRpcListener> listeners = new CopyOnWriteArrayList<DatastoreRpcListener>();
+
+  DatastoreRpcMetrics() {
+  }
+
+  /**
+   * Method to start recording calls, registering the MBean with the platform MBean server if possible.
+   * Each call should be matched by a call to {@link #disable()} when the caller no longer needs the metrics.
+   */
+  public synchronized void enable() {
+    enableCount++;
+    enabled = true;
+    if (!registeredMBean) {
+      registeredMBean = true;
+      try {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!mbeanServer.isRegistered(name)) {
+          mbeanServer.registerMBean(this, name);
+        }
+      } catch (Exception e) {
+        NucleusLogger.DATASTORE.info("Unable to register datastore RPC metrics with JMX : " + e.getMessage());
+      } catch (NoClassDefFoundError e) {
+        // JMX isn't available in all environments
+        NucleusLogger.DATASTORE.info("Unable to register datastore RPC metrics with JMX : " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Method to release an earlier {@link #enable()}. Once every enable has been released, recording stops
+   * and the statistics are cleared.
+   */
+  public synchronized void disable() {
+    if (enableCount > 0 && --enableCount == 0) {
+      enabled = false;
+      reset();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Method to register a listener for completed calls. Enables recording if not already enabled.
+   * @param listener The listener
+   */
+  public void addListener(DatastoreRpcListener listener) {
+    listeners.add(listener);
+    enable();
+  }
+
+  /**
+   * Method to deregister a listener added by {@link #addListener(DatastoreRpcListener)}, releasing its enable.
+   * @param listener The listener
+   */
+  public void removeListener(DatastoreRpcListener listener) {
+    if (listeners.remove(listener)) {
+      disable();
+    }
+  }
+
+  void record(String operation, String kind, long durationNanos, int numEntities, int numKeys,
+      long approximateBytes, boolean succeeded) {
+    String statisticKey = operation + ":" + kind;
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    if (stats == null) {
+      OperationStatistics newStats = new OperationStatistics();
+      stats = statisticsByKey.putIfAbsent(statisticKey, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    stats.record(durationNanos, numEntities, numKeys, approximateBytes, succeeded);
+
+    for (DatastoreRpcListener listener : listeners) {
+      try {
+        listener.rpcCompleted(operation, kind, durationNanos, numEntities, numKeys, approximateBytes, succeeded);
+      } catch (RuntimeException e) {
+        NucleusLogger.DATASTORE.warn("Datastore RPC listener " + listener + " threw exception", e);
+      }
+    }
+  }
+
+  public long getTotalCalls() {
+    long total = 0;
+    for (OperationStatistics stats : statisticsByKey.values()) {
+      total += stats.calls.get();
+    }
+    return total;
+  }
+
+  public long getTotalFailures() {
+    long total = 0;
+    for (OperationStatistics stats : statisticsByKey.values()) {
+      total += stats.failures.get();
+    }
+    return total;
+  }
+
+  public String[] getStatisticKeys() {
+    return statisticsByKey.keySet().toArray(new String[0]);
+  }
+
+  public long getCallCount(String statisticKey) {
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    return stats == null ? 0 : stats.calls.get();
+  }
+
+  public long getFailureCount(String statisticKey) {
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    return stats == null ? 0 : stats.failures.get();
+  }
+
+  public double getMeanLatencyMillis(String statisticKey) {
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    return stats == null ? 0 : stats.getMeanLatencyMillis();
+  }
+
+  public long[] getLatencyBucketBoundsMillis() {
+    return LATENCY_BUCKET_BOUNDS_MILLIS.clone();
+  }
+
+  public long[] getLatencyHistogram(String statisticKey) {
+    long[] histogram = new long[LATENCY_BUCKET_BOUNDS_MILLIS.length + 1];
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    if (stats != null) {
+      for (int i = 0; i < histogram.length; i++) {
+        histogram[i] = stats.latencyHistogram.get(i);
+      }
+    }
+    return histogram;
+  }
+
+  public long getEntityCount(String statisticKey) {
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    return stats == null ? 0 : stats.entities.get();
+  }
+
+  public long getKeyCount(String statisticKey) {
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    return stats == null ? 0 : stats.keys.get();
+  }
+
+  public long getApproximateBytes(String statisticKey) {
+    OperationStatistics stats = statisticsByKey.get(statisticKey);
+    return stats == null ? 0 : stats.bytes.get();
+  }
+
+  public String getSummary() {
+    StringBuilder str = new StringBuilder();
+    for (Map.Entry<String, OperationStatistics> entry : statisticsByKey.entrySet()) {
+      OperationStatistics stats = entry.getValue();
+      str.append(entry.getKey()).append(" calls=").append(stats.calls.get())
+          .append(" failures=").append(stats.failures.get())
+          .append(" meanMillis=").append(stats.getMeanLatencyMillis())
+          .append(" entities=").append(stats.entities.get())
+          .append(" keys=").append(stats.keys.get())
+          .append(" bytes=").append(stats.bytes.get())
+          .append("\n");
+    }
+    return str.toString();
+  }
+
+  public void reset() {
+    statisticsByKey.clear();
+  }
+
+  /**
+   * Convenience method to approximate the serialized size of an entity from its key and property values.
+   * @param entity The entity
+   * @return Approximate size in bytes
+   */
+  static long approximateSize(Entity entity) {
+    long size = approximateSize(entity.getKey());
+    for (Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+      size += entry.getKey().length();
+      Object value = entry.getValue();
+      if (value instanceof Collection) {
+        for (Object element : (Collection) value) {
+          size += approximateValueSize(element);
+        }
+      } else {
+        size += approximateValueSize(value);
+      }
+    }
+    return size;
+  }
+
+  private static long approximateValueSize(Object value) {
+    if (value == null) {
+      return 1;
+    } else if (value instanceof String) {
+      return ((String) value).length();
+    } else if (value instanceof Text) {
+      String text = ((Text) value).getValue();
+      return text == null ? 0 : text.length();
+    } else if (value instanceof Blob) {
+      return ((Blob) value).getBytes().length;
+    } else if (value instanceof ShortBlob) {
+      return ((ShortBlob) value).getBytes().length;
+    } else if (value instanceof Key) {
+      return approximateSize((Key) value);
+    }
+    // Numbers, booleans, dates and the other fixed size types
+    return 8;
+  }
+
+  private static long approximateSize(Key key) {
+    long size = 0;
+    while (key != null) {
+      size += key.getKind().length() + (key.getName() != null ? key.getName().length() : 8);
+      key = key.getParent();
+    }
+    return size;
+  }
+
+  /**
+   * Statistics for one operation and kind.
+   */
+  static final class OperationStatistics {
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong entities = new AtomicLong();
+    final AtomicLong keys = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKET_BOUNDS_MILLIS.length + 1);
+
+    void record(long durationNanos, int numEntities, int numKeys, long approximateBytes, boolean succeeded) {
+      calls.incrementAndGet();
+      if (!succeeded) {
+        failures.incrementAndGet();
+      }
+      totalNanos.addAndGet(durationNanos);
+      entities.addAndGet(numEntities);
+      keys.addAndGet(numKeys);
+      bytes.addAndGet(approximateBytes);
+
+      long millis = durationNanos / 1000000;
+      int bucket = 0;
+      while (bucket < LATENCY_BUCKET_BOUNDS_MILLIS.length && millis > LATENCY_BUCKET_BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      }
+      latencyHistogram.incrementAndGet(bucket);
+    }
+
+    double getMeanLatencyMillis() {
+      long numCalls = calls.get();
+      return numCalls == 0 ? 0 : totalNanos.get() / (numCalls * 1000000.0);
+    }
+  }
+
+  /**
+   * A datastore call in progress. Details are added as they become known, and the call is recorded by
+   * {@link #end()}.
+   */
+  static final class Call {
+    private final String operation;
+    private long startNanos = System.nanoTime();
+    private long durationNanos = -1;
+    private String kind = null;
+    private int numEntities = 0;
+    private int numKeys = 0;
+    private long approximateBytes = 0;
+    private boolean succeeded = false;
+
+    Call(String operation) {
+      this.operation = operation;
+    }
+
+    void kind(String kind) {
+      if (kind == null) {
+        return;
+      } else if (this.kind == null) {
+        this.kind = kind;
+      } else if (!this.kind.equals(kind)) {
+        this.kind = MULTIPLE_KINDS;
+      }
+    }
+
+    void key(Key key) {
+      if (key != null) {
+        kind(key.getKind());
+        numKeys++;
+      }
+    }
+
+    void keys(Iterable<Key> keys) {
+      for (Key key : keys) {
+        key(key);
+      }
+    }
+
+    void entity(Entity entity) {
+      if (entity != null) {
+        kind(entity.getKind());
+        numEntities++;
+        approximateBytes += approximateSize(entity);
+      }
+    }
+
+    void entities(Iterable<Entity> entities) {
+      for (Entity entity : entities) {
+        entity(entity);
+      }
+    }
+
+    void succeeded() {
+      succeeded = true;
+    }
+
+    /**
+     * Method to restart the clock just before the datastore call is made, so that measuring the request
+     * isn't included in the duration.
+     */
+    void start() {
+      startNanos = System.nanoTime();
+    }
+
+    /**
+     * Method to stop the clock as soon as the datastore call returns, so that measuring the result isn't
+     * included in the duration.
+     */
+    void stop() {
+      if (durationNanos < 0) {
+        durationNanos = System.nanoTime() - startNanos;
+      }
+    }
+
+    void end() {
+      stop();
+      end(durationNanos);
+    }
+
+    /**
+     * Method to record the call with the supplied duration, for calls whose time in the datastore is measured
+     * separately from their start, such as the fetches of a query.
+     * @param durationNanos The duration
+     */
+    void end(long durationNanos) {
+      INSTANCE.record(operation, kind == null ? NO_KIND : kind, durationNanos,
+          numEntities, numKeys, approximateBytes, succeeded);
+    }
+  }
+}
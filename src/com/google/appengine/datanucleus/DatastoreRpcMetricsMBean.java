@@ -0,0 +1,56 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+/**
+ * JMX interface for {@link DatastoreRpcMetrics}. Statistics are kept per operation and kind, identified
+ * by a key of the form "operation:kind" (see {@link #getStatisticKeys()}).
+ */
+public interface DatastoreRpcMetricsMBean {
+
+  long getTotalCalls();
+
+  long getTotalFailures();
+
+  String[] getStatisticKeys();
+
+  long getCallCount(String statisticKey);
+
+  long getFailureCount(String statisticKey);
+
+  double getMeanLatencyMillis(String statisticKey);
+
+  /**
+   * @return The upper bounds (inclusive, in milliseconds) of the latency histogram buckets. The histogram has
+   * one more bucket than this, for calls slower than the last bound.
+   */
+  long[] getLatencyBucketBoundsMillis();
+
+  long[] getLatencyHistogram(String statisticKey);
+
+  long getEntityCount(String statisticKey);
+
+  long getKeyCount(String statisticKey);
+
+  long getApproximateBytes(String statisticKey);
+
+  /**
+   * @return One line per statistic key with its counts and mean latency.
+   */
+  String getSummary();
+
+  void reset();
+}
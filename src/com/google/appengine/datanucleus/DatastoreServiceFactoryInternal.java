@@ -15,6 +15,7 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
@@ -42,6 +43,9 @@ public final class DatastoreServiceFactoryInternal {
   private static ThreadLocal<DatastoreService> datastoreServiceToReturn =
       new ThreadLocal<DatastoreService>();
 
+  private static ThreadLocal<AsyncDatastoreService> asyncDatastoreServiceToReturn =
+      new ThreadLocal<AsyncDatastoreService>();
+
   /**
    * @param config The config to use.
    * @return If a {@link DatastoreService} to return has been explicitly provided by a
@@ -69,4 +73,33 @@ public final class DatastoreServiceFactoryInternal {
   public static void setDatastoreService(DatastoreService ds) {
     datastoreServiceToReturn.set(ds);
   }
+
+  /**
+   * @param config The config to use.
+   * @return If an {@link AsyncDatastoreService} to return has been explicitly provided by a
+   *   call to {@link #setAsyncDatastoreService(AsyncDatastoreService)}, the explicitly provided instance. 
+   *   Otherwise an {@link AsyncDatastoreService} constructed by calling
+   *   {@link DatastoreServiceFactory#getAsyncDatastoreService(DatastoreServiceConfig)}, wrapped in a
+   *   {@link WrappedAsyncDatastoreService}
+   */
+  public static AsyncDatastoreService getAsyncDatastoreService(DatastoreServiceConfig config) {
+    if (asyncDatastoreServiceToReturn.get() != null) {
+      return asyncDatastoreServiceToReturn.get();
+    }
+    // Wrap the service in an impl that properly translates the runtime exceptions thrown by the datastore api
+    return new WrappedAsyncDatastoreService(
+        DatastoreServiceFactory.getAsyncDatastoreService(config));
+  }
+
+  /**
+   * Provides a specific {@link AsyncDatastoreService} instance that will be the return value of all calls 
+   * to {@link #getAsyncDatastoreService(DatastoreServiceConfig)}. If {@code null} is provided, subsequent calls to
+   * {@link #getAsyncDatastoreService(DatastoreServiceConfig)} will return to its default behavior.
+   *
+   * @param ds The {@link AsyncDatastoreService} to be returned by all calls to
+   *   {@link #getAsyncDatastoreService(DatastoreServiceConfig)}. Can be null.
+   */
+  public static void setAsyncDatastoreService(AsyncDatastoreService ds) {
+    asyncDatastoreServiceToReturn.set(ds);
+  }
 }
@@ -23,6 +23,8 @@ import com.google.appengine.api.datastore.Transaction;
 import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapDatastoreFailureException;
 import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapIllegalArgumentException;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +32,8 @@ import java.util.Set;
 
 import org.datanucleus.exceptions.NucleusDataStoreException;
 
+import com.google.appengine.datanucleus.query.QueryResultCache;
+
 /**
  * The orm's view of a datastore transaction.  
  * Delegates to a {@link Transaction} and also functions as a txn-level cache.
@@ -40,10 +44,29 @@ public class DatastoreTransaction {
 
   private final Transaction txn;
 
-  private final Map<Key, Entity> putEntities = Utils.newHashMap();
+  /** Snapshots of the entities put in this transaction, keyed by entity key. */
+  private final Map<Key, PutSnapshot> putEntities = Utils.newHashMap();
 
   private final Set<Key> deletedKeys = Utils.newHashSet();
 
+  /**
+   * Versions of entities that have been read or written in this transaction, keyed by entity key.
+   * Only maintained when {@link DatastoreManager#SKIP_VERSION_CHECK_IN_TXN_PROPERTY} is enabled.
+   */
+  private final Map<Key, Set<Object>> knownVersions = Utils.newHashMap();
+
+  /**
+   * Keys of entities that have been read with this transaction, either by key or by an ancestor query.
+   * Only maintained when {@link DatastoreManager#SKIP_VERSION_CHECK_IN_TXN_PROPERTY} is enabled.
+   */
+  private final Set<Key> transactionalReads = Utils.newHashSet();
+
+  /** Keys written in this transaction that are to be removed from the entity cache when it completes. */
+  private final Map<EntityCache, Set<Key>> cachedKeysToInvalidate = Utils.newHashMap();
+
+  /** Kinds written in this transaction whose cached query results are to be invalidated when it completes. */
+  private final Map<QueryResultCache, Set<String>> queryResultKindsToInvalidate = Utils.newHashMap();
+
   DatastoreTransaction(Transaction txn) {
     if (txn == null) {
       throw new NullPointerException("txn cannot be null");
@@ -54,6 +77,8 @@ public class DatastoreTransaction {
   private void clear() {
     putEntities.clear();
     deletedKeys.clear();
+    knownVersions.clear();
+    transactionalReads.clear();
   }
 
   void commit() {
@@ -65,6 +90,8 @@ public class DatastoreTransaction {
       throw new NucleusDataStoreException("Concurrent Modification", e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      invalidateCachedEntities();
     }
     clear();
   }
@@ -77,7 +104,50 @@ public class DatastoreTransaction {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      invalidateCachedEntities();
+    }
+  }
+
+  /**
+   * Method to register keys written in this transaction, to be removed from the entity cache once the
+   * transaction completes. Any entity cached while the transaction was open may be out of date by then.
+   * @param entityCache The entity cache
+   * @param keys Keys of the entities written
+   */
+  void addCachedKeysToInvalidate(EntityCache entityCache, Collection<Key> keys) {
+    Set<Key> cachedKeys = cachedKeysToInvalidate.get(entityCache);
+    if (cachedKeys == null) {
+      cachedKeys = Utils.newHashSet();
+      cachedKeysToInvalidate.put(entityCache, cachedKeys);
+    }
+    cachedKeys.addAll(keys);
+  }
+
+  /**
+   * Method to register kinds written in this transaction, whose cached query results are to be invalidated once
+   * the transaction completes.
+   * @param queryResultCache The query result cache
+   * @param kinds The kinds written
+   */
+  void addQueryResultKindsToInvalidate(QueryResultCache queryResultCache, Collection<String> kinds) {
+    Set<String> cachedKinds = queryResultKindsToInvalidate.get(queryResultCache);
+    if (cachedKinds == null) {
+      cachedKinds = Utils.newHashSet();
+      queryResultKindsToInvalidate.put(queryResultCache, cachedKinds);
+    }
+    cachedKinds.addAll(kinds);
+  }
+
+  private void invalidateCachedEntities() {
+    for (Map.Entry<EntityCache, Set<Key>> entry : cachedKeysToInvalidate.entrySet()) {
+      entry.getKey().removeAll(entry.getValue());
     }
+    cachedKeysToInvalidate.clear();
+    for (Map.Entry<QueryResultCache, Set<String>> entry : queryResultKindsToInvalidate.entrySet()) {
+      entry.getKey().invalidateKinds(entry.getValue());
+    }
+    queryResultKindsToInvalidate.clear();
   }
 
   public Transaction getInnerTxn() {
@@ -86,26 +156,66 @@ public class DatastoreTransaction {
 
   void addPutEntities(List<Entity> entities) {
     for (Entity entity : entities) {
-      // Make a copy in case someone changes
+      // Take a snapshot in case someone changes
       // the provided entity after we add it to our cache.
-      putEntities.put(entity.getKey(), makeCopy(entity));
+      putEntities.put(entity.getKey(), new PutSnapshot(entity));
     }
   }
 
-  private Entity makeCopy(Entity entity) {
-    // We don't check key when we look for changes so it's
-    // ok that the copy doesn't have its key set.
-    Entity copy = new Entity(entity.getKind());
-    EntityUtils.copyProperties(entity, copy);
-    return copy;
+  /**
+   * Method to return whether an entity with the key of the supplied entity has been put in this transaction
+   * with the same properties. The fingerprints are compared first, and the properties only if they match.
+   * @param entity The entity about to be put
+   * @return Whether the same entity has already been put
+   */
+  boolean isUnchangedSincePut(Entity entity) {
+    PutSnapshot previouslyPut = putEntities.get(entity.getKey());
+    return previouslyPut != null && previouslyPut.matches(entity);
   }
 
   void addDeletedKey(Key key) {
     deletedKeys.add(key);
   }
 
-  Map<Key, Entity> getPutEntities() {
-    return putEntities;
+  /**
+   * Method to register a version of an entity that was read or written in this transaction.
+   * @param key Key of the entity
+   * @param version The version
+   */
+  void addKnownVersion(Key key, Object version) {
+    Set<Object> versions = knownVersions.get(key);
+    if (versions == null) {
+      versions = Utils.newHashSet();
+      knownVersions.put(key, versions);
+    }
+    versions.add(version);
+  }
+
+  /**
+   * Accessor for the versions of an entity that were read or written in this transaction.
+   * @param key Key of the entity
+   * @return The versions, or null if the entity hasn't been read in this transaction
+   */
+  Set<Object> getKnownVersions(Key key) {
+    return knownVersions.get(key);
+  }
+
+  /**
+   * Method to register that an entity has been read with this transaction, so the datastore will fail the
+   * commit if anyone else changes it in the meantime.
+   * @param key Key of the entity
+   */
+  void addTransactionalRead(Key key) {
+    transactionalReads.add(key);
+  }
+
+  /**
+   * Accessor for whether an entity has been read with this transaction.
+   * @param key Key of the entity
+   * @return Whether it was read by key or by an ancestor query in this transaction
+   */
+  boolean isTransactionalRead(Key key) {
+    return transactionalReads.contains(key);
   }
 
   Set<Key> getDeletedKeys() {
@@ -134,4 +244,21 @@ public class DatastoreTransaction {
   public int hashCode() {
     return txn.hashCode();
   }
+
+  /**
+   * The properties of an entity as put, with their {@link EntityFingerprint}.
+   */
+  private static final class PutSnapshot {
+    private final long fingerprint;
+    private final Map<String, Object> properties;
+
+    PutSnapshot(Entity entity) {
+      this.fingerprint = EntityFingerprint.of(entity);
+      this.properties = Collections.unmodifiableMap(entity.getProperties());
+    }
+
+    boolean matches(Entity entity) {
+      return fingerprint == EntityFingerprint.of(entity) && properties.equals(entity.getProperties());
+    }
+  }
 }
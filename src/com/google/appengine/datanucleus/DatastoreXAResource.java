@@ -40,7 +40,12 @@ class DatastoreXAResource extends EmulatedXAResource {
   private final TransactionOptions txnOpts;
 
   public DatastoreXAResource(DatastoreService datastoreService, TransactionOptions txnOpts) {
-    super(datastoreService);
+    this(datastoreService, txnOpts, null);
+  }
+
+  public DatastoreXAResource(DatastoreService datastoreService, TransactionOptions txnOpts,
+      AsyncWriteManager asyncWriteManager) {
+    super(datastoreService, asyncWriteManager);
     this.txnOpts = txnOpts;
   }
 
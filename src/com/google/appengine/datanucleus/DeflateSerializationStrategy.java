@@ -0,0 +1,123 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Blob;
+
+import org.datanucleus.exceptions.NucleusException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link SerializationStrategy} that compresses the output of another strategy with deflate, by default of
+ * {@link CompactSerializationStrategy}. Values whose serialized form is small, or doesn't get smaller, are
+ * stored uncompressed. To use a different strategy, extend this class with a no-argument constructor
+ * passing that strategy to {@link #DeflateSerializationStrategy(SerializationStrategy)}.
+ *
+ * This class is part of the public interface of the DataNucleus App Engine
+ * Plugin and can be safely referenced in user code.
+ */
+public class DeflateSerializationStrategy implements SerializationStrategy {
+
+  /** Serialized forms shorter than this are not worth compressing. */
+  static final int MIN_DEFLATE_LENGTH = 64;
+
+  private static final byte STORED = 0;
+  private static final byte DEFLATED = 1;
+
+  private final SerializationStrategy delegate;
+
+  public DeflateSerializationStrategy() {
+    this(new CompactSerializationStrategy());
+  }
+
+  public DeflateSerializationStrategy(SerializationStrategy delegate) {
+    this.delegate = delegate;
+  }
+
+  public Blob serialize(Object obj) {
+    byte[] bytes = delegate.serialize(obj).getBytes();
+    if (bytes.length >= MIN_DEFLATE_LENGTH) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(bytes);
+        deflater.finish();
+        // Header of the flag and the uncompressed length, then the compressed bytes
+        byte[] deflated = new byte[bytes.length];
+        deflated[0] = DEFLATED;
+        deflated[1] = (byte) (bytes.length >>> 24);
+        deflated[2] = (byte) (bytes.length >>> 16);
+        deflated[3] = (byte) (bytes.length >>> 8);
+        deflated[4] = (byte) bytes.length;
+        int length = 5;
+        while (!deflater.finished() && length < deflated.length) {
+          length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        if (deflater.finished() && length < deflated.length) {
+          byte[] result = new byte[length];
+          System.arraycopy(deflated, 0, result, 0, length);
+          return new Blob(result);
+        }
+      } finally {
+        deflater.end();
+      }
+    }
+    byte[] stored = new byte[bytes.length + 1];
+    stored[0] = STORED;
+    System.arraycopy(bytes, 0, stored, 1, bytes.length);
+    return new Blob(stored);
+  }
+
+  public Object deserialize(Blob blob, Class<?> targetClass) {
+    if (blob == null) {
+      throw new NullPointerException("Blob cannot be null.");
+    }
+    byte[] bytes = blob.getBytes();
+    byte[] serialized;
+    if (bytes.length > 0 && bytes[0] == STORED) {
+      serialized = new byte[bytes.length - 1];
+      System.arraycopy(bytes, 1, serialized, 0, serialized.length);
+    } else if (bytes.length >= 5 && bytes[0] == DEFLATED) {
+      int length = ((bytes[1] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16) | ((bytes[3] & 0xFF) << 8) |
+          (bytes[4] & 0xFF);
+      serialized = new byte[length];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(bytes, 5, bytes.length - 5);
+        int inflated = 0;
+        while (inflated < length && !inflater.finished()) {
+          int num = inflater.inflate(serialized, inflated, length - inflated);
+          if (num == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          inflated += num;
+        }
+        if (inflated != length) {
+          throw new NucleusException("Compressed bytes in datastore are truncated");
+        }
+      } catch (DataFormatException dfe) {
+        throw new NucleusException("Received DataFormatException inflating a byte array.", dfe);
+      } finally {
+        inflater.end();
+      }
+    } else {
+      throw new NucleusException("Bytes in datastore were not written by " + getClass().getName());
+    }
+    return delegate.deserialize(new Blob(serialized), targetClass);
+  }
+}
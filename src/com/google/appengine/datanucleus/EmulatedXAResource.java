@@ -46,8 +46,16 @@ class EmulatedXAResource implements XAResource {
   /** The datastore service we'll use to perform datastore operations. */
   protected final DatastoreService datastoreService;
 
+  /** Manager for writes issued asynchronously, or null if async writes are not enabled. */
+  private final AsyncWriteManager asyncWriteManager;
+
   public EmulatedXAResource(DatastoreService ds) {
+    this(ds, null);
+  }
+
+  public EmulatedXAResource(DatastoreService ds, AsyncWriteManager asyncWriteManager) {
     this.datastoreService = ds;
+    this.asyncWriteManager = asyncWriteManager;
   }
 
   public void start(Xid xid, int flags) throws XAException {
@@ -61,8 +69,13 @@ class EmulatedXAResource implements XAResource {
     if (state != State.ACTIVE) {
       throw new XAException(LOCALISER.msg("AppEngine.Transaction.CommitInvalid"));
     }
+    if (asyncWriteManager != null) {
+      // Any outstanding writes have to be complete before the txn can be committed
+      asyncWriteManager.awaitAll();
+    }
     keyRegistry.clearParentKeys();
     keyRegistry.clearUnownedObjects();
+    keyRegistry.clearPreallocatedKeys();
     state = State.INACTIVE;
   }
 
@@ -70,8 +83,12 @@ class EmulatedXAResource implements XAResource {
     if (state != State.ACTIVE) {
       throw new XAException(LOCALISER.msg("AppEngine.Transaction.RollbackInvalid"));
     }
+    if (asyncWriteManager != null) {
+      asyncWriteManager.awaitAllQuietly();
+    }
     keyRegistry.clearParentKeys();
     keyRegistry.clearUnownedObjects();
+    keyRegistry.clearPreallocatedKeys();
     state = State.INACTIVE;
   }
 
@@ -108,6 +125,13 @@ class EmulatedXAResource implements XAResource {
     return keyRegistry;
   }
 
+  /**
+   * @return The manager for asynchronous writes on this connection, or {@code null} if not enabled.
+   */
+  AsyncWriteManager getAsyncWriteManager() {
+    return asyncWriteManager;
+  }
+
   /**
    * Accessor for the DatastoreService of this connection.
    * @return DatastoreService being used
@@ -0,0 +1,63 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Second level cache of datastore entities, shared by all ExecutionContexts of a {@link DatastoreManager}.
+ * Enabled with {@link DatastoreManager#ENTITY_CACHE_PROPERTY}, and consulted by
+ * {@link EntityUtils#getEntityFromDatastore} and {@link EntityUtils#getEntitiesFromDatastore} for reads made
+ * outside a datastore transaction. The plugin removes entries for every entity it puts or deletes, and again
+ * when the datastore transaction making the change commits or rolls back.
+ * <p>
+ * Implementations must be thread-safe, and must not hand out an entity that a caller could use to change a
+ * cached value. To avoid an entity read before a write being cached after the write's invalidation,
+ * {@link #putAll} should not replace an entry that has been removed very recently.
+ * </p>
+ */
+public interface EntityCache {
+
+  /**
+   * Accessor for the cached entity with the supplied key.
+   * @param key The key
+   * @return The entity, or null if it isn't cached
+   */
+  Entity get(Key key);
+
+  /**
+   * Accessor for the cached entities with the supplied keys.
+   * @param keys The keys
+   * @return The entities that are cached, keyed by their key
+   */
+  Map<Key, Entity> getAll(Collection<Key> keys);
+
+  /**
+   * Method to cache the supplied entities, as just read from the datastore.
+   * @param entities The entities
+   */
+  void putAll(Collection<Entity> entities);
+
+  /**
+   * Method to remove the entities with the supplied keys, since they have been written or deleted.
+   * @param keys The keys
+   */
+  void removeAll(Collection<Key> keys);
+}
@@ -0,0 +1,169 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+import org.datanucleus.state.ObjectProvider;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A 64-bit fingerprint of the properties of an {@link Entity}, covering the name, value and indexing of each
+ * property. Values are hashed by content rather than by hashCode(), and in the form the datastore holds them,
+ * so an Integer compares the same as the Long it is read back as. The fingerprint of an object's entity as
+ * last read or written is kept with its ObjectProvider, so that an update that leaves the entity unchanged
+ * can skip its put (see {@link DatastoreManager#SKIP_UNCHANGED_PUTS_PROPERTY}).
+ */
+final class EntityFingerprint {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** The entity the fingerprint was taken of. Only that same instance can be judged unchanged. */
+  private final Entity entity;
+  private final long fingerprint;
+
+  private EntityFingerprint(Entity entity, long fingerprint) {
+    this.entity = entity;
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Method to record the fingerprint of the entity of an object, as just read or written.
+   * @param op ObjectProvider of the object
+   * @param entity The entity
+   */
+  static void record(ObjectProvider op, Entity entity) {
+    op.setAssociatedValue(EntityFingerprint.class, new EntityFingerprint(entity, of(entity)));
+  }
+
+  /**
+   * Method to return whether the entity of an object has the same properties as when its fingerprint was
+   * last recorded.
+   * @param op ObjectProvider of the object
+   * @param entity The entity about to be written
+   * @return Whether the entity is unchanged
+   */
+  static boolean isUnchanged(ObjectProvider op, Entity entity) {
+    EntityFingerprint recorded = (EntityFingerprint) op.getAssociatedValue(EntityFingerprint.class);
+    return recorded != null && recorded.entity == entity && recorded.fingerprint == of(entity);
+  }
+
+  /**
+   * Method to compute the fingerprint of the properties of an entity. The properties are combined
+   * independently of their order.
+   * @param entity The entity
+   * @return The fingerprint
+   */
+  static long of(Entity entity) {
+    long result = 0;
+    for (Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+      long h = hashString(FNV_OFFSET_BASIS, entry.getKey());
+      h = hashLong(h, entity.isUnindexedProperty(entry.getKey()) ? 1 : 0);
+      result += mix(hashValue(h, entry.getValue()));
+    }
+    return result;
+  }
+
+  private static long hashValue(long h, Object value) {
+    if (value == null) {
+      return hashLong(h, 0);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return hashLong(hashLong(h, 1), ((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      return hashLong(hashLong(h, 2), Double.doubleToLongBits(((Number) value).doubleValue()));
+    } else if (value instanceof Boolean) {
+      return hashLong(hashLong(h, 3), ((Boolean) value) ? 1 : 0);
+    } else if (value instanceof String) {
+      return hashString(hashLong(h, 4), (String) value);
+    } else if (value instanceof Text) {
+      return hashString(hashLong(h, 5), ((Text) value).getValue());
+    } else if (value instanceof Date) {
+      return hashLong(hashLong(h, 6), ((Date) value).getTime());
+    } else if (value instanceof Key) {
+      return hashKey(hashLong(h, 7), (Key) value);
+    } else if (value instanceof Blob) {
+      return hashBytes(hashLong(h, 8), ((Blob) value).getBytes());
+    } else if (value instanceof ShortBlob) {
+      return hashBytes(hashLong(h, 9), ((ShortBlob) value).getBytes());
+    } else if (value instanceof Collection) {
+      Collection<?> coll = (Collection<?>) value;
+      h = hashLong(hashLong(h, 10), coll.size());
+      for (Object element : coll) {
+        h = hashValue(h, element);
+      }
+      return h;
+    }
+    // Other datastore types (GeoPt, User, Email etc) have a toString() that shows their content
+    h = hashString(hashLong(h, 11), value.getClass().getName());
+    return hashString(h, value.toString());
+  }
+
+  private static long hashKey(long h, Key key) {
+    h = hashString(h, key.getKind());
+    h = hashLong(h, key.getId());
+    h = hashString(h, key.getName());
+    h = hashString(h, key.getNamespace());
+    return key.getParent() == null ? hashLong(h, 0) : hashKey(hashLong(h, 1), key.getParent());
+  }
+
+  private static long hashString(long h, String str) {
+    if (str == null) {
+      return hashLong(h, -1);
+    }
+    h = hashLong(h, str.length());
+    for (int i = 0; i < str.length(); i++) {
+      h = (h ^ str.charAt(i)) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  private static long hashBytes(long h, byte[] bytes) {
+    if (bytes == null) {
+      return hashLong(h, -1);
+    }
+    h = hashLong(h, bytes.length);
+    for (byte b : bytes) {
+      h = (h ^ (b & 0xff)) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  private static long hashLong(long h, long value) {
+    for (int i = 0; i < 8; i++) {
+      h = (h ^ (value & 0xff)) * FNV_PRIME;
+      value >>>= 8;
+    }
+    return h;
+  }
+
+  /** Spreads the bits of a property's hash before it is summed with the others. */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
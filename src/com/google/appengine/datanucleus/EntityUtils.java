@@ -17,9 +17,11 @@ package com.google.appengine.datanucleus;
 
 import java.lang.reflect.Field;
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
@@ -29,6 +31,7 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.datanucleus.mapping.DatastoreTable;
 import com.google.appengine.datanucleus.query.QueryEntityPKFetchFieldManager;
+import com.google.appengine.datanucleus.query.QueryResultCache;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.FetchPlan;
@@ -86,6 +89,17 @@ public final class EntityUtils {
     return kindName;
   }
 
+  /**
+   * Method to return the property name holding the number of children of the specified owned collection,
+   * when sizes are maintained (see {@link DatastoreManager#OWNED_COLLECTION_SIZE_PROPERTY}).
+   * @param idFactory IdentifierFactory
+   * @param ammd Metadata for the collection field/property
+   * @return The property name to use in the datastore
+   */
+  public static String getCollectionSizePropertyName(IdentifierFactory idFactory, AbstractMemberMetaData ammd) {
+    return getPropertyName(idFactory, ammd) + "__size";
+  }
+
   /**
    * Method to return the property name to use for storing the specified member.
    * @param idFactory IdentifierFactory
@@ -621,10 +635,16 @@ public final class EntityUtils {
     if (ec.getStatistics() != null) {
       ec.getStatistics().incrementNumReads();
     }
+    flushBufferedPuts(ec);
+    AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+    if (asyncWriteMgr != null) {
+      // Make sure we see our own writes
+      asyncWriteMgr.awaitKeys(keys);
+    }
 
     Map<Key, Entity> entityMap;
     if (txn == null) {
-      entityMap = ds.get(keys);
+      entityMap = getEntitiesUsingCache(ec, ds, keys);
     } else {
       entityMap = ds.get(txn.getInnerTxn(), keys);
     }
@@ -648,6 +668,137 @@ public final class EntityUtils {
     return entities;
   }
 
+  /**
+   * Method to get the entities with the supplied keys outside of a datastore transaction, taking any that are
+   * in the entity cache from there and caching the rest.
+   */
+  private static Map<Key, Entity> getEntitiesUsingCache(ExecutionContext ec, DatastoreService ds, List<Key> keys) {
+    Map<Key, Entity> entityMap = getCachedEntities(ec, keys);
+    if (entityMap.isEmpty()) {
+      Map<Key, Entity> fetched = ds.get(keys);
+      cacheEntities(ec, fetched.values());
+      return fetched;
+    }
+
+    List<Key> keysToGet = Utils.newArrayList();
+    for (Key key : keys) {
+      if (!entityMap.containsKey(key)) {
+        keysToGet.add(key);
+      }
+    }
+    if (!keysToGet.isEmpty()) {
+      Map<Key, Entity> fetched = ds.get(keysToGet);
+      entityMap.putAll(fetched);
+      cacheEntities(ec, fetched.values());
+    }
+    return entityMap;
+  }
+
+  /**
+   * Accessor for the entities with the supplied keys that are in the entity cache (see
+   * {@link DatastoreManager#ENTITY_CACHE_PROPERTY}). Only to be used for reads made outside a datastore transaction.
+   * @param ec ExecutionContext
+   * @param keys The keys
+   * @return The cached entities, keyed by their key
+   */
+  public static Map<Key, Entity> getCachedEntities(ExecutionContext ec, Collection<Key> keys) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    EntityCache entityCache = null;
+    List<Key> cacheableKeys = null;
+    for (Key key : keys) {
+      EntityCache cache = storeMgr.getEntityCache(key.getKind());
+      if (cache != null) {
+        entityCache = cache;
+        if (cacheableKeys == null) {
+          cacheableKeys = Utils.newArrayList();
+        }
+        cacheableKeys.add(key);
+      }
+    }
+
+    Map<Key, Entity> entityMap = Utils.newHashMap();
+    if (entityCache != null) {
+      entityMap.putAll(entityCache.getAll(cacheableKeys));
+    }
+    return entityMap;
+  }
+
+  /**
+   * Method to add the supplied entities, just read from the datastore outside a datastore transaction, to the
+   * entity cache (see {@link DatastoreManager#ENTITY_CACHE_PROPERTY}) where their kind is cached.
+   * @param ec ExecutionContext
+   * @param entities The entities
+   */
+  public static void cacheEntities(ExecutionContext ec, Collection<Entity> entities) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    EntityCache entityCache = null;
+    List<Entity> entitiesToCache = null;
+    for (Entity entity : entities) {
+      EntityCache cache = storeMgr.getEntityCache(entity.getKind());
+      if (cache != null) {
+        entityCache = cache;
+        if (entitiesToCache == null) {
+          entitiesToCache = Utils.newArrayList();
+        }
+        entitiesToCache.add(entity);
+      }
+    }
+    if (entityCache != null) {
+      entityCache.putAll(entitiesToCache);
+    }
+  }
+
+  /**
+   * Method to invalidate cached query results (see {@link DatastoreManager#QUERY_RESULT_CACHE_PROPERTY}) for the
+   * kinds of the supplied keys, now and again when the datastore transaction (if any) completes.
+   */
+  private static void invalidateCachedQueryResults(DatastoreManager storeMgr, DatastoreTransaction txn,
+      Collection<Key> keys) {
+    Set<String> kinds = Utils.newHashSet();
+    for (Key key : keys) {
+      kinds.add(key.getKind());
+    }
+    QueryResultCache queryResultCache = storeMgr.getQueryResultCache();
+    queryResultCache.invalidateKinds(kinds);
+    if (txn != null) {
+      txn.addQueryResultKindsToInvalidate(queryResultCache, kinds);
+    }
+  }
+
+  /**
+   * Method to remove the entities with the supplied keys from the entity cache (see
+   * {@link DatastoreManager#ENTITY_CACHE_PROPERTY}) after they have been written or deleted, and to invalidate
+   * cached query results for their kinds. If there is a datastore transaction this is repeated when it completes.
+   * @param ec ExecutionContext
+   * @param keys Keys of the entities written
+   */
+  public static void invalidateCachedEntities(ExecutionContext ec, Collection<Key> keys) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    invalidateCachedQueryResults(storeMgr, storeMgr.getDatastoreTransaction(ec), keys);
+
+    EntityCache entityCache = null;
+    List<Key> cachedKeys = null;
+    for (Key key : keys) {
+      EntityCache cache = storeMgr.getEntityCache(key.getKind());
+      if (cache != null) {
+        entityCache = cache;
+        if (cachedKeys == null) {
+          cachedKeys = Utils.newArrayList();
+        }
+        cachedKeys.add(key);
+      }
+    }
+    if (entityCache == null) {
+      return;
+    }
+
+    entityCache.removeAll(cachedKeys);
+    DatastoreTransaction txn = storeMgr.getDatastoreTransaction(ec);
+    if (txn != null) {
+      txn.addCachedKeysToInvalidate(entityCache, cachedKeys);
+    }
+  }
+
   /**
    * Method to retrieve the Entity with the specified key from the datastore.
    * @param ds DatastoreService to use
@@ -666,16 +817,31 @@ public final class EntityUtils {
     if (ec.getStatistics() != null) {
       ec.getStatistics().incrementNumReads();
     }
-
-    Entity entity;
-    try {
-      if (txn == null) {
-        entity = ds.get(key);
-      } else {
-        entity = ds.get(txn.getInnerTxn(), key);
+    flushBufferedPuts(ec, Collections.singletonList(key));
+    AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+    if (asyncWriteMgr != null) {
+      // Make sure we see our own writes
+      asyncWriteMgr.awaitKeys(Collections.singletonList(key));
+    }
+
+    // Only use the entity cache outside a txn, since a read in a txn has to be seen by the datastore
+    EntityCache entityCache =
+        txn == null ? ((DatastoreManager)ec.getStoreManager()).getEntityCache(key.getKind()) : null;
+    Entity entity = entityCache != null ? entityCache.get(key) : null;
+    if (entity == null) {
+      try {
+        if (txn == null) {
+          entity = ds.get(key);
+        } else {
+          entity = ds.get(txn.getInnerTxn(), key);
+          registerTransactionalRead(ec, key);
+        }
+      } catch (EntityNotFoundException e) {
+        throw DatastoreExceptionTranslator.wrapEntityNotFoundException(e, key);
+      }
+      if (entityCache != null) {
+        entityCache.putAll(Collections.singletonList(entity));
       }
-    } catch (EntityNotFoundException e) {
-      throw DatastoreExceptionTranslator.wrapEntityNotFoundException(e, key);
     }
 
     if (op != null) {
@@ -699,11 +865,50 @@ public final class EntityUtils {
       }
 
       op.setAssociatedValue(txn, entity);
+      if (((DatastoreManager) ec.getStoreManager()).isSkipUnchangedPuts()) {
+        EntityFingerprint.record(op, entity);
+      }
     }
 
     return entity;
   }
 
+  /**
+   * Method to register that an entity has been read with the current datastore transaction, either by key
+   * or by an ancestor query executed in it. Only the versions of such entities are trusted by the version
+   * check (see {@link DatastoreManager#SKIP_VERSION_CHECK_IN_TXN_PROPERTY}).
+   * @param ec ExecutionContext
+   * @param key Key of the entity
+   */
+  public static void registerTransactionalRead(ExecutionContext ec, Key key) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    if (storeMgr.isSkipVersionCheckInTxn()) {
+      DatastoreTransaction txn = storeMgr.getDatastoreTransaction(ec);
+      if (txn != null) {
+        txn.addTransactionalRead(key);
+      }
+    }
+  }
+
+  /**
+   * Method to register the version of an entity that has just been read, so that a later version check in the
+   * same datastore transaction needn't read it again (see {@link DatastoreManager#SKIP_VERSION_CHECK_IN_TXN_PROPERTY}).
+   * The version is ignored unless the entity was read with that transaction, since otherwise the datastore
+   * wouldn't notice a change made by someone else before the commit.
+   * @param ec ExecutionContext
+   * @param key Key of the entity
+   * @param version The version read
+   */
+  static void registerReadVersion(ExecutionContext ec, Key key, Object version) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    if (version != null && storeMgr.isSkipVersionCheckInTxn()) {
+      DatastoreTransaction txn = storeMgr.getDatastoreTransaction(ec);
+      if (txn != null && txn.isTransactionalRead(key)) {
+        txn.addKnownVersion(key, version);
+      }
+    }
+  }
+
   /**
    * Method to put the provided entity into the datastore.
    * @param ec ExecutionContext
@@ -721,6 +926,84 @@ public final class EntityUtils {
    * @return The DatastoreTransaction
    */
   public static DatastoreTransaction putEntitiesIntoDatastore(ExecutionContext ec, List<Entity> entities) {
+    if (((DatastoreManager)ec.getStoreManager()).isPutBufferingEnabled()) {
+      KeyRegistry keyReg = KeyRegistry.getKeyRegistry(ec);
+      if (keyReg.isBufferingPuts()) {
+        if (allKeysComplete(entities)) {
+          // Hold the put back so it goes out with the rest of the object graph or flush
+          keyReg.bufferPuts(entities);
+          return ((DatastoreManager)ec.getStoreManager()).getDatastoreTransaction(ec);
+        }
+        flushBufferedPuts(ec);
+      }
+    }
+    return putEntitiesIntoDatastoreInternal(ec, entities);
+  }
+
+  /**
+   * Method to write any puts being held back in the {@link KeyRegistry} (see
+   * {@link DatastoreManager#PREALLOCATE_KEYS_ON_INSERT_PROPERTY} and {@link DatastoreManager#BATCH_UPDATES_PROPERTY})
+   * as a single batch put. Called before anything that needs to see those writes in the datastore.
+   * @param ec ExecutionContext
+   */
+  public static void flushBufferedPuts(ExecutionContext ec) {
+    if (!((DatastoreManager)ec.getStoreManager()).isPutBufferingEnabled()) {
+      return;
+    }
+    KeyRegistry keyReg = KeyRegistry.getKeyRegistry(ec);
+    if (keyReg.hasBufferedPuts()) {
+      putEntitiesIntoDatastoreInternal(ec, keyReg.takeBufferedPuts());
+    }
+  }
+
+  /**
+   * Method to write any puts being held back in the {@link KeyRegistry} for the supplied keys, leaving the
+   * others buffered. Called before reading those keys from the datastore.
+   * @param ec ExecutionContext
+   * @param keys The keys about to be read
+   */
+  public static void flushBufferedPuts(ExecutionContext ec, Collection<Key> keys) {
+    if (!((DatastoreManager)ec.getStoreManager()).isPutBufferingEnabled()) {
+      return;
+    }
+    KeyRegistry keyReg = KeyRegistry.getKeyRegistry(ec);
+    if (keyReg.hasBufferedPuts()) {
+      List<Entity> entities = keyReg.takeBufferedPuts(keys);
+      if (!entities.isEmpty()) {
+        putEntitiesIntoDatastoreInternal(ec, entities);
+      }
+    }
+  }
+
+  /**
+   * Method to write any buffered puts and wait for any asynchronous writes (see
+   * {@link DatastoreManager#DATASTORE_ASYNC_WRITES_PROPERTY}), so that a datastore read sees all writes
+   * made so far. Called before queries, which could match any entity.
+   * @param ec ExecutionContext
+   */
+  public static void flushPendingWrites(ExecutionContext ec) {
+    flushBufferedPuts(ec);
+    AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+    if (asyncWriteMgr != null) {
+      asyncWriteMgr.awaitAll();
+    }
+  }
+
+  /**
+   * Method to write any buffered puts and wait for any asynchronous writes of the supplied keys, so that
+   * a datastore get of those keys sees all writes made so far.
+   * @param ec ExecutionContext
+   * @param keys The keys about to be read
+   */
+  public static void flushPendingWrites(ExecutionContext ec, Collection<Key> keys) {
+    flushBufferedPuts(ec, keys);
+    AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+    if (asyncWriteMgr != null) {
+      asyncWriteMgr.awaitKeys(keys);
+    }
+  }
+
+  private static DatastoreTransaction putEntitiesIntoDatastoreInternal(ExecutionContext ec, List<Entity> entities) {
     DatastoreTransaction txn = ((DatastoreManager)ec.getStoreManager()).getDatastoreTransaction(ec);
     DatastoreService ds = ((DatastoreManager)ec.getStoreManager()).getDatastoreService(ec);
     List<Entity> putMe = Utils.newArrayList();
@@ -745,14 +1028,13 @@ public final class EntityUtils {
           // and check to see if they changed anything between the
           // delete and the put.
         } else {
-          Entity previouslyPut = txn.getPutEntities().get(entity.getKey());
           // It's ok to put if we haven't put this entity before or we have
           // and something has changed.  The reason we want to reput if something has
           // changed is that this will generate a datastore error, and we want users
           // to get this error because it means they have done something wrong.
 
           // TODO(maxr) Throw this exception ourselves with lots of good error detail.
-          if (previouslyPut == null || !previouslyPut.getProperties().equals(entity.getProperties())) {
+          if (!txn.isUnchangedSincePut(entity)) {
             putMe.add(entity);
           }
         }
@@ -762,6 +1044,20 @@ public final class EntityUtils {
       if (ec.getStatistics() != null) {
         ec.getStatistics().incrementNumWrites();
       }
+      AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+      if (asyncWriteMgr != null) {
+        if (allKeysComplete(putMe)) {
+          // Issue the put and join it at flush/commit
+          asyncWriteMgr.put(txn, putMe);
+          if (txn != null) {
+            txn.addPutEntities(putMe);
+          }
+          invalidateCachedEntities(ec, getKeys(putMe));
+          return txn;
+        }
+        // Put synchronously, but only once any outstanding writes have completed
+        asyncWriteMgr.awaitAll();
+      }
       if (txn == null) {
         if (putMe.size() == 1) {
           ds.put(putMe.get(0));
@@ -777,10 +1073,33 @@ public final class EntityUtils {
         }
         txn.addPutEntities(putMe);
       }
+      // Keys are all complete now, including those assigned by the put
+      invalidateCachedEntities(ec, getKeys(putMe));
     }
     return txn;
   }
 
+  private static List<Key> getKeys(List<Entity> entities) {
+    List<Key> keys = Utils.newArrayList();
+    for (Entity entity : entities) {
+      keys.add(entity.getKey());
+    }
+    return keys;
+  }
+
+  /**
+   * Convenience method to check whether all of the supplied entities have complete keys. An entity with an
+   * incomplete key needs the datastore to assign its id, and we have to wait for that before carrying on.
+   */
+  private static boolean allKeysComplete(List<Entity> entities) {
+    for (Entity entity : entities) {
+      if (!entity.getKey().isComplete()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Method to actually perform the deletion of Entity(s) from the datastore.
    * @param ec ExecutionContext
@@ -796,7 +1115,15 @@ public final class EntityUtils {
       ec.getStatistics().incrementNumWrites();
     }
 
+    flushBufferedPuts(ec);
     DatastoreTransaction txn = ((DatastoreManager)ec.getStoreManager()).getDatastoreTransaction(ec);
+    AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(ec);
+    if (asyncWriteMgr != null) {
+      // Issue the delete and join it at flush/commit
+      asyncWriteMgr.delete(txn, keys);
+      invalidateCachedEntities(ec, keys);
+      return;
+    }
     if (txn == null) {
       if (keys.size() == 1) {
         ds.delete(keys.get(0));
@@ -811,6 +1138,7 @@ public final class EntityUtils {
         ds.delete(innerTxn, keys);
       }
     }
+    invalidateCachedEntities(ec, keys);
   }
 
   /**
@@ -1022,6 +1350,9 @@ public final class EntityUtils {
     // TODO(maxr): Seems like we should be able to refactor the handler
     // so that we can do a fetch without having to hide the entity in the state manager.
     op.setAssociatedValue(((DatastoreManager)ec.getStoreManager()).getDatastoreTransaction(ec), entity);
+    if (storeMgr.isSkipUnchangedPuts()) {
+      EntityFingerprint.record(op, entity);
+    }
 
     // Make sure any version is set
     if (acmd.isVersioned()) {
@@ -1031,6 +1362,7 @@ public final class EntityUtils {
         versionValue = new Timestamp((Long)versionValue);
       }
       op.setVersion(versionValue);
+      registerReadVersion(ec, entity.getKey(), versionValue);
     }
 
     if (fetchPlan == null) {
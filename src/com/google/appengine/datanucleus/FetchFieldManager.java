@@ -38,8 +38,6 @@ import org.datanucleus.query.QueryUtils;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.state.ObjectProvider;
 import org.datanucleus.store.mapped.mapping.JavaTypeMapping;
-import org.datanucleus.store.types.TypeManager;
-import org.datanucleus.store.types.converters.TypeConverter;
 import org.datanucleus.store.types.SCO;
 import org.datanucleus.store.types.SCOUtils;
 import org.datanucleus.util.NucleusLogger;
@@ -452,16 +450,9 @@ public class FetchFieldManager extends DatastoreFieldManager
           mmd = getClassMetaData().getMetaDataForMember(mmd.getName());
         }
 
-        if (mmd.getTypeConverterName() != null) {
-          // User-defined TypeConverter
-          TypeConverter conv = ec.getTypeManager().getTypeConverterForName(mmd.getTypeConverterName());
-          value = conv.toMemberType(value);
-        } else {
-          // Perform any conversions from the stored-type to the field type
-          TypeManager typeMgr = ec.getNucleusContext().getTypeManager();
-          value = ((DatastoreManager) ec.getStoreManager()).getTypeConversionUtils()
-              .datastoreValueToPojoValue(typeMgr, clr, value, mmd);
-        }
+        // Perform any conversions from the stored-type to the field type, including
+        // any user-defined TypeConverter
+        value = getMemberCodec(mmd).toPojoValue(clr, value);
 
         if (value != null && !(value instanceof SCO)) {
           value = getObjectProvider().wrapSCOField(fieldNumber, value, false, false, true);
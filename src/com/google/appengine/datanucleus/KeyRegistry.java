@@ -15,14 +15,19 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus;
 
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.store.StoreManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -52,6 +57,15 @@ public class KeyRegistry {
   /** Set of objects that are going to be persisted and are unowned (so don't look for a parent key). */
   private final Set<Object> unownedObjects = new HashSet();
 
+  /**
+   * Map of key allocated in advance keyed by the (not yet persistent) object that is to use it.
+   * We use an IdentityHashMap here because we want reference equality, not object equality.
+   */
+  private final Map<Object, Key> preallocatedKeyMap = new IdentityHashMap<Object, Key>();
+
+  /** Entities whose put is being held back so they can be written in one batch, or null if not buffering. */
+  private Map<Key, Entity> bufferedPuts = null;
+
   /**
    * Method to register the parent key for a child object (when it is known and we are about to persist the child).
    * @param obj Child object whose parent we are registering
@@ -85,4 +99,85 @@ public class KeyRegistry {
   public void clearUnownedObjects() {
     unownedObjects.clear();
   }
+
+  /**
+   * Method to register a key that has been allocated for an object that is about to be persisted.
+   * @param obj The object that is to use the key
+   * @param key The allocated key
+   */
+  public void registerPreallocatedKey(Object obj, Key key) {
+    preallocatedKeyMap.put(obj, key);
+  }
+
+  /**
+   * Accessor for the key allocated in advance for an object, if any.
+   * @param obj The object being persisted
+   * @return The key (or null if none was allocated)
+   */
+  public Key getPreallocatedKey(Object obj) {
+    return preallocatedKeyMap.get(obj);
+  }
+
+  public void clearPreallocatedKeys() {
+    preallocatedKeyMap.clear();
+  }
+
+  /**
+   * Method to start holding back puts of entities with complete keys (see {@link #bufferPuts(List)}).
+   */
+  void startBufferingPuts() {
+    bufferedPuts = new LinkedHashMap<Key, Entity>();
+  }
+
+  boolean isBufferingPuts() {
+    return bufferedPuts != null;
+  }
+
+  boolean hasBufferedPuts() {
+    return bufferedPuts != null && !bufferedPuts.isEmpty();
+  }
+
+  /**
+   * Method to hold back the put of the supplied entities. A later put of the same key replaces the earlier one.
+   * @param entities The entities, all with complete keys
+   */
+  void bufferPuts(List<Entity> entities) {
+    for (Entity entity : entities) {
+      bufferedPuts.put(entity.getKey(), entity);
+    }
+  }
+
+  /**
+   * Method to remove and return the entities held back so far, leaving buffering switched on.
+   * @return The buffered entities, in the order they were first put
+   */
+  List<Entity> takeBufferedPuts() {
+    List<Entity> entities = new ArrayList<Entity>(bufferedPuts.values());
+    bufferedPuts.clear();
+    return entities;
+  }
+
+  /**
+   * Method to remove and return the entities held back so far that have one of the supplied keys,
+   * leaving buffering switched on.
+   * @param keys The keys
+   * @return The buffered entities with those keys
+   */
+  List<Entity> takeBufferedPuts(Collection<Key> keys) {
+    List<Entity> entities = new ArrayList<Entity>();
+    for (Key key : keys) {
+      Entity entity = bufferedPuts.remove(key);
+      if (entity != null) {
+        entities.add(entity);
+      }
+    }
+    return entities;
+  }
+
+  /**
+   * Method to stop buffering puts, discarding anything not yet taken.
+   */
+  void stopBufferingPuts() {
+    bufferedPuts = null;
+  }
 }
@@ -0,0 +1,112 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link EntityCache} holding entities in this JVM, discarding the least recently used once it holds
+ * more than a maximum number. Entities are copied on the way in and out, since the plugin updates the
+ * entities that it reads.
+ */
+public class LruEntityCache implements EntityCache {
+
+  /** How long a removed key stays blocked from being re-added, so that a read made before a write isn't cached. */
+  static final long NO_RE_ADD_MILLIS = 1000;
+
+  private final long expiryMillis;
+
+  private final Map<Key, CacheEntry> entries;
+
+  /**
+   * Constructor.
+   * @param maxSize Maximum number of entities to hold
+   * @param expirySeconds Number of seconds an entity can be held for, or 0 for no limit
+   */
+  public LruEntityCache(final int maxSize, int expirySeconds) {
+    this.expiryMillis = expirySeconds * 1000L;
+    this.entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public synchronized Entity get(Key key) {
+    CacheEntry entry = entries.get(key);
+    if (entry == null || entry.entity == null) {
+      return null;
+    }
+    if (entry.expiresAt != 0 && entry.expiresAt < System.currentTimeMillis()) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.entity.clone();
+  }
+
+  public synchronized Map<Key, Entity> getAll(Collection<Key> keys) {
+    Map<Key, Entity> result = Utils.newHashMap();
+    for (Key key : keys) {
+      Entity entity = get(key);
+      if (entity != null) {
+        result.put(key, entity);
+      }
+    }
+    return result;
+  }
+
+  public synchronized void putAll(Collection<Entity> entities) {
+    long now = System.currentTimeMillis();
+    for (Entity entity : entities) {
+      CacheEntry existing = entries.get(entity.getKey());
+      if (existing != null && existing.entity == null && existing.noReAddUntil > now) {
+        // Recently written, so this may be a stale read
+        continue;
+      }
+      entries.put(entity.getKey(), new CacheEntry(entity.clone(), expiryMillis == 0 ? 0 : now + expiryMillis, 0));
+    }
+  }
+
+  public synchronized void removeAll(Collection<Key> keys) {
+    long noReAddUntil = System.currentTimeMillis() + NO_RE_ADD_MILLIS;
+    for (Key key : keys) {
+      entries.put(key, new CacheEntry(null, 0, noReAddUntil));
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private static final class CacheEntry {
+    /** The entity, or null if the key was removed. */
+    final Entity entity;
+    final long expiresAt;
+    final long noReAddUntil;
+
+    CacheEntry(Entity entity, long expiresAt, long noReAddUntil) {
+      this.entity = entity;
+      this.expiresAt = expiresAt;
+      this.noReAddUntil = noReAddUntil;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * {@link EntityCache} backed by the App Engine memcache service, so shared by all instances of the
+ * application. Entities are added with {@link MemcacheService.SetPolicy#ADD_ONLY_IF_NOT_PRESENT}, and removed
+ * with a short period during which they can't be re-added, so that a read that overlaps a write can't
+ * put the old entity back. Memcache errors are logged and treated as cache misses by the memcache service.
+ */
+public class MemcacheEntityCache implements EntityCache {
+
+  /** Namespace of the memcache entries. */
+  public static final String NAMESPACE = "datanucleus.appengine.entityCache";
+
+  private final MemcacheService memcache;
+
+  private final Expiration expiration;
+
+  /**
+   * Constructor.
+   * @param expirySeconds Number of seconds an entity can be held for, or 0 to leave it to memcache
+   */
+  public MemcacheEntityCache(int expirySeconds) {
+    this(MemcacheServiceFactory.getMemcacheService(NAMESPACE), expirySeconds);
+  }
+
+  public MemcacheEntityCache(MemcacheService memcache, int expirySeconds) {
+    this.memcache = memcache;
+    this.expiration = expirySeconds > 0 ? Expiration.byDeltaSeconds(expirySeconds) : null;
+  }
+
+  public Entity get(Key key) {
+    return (Entity) memcache.get(key);
+  }
+
+  public Map<Key, Entity> getAll(Collection<Key> keys) {
+    Map<Key, Object> cached = memcache.getAll(keys);
+    Map<Key, Entity> result = Utils.newHashMap();
+    for (Map.Entry<Key, Object> entry : cached.entrySet()) {
+      result.put(entry.getKey(), (Entity) entry.getValue());
+    }
+    return result;
+  }
+
+  public void putAll(Collection<Entity> entities) {
+    Map<Key, Entity> values = Utils.newHashMap();
+    for (Entity entity : entities) {
+      values.put(entity.getKey(), entity);
+    }
+    memcache.putAll(values, expiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+  }
+
+  public void removeAll(Collection<Key> keys) {
+    memcache.deleteAll(keys, LruEntityCache.NO_RE_ADD_MILLIS);
+  }
+}
@@ -124,6 +124,23 @@ public class MetaDataUtils {
     }
   }
 
+  /**
+   * Convenience method to return the page size of a collection marked with "gae.page-size".
+   * @param mmd Metadata for the collection member
+   * @return The page size, or 0 if the collection isn't paged
+   */
+  public static int getPageSize(AbstractMemberMetaData mmd) {
+    String val = mmd.getValueForExtension(DatastoreManager.PAGE_SIZE);
+    if (val == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(val.trim()));
+    } catch (NumberFormatException nfe) {
+      return 0;
+    }
+  }
+
   /**
    * Convenience method to return whether or not keys of related objects can be
    * expected to exist on the parent
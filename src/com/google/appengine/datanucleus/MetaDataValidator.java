@@ -281,6 +281,16 @@ public class MetaDataValidator {
           ammd.getFullFieldName());
     }
 
+    if (ammd.hasExtension(DatastoreManager.PAGE_SIZE)) {
+      if (!ammd.hasCollection() || MetaDataUtils.getPageSize(ammd) <= 0) {
+        throw new InvalidMetaDataException(GAE_LOCALISER, "AppEngine.MetaData.PageSizeInvalid",
+            ammd.getFullFieldName(), DatastoreManager.PAGE_SIZE);
+      }
+      if (!ammd.hasExtension("cache") && !ammd.getCollection().hasExtension("cache")) {
+        // Paging is pointless if the wrapper loads the whole collection on first access
+        ammd.getCollection().addExtension("datanucleus", "cache", "false");
+      }
+    }
 
     checkForIllegalChildField(ammd, noParentAllowed);
 
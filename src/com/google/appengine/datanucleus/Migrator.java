@@ -41,7 +41,9 @@ import com.google.appengine.api.datastore.Query.SortPredicate;
 
 /**
  * Migration tool for moving from GAE v1 StorageVersion (children identified by parent key) to
- * GAE v2 StorageVersion (child keys stored in parents).
+ * GAE v2 StorageVersion (child keys stored in parents). When owned collection sizes are maintained
+ * (see {@link DatastoreManager#OWNED_COLLECTION_SIZE_PROPERTY}) it also adds the number of children
+ * of each owned collection to the owner.
  * There are two ways that this can be used. 
  * The first (preferred) method will allow you to migrate an Entity at a time and so could be enabled 
  * using the Mapper API - see http://code.google.com/p/appengine-mapreduce/
@@ -265,6 +267,17 @@ public class Migrator {
             changed = true;
             entity.setProperty(propName, values);
           }
+
+          if (storeMgr.isMaintainOwnedCollectionSize() && mmd.hasCollection()) {
+            // Backfill the number of children, read by the backing store for the size of the collection
+            String sizePropName = EntityUtils.getCollectionSizePropertyName(storeMgr.getIdentifierFactory(), mmd);
+            if (!entity.hasProperty(sizePropName)) {
+              Object keys = entity.getProperty(propName);
+              long size = keys instanceof Collection ? ((Collection) keys).size() : 0;
+              entity.setUnindexedProperty(sizePropName, size);
+              changed = true;
+            }
+          }
         }
       }
     }
@@ -29,6 +29,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * Helper used by {@link DatastoreFieldManager} to process serialized fields.
@@ -51,6 +53,8 @@ import java.util.Arrays;
  * In the above example, the value assigned to the <code>myClass</code> member
  * will be transformed into a {@link Blob} by an instance of
  * <code>MySerializationStrategy> before being written to the datastore.
+ * {@link CompactSerializationStrategy} and {@link DeflateSerializationStrategy}
+ * are provided as faster and smaller alternatives to java serialization.
  *
  * @author Max Ross <maxr@google.com>
  */
@@ -149,6 +153,13 @@ public class SerializationManager {
     }
   };
 
+  /**
+   * Strategies resolved for the members serialized so far, keyed by the identity of their metadata.
+   * Replaced as a whole when a member is added, so that lookups don't need to lock.
+   */
+  private volatile Map<AbstractMemberMetaData, SerializationStrategy> strategies =
+      new IdentityHashMap<AbstractMemberMetaData, SerializationStrategy>();
+
   /**
    * Transform the given value into a {@link Blob} using the serialization
    * strategy declared on the given member metadata, or using the default
@@ -171,9 +182,28 @@ public class SerializationManager {
     return serializationStrategy.deserialize(value, ammd.getType());
   }
 
+  /**
+   * Returns the serialization strategy for the given member. The strategy is resolved the first time
+   * and the same instance is used from then on, so custom strategies have to be thread-safe.
+   */
   // visible for testing
   SerializationStrategy getSerializationStrategy(
       ClassLoaderResolver clr, AbstractMemberMetaData ammd) {
+    SerializationStrategy strategy = strategies.get(ammd);
+    if (strategy == null) {
+      strategy = createSerializationStrategy(clr, ammd);
+      synchronized (this) {
+        Map<AbstractMemberMetaData, SerializationStrategy> newStrategies =
+            new IdentityHashMap<AbstractMemberMetaData, SerializationStrategy>(strategies);
+        newStrategies.put(ammd, strategy);
+        strategies = newStrategies;
+      }
+    }
+    return strategy;
+  }
+
+  private SerializationStrategy createSerializationStrategy(
+      ClassLoaderResolver clr, AbstractMemberMetaData ammd) {
     ExtensionMetaData[] emdList = ammd.getExtensions();
     if (emdList != null) {
       // There is a hasExtension method on AbstractMemberMetaData
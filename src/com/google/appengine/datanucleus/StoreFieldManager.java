@@ -50,7 +50,6 @@ import org.datanucleus.store.mapped.mapping.MappingCallbacks;
 import org.datanucleus.store.mapped.mapping.PersistableMapping;
 import org.datanucleus.store.mapped.mapping.SerialisedPCMapping;
 import org.datanucleus.store.mapped.mapping.SerialisedReferenceMapping;
-import org.datanucleus.store.types.TypeManager;
 import org.datanucleus.store.types.SCO;
 import org.datanucleus.util.Localiser;
 
@@ -346,10 +345,7 @@ public class StoreFieldManager extends DatastoreFieldManager {
         checkSettingToNullValue(mmd, value);
       } else {
         // Perform any conversions from the field type to the stored-type
-        TypeManager typeMgr = ec.getNucleusContext().getTypeManager();
-        value = ((DatastoreManager) ec.getStoreManager())
-            .getTypeConversionUtils()
-            .pojoValueToDatastoreValue(typeMgr, clr, value, mmd);
+        value = getMemberCodec(mmd).toDatastoreValue(clr, value);
 
         if (value instanceof SCO) {
           // Use the unwrapped value so the datastore doesn't fail on unknown types
@@ -665,6 +661,25 @@ public class StoreFieldManager extends DatastoreFieldManager {
     }
   }
 
+  /**
+   * Accessor for whether any relation fields were registered for processing in {@link #storeRelations(KeyRegistry)}.
+   * @return Whether there are relations waiting to be stored
+   */
+  boolean hasRelationsToStore() {
+    return !relationStoreInfos.isEmpty();
+  }
+
+  /**
+   * Method to give the (new) Entity a key that has been allocated in advance, rather than letting the datastore
+   * assign one on the first put. The key must have the same kind and parent as the current incomplete key.
+   * @param key The allocated key
+   */
+  void assignPreallocatedKey(Key key) {
+    Entity old = datastoreEntity;
+    datastoreEntity = new Entity(key);
+    EntityUtils.copyProperties(old, datastoreEntity);
+  }
+
   /**
    * Method to process all relations that have been identified by earlier call(s) of op.provideField(...).
    * Registers the parent key against any owned child objects, performs cascade-persist, and then stores
@@ -846,6 +861,9 @@ public class StoreFieldManager extends DatastoreFieldManager {
           modifiedEntity = true;
           EntityUtils.setEntityProperty(datastoreEntity, mmd, propName, value);
         }
+        if (owned && mmd.hasCollection() && setCollectionSize(mmd, 0)) {
+          modifiedEntity = true;
+        }
       } else if (RelationType.isRelationSingleValued(relationType)) {
         if (ec.getApiAdapter().isDeleted(value)) {
           value = null;
@@ -879,6 +897,9 @@ public class StoreFieldManager extends DatastoreFieldManager {
             modifiedEntity = true;
             EntityUtils.setEntityProperty(datastoreEntity, mmd, propName, value);
           }
+          if (owned && setCollectionSize(mmd, ((List) value).size())) {
+            modifiedEntity = true;
+          }
         } else if (mmd.hasArray()) {
           value = getDatastoreObjectForArray(mmd, value, ec, owned, true);
           if (!datastoreEntity.hasProperty(propName) || !value.equals(datastoreEntity.getProperty(propName))) {
@@ -900,6 +921,26 @@ public class StoreFieldManager extends DatastoreFieldManager {
     return modifiedEntity;
   }
 
+  /**
+   * Method to store the number of children of an owned collection in the owner entity, when sizes are
+   * maintained, so that the backing store can read the size without querying for the children.
+   * @param mmd Metadata for the collection field
+   * @param size The number of children
+   * @return Whether the entity has been modified
+   */
+  private boolean setCollectionSize(AbstractMemberMetaData mmd, long size) {
+    if (!getStoreManager().isMaintainOwnedCollectionSize()) {
+      return false;
+    }
+    String sizePropName = EntityUtils.getCollectionSizePropertyName(getStoreManager().getIdentifierFactory(), mmd);
+    Object current = datastoreEntity.getProperty(sizePropName);
+    if (current instanceof Long && (Long) current == size) {
+      return false;
+    }
+    datastoreEntity.setUnindexedProperty(sizePropName, size);
+    return true;
+  }
+
   // Nonsense about registering parent key
   private void addToParentKeyMap(KeyRegistry keyRegistry, Object childValue, Key key, ExecutionContext ec,
       String expectedType, boolean checkForPolymorphism) {
@@ -22,7 +22,6 @@ import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.metadata.AbstractMemberMetaData;
-import org.datanucleus.metadata.ColumnMetaData;
 import org.datanucleus.store.types.TypeManager;
 import org.datanucleus.store.types.converters.TypeConverter;
 import org.datanucleus.store.types.SCOUtils;
@@ -362,6 +361,9 @@ public class TypeConversionUtils {
    * will return a zero-length array of the appropriate type.  Similarly, if
    * the property is a {@link Collection} and the value is {@code null}, this
    * method will return an empty {@link Collection} of the appropriate type.
+   * This builds a new codec for the member on each call, so callers converting values of members of a table
+   * should use the codec cached by
+   * {@link com.google.appengine.datanucleus.mapping.DatastoreTable#getMemberCodec} instead.
    * @param typeMgr TypeManager
    * @param clr class loader resolver to use for string to class conversions
    * @param value The datastore value. Can be null.
@@ -371,63 +373,7 @@ public class TypeConversionUtils {
    */
   public Object datastoreValueToPojoValue(TypeManager typeMgr, ClassLoaderResolver clr, Object value, 
       AbstractMemberMetaData ammd) {
-    if (ammd.hasArray()) {
-      value = datastoreValueToPojoArray(value, ammd);
-    } else if (ammd.hasCollection()) {
-      value = datastoreValueToPojoCollection(clr, value, ammd);
-    } else if (ammd.hasMap()) {
-      value = datastoreValueToPojoMap(clr, value, ammd);
-    } else {
-      if (value != null) {
-        if (java.sql.Time.class.isAssignableFrom(ammd.getType())) {
-          // Long -> java.sql.Time
-          value = new java.sql.Time((Long)value);
-        } else if (java.sql.Date.class.isAssignableFrom(ammd.getType())) {
-          // Long -> java.sql.Date
-          value = new java.sql.Date((Long)value);
-        } else if (java.sql.Timestamp.class.isAssignableFrom(ammd.getType())) {
-          // Long -> java.sql.Timestamp
-          value = new java.sql.Timestamp((Long)value);
-        } else if (Enum.class.isAssignableFrom(ammd.getType())) {
-          // String(name) / Long(ordinal) -> Enum
-          boolean asOrdinal = false;
-          if (ammd.getColumnMetaData() != null && ammd.getColumnMetaData().length > 0) {
-            String jdbcType = ammd.getColumnMetaData()[0].getJdbcType();
-            if (jdbcType != null && jdbcType.equalsIgnoreCase("integer")) {
-              // Persisted as ordinal
-              asOrdinal = true;
-            }
-          }
-          Class<Enum> enumClass = ammd.getType();
-          if (asOrdinal) {
-            value = enumClass.getEnumConstants()[(Integer)value];
-          } else {
-            value = Enum.valueOf(enumClass, (String) value);
-          }
-        } else {
-          if (supportedClasses.contains(ammd.getType()) ||
-              ammd.getTypeName().startsWith("com.google.appengine.api")) {
-            value = getDatastoreToPojoTypeFunc(Utils.identity(), ammd.getType()).apply(value);
-          } else if (value instanceof String) {
-            TypeConverter conv = typeMgr.getTypeConverterForType(ammd.getType(), String.class);
-            if (conv != null) {
-              // Persisted as String, so convert back
-              value = conv.toMemberType((String)value);
-            }
-          } else if (value instanceof Long) {
-            TypeConverter conv = typeMgr.getTypeConverterForType(ammd.getType(), Long.class);
-            if (conv != null) {
-              // Persisted as Long, so convert back
-              value = conv.toMemberType((Long)value);
-            }
-          } else {
-            // Unsupported type on GAE/J ?
-            value = getDatastoreToPojoTypeFunc(Utils.identity(), ammd.getType()).apply(value);
-          }
-        }
-      }
-    }
-    return value;
+    return newMemberCodec(typeMgr, ammd).toPojoValue(clr, value);
   }
 
   /**
@@ -726,115 +672,243 @@ public class TypeConversionUtils {
 
     /**
    * Performs type conversions on a pojo value to return the value to be stored.
+   * This builds a new codec for the member on each call, so callers converting values of members of a table
+   * should use the codec cached by
+   * {@link com.google.appengine.datanucleus.mapping.DatastoreTable#getMemberCodec} instead.
    * @param typeMgr TypeManager
    * @param clr class loader resolver to use for string to class conversions
    * @param value The pojo value.
    * @param ammd The meta data for the pojo property.
    * @return A representation of the pojo value that can be set on a datastore {@link Entity}.
    */
-  @SuppressWarnings("deprecation")
   public Object pojoValueToDatastoreValue(TypeManager typeMgr, ClassLoaderResolver clr, Object value, 
       AbstractMemberMetaData ammd) {
-    if (value == null) {
-      return null;
+    return newMemberCodec(typeMgr, ammd).toDatastoreValue(clr, value);
+  }
+
+  /**
+   * Conversions between the datastore values and pojo values of one member. All decisions that only depend
+   * on the metadata of the member are made when the codec is created, so converting a value is a single call.
+   * Codecs are cached per member by {@link com.google.appengine.datanucleus.mapping.DatastoreTable}.
+   */
+  public abstract static class MemberCodec {
+    private final AbstractMemberMetaData ammd;
+
+    MemberCodec(AbstractMemberMetaData ammd) {
+      this.ammd = ammd;
+    }
+
+    /**
+     * @return The meta data for the member the codec converts values of.
+     */
+    public AbstractMemberMetaData getMemberMetaData() {
+      return ammd;
     }
 
+    /**
+     * Converts a datastore property value into the value to set on the pojo.
+     * See {@link TypeConversionUtils#datastoreValueToPojoValue}.
+     * @param clr class loader resolver to use for string to class conversions
+     * @param value The datastore value. Can be null.
+     * @return A representation of the datastore property value that can be set on the pojo.
+     */
+    public abstract Object toPojoValue(ClassLoaderResolver clr, Object value);
+
+    /**
+     * Converts a pojo value into the value to store.
+     * See {@link TypeConversionUtils#pojoValueToDatastoreValue}.
+     * @param clr class loader resolver to use for string to class conversions
+     * @param value The pojo value. Can be null.
+     * @return A representation of the pojo value that can be set on a datastore {@link Entity}.
+     */
+    public abstract Object toDatastoreValue(ClassLoaderResolver clr, Object value);
+  }
+
+  /**
+   * Creates the codec converting the values of the given member.
+   * @param typeMgr TypeManager
+   * @param ammd The meta data for the member
+   * @return The codec
+   */
+  public MemberCodec newMemberCodec(TypeManager typeMgr, final AbstractMemberMetaData ammd) {
     if (ammd.getTypeConverterName() != null) {
       // User-defined type-converter
-      TypeConverter conv = typeMgr.getTypeConverterForName(ammd.getTypeConverterName());
-      value = conv.toDatastoreType(value);
-    } else {
-      // Perform conversion
-      if (ammd.hasArray()) {
-        value = convertPojoArrayToDatastoreValue(ammd, value);
-      } else if (ammd.hasCollection()) {
-        value = convertPojoCollectionToDatastoreValue(clr, ammd, (Collection<?>) value);
-      } else if (ammd.hasMap()) {
-        value = convertPojoMapToDatastoreValue(clr, ammd, (Map)value);
-      } else {
-        if (value != null) {
-          if (java.sql.Time.class.isAssignableFrom(ammd.getType())) {
-            // java.sql.Time -> Long
-            value = ((java.sql.Time)value).getTime(); // Pass a long through since this is not supported
-          } else if (java.sql.Date.class.isAssignableFrom(ammd.getType())) {
-            // java.sql.Date -> Long
-            value = ((java.sql.Date)value).getTime(); // Pass a long through since this is not supported
-          } else if (java.sql.Timestamp.class.isAssignableFrom(ammd.getType())) {
-            // java.sql.Timestamp -> Long
-            value = ((java.sql.Timestamp)value).getTime(); // Pass a long through since this is not supported
-          } else if (Date.class.isAssignableFrom(ammd.getType())) {
-            // java.util.Date -> Date (date, time, datetime)
-            ColumnMetaData[] colmds = ammd.getColumnMetaData();
-            if (colmds != null && colmds.length > 0 && colmds[0].getJdbcType() != null) {
-              String jdbcType = colmds[0].getJdbcType();
-              if (jdbcType.equalsIgnoreCase("time")) { // Dump the date part
-                Calendar cal = Calendar.getInstance();
-                cal.setTime((Date) value);
-                java.sql.Time time = new java.sql.Time(0);
-                time.setHours(cal.get(Calendar.HOUR_OF_DAY));
-                time.setMinutes(cal.get(Calendar.MINUTE));
-                time.setSeconds(cal.get(Calendar.SECOND));
-                value = new Date(time.getTime());
-              } else if (jdbcType.equalsIgnoreCase("date")) { // Dump the time part
-                Calendar cal = Calendar.getInstance();
-                cal.setTime((Date) value);
-                java.sql.Date date = new java.sql.Date(0);
-                date.setDate(cal.get(Calendar.DAY_OF_MONTH));
-                date.setMonth(cal.get(Calendar.MONTH));
-                date.setYear(cal.get(Calendar.YEAR)-1900);
-                value = new Date(date.getTime());
-              }
-            }
-          } else if (Enum.class.isAssignableFrom(ammd.getType())) {
-            // Enum -> String(name) / Long(ordinal)
-            boolean asOrdinal = false;
-            if (ammd.getColumnMetaData() != null && ammd.getColumnMetaData().length > 0) {
-              String jdbcType = ammd.getColumnMetaData()[0].getJdbcType();
-              if (jdbcType != null && jdbcType.equalsIgnoreCase("integer")) {
-                // Persisted as ordinal
-                asOrdinal = true;
-              }
-            }
-            if (asOrdinal) {
-              if (value instanceof Enum) {
-                value = ((Enum)value).ordinal();
-              }
-            } else {
-              if (value instanceof Enum) {
-                value = ((Enum) value).name();
-              }
-            }
-          } else {
-            if (supportedClasses.contains(ammd.getType()) ||
-                ammd.getTypeName().startsWith("com.google.appengine.api")) {
-              value = getPojoToDatastoreTypeFunc(Utils.identity(), ammd.getType()).apply(value);
-            } else {
-              // Use TypeConverter where appropriate
-              // Note : We also come through here when converting parameter values for queries, which may not be the
-              // same type as the value of the field (e.g pass in the String form when using a UUID)
-              if (ammd.getType().isAssignableFrom(value.getClass())) {
-                TypeConverter strConv = typeMgr.getTypeConverterForType(ammd.getType(), String.class);
-                if (strConv != null) {
-                  // Persist as String
-                  value = strConv.toDatastoreType(value);
-                } else {
-                  TypeConverter longConv = typeMgr.getTypeConverterForType(ammd.getType(), Long.class);
-                  if (longConv != null) {
-                    // Persist as Long
-                    value = longConv.toDatastoreType(value);
-                  } else {
-                    // Unsupported type on GAE/J ?
-                    value = getPojoToDatastoreTypeFunc(Utils.identity(), ammd.getType()).apply(value);
-                  }
-                }
-              }
-            }
-          }
+      final TypeConverter conv = typeMgr.getTypeConverterForName(ammd.getTypeConverterName());
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          return conv.toMemberType(value);
         }
-      }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : conv.toDatastoreType(value);
+        }
+      };
+    } else if (ammd.hasArray()) {
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          return datastoreValueToPojoArray(value, ammd);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : convertPojoArrayToDatastoreValue(ammd, value);
+        }
+      };
+    } else if (ammd.hasCollection()) {
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          return datastoreValueToPojoCollection(clr, value, ammd);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : convertPojoCollectionToDatastoreValue(clr, ammd, (Collection<?>) value);
+        }
+      };
+    } else if (ammd.hasMap()) {
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          return datastoreValueToPojoMap(clr, value, ammd);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : convertPojoMapToDatastoreValue(clr, ammd, (Map) value);
+        }
+      };
     }
 
-    return value;
+    final Class type = ammd.getType();
+    String jdbcType = null;
+    if (ammd.getColumnMetaData() != null && ammd.getColumnMetaData().length > 0) {
+      jdbcType = ammd.getColumnMetaData()[0].getJdbcType();
+    }
+    if (java.sql.Time.class.isAssignableFrom(type)) {
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          // Long -> java.sql.Time
+          return value == null ? null : new java.sql.Time((Long) value);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          // java.sql.Time -> Long. Pass a long through since this is not supported
+          return value == null ? null : ((java.sql.Time) value).getTime();
+        }
+      };
+    } else if (java.sql.Date.class.isAssignableFrom(type)) {
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          // Long -> java.sql.Date
+          return value == null ? null : new java.sql.Date((Long) value);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          // java.sql.Date -> Long. Pass a long through since this is not supported
+          return value == null ? null : ((java.sql.Date) value).getTime();
+        }
+      };
+    } else if (java.sql.Timestamp.class.isAssignableFrom(type)) {
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          // Long -> java.sql.Timestamp
+          return value == null ? null : new java.sql.Timestamp((Long) value);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          // java.sql.Timestamp -> Long. Pass a long through since this is not supported
+          return value == null ? null : ((java.sql.Timestamp) value).getTime();
+        }
+      };
+    } else if (Enum.class.isAssignableFrom(type)) {
+      // String(name) / Long(ordinal) <-> Enum
+      if (jdbcType != null && jdbcType.equalsIgnoreCase("integer")) {
+        // Persisted as ordinal
+        final Object[] constants = type.getEnumConstants();
+        return new MemberCodec(ammd) {
+          public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+            return value == null ? null : constants[(Integer) value];
+          }
+          public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+            return value instanceof Enum ? ((Enum) value).ordinal() : value;
+          }
+        };
+      }
+      return new MemberCodec(ammd) {
+        @SuppressWarnings("unchecked")
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : Enum.valueOf(type, (String) value);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          return value instanceof Enum ? ((Enum) value).name() : value;
+        }
+      };
+    }
+
+    final Function<Object, Object> toPojoFunc = getDatastoreToPojoTypeFunc(Utils.identity(), type);
+    final Function<Object, Object> toDatastoreFunc = getPojoToDatastoreTypeFunc(Utils.identity(), type);
+    if (Date.class.isAssignableFrom(type) &&
+        jdbcType != null && (jdbcType.equalsIgnoreCase("time") || jdbcType.equalsIgnoreCase("date"))) {
+      // java.util.Date -> Date (date, time, datetime)
+      final boolean timeOnly = jdbcType.equalsIgnoreCase("time");
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : toPojoFunc.apply(value);
+        }
+        @SuppressWarnings("deprecation")
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          if (value == null) {
+            return null;
+          }
+          Calendar cal = Calendar.getInstance();
+          cal.setTime((Date) value);
+          if (timeOnly) { // Dump the date part
+            java.sql.Time time = new java.sql.Time(0);
+            time.setHours(cal.get(Calendar.HOUR_OF_DAY));
+            time.setMinutes(cal.get(Calendar.MINUTE));
+            time.setSeconds(cal.get(Calendar.SECOND));
+            return new Date(time.getTime());
+          } else { // Dump the time part
+            java.sql.Date date = new java.sql.Date(0);
+            date.setDate(cal.get(Calendar.DAY_OF_MONTH));
+            date.setMonth(cal.get(Calendar.MONTH));
+            date.setYear(cal.get(Calendar.YEAR)-1900);
+            return new Date(date.getTime());
+          }
+        }
+      };
+    } else if (supportedClasses.contains(type) || ammd.getTypeName().startsWith("com.google.appengine.api")) {
+      return new MemberCodec(ammd) {
+        public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : toPojoFunc.apply(value);
+        }
+        public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+          return value == null ? null : toDatastoreFunc.apply(value);
+        }
+      };
+    }
+
+    // Use TypeConverter where appropriate
+    final TypeConverter strConv = typeMgr.getTypeConverterForType(type, String.class);
+    final TypeConverter longConv = typeMgr.getTypeConverterForType(type, Long.class);
+    final boolean isDate = Date.class.isAssignableFrom(type);
+    return new MemberCodec(ammd) {
+      public Object toPojoValue(ClassLoaderResolver clr, Object value) {
+        if (value instanceof String) {
+          // Persisted as String, so convert back
+          return strConv != null ? strConv.toMemberType((String) value) : value;
+        } else if (value instanceof Long) {
+          // Persisted as Long, so convert back
+          return longConv != null ? longConv.toMemberType((Long) value) : value;
+        }
+        // Unsupported type on GAE/J ?
+        return value == null ? null : toPojoFunc.apply(value);
+      }
+      public Object toDatastoreValue(ClassLoaderResolver clr, Object value) {
+        // Note : We also come through here when converting parameter values for queries, which may not be the
+        // same type as the value of the field (e.g pass in the String form when using a UUID)
+        if (value == null || isDate || !type.isAssignableFrom(value.getClass())) {
+          return value;
+        } else if (strConv != null) {
+          // Persist as String
+          return strConv.toDatastoreType(value);
+        } else if (longConv != null) {
+          // Persist as Long
+          return longConv.toDatastoreType(value);
+        }
+        // Unsupported type on GAE/J ?
+        return toDatastoreFunc.apply(value);
+      }
+    };
   }
 
   private Object convertPojoCollectionToDatastoreValue(
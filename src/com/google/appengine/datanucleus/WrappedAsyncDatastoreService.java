@@ -0,0 +1,385 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapConcurrentModificationException;
+import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapDatastoreFailureException;
+import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapIllegalArgumentException;
+
+/**
+ * {@link AsyncDatastoreService} implementation that wraps the runtime exceptions thrown by the datastore api in
+ * the appropriate DataNucleus exception, both when a call is issued and as the cause of the ExecutionException
+ * thrown by its Future, in the same way as {@link WrappedDatastoreService}. Calls are also recorded by
+ * {@link DatastoreRpcMetrics} when that is enabled, when their result is first waited for.
+ */
+public class WrappedAsyncDatastoreService implements AsyncDatastoreService {
+
+  private final AsyncDatastoreService inner;
+
+  public WrappedAsyncDatastoreService(AsyncDatastoreService inner) {
+    this.inner = inner;
+  }
+
+  public AsyncDatastoreService getDelegate() {
+    return inner;
+  }
+
+  public Future<Entity> get(Key key) {
+    return get(null, key, false);
+  }
+
+  public Future<Entity> get(Transaction transaction, Key key) {
+    return get(transaction, key, true);
+  }
+
+  private Future<Entity> get(Transaction transaction, Key key, boolean withTxn) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("get");
+    if (call != null) {
+      call.key(key);
+      call.start();
+    }
+    try {
+      return new WrappedFuture<Entity>(withTxn ? inner.get(transaction, key) : inner.get(key), call) {
+        void recordResult(DatastoreRpcMetrics.Call call, Entity result) {
+          call.entity(result);
+        }
+      };
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<Map<Key, Entity>> get(Iterable<Key> keys) {
+    return get(null, keys, false);
+  }
+
+  public Future<Map<Key, Entity>> get(Transaction transaction, Iterable<Key> keys) {
+    return get(transaction, keys, true);
+  }
+
+  private Future<Map<Key, Entity>> get(Transaction transaction, Iterable<Key> keys, boolean withTxn) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("get");
+    if (call != null) {
+      call.keys(keys);
+      call.start();
+    }
+    try {
+      Future<Map<Key, Entity>> future = withTxn ? inner.get(transaction, keys) : inner.get(keys);
+      return new WrappedFuture<Map<Key, Entity>>(future, call) {
+        void recordResult(DatastoreRpcMetrics.Call call, Map<Key, Entity> result) {
+          call.entities(result.values());
+        }
+      };
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<Key> put(Entity entity) {
+    return put(null, entity, false);
+  }
+
+  public Future<Key> put(Transaction transaction, Entity entity) {
+    return put(transaction, entity, true);
+  }
+
+  private Future<Key> put(Transaction transaction, Entity entity, boolean withTxn) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("put");
+    if (call != null) {
+      call.entity(entity);
+      call.start();
+    }
+    try {
+      return new WrappedFuture<Key>(withTxn ? inner.put(transaction, entity) : inner.put(entity), call);
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<List<Key>> put(Iterable<Entity> entities) {
+    return put(null, entities, false);
+  }
+
+  public Future<List<Key>> put(Transaction transaction, Iterable<Entity> entities) {
+    return put(transaction, entities, true);
+  }
+
+  private Future<List<Key>> put(Transaction transaction, Iterable<Entity> entities, boolean withTxn) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("put");
+    if (call != null) {
+      call.entities(entities);
+      call.start();
+    }
+    try {
+      return new WrappedFuture<List<Key>>(
+          withTxn ? inner.put(transaction, entities) : inner.put(entities), call);
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<Void> delete(Key... keys) {
+    return delete(null, Arrays.asList(keys), false);
+  }
+
+  public Future<Void> delete(Transaction transaction, Key... keys) {
+    return delete(transaction, Arrays.asList(keys), true);
+  }
+
+  public Future<Void> delete(Iterable<Key> keys) {
+    return delete(null, keys, false);
+  }
+
+  public Future<Void> delete(Transaction transaction, Iterable<Key> keys) {
+    return delete(transaction, keys, true);
+  }
+
+  private Future<Void> delete(Transaction transaction, Iterable<Key> keys, boolean withTxn) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("delete");
+    if (call != null) {
+      call.keys(keys);
+      call.start();
+    }
+    try {
+      return new WrappedFuture<Void>(withTxn ? inner.delete(transaction, keys) : inner.delete(keys), call);
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<Transaction> beginTransaction() {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("beginTransaction");
+    try {
+      return new WrappedFuture<Transaction>(inner.beginTransaction(), call);
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<Transaction> beginTransaction(TransactionOptions transactionOptions) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("beginTransaction");
+    try {
+      return new WrappedFuture<Transaction>(inner.beginTransaction(transactionOptions), call);
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<KeyRange> allocateIds(String kind, long num) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("allocateIds");
+    if (call != null) {
+      call.kind(kind);
+      call.start();
+    }
+    try {
+      return new WrappedFuture<KeyRange>(inner.allocateIds(kind, num), call);
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<KeyRange> allocateIds(Key parent, String kind, long num) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("allocateIds");
+    if (call != null) {
+      call.kind(kind);
+      call.start();
+    }
+    try {
+      return new WrappedFuture<KeyRange>(inner.allocateIds(parent, kind, num), call);
+    } catch (RuntimeException e) {
+      throw failed(call, e);
+    }
+  }
+
+  public Future<DatastoreAttributes> getDatastoreAttributes() {
+    try {
+      return new WrappedFuture<DatastoreAttributes>(inner.getDatastoreAttributes(), null);
+    } catch (RuntimeException e) {
+      throw failed(null, e);
+    }
+  }
+
+  public Future<Map<Index, Index.IndexState>> getIndexes() {
+    try {
+      return new WrappedFuture<Map<Index, Index.IndexState>>(inner.getIndexes(), null);
+    } catch (RuntimeException e) {
+      throw failed(null, e);
+    }
+  }
+
+  public PreparedQuery prepare(Query query) {
+    try {
+      PreparedQuery result = inner.prepare(query);
+      return DatastoreRpcMetrics.getInstance().isEnabled() ? new WrappedPreparedQuery(result, query.getKind()) : result;
+    } catch (RuntimeException e) {
+      throw failed(null, e);
+    }
+  }
+
+  public PreparedQuery prepare(Transaction transaction, Query query) {
+    try {
+      PreparedQuery result = inner.prepare(transaction, query);
+      return DatastoreRpcMetrics.getInstance().isEnabled() ? new WrappedPreparedQuery(result, query.getKind()) : result;
+    } catch (RuntimeException e) {
+      throw failed(null, e);
+    }
+  }
+
+  public Transaction getCurrentTransaction() {
+    try {
+      return inner.getCurrentTransaction();
+    } catch (RuntimeException e) {
+      throw failed(null, e);
+    }
+  }
+
+  public Transaction getCurrentTransaction(Transaction transaction) {
+    try {
+      return inner.getCurrentTransaction(transaction);
+    } catch (RuntimeException e) {
+      throw failed(null, e);
+    }
+  }
+
+  public Collection<Transaction> getActiveTransactions() {
+    try {
+      return inner.getActiveTransactions();
+    } catch (RuntimeException e) {
+      throw failed(null, e);
+    }
+  }
+
+  /**
+   * Method to record a call that failed as it was issued, returning the exception to throw for it.
+   */
+  private static RuntimeException failed(DatastoreRpcMetrics.Call call, RuntimeException e) {
+    if (call != null) {
+      call.end();
+    }
+    return translate(e);
+  }
+
+  /**
+   * Method to translate a runtime exception thrown by the datastore api, as {@link WrappedDatastoreService} does.
+   * Anything else is returned unchanged.
+   */
+  private static RuntimeException translate(Throwable e) {
+    if (e instanceof IllegalArgumentException) {
+      return wrapIllegalArgumentException((IllegalArgumentException) e);
+    } else if (e instanceof ConcurrentModificationException) {
+      return wrapConcurrentModificationException((ConcurrentModificationException) e);
+    } else if (e instanceof DatastoreFailureException) {
+      return wrapDatastoreFailureException((DatastoreFailureException) e);
+    }
+    return e instanceof RuntimeException ? (RuntimeException) e : null;
+  }
+
+  /**
+   * Future of a call, translating the cause of any failure and recording the call the first time its result is
+   * waited for.
+   */
+  private static class WrappedFuture<T> implements Future<T> {
+    private final Future<T> inner;
+    private DatastoreRpcMetrics.Call call;
+
+    WrappedFuture(Future<T> inner, DatastoreRpcMetrics.Call call) {
+      this.inner = inner;
+      this.call = call;
+    }
+
+    /**
+     * Method to add the details of the result of a successful call to its record.
+     */
+    void recordResult(DatastoreRpcMetrics.Call call, T result) {
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+      try {
+        T result = inner.get();
+        ended(result, true);
+        return result;
+      } catch (ExecutionException e) {
+        ended(null, false);
+        throw translateCause(e);
+      }
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        T result = inner.get(timeout, unit);
+        ended(result, true);
+        return result;
+      } catch (ExecutionException e) {
+        ended(null, false);
+        throw translateCause(e);
+      }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return inner.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+      return inner.isCancelled();
+    }
+
+    public boolean isDone() {
+      return inner.isDone();
+    }
+
+    private synchronized void ended(T result, boolean succeeded) {
+      if (call == null) {
+        return;
+      }
+      call.stop();
+      if (succeeded) {
+        if (result != null) {
+          recordResult(call, result);
+        }
+        call.succeeded();
+      }
+      call.end();
+      call = null;
+    }
+
+    private static ExecutionException translateCause(ExecutionException e) {
+      RuntimeException translated = WrappedAsyncDatastoreService.translate(e.getCause());
+      return translated == null || translated == e.getCause() ? e : new ExecutionException(translated);
+    }
+  }
+}
@@ -28,6 +28,7 @@ import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.List;
@@ -40,6 +41,7 @@ import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrap
 /**
  * {@link DatastoreService} implementation that catches runtime exceptions
  * thrown and wraps them in the appropriate DataNucleus exception.
+ * Calls are also recorded by {@link DatastoreRpcMetrics} when that is enabled.
  *
  * @author Max Ross <maxr@google.com>
  */
@@ -56,144 +58,292 @@ public class WrappedDatastoreService implements DatastoreService {
   }
 
   public Entity get(Key key) throws EntityNotFoundException {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("get");
     try {
-      return inner.get(key);
+      if (call != null) {
+        call.key(key);
+        call.start();
+      }
+      Entity result = inner.get(key);
+      if (call != null) {
+        call.stop();
+        call.entity(result);
+        call.succeeded();
+      }
+      return result;
+    } catch (EntityNotFoundException e) {
+      if (call != null) {
+        call.succeeded();
+      }
+      throw e;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public Entity get(Transaction transaction, Key key) throws EntityNotFoundException {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("get");
     try {
-      return inner.get(transaction, key);
+      if (call != null) {
+        call.key(key);
+        call.start();
+      }
+      Entity result = inner.get(transaction, key);
+      if (call != null) {
+        call.stop();
+        call.entity(result);
+        call.succeeded();
+      }
+      return result;
+    } catch (EntityNotFoundException e) {
+      if (call != null) {
+        call.succeeded();
+      }
+      throw e;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public Map<Key, Entity> get(Iterable<Key> keyIterable) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("get");
     try {
-      return inner.get(keyIterable);
+      if (call != null) {
+        call.keys(keyIterable);
+        call.start();
+      }
+      Map<Key, Entity> result = inner.get(keyIterable);
+      if (call != null) {
+        call.stop();
+        call.entities(result.values());
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public Map<Key, Entity> get(Transaction transaction, Iterable<Key> keyIterable) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("get");
     try {
-      return inner.get(transaction, keyIterable);
+      if (call != null) {
+        call.keys(keyIterable);
+        call.start();
+      }
+      Map<Key, Entity> result = inner.get(transaction, keyIterable);
+      if (call != null) {
+        call.stop();
+        call.entities(result.values());
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public Key put(Entity entity) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("put");
     try {
-      return inner.put(entity);
+      if (call != null) {
+        call.entity(entity);
+        call.start();
+      }
+      Key result = inner.put(entity);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public Key put(Transaction transaction, Entity entity) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("put");
     try {
-      return inner.put(transaction, entity);
+      if (call != null) {
+        call.entity(entity);
+        call.start();
+      }
+      Key result = inner.put(transaction, entity);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public List<Key> put(Iterable<Entity> entityIterable) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("put");
     try {
-      return inner.put(entityIterable);
+      if (call != null) {
+        call.entities(entityIterable);
+        call.start();
+      }
+      List<Key> result = inner.put(entityIterable);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public List<Key> put(Transaction transaction, Iterable<Entity> entityIterable) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("put");
     try {
-      return inner.put(transaction, entityIterable);
+      if (call != null) {
+        call.entities(entityIterable);
+        call.start();
+      }
+      List<Key> result = inner.put(transaction, entityIterable);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public void delete(Key... keys) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("delete");
     try {
+      if (call != null) {
+        call.keys(Arrays.asList(keys));
+        call.start();
+      }
       inner.delete(keys);
+      if (call != null) {
+        call.succeeded();
+      }
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public void delete(Transaction transaction, Key... keys) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("delete");
     try {
+      if (call != null) {
+        call.keys(Arrays.asList(keys));
+        call.start();
+      }
       inner.delete(transaction, keys);
+      if (call != null) {
+        call.succeeded();
+      }
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public void delete(Iterable<Key> keyIterable) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("delete");
     try {
+      if (call != null) {
+        call.keys(keyIterable);
+        call.start();
+      }
       inner.delete(keyIterable);
+      if (call != null) {
+        call.succeeded();
+      }
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public void delete(Transaction transaction, Iterable<Key> keyIterable) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("delete");
     try {
+      if (call != null) {
+        call.keys(keyIterable);
+        call.start();
+      }
       inner.delete(transaction, keyIterable);
+      if (call != null) {
+        call.succeeded();
+      }
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public PreparedQuery prepare(Query query) {
     try {
-      return inner.prepare(query);
+      // Preparing makes no datastore call, so the query is recorded as its results are fetched
+      PreparedQuery result = inner.prepare(query);
+      return DatastoreRpcMetrics.getInstance().isEnabled() ? new WrappedPreparedQuery(result, query.getKind()) : result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
@@ -203,7 +353,9 @@ public class WrappedDatastoreService implements DatastoreService {
 
   public PreparedQuery prepare(Transaction transaction, Query query) {
     try {
-      return inner.prepare(transaction, query);
+      // Preparing makes no datastore call, so the query is recorded as its results are fetched
+      PreparedQuery result = inner.prepare(transaction, query);
+      return DatastoreRpcMetrics.getInstance().isEnabled() ? new WrappedPreparedQuery(result, query.getKind()) : result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
@@ -212,22 +364,36 @@ public class WrappedDatastoreService implements DatastoreService {
   }
 
   public Transaction beginTransaction() {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("beginTransaction");
     try {
-      return inner.beginTransaction();
+      Transaction result = inner.beginTransaction();
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public Transaction beginTransaction(TransactionOptions transactionOptions) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("beginTransaction");
     try {
-      return inner.beginTransaction(transactionOptions);
+      Transaction result = inner.beginTransaction(transactionOptions);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
@@ -262,32 +428,65 @@ public class WrappedDatastoreService implements DatastoreService {
   }
 
   public KeyRange allocateIds(String kind, long num) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("allocateIds");
     try {
-      return inner.allocateIds(kind, num);
+      if (call != null) {
+        call.kind(kind);
+        call.start();
+      }
+      KeyRange result = inner.allocateIds(kind, num);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public KeyRange allocateIds(Key parent, String kind, long num) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("allocateIds");
     try {
-      return inner.allocateIds(parent, kind, num);
+      if (call != null) {
+        call.kind(kind);
+        call.start();
+      }
+      KeyRange result = inner.allocateIds(parent, kind, num);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
   public KeyRangeState allocateIdRange(KeyRange keyRange) {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("allocateIdRange");
     try {
-      return inner.allocateIdRange(keyRange);
+      if (call != null) {
+        call.kind(keyRange.getStart().getKind());
+        call.start();
+      }
+      KeyRangeState result = inner.allocateIdRange(keyRange);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      endCall(call);
     }
   }
 
@@ -310,4 +509,10 @@ public class WrappedDatastoreService implements DatastoreService {
       throw wrapDatastoreFailureException(e);
     }
   }
+
+  private static void endCall(DatastoreRpcMetrics.Call call) {
+    if (call != null) {
+      call.end();
+    }
+  }
 }
@@ -0,0 +1,275 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link PreparedQuery} that records each run of the query with {@link DatastoreRpcMetrics}. Preparing a query
+ * makes no datastore call; the results are fetched as they are read, so the time recorded for a run is the
+ * time spent in the fetches, recorded with the number of entities read once the results are exhausted. A run
+ * whose results are abandoned part way through is not recorded. The lists of asList and asQueryResultList are
+ * resolved before they are returned, so that their fetches are timed.
+ */
+final class WrappedPreparedQuery implements PreparedQuery {
+
+  private final PreparedQuery inner;
+  private final String kind;
+
+  /**
+   * @param inner The prepared query to delegate to
+   * @param kind The kind being queried, or null for a kindless query
+   */
+  WrappedPreparedQuery(PreparedQuery inner, String kind) {
+    this.inner = inner;
+    this.kind = kind;
+  }
+
+  public List<Entity> asList(FetchOptions fetchOptions) {
+    DatastoreRpcMetrics.Call call = startCall();
+    try {
+      List<Entity> result = inner.asList(fetchOptions);
+      result.size();
+      succeeded(call, result);
+      return result;
+    } finally {
+      endCall(call);
+    }
+  }
+
+  public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+    DatastoreRpcMetrics.Call call = startCall();
+    try {
+      QueryResultList<Entity> result = inner.asQueryResultList(fetchOptions);
+      result.size();
+      succeeded(call, result);
+      return result;
+    } finally {
+      endCall(call);
+    }
+  }
+
+  public Iterable<Entity> asIterable(final FetchOptions fetchOptions) {
+    return new Iterable<Entity>() {
+      public Iterator<Entity> iterator() {
+        return asIterator(fetchOptions);
+      }
+    };
+  }
+
+  public Iterable<Entity> asIterable() {
+    return new Iterable<Entity>() {
+      public Iterator<Entity> iterator() {
+        return asIterator();
+      }
+    };
+  }
+
+  public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+    return new MeteredIterator(inner.asIterator(fetchOptions));
+  }
+
+  public Iterator<Entity> asIterator() {
+    return new MeteredIterator(inner.asIterator());
+  }
+
+  public QueryResultIterable<Entity> asQueryResultIterable(final FetchOptions fetchOptions) {
+    return new QueryResultIterable<Entity>() {
+      public QueryResultIterator<Entity> iterator() {
+        return asQueryResultIterator(fetchOptions);
+      }
+    };
+  }
+
+  public QueryResultIterable<Entity> asQueryResultIterable() {
+    return new QueryResultIterable<Entity>() {
+      public QueryResultIterator<Entity> iterator() {
+        return asQueryResultIterator();
+      }
+    };
+  }
+
+  public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
+    return new MeteredQueryResultIterator(inner.asQueryResultIterator(fetchOptions));
+  }
+
+  public QueryResultIterator<Entity> asQueryResultIterator() {
+    return new MeteredQueryResultIterator(inner.asQueryResultIterator());
+  }
+
+  public Entity asSingleEntity() throws TooManyResultsException {
+    DatastoreRpcMetrics.Call call = startCall();
+    try {
+      Entity result = inner.asSingleEntity();
+      if (call != null) {
+        call.stop();
+        call.entity(result);
+        call.succeeded();
+      }
+      return result;
+    } finally {
+      endCall(call);
+    }
+  }
+
+  public int countEntities(FetchOptions fetchOptions) {
+    DatastoreRpcMetrics.Call call = startCall();
+    try {
+      int result = inner.countEntities(fetchOptions);
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
+    } finally {
+      endCall(call);
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  public int countEntities() {
+    DatastoreRpcMetrics.Call call = startCall();
+    try {
+      int result = inner.countEntities();
+      if (call != null) {
+        call.succeeded();
+      }
+      return result;
+    } finally {
+      endCall(call);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return inner.toString();
+  }
+
+  private DatastoreRpcMetrics.Call startCall() {
+    DatastoreRpcMetrics.Call call = DatastoreRpcMetrics.startCall("query");
+    if (call != null) {
+      call.kind(kind);
+    }
+    return call;
+  }
+
+  private static void succeeded(DatastoreRpcMetrics.Call call, List<Entity> result) {
+    if (call != null) {
+      call.stop();
+      call.entities(result);
+      call.succeeded();
+    }
+  }
+
+  private static void endCall(DatastoreRpcMetrics.Call call) {
+    if (call != null) {
+      call.end();
+    }
+  }
+
+  /**
+   * Iterator over the results of one run of the query, timing the calls to the underlying iterator since
+   * those are what fetch the results.
+   */
+  private class MeteredIterator implements Iterator<Entity> {
+    private final Iterator<Entity> innerIterator;
+    private final DatastoreRpcMetrics.Call call = startCall();
+    private long nanos = 0;
+    private boolean ended = false;
+
+    MeteredIterator(Iterator<Entity> innerIterator) {
+      this.innerIterator = innerIterator;
+    }
+
+    public boolean hasNext() {
+      long start = System.nanoTime();
+      boolean succeeded = false;
+      try {
+        boolean result = innerIterator.hasNext();
+        succeeded = true;
+        if (!result) {
+          end(start, true);
+        }
+        return result;
+      } finally {
+        if (!succeeded) {
+          end(start, false);
+        } else {
+          nanos += System.nanoTime() - start;
+        }
+      }
+    }
+
+    public Entity next() {
+      long start = System.nanoTime();
+      boolean succeeded = false;
+      try {
+        Entity result = innerIterator.next();
+        nanos += System.nanoTime() - start;
+        succeeded = true;
+        if (call != null) {
+          call.entity(result);
+        }
+        return result;
+      } finally {
+        if (!succeeded) {
+          end(start, false);
+        }
+      }
+    }
+
+    public void remove() {
+      innerIterator.remove();
+    }
+
+    private void end(long start, boolean succeeded) {
+      if (call == null || ended) {
+        return;
+      }
+      ended = true;
+      if (succeeded) {
+        call.succeeded();
+      }
+      call.end(nanos + System.nanoTime() - start);
+    }
+  }
+
+  private final class MeteredQueryResultIterator extends MeteredIterator implements QueryResultIterator<Entity> {
+    private final QueryResultIterator<Entity> innerIterator;
+
+    MeteredQueryResultIterator(QueryResultIterator<Entity> innerIterator) {
+      super(innerIterator);
+      this.innerIterator = innerIterator;
+    }
+
+    public Cursor getCursor() {
+      return innerIterator.getCursor();
+    }
+
+    public List<Index> getIndexList() {
+      return innerIterator.getIndexList();
+    }
+  }
+}
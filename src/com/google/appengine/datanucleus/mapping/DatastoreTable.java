@@ -40,6 +40,7 @@ import org.datanucleus.metadata.RelationType;
 import org.datanucleus.metadata.VersionMetaData;
 import org.datanucleus.plugin.ConfigurationElement;
 import org.datanucleus.store.types.SCOUtils;
+import org.datanucleus.store.types.TypeManager;
 import org.datanucleus.store.mapped.exceptions.NoSuchPersistentFieldException;
 import org.datanucleus.store.mapped.exceptions.NoTableManagedException;
 import org.datanucleus.store.mapped.DatastoreAdapter;
@@ -67,12 +68,15 @@ import org.datanucleus.util.StringUtils;
 
 import com.google.appengine.datanucleus.DatastoreManager;
 import com.google.appengine.datanucleus.MetaDataUtils;
+import com.google.appengine.datanucleus.TypeConversionUtils;
 import com.google.appengine.datanucleus.Utils;
 
 import java.text.MessageFormat;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -156,6 +160,13 @@ public class DatastoreTable implements DatastoreClass {
 
   /** MetaData for all classes being managed here. */
   private final Collection<AbstractClassMetaData> managedClassMetaData = new HashSet<AbstractClassMetaData>();
+
+  /**
+   * Value conversion codecs for members of this table, built on first use. Keyed by identity since metadata
+   * equality is by name, so an overriding member of a subclass would collide with the member it overrides.
+   */
+  private final Map<AbstractMemberMetaData, TypeConversionUtils.MemberCodec> memberCodecs =
+      Collections.synchronizedMap(new IdentityHashMap<AbstractMemberMetaData, TypeConversionUtils.MemberCodec>());
   
   public DatastoreTable(String kind, DatastoreManager storeMgr, AbstractClassMetaData cmd,
       ClassLoaderResolver clr, DatastoreAdapter dba) {
@@ -234,6 +245,21 @@ public class DatastoreTable implements DatastoreClass {
     return getMemberMapping(mmd);
   }
 
+  /**
+   * Returns the codec used to convert values of the given member between their pojo and
+   * datastore forms.  Codecs are built once per member and reused by every subsequent
+   * fetch, store and query against this table.
+   */
+  public TypeConversionUtils.MemberCodec getMemberCodec(AbstractMemberMetaData mmd,
+      TypeManager typeMgr) {
+    TypeConversionUtils.MemberCodec codec = memberCodecs.get(mmd);
+    if (codec == null) {
+      codec = storeMgr.getTypeConversionUtils().newMemberCodec(typeMgr, mmd);
+      memberCodecs.put(mmd, codec);
+    }
+    return codec;
+  }
+
   // Mostly copied from AbstractTable.addDatastoreField
   public DatastoreProperty addDatastoreField(String storedJavaType, DatastoreIdentifier name,
       JavaTypeMapping mapping, ColumnMetaData colmd) {
@@ -0,0 +1,185 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.util.NucleusLogger;
+import org.datanucleus.util.StringUtils;
+
+import com.google.appengine.datanucleus.AsyncWriteManager;
+import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.Utils;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Deletes the entities matched by a bulk delete query while their keys are read, in batches of a fixed size,
+ * so that neither the keys nor a single delete call grow with the number of matches. Batches can be deleted
+ * asynchronously, with a bounded number of them in flight at once.
+ */
+final class BulkDeleteHelper {
+
+  private final ExecutionContext ec;
+  private final DatastoreService ds;
+  /** Service to delete batches with, or null if each batch is deleted before reading more keys. */
+  private final AsyncDatastoreService ads;
+  private final Transaction txn;
+  private final int batchSize;
+  private final int maxBatchesInFlight;
+
+  private final LinkedList<Future<Void>> inFlight = new LinkedList<Future<Void>>();
+  private final LinkedList<List<Key>> inFlightKeys = new LinkedList<List<Key>>();
+  private List<Key> batch = Utils.newArrayList();
+  private long numDeleted = 0;
+
+  /**
+   * @param ec ExecutionContext
+   * @param ds The datastore service
+   * @param ads The async datastore service, or null to delete each batch synchronously
+   * @param txn The transaction to delete in. Can be {@code null}.
+   * @param batchSize Number of keys to delete per datastore call
+   * @param maxBatchesInFlight Number of asynchronous deletes that can be outstanding
+   */
+  BulkDeleteHelper(ExecutionContext ec, DatastoreService ds, AsyncDatastoreService ads, Transaction txn,
+      int batchSize, int maxBatchesInFlight) {
+    this.ec = ec;
+    this.ds = ds;
+    this.ads = ads;
+    this.txn = txn;
+    this.batchSize = batchSize;
+    this.maxBatchesInFlight = maxBatchesInFlight;
+  }
+
+  /**
+   * Deletes the provided entities, reading them as the deletes proceed.
+   * @param entities The entities (only their keys are used)
+   * @return The number of entities deleted
+   */
+  long deleteEntities(Iterable<Entity> entities) {
+    boolean complete = false;
+    try {
+      for (Entity entity : entities) {
+        addKey(entity.getKey());
+      }
+      complete = finish();
+    } finally {
+      if (!complete) {
+        awaitAllQuietly();
+      }
+    }
+    return numDeleted;
+  }
+
+  /**
+   * Deletes the entities with the provided keys.
+   * @param keys The keys
+   * @return The number of keys deleted
+   */
+  long deleteKeys(Iterable<Key> keys) {
+    boolean complete = false;
+    try {
+      for (Key key : keys) {
+        addKey(key);
+      }
+      complete = finish();
+    } finally {
+      if (!complete) {
+        awaitAllQuietly();
+      }
+    }
+    return numDeleted;
+  }
+
+  private void addKey(Key key) {
+    batch.add(key);
+    if (batch.size() >= batchSize) {
+      deleteBatch();
+    }
+  }
+
+  private boolean finish() {
+    if (!batch.isEmpty()) {
+      deleteBatch();
+    }
+    while (!inFlight.isEmpty()) {
+      awaitOldest();
+    }
+    return true;
+  }
+
+  private void deleteBatch() {
+    List<Key> keys = batch;
+    batch = Utils.newArrayList();
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Deleting entities with keys " + StringUtils.collectionToString(keys));
+    }
+    if (ec.getStatistics() != null) {
+      ec.getStatistics().incrementNumWrites();
+    }
+
+    if (ads == null) {
+      try {
+        ds.delete(txn, keys);
+      } finally {
+        // Even a failed delete may have removed some of the entities
+        EntityUtils.invalidateCachedEntities(ec, keys);
+      }
+    } else {
+      if (inFlight.size() >= maxBatchesInFlight) {
+        awaitOldest();
+      }
+      inFlight.add(ads.delete(txn, keys));
+      inFlightKeys.add(keys);
+    }
+    numDeleted += keys.size();
+  }
+
+  private void awaitOldest() {
+    Future<Void> future = inFlight.removeFirst();
+    List<Key> keys = inFlightKeys.removeFirst();
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new NucleusDataStoreException("Interrupted waiting for asynchronous delete", e);
+    } catch (ExecutionException e) {
+      throw AsyncWriteManager.translate(e.getCause());
+    } finally {
+      EntityUtils.invalidateCachedEntities(ec, keys);
+    }
+  }
+
+  private void awaitAllQuietly() {
+    while (!inFlight.isEmpty()) {
+      try {
+        awaitOldest();
+      } catch (NucleusException ne) {
+        NucleusLogger.DATASTORE_NATIVE.debug("Asynchronous delete failed after an earlier failure", ne);
+      }
+    }
+  }
+}
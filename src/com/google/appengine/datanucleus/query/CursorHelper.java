@@ -67,11 +67,14 @@ class CursorHelper {
    * the provided cursor.
    */
   public static Cursor getCursor(Iterator<?> iter) {
+    Iterator<?> innerIter = null;
     if (iter instanceof LazyResult.LazyAbstractListIterator) {
-      Iterator<?> innerIter = ((LazyResult.LazyAbstractListIterator) iter).getInnerIterator();
-      if (innerIter instanceof QueryResultIterator) {
-        return ((QueryResultIterator) innerIter).getCursor();
-      }
+      innerIter = ((LazyResult.LazyAbstractListIterator) iter).getInnerIterator();
+    } else if (iter instanceof LazyResult.ForwardOnlyIterator) {
+      innerIter = ((LazyResult.ForwardOnlyIterator) iter).getInnerIterator();
+    }
+    if (innerIter instanceof QueryResultIterator) {
+      return ((QueryResultIterator) innerIter).getCursor();
     }
     return null;
   }
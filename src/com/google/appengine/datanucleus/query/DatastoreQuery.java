@@ -15,6 +15,7 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus.query;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
@@ -70,6 +71,7 @@ import org.datanucleus.store.schema.naming.ColumnType;
 import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 
+import com.google.appengine.datanucleus.AsyncWriteManager;
 import com.google.appengine.datanucleus.BigDecimals;
 import com.google.appengine.datanucleus.DatastoreExceptionTranslator;
 import com.google.appengine.datanucleus.FetchFieldManager;
@@ -79,6 +81,7 @@ import com.google.appengine.datanucleus.DatastoreTransaction;
 import com.google.appengine.datanucleus.EntityUtils;
 import com.google.appengine.datanucleus.MetaDataUtils;
 import com.google.appengine.datanucleus.PrimitiveArrays;
+import com.google.appengine.datanucleus.TypeConversionUtils;
 import com.google.appengine.datanucleus.Utils;
 import com.google.appengine.datanucleus.Utils.Function;
 import com.google.appengine.datanucleus.mapping.DatastoreTable;
@@ -89,6 +92,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -164,6 +168,12 @@ public class DatastoreQuery implements Serializable {
   /** Whether the order clause is completely evaluatable in the datastore. */
   boolean orderComplete = true;
 
+  /** Plan being used or built by the current compile, if plans are cached. */
+  private transient QueryPlanCache.QueryPlan currentPlan;
+
+  /** Whether the current compile is building {@link #currentPlan} rather than using it. */
+  private transient boolean buildingPlan = false;
+
   /** The different types of datastore query results that we support. */
   enum ResultType {
     ENTITY, // return entities
@@ -202,19 +212,47 @@ public class DatastoreQuery implements Serializable {
     }
 
     final ClassLoaderResolver clr = getClassLoaderResolver();
-    final AbstractClassMetaData acmd = getMetaDataManager().getMetaDataForClass(query.getCandidateClass(), clr);
-    if (acmd == null) {
-      throw new NucleusFatalUserException("No meta data for " + query.getCandidateClass().getName()
-          + ".  Perhaps you need to run the enhancer on this class?");
-    }
-    getStoreManager().validateMetaDataForClass(acmd);
 
-    if (compilation.getSubqueryAliases() != null && compilation.getSubqueryAliases().length > 0) {
-      throw new NucleusUserException("Subqueries not supported by datastore. Try evaluating them in-memory");
+    // Look for a plan holding the parameter-independent parts of the compilation
+    QueryPlanCache planCache = isPlanCached() ? getStoreManager().getQueryPlanCache() : null;
+    String planKey = null;
+    QueryPlanCache.QueryPlan plan = null;
+    if (planCache != null) {
+      planKey = QueryPlanCache.getKey(query, parameters, inmemoryWhenUnsupported);
+      plan = planCache.get(planKey, getMetaDataManager());
+    }
+    buildingPlan = planCache != null && plan == null;
+
+    final AbstractClassMetaData acmd;
+    ResultType resultType;
+    DatastoreTable table;
+    if (plan != null) {
+      acmd = plan.acmd;
+      resultType = plan.resultType;
+      table = plan.table;
+    } else {
+      acmd = getMetaDataManager().getMetaDataForClass(query.getCandidateClass(), clr);
+      if (acmd == null) {
+        throw new NucleusFatalUserException("No meta data for " + query.getCandidateClass().getName()
+            + ".  Perhaps you need to run the enhancer on this class?");
+      }
+      getStoreManager().validateMetaDataForClass(acmd);
+
+      if (compilation.getSubqueryAliases() != null && compilation.getSubqueryAliases().length > 0) {
+        throw new NucleusUserException("Subqueries not supported by datastore. Try evaluating them in-memory");
+      }
+
+      resultType = validateResultExpression(compilation, acmd);
+      table = getStoreManager().getDatastoreClass(acmd.getFullClassName(), clr);
+      if (buildingPlan) {
+        plan = new QueryPlanCache.QueryPlan(acmd, table, resultType,
+            getMetaDataManager().getClassesWithMetaData().size());
+      }
     }
+    currentPlan = plan;
+    latestPlan = plan;
 
     // Create QueryData object to use as the datastore compilation
-    ResultType resultType = validateResultExpression(compilation, acmd);
     Function<Entity, Object> resultTransformer;
     if (resultType == ResultType.KEYS_ONLY) {
       resultTransformer = new Function<Entity, Object>() {
@@ -231,22 +269,51 @@ public class DatastoreQuery implements Serializable {
       };
     }
 
-    DatastoreTable table = getStoreManager().getDatastoreClass(acmd.getFullClassName(), clr);
     String kind = table.getIdentifier().getIdentifierName();
     QueryData qd = new QueryData(parameters, acmd, table, compilation, new Query(kind), resultType, 
         resultTransformer);
 
-    if (compilation.getExprFrom() != null) {
-      // Process FROM expression, adding pseudo joins
-      for (Expression fromExpr : compilation.getExprFrom()) {
-        processFromExpression(qd, fromExpr);
+    try {
+      if (compilation.getExprFrom() != null) {
+        // Process FROM expression, adding pseudo joins
+        for (Expression fromExpr : compilation.getExprFrom()) {
+          processFromExpression(qd, fromExpr);
+        }
       }
-    }
 
-    addDiscriminator(qd, clr);
-    addMultitenancyDiscriminator(qd);
-    addFilters(qd);
-    addSorts(qd);
+      addDiscriminator(qd, clr);
+      addMultitenancyDiscriminator(qd);
+      if (plan == null || buildingPlan || plan.filters == null || !bindFilterTemplates(qd, plan.filters)) {
+        addFilters(qd);
+        if (buildingPlan && filterComplete && compilation.getExprFrom() == null && qd.joinQuery == null &&
+            qd.joinVariableExpression == null && qd.fanOutQueries == null && qd.inFilters.isEmpty() &&
+            qd.batchGetKeys == null) {
+          plan.filters = getFilterTemplates(qd);
+        }
+      }
+      if (plan != null && !buildingPlan && plan.sorts != null) {
+        for (Query.SortPredicate sort : plan.sorts) {
+          qd.primaryDatastoreQuery.addSort(sort.getPropertyName(), sort.getDirection());
+        }
+        if (!plan.orderComplete) {
+          orderComplete = false;
+        }
+      } else {
+        boolean sortsComplete = addSorts(qd);
+        if (buildingPlan && compilation.getExprFrom() == null && qd.joinVariableExpression == null &&
+            qd.joinOrderExpression == null && qd.joinQuery == null) {
+          // Sorts don't involve a join so are the same for every execution
+          plan.sorts = new ArrayList<Query.SortPredicate>(qd.primaryDatastoreQuery.getSortPredicates());
+          plan.orderComplete = sortsComplete;
+        }
+      }
+      if (buildingPlan) {
+        planCache.put(planKey, plan);
+      }
+    } finally {
+      currentPlan = null;
+      buildingPlan = false;
+    }
 
     // Set query type
     if (qd.batchGetKeys != null &&
@@ -262,11 +329,44 @@ public class DatastoreQuery implements Serializable {
       if (qd.resultType == ResultType.KEYS_ONLY || isBulkDelete()) {
         qd.primaryDatastoreQuery.setKeysOnly();
       }
+      if (isFanOut()) {
+        splitIntoFanOutQueries(qd);
+      }
     }
 
     return qd;
   }
 
+  /**
+   * Splits the filters of the query into datastore queries to run concurrently, one for each branch of an
+   * 'or' and for each value of an IN filter. Leaves the query alone if it doesn't need more than one query.
+   */
+  private void splitIntoFanOutQueries(QueryData qd) {
+    List<Query> branches = qd.fanOutQueries;
+    if (branches == null) {
+      branches = Utils.newArrayList(qd.primaryDatastoreQuery);
+    }
+    int numQueries = 0;
+    for (Query branch : branches) {
+      numQueries += FanOutHelper.getNumberOfQueries(branch);
+    }
+    if (numQueries > getMaxFanOutQueries()) {
+      throw new UnsupportedDatastoreFeatureException("Query needs " + numQueries + " datastore queries but only " +
+          getMaxFanOutQueries() + " are allowed. Increase " + DatastoreManager.QUERY_FAN_OUT_MAX_QUERIES_PROPERTY +
+          " to allow this.");
+    }
+    if (qd.fanOutQueries == null && numQueries == 1) {
+      return;
+    }
+
+    List<Query> queries = Utils.newArrayList();
+    for (Query branch : branches) {
+      queries.addAll(FanOutHelper.splitInFilters(branch));
+    }
+    qd.fanOutQueries = queries;
+    qd.type = QueryType.FAN_OUT;
+  }
+
   /**
    * Method to execute the query implied by specified QueryData object.
    * @param qd QueryData to be executed
@@ -287,6 +387,13 @@ public class DatastoreQuery implements Serializable {
     }
     DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
 
+    EntityUtils.flushBufferedPuts(getExecutionContext());
+    AsyncWriteManager asyncWriteMgr = AsyncWriteManager.getAsyncWriteManager(getExecutionContext());
+    if (asyncWriteMgr != null) {
+      // Queries have to see any writes we have issued
+      asyncWriteMgr.awaitAll();
+    }
+
     // Execute the most appropriate type of query
     if (qd.type == QueryType.BATCH_GET) {
       // BatchGet query
@@ -303,21 +410,69 @@ public class DatastoreQuery implements Serializable {
 
       Iterable<Entity> entityIterable = new JoinHelper().executeJoinQuery(qd, this, ds, opts);
 
-      return wrapEntityQueryResult(entityIterable, qd.resultTransformer, ds, null);
+      return wrapEntityQueryResult(entityIterable, qd.resultTransformer, ds, null, null);
+    } else if (qd.type == QueryType.FAN_OUT) {
+      // Query split into several datastore queries
+      latestDatastoreQuery = qd.primaryDatastoreQuery;
+      Transaction txn = getQueryTransaction(ds, qd);
+      FetchOptions opts = buildFetchOptions(query.getRangeFromIncl(), query.getRangeToExcl());
+      if (opts != null && (opts.getStartCursor() != null || opts.getEndCursor() != null)) {
+        throw new NucleusUserException("Cursors are not supported for queries split into several datastore " +
+            "queries : " + query.toString());
+      }
+      if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_NATIVE.debug("Executing " + qd.fanOutQueries.size() +
+            " concurrent queries in datastore for " + query.toString());
+      }
+      if (getExecutionContext().getStatistics() != null) {
+        for (int i = 0; i < qd.fanOutQueries.size(); i++) {
+          getExecutionContext().getStatistics().incrementNumReads();
+        }
+      }
+
+      AsyncDatastoreService ads = DatastoreServiceFactoryInternal.getAsyncDatastoreService(config);
+      Iterable<Entity> entityIterable = new FanOutHelper().executeFanOutQuery(qd, ads, txn, opts);
+
+      return wrapEntityQueryResult(entityIterable, getResultTransformer(qd, txn), ds, null, null);
     } else {
       // Normal query
       latestDatastoreQuery = qd.primaryDatastoreQuery;
-      Transaction txn = null;
-      // give users a chance to opt-out of having their query execute in a txn
-      if (extensions == null ||
-          !extensions.containsKey(DatastoreManager.QUERYEXT_EXCLUDE_FROM_TXN) ||
-          !(Boolean)extensions.get(DatastoreManager.QUERYEXT_EXCLUDE_FROM_TXN)) {
-        // If this is an ancestor query, execute it in the current transaction
-        txn = qd.primaryDatastoreQuery.getAncestor() != null ? ds.getCurrentTransaction(null) : null;
+      Transaction txn = getQueryTransaction(ds, qd);
+
+      FetchOptions opts = buildFetchOptions(query.getRangeFromIncl(), query.getRangeToExcl());
+      if (isBulkDelete()) {
+        // Read the keys to delete in pages the size of a delete batch
+        if (opts == null) {
+          opts = FetchOptions.Builder.withChunkSize(getBulkDeleteBatchSize());
+        } else if (opts.getChunkSize() == null) {
+          opts.chunkSize(getBulkDeleteBatchSize());
+        }
+        if (opts.getPrefetchSize() == null) {
+          opts.prefetchSize(getBulkDeleteBatchSize());
+        }
+      }
+
+      // Only results read in full at execution (with a range) outside a txn can be cached. Non-ancestor
+      // queries are eventually consistent, so could cache results that are already stale
+      QueryResultCache resultCache = null;
+      QueryResultCache.CacheKey cacheKey = null;
+      long cacheGeneration = 0;
+      if (txn == null && qd.primaryDatastoreQuery.getAncestor() != null && opts != null && opts.getLimit() != null &&
+          opts.getLimit() <= QueryResultCache.MAX_CACHED_RESULTS && !isBulkDelete() && isResultCached()) {
+        resultCache = getStoreManager().getQueryResultCache();
+        cacheKey = new QueryResultCache.CacheKey(qd.primaryDatastoreQuery, opts);
+        cacheGeneration = resultCache.getGeneration(qd.primaryDatastoreQuery.getKind());
+        QueryResultCache.CachedResult cachedResult = resultCache.get(cacheKey);
+        if (cachedResult != null) {
+          if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+            NucleusLogger.DATASTORE_NATIVE.debug("Using cached results for query " + query.toString());
+          }
+          return newStreamingQueryResultForEntities(cachedResult.getEntities(), qd.resultTransformer,
+              cachedResult.endCursor, query);
+        }
       }
 
       PreparedQuery preparedQuery = ds.prepare(txn, qd.primaryDatastoreQuery);
-      FetchOptions opts = buildFetchOptions(query.getRangeFromIncl(), query.getRangeToExcl());
 
       if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
         NucleusLogger.DATASTORE_NATIVE.debug("Executing query in datastore for " + query.toString());
@@ -328,11 +483,20 @@ public class DatastoreQuery implements Serializable {
 
       Iterable<Entity> entityIterable;
       Cursor endCursor = null;
-      if (opts != null) {
+      int chunkPrefetchThreshold = getChunkPrefetchThreshold(qd.primaryDatastoreQuery);
+      if (chunkPrefetchThreshold > 0 && (opts == null || opts.getLimit() == null)) {
+        // Read in chunks, requesting each chunk before the previous one has been processed
+        PreparedQuery asyncPreparedQuery = DatastoreServiceFactoryInternal.getAsyncDatastoreService(config)
+            .prepare(txn, qd.primaryDatastoreQuery);
+        entityIterable = new PrefetchingQueryResultIterable(asyncPreparedQuery, opts, chunkPrefetchThreshold);
+      } else if (opts != null) {
         if (opts.getLimit() != null) {
           QueryResultList<Entity> entities = preparedQuery.asQueryResultList(opts);
           endCursor = entities.getCursor();
           entityIterable = entities;
+          if (resultCache != null) {
+            resultCache.put(cacheKey, cacheGeneration, entities, endCursor);
+          }
         } else {
           entityIterable = preparedQuery.asQueryResultIterable(opts);
         }
@@ -340,8 +504,143 @@ public class DatastoreQuery implements Serializable {
         entityIterable = preparedQuery.asQueryResultIterable();
       }
 
-      return wrapEntityQueryResult(entityIterable, qd.resultTransformer, ds, endCursor);
+      Utils.Supplier<Integer> sizeSupplier = null;
+      if (isSizeByCount()) {
+        sizeSupplier = newCountSupplier(preparedQuery, opts);
+      }
+
+      return wrapEntityQueryResult(entityIterable, getResultTransformer(qd, txn), ds, endCursor, sizeSupplier);
+    }
+  }
+
+  /**
+   * Accessor for the number of results left in a chunk at which the next chunk of the query is requested,
+   * or 0 if chunks are only requested once the previous one has been read. Chunks follow each other by
+   * cursor, so queries that the datastore runs as several queries are never read this way.
+   * @param datastoreQuery The datastore query
+   * @return The threshold
+   */
+  private int getChunkPrefetchThreshold(Query datastoreQuery) {
+    if (isBulkDelete()) {
+      return 0;
+    }
+    Object val = query.getExtension(DatastoreManager.QUERYEXT_CHUNK_PREFETCH);
+    if (val == null) {
+      return 0;
+    }
+    for (Query.FilterPredicate filter : datastoreQuery.getFilterPredicates()) {
+      if (filter.getOperator() == Query.FilterOperator.IN || filter.getOperator() == Query.FilterOperator.NOT_EQUAL) {
+        return 0;
+      }
+    }
+    return val instanceof Number ? ((Number) val).intValue() : Integer.parseInt(val.toString().trim());
+  }
+
+  /**
+   * Method to return the function converting the results of the datastore query of the provided QueryData.
+   * When the query is executed in a transaction, the results are registered as read with it so that their
+   * versions can be trusted by the version check.
+   * @param qd The QueryData
+   * @param txn The transaction the query is executed in (or null)
+   * @return The result transformer
+   */
+  private Function<Entity, Object> getResultTransformer(QueryData qd, Transaction txn) {
+    if (txn == null || !getStoreManager().isSkipVersionCheckInTxn()) {
+      return qd.resultTransformer;
+    }
+    final Function<Entity, Object> resultTransformer = qd.resultTransformer;
+    return new Function<Entity, Object>() {
+      public Object apply(Entity from) {
+        EntityUtils.registerTransactionalRead(getExecutionContext(), from.getKey());
+        return resultTransformer.apply(from);
+      }
+    };
+  }
+
+  /**
+   * Method to return the transaction to execute the datastore query of the provided QueryData in.
+   * @param ds The datastore service
+   * @param qd The QueryData
+   * @return The current transaction for an ancestor query, unless the query is excluded from it. Otherwise null
+   */
+  private Transaction getQueryTransaction(DatastoreService ds, QueryData qd) {
+    Map extensions = query.getExtensions();
+    // give users a chance to opt-out of having their query execute in a txn
+    if (extensions == null ||
+        !extensions.containsKey(DatastoreManager.QUERYEXT_EXCLUDE_FROM_TXN) ||
+        !(Boolean)extensions.get(DatastoreManager.QUERYEXT_EXCLUDE_FROM_TXN)) {
+      // If this is an ancestor query, execute it in the current transaction
+      return qd.primaryDatastoreQuery.getAncestor() != null ? ds.getCurrentTransaction(null) : null;
     }
+    return null;
+  }
+
+  /**
+   * Convenience method to return whether OR and IN filters should be run as concurrent datastore queries.
+   * @return Whether to split the query
+   */
+  private boolean isFanOut() {
+    // Use StoreManager setting and allow override in query extensions
+    boolean fanOut = getStoreManager().getBooleanProperty(DatastoreManager.QUERY_FAN_OUT_PROPERTY);
+    return query.getBooleanExtensionProperty(DatastoreManager.QUERYEXT_FAN_OUT, fanOut);
+  }
+
+  private int getMaxFanOutQueries() {
+    int maxQueries = getStoreManager().getIntProperty(DatastoreManager.QUERY_FAN_OUT_MAX_QUERIES_PROPERTY);
+    return maxQueries > 0 ? maxQueries : 100;
+  }
+
+  /**
+   * Convenience method to return whether the parameter-independent parts of the compilation should be cached.
+   * @return Whether to use the query plan cache
+   */
+  private boolean isPlanCached() {
+    // Use StoreManager setting and allow override in query extensions
+    boolean planCache = getStoreManager().getBooleanProperty(DatastoreManager.QUERY_PLAN_CACHE_PROPERTY);
+    return query.getBooleanExtensionProperty(DatastoreManager.QUERYEXT_PLAN_CACHE, planCache);
+  }
+
+  /**
+   * Convenience method to return whether the query result cache should be used for this query.
+   * @return Whether to use the query result cache
+   */
+  private boolean isResultCached() {
+    // Use StoreManager setting and allow override in query extensions
+    boolean resultCache = getStoreManager().getBooleanProperty(DatastoreManager.QUERY_RESULT_CACHE_PROPERTY);
+    return query.getBooleanExtensionProperty(DatastoreManager.QUERYEXT_RESULT_CACHE, resultCache);
+  }
+
+  /**
+   * Convenience method to return whether size() of the query result should be answered by counting
+   * in the datastore while none of the results have been read.
+   * @return Whether to use a count for the size of a fresh result
+   */
+  private boolean isSizeByCount() {
+    // Use StoreManager setting and allow override in query extensions
+    boolean sizeByCount = getStoreManager().getBooleanProperty(DatastoreManager.QUERY_SIZE_BY_COUNT_PROPERTY);
+    return query.getBooleanExtensionProperty(DatastoreManager.QUERYEXT_SIZE_BY_COUNT, sizeByCount);
+  }
+
+  /**
+   * Method to create a supplier for the number of entities matched by the supplied query. Only the
+   * count is returned by the datastore, so no entities are fetched and no objects created.
+   * @param preparedQuery The query that produces the results
+   * @param opts The fetch options used for the results (or null if none)
+   * @return The supplier
+   */
+  private Utils.Supplier<Integer> newCountSupplier(final PreparedQuery preparedQuery, FetchOptions opts) {
+    final FetchOptions countOpts = opts != null ? opts : FetchOptions.Builder.withDefaults();
+    return new Utils.Supplier<Integer>() {
+      public Integer get() {
+        if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+          NucleusLogger.DATASTORE_NATIVE.debug("Counting results in datastore for " + query.toString());
+        }
+        if (getExecutionContext().getStatistics() != null) {
+          getExecutionContext().getStatistics().incrementNumReads();
+        }
+        return preparedQuery.countEntities(countOpts);
+      }
+    };
   }
 
   private Object executeBatchGetQuery(DatastoreService ds, QueryData qd) {
@@ -370,15 +669,7 @@ public class DatastoreQuery implements Serializable {
       // keys and then delete whatever is returned.  This is more accurate but
       // not guaranteed accurate, since if we're executing without a txn,
       // something could get deleted in between the fetch and the delete.
-      if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
-        NucleusLogger.DATASTORE_NATIVE.debug("Deleting entities with keys " + StringUtils.collectionToString(keysToDelete));
-      }
-      if (getExecutionContext().getStatistics() != null) {
-        getExecutionContext().getStatistics().incrementNumWrites();
-      }
-
-      ds.delete(innerTxn, keysToDelete);
-      return (long) keysToDelete.size();
+      return newBulkDeleteHelper(ds, innerTxn).deleteKeys(keysToDelete);
     } else {
       if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
         NucleusLogger.DATASTORE_NATIVE.debug("Performing batch get for keys " + StringUtils.collectionToString(qd.batchGetKeys));
@@ -401,29 +692,48 @@ public class DatastoreQuery implements Serializable {
   }
 
   private Object wrapEntityQueryResult(Iterable<Entity> entities, Function<Entity, Object> resultTransformer,
-      DatastoreService ds, Cursor endCursor) {
+      DatastoreService ds, Cursor endCursor, Utils.Supplier<Integer> sizeSupplier) {
     if (isBulkDelete()) {
-      List<Key> keysToDelete = Utils.newArrayList();
-      for (Entity e : entities) {
-        keysToDelete.add(e.getKey());
-      }
-
-      if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
-        NucleusLogger.DATASTORE_NATIVE.debug("Deleting entities with keys " + StringUtils.collectionToString(keysToDelete));
-      }
-      if (getExecutionContext().getStatistics() != null) {
-        getExecutionContext().getStatistics().incrementNumWrites();
-      }
-      ds.delete(ds.getCurrentTransaction(null), keysToDelete);
+      // Keys are deleted in batches as they are read
+      return newBulkDeleteHelper(ds, ds.getCurrentTransaction(null)).deleteEntities(entities);
+    }
+    return newStreamingQueryResultForEntities(entities, resultTransformer, endCursor, query, sizeSupplier);
+  }
 
-      return (long) keysToDelete.size();
+  private BulkDeleteHelper newBulkDeleteHelper(DatastoreService ds, Transaction txn) {
+    int maxBatchesInFlight =
+        getStoreManager().getIntProperty(DatastoreManager.BULK_DELETE_MAX_BATCHES_IN_FLIGHT_PROPERTY);
+    AsyncDatastoreService ads = null;
+    if (maxBatchesInFlight > 1) {
+      ads = DatastoreServiceFactoryInternal.getAsyncDatastoreService(
+          getStoreManager().getDefaultDatastoreServiceConfigForWrites());
     }
-    return newStreamingQueryResultForEntities(entities, resultTransformer, endCursor, query);
+    return new BulkDeleteHelper(getExecutionContext(), ds, ads, txn, getBulkDeleteBatchSize(), maxBatchesInFlight);
+  }
+
+  private int getBulkDeleteBatchSize() {
+    int batchSize = getStoreManager().getIntProperty(DatastoreManager.BULK_DELETE_BATCH_SIZE_PROPERTY);
+    return batchSize > 0 ? batchSize : 500;
   }
 
   public static List<?> newStreamingQueryResultForEntities(
       Iterable<Entity> entities, final Function<Entity, Object> resultTransformer,
       Cursor endCursor, AbstractJavaQuery query) {
+    return newStreamingQueryResultForEntities(entities, resultTransformer, endCursor, query, null);
+  }
+
+  /**
+   * Method to create the query result for the supplied entities.
+   * @param entities The entities returned by the datastore
+   * @param resultTransformer Function converting an Entity into the result object
+   * @param endCursor Cursor pointing at the end of the results (or null)
+   * @param query The query being executed
+   * @param sizeSupplier Supplier for the number of results without reading them (or null)
+   * @return The query result
+   */
+  public static List<?> newStreamingQueryResultForEntities(
+      Iterable<Entity> entities, final Function<Entity, Object> resultTransformer,
+      Cursor endCursor, AbstractJavaQuery query, Utils.Supplier<Integer> sizeSupplier) {
     final RuntimeExceptionWrappingIterable iterable;
     final ApiAdapter api = query.getExecutionContext().getApiAdapter();
     if (entities instanceof QueryResultIterable) {
@@ -439,7 +749,11 @@ public class DatastoreQuery implements Serializable {
       iterable = new RuntimeExceptionWrappingIterable(api, entities);
     }
 
-    return new StreamingQueryResult(query, iterable, resultTransformer, endCursor);
+    if (sizeSupplier != null) {
+      sizeSupplier = QueryExceptionWrappers.dataNucleusToApi(api,
+          QueryExceptionWrappers.datastoreToDataNucleus(sizeSupplier));
+    }
+    return new StreamingQueryResult(query, iterable, resultTransformer, endCursor, sizeSupplier);
   }
 
   /**
@@ -623,11 +937,12 @@ public class DatastoreQuery implements Serializable {
 
   /**
    * Adds sorts to the given {@link Query} by examining the compiled order expression.
+   * @return Whether all of the ordering could be done by the datastore
    */
-  private void addSorts(QueryData qd) {
+  private boolean addSorts(QueryData qd) {
     Expression[] orderBys = qd.compilation.getExprOrdering();
     if (orderBys == null) {
-      return;
+      return true;
     }
 
     try {
@@ -640,10 +955,12 @@ public class DatastoreQuery implements Serializable {
     } catch (NucleusException ne) {
       if (inmemoryWhenUnsupported) {
         orderComplete = false;
+        return false;
       } else {
         throw ne;
       }
     }
+    return true;
   }
 
   private static Query.SortDirection getSortDirection(OrderExpression oe) {
@@ -693,6 +1010,13 @@ public class DatastoreQuery implements Serializable {
    * @param clr ClassLoader resolver
    */
   private void addDiscriminator(QueryData qd, ClassLoaderResolver clr) {
+    if (currentPlan != null && !buildingPlan) {
+      if (currentPlan.discriminatorPropertyName != null) {
+        qd.primaryDatastoreQuery.addFilter(currentPlan.discriminatorPropertyName, Query.FilterOperator.IN,
+            new ArrayList<Object>(currentPlan.discriminatorValues));
+      }
+      return;
+    }
     if (qd.acmd.hasDiscriminatorStrategy()) {
       String className = qd.acmd.getFullClassName();
       boolean includeSubclasses = query.isSubclasses();
@@ -712,6 +1036,10 @@ public class DatastoreQuery implements Serializable {
       }
 
       qd.primaryDatastoreQuery.addFilter(discriminatorPropertyName, Query.FilterOperator.IN, discriminatorValues);
+      if (buildingPlan) {
+        currentPlan.discriminatorPropertyName = discriminatorPropertyName;
+        currentPlan.discriminatorValues = new ArrayList<Object>(discriminatorValues);
+      }
     }
   }
 
@@ -736,34 +1064,16 @@ public class DatastoreQuery implements Serializable {
    */
   private void addFilters(QueryData qd) {
     try {
-      addExpression(qd.compilation.getExprFilter(), qd);
-
-      if (!qd.inFilters.isEmpty()) {
-        boolean onlyKeyFilters = true;
-        Set<Key> batchGetKeys = Utils.newLinkedHashSet();
-        for (Map.Entry<String, List<Object>> entry : qd.inFilters.entrySet()) {
-          if (!entry.getKey().equals(Entity.KEY_RESERVED_PROPERTY)) {
-            onlyKeyFilters = false;
-          } else {
-            for (Object obj : entry.getValue()) {
-              // Add to our list of batch get keys in case all the in filters
-              // end up being on the primary key
-              batchGetKeys.add(internalPkToKey(qd.acmd, obj));
-            }
-          }
-          qd.primaryDatastoreQuery.addFilter(entry.getKey(), Query.FilterOperator.IN, entry.getValue());
-        }
-
-        if (onlyKeyFilters) {
-          // All the in filters were on key so convert this to a batch get
-          if (qd.batchGetKeys == null) {
-            qd.batchGetKeys = batchGetKeys;
-          } else {
-            qd.batchGetKeys.addAll(batchGetKeys);
-          }
-        }
+      Expression filterExpr = qd.compilation.getExprFilter();
+      if (isFanOut() && containsOr(filterExpr) && qd.joinQuery == null && qd.joinVariableExpression == null) {
+        addFanOutFilters(qd, filterExpr);
+        return;
       }
+
+      addExpression(filterExpr, qd);
+      addInFilters(qd);
     } catch (NucleusException ne) {
+      qd.fanOutQueries = null;
       if (!inmemoryWhenUnsupported || qd.isOrExpression) { // TODO Handle OR expressions in block below and get all candidates
         throw ne;
       }
@@ -774,6 +1084,174 @@ public class DatastoreQuery implements Serializable {
     }
   }
 
+  /**
+   * Method to return templates of the filters of the given QueryData, for reuse on later executions.
+   * @param qd The QueryData, whose filters have been added
+   * @return The templates, or null if the filter isn't a conjunction of comparisons of simple members with
+   *     literals or parameters
+   */
+  private List<QueryPlanCache.FilterTemplate> getFilterTemplates(QueryData qd) {
+    List<QueryPlanCache.FilterTemplate> templates = Utils.newArrayList();
+    if (!addFilterTemplates(qd.compilation.getExprFilter(), qd, templates)) {
+      return null;
+    }
+    return Collections.unmodifiableList(templates);
+  }
+
+  private boolean addFilterTemplates(Expression expr, QueryData qd, List<QueryPlanCache.FilterTemplate> templates) {
+    if (expr == null) {
+      return true;
+    }
+    if (!(expr instanceof DyadicExpression)) {
+      return false;
+    }
+    if (expr.getOperator().equals(Expression.OP_AND)) {
+      return addFilterTemplates(expr.getLeft(), qd, templates) && addFilterTemplates(expr.getRight(), qd, templates);
+    }
+    Query.FilterOperator op = DATANUCLEUS_OP_TO_APPENGINE_OP.get(expr.getOperator());
+    if (op == null || !(expr.getLeft() instanceof PrimaryExpression) ||
+        !(expr.getRight() instanceof Literal || expr.getRight() instanceof ParameterExpression)) {
+      return false;
+    }
+    PrimaryExpression left = (PrimaryExpression) expr.getLeft();
+    List<String> tuples = getTuples(left, qd.compilation.getCandidateAlias());
+    if (isJoin(left.getLeft(), tuples)) {
+      return false;
+    }
+    AbstractMemberMetaData ammd = getMemberMetaDataForTuples(qd.acmd, tuples);
+    if (ammd == null || ammd.hasContainer() || ammd.isPrimaryKey() || MetaDataUtils.isParentPKField(ammd) ||
+        RelationType.isRelationSingleValued(ammd.getRelationType(getClassLoaderResolver()))) {
+      return false;
+    }
+    templates.add(new QueryPlanCache.FilterTemplate(determinePropertyName(ammd), op, ammd, expr.getRight()));
+    return true;
+  }
+
+  /**
+   * Method to add the filters of a plan to the given {@link Query}, binding the parameter values of this execution.
+   * Nothing is added if any value is a collection, since that needs the filter expression to be walked.
+   * @param qd The QueryData
+   * @param templates The filter templates
+   * @return Whether the filters were added
+   */
+  private boolean bindFilterTemplates(QueryData qd, List<QueryPlanCache.FilterTemplate> templates) {
+    Object[] values = new Object[templates.size()];
+    for (int i = 0; i < values.length; i++) {
+      QueryPlanCache.FilterTemplate template = templates.get(i);
+      Object value;
+      if (template.valueExpr instanceof Literal) {
+        value = ((Literal) template.valueExpr).getLiteral();
+      } else {
+        value = getParameterValue(qd.parameters, (ParameterExpression) template.valueExpr);
+      }
+      value = pojoParamToDatastoreParam(value, template.ammd.getType());
+      if (value instanceof Collection) {
+        return false;
+      }
+      values[i] = value;
+    }
+
+    for (int i = 0; i < values.length; i++) {
+      QueryPlanCache.FilterTemplate template = templates.get(i);
+      try {
+        Object value = pojoValueToDatastoreValue(qd, values[i], template.ammd);
+        qd.primaryDatastoreQuery.addFilter(template.propertyName, template.operator, value);
+      } catch (IllegalArgumentException iae) {
+        throw DatastoreExceptionTranslator.wrapIllegalArgumentException(iae);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the IN filters collected while walking the filter expression to the given {@link Query}.
+   */
+  private void addInFilters(QueryData qd) {
+    if (!qd.inFilters.isEmpty()) {
+      boolean onlyKeyFilters = true;
+      Set<Key> batchGetKeys = Utils.newLinkedHashSet();
+      for (Map.Entry<String, List<Object>> entry : qd.inFilters.entrySet()) {
+        if (!entry.getKey().equals(Entity.KEY_RESERVED_PROPERTY)) {
+          onlyKeyFilters = false;
+        } else {
+          for (Object obj : entry.getValue()) {
+            // Add to our list of batch get keys in case all the in filters
+            // end up being on the primary key
+            batchGetKeys.add(internalPkToKey(qd.acmd, obj));
+          }
+        }
+        qd.primaryDatastoreQuery.addFilter(entry.getKey(), Query.FilterOperator.IN, entry.getValue());
+      }
+
+      if (onlyKeyFilters) {
+        // All the in filters were on key so convert this to a batch get
+        if (qd.batchGetKeys == null) {
+          qd.batchGetKeys = batchGetKeys;
+        } else {
+          qd.batchGetKeys.addAll(batchGetKeys);
+        }
+      }
+    }
+  }
+
+  /**
+   * Rewrites the given filter expression as an OR of ANDs and creates a datastore query for each of the ANDs,
+   * so that every filter of a branch is a plain datastore filter (including inequalities).
+   */
+  private void addFanOutFilters(QueryData qd, Expression filterExpr) {
+    List<List<Expression>> branches = getDisjuncts(filterExpr);
+    qd.fanOutQueries = Utils.newArrayList();
+    for (List<Expression> conjuncts : branches) {
+      QueryData branchQd = new QueryData(qd.parameters, qd.acmd, qd.table, qd.compilation,
+          FanOutHelper.copyFilters(qd.primaryDatastoreQuery, true), qd.resultType, qd.resultTransformer);
+      for (Expression conjunct : conjuncts) {
+        addExpression(conjunct, branchQd);
+      }
+      addInFilters(branchQd);
+      if (branchQd.joinQuery != null || branchQd.joinVariableExpression != null) {
+        throw new UnsupportedDatastoreFeatureException("'or' filters cannot be split into queries with joins");
+      }
+      qd.fanOutQueries.add(branchQd.primaryDatastoreQuery);
+    }
+  }
+
+  /**
+   * Returns the given expression as a list of branches to OR, each a list of expressions to AND.
+   */
+  private List<List<Expression>> getDisjuncts(Expression expr) {
+    List<List<Expression>> disjuncts = Utils.newArrayList();
+    if (expr instanceof DyadicExpression && expr.getOperator().equals(Expression.OP_OR)) {
+      disjuncts.addAll(getDisjuncts(expr.getLeft()));
+      disjuncts.addAll(getDisjuncts(expr.getRight()));
+    } else if (expr instanceof DyadicExpression && expr.getOperator().equals(Expression.OP_AND)) {
+      for (List<Expression> left : getDisjuncts(expr.getLeft())) {
+        for (List<Expression> right : getDisjuncts(expr.getRight())) {
+          List<Expression> conjuncts = new ArrayList<Expression>(left);
+          conjuncts.addAll(right);
+          disjuncts.add(conjuncts);
+        }
+      }
+    } else {
+      disjuncts.add(Utils.newArrayList(expr));
+    }
+    if (disjuncts.size() > getMaxFanOutQueries()) {
+      throw new UnsupportedDatastoreFeatureException("Query needs more than " + getMaxFanOutQueries() +
+          " datastore queries. Increase " + DatastoreManager.QUERY_FAN_OUT_MAX_QUERIES_PROPERTY + " to allow this.");
+    }
+    return disjuncts;
+  }
+
+  private static boolean containsOr(Expression expr) {
+    if (expr instanceof DyadicExpression) {
+      if (expr.getOperator().equals(Expression.OP_OR)) {
+        return true;
+      } else if (expr.getOperator().equals(Expression.OP_AND)) {
+        return containsOr(expr.getLeft()) || containsOr(expr.getRight());
+      }
+    }
+    return false;
+  }
+
   /**
    * Recursively walks the given expression, adding filters to the given {@link Query} where appropriate.
    * @throws UnsupportedDatastoreOperatorException If we encounter an operator that we don't support.
@@ -1019,6 +1497,16 @@ public class DatastoreQuery implements Serializable {
     return paramValues.get(key);
   }
 
+  /**
+   * Converts a parameter value compared with the given member to its datastore form, using the codec
+   * cached on the candidate table.
+   */
+  private Object pojoValueToDatastoreValue(QueryData qd, Object value, AbstractMemberMetaData ammd) {
+    TypeConversionUtils.MemberCodec codec =
+        qd.table.getMemberCodec(ammd, getExecutionContext().getNucleusContext().getTypeManager());
+    return codec.toDatastoreValue(getClassLoaderResolver(), value);
+  }
+
   private void addLeftPrimaryExpression(PrimaryExpression left,
       Expression.Operator operator, Expression right, QueryData qd) {
     Query.FilterOperator op = DATANUCLEUS_OP_TO_APPENGINE_OP.get(operator);
@@ -1128,8 +1616,7 @@ public class DatastoreQuery implements Serializable {
         try {
           if (!ammd.hasContainer() ) {
             // Non-container field comparison, so allow conversion between input value and equivalent datastore value
-            value = getStoreManager().getTypeConversionUtils().pojoValueToDatastoreValue(
-                getExecutionContext().getNucleusContext().getTypeManager(), getClassLoaderResolver(), value, ammd);
+            value = pojoValueToDatastoreValue(qd, value, ammd);
           }
           datastoreQuery.addFilter(datastorePropName, op, value);
         } catch (IllegalArgumentException iae) {
@@ -1287,6 +1774,16 @@ public class DatastoreQuery implements Serializable {
       return ammd;
     }
 
+    String memberPath = null;
+    if (currentPlan != null) {
+      // Resolving paths into embedded objects means walking the mappings, so remember the result in the plan
+      memberPath = acmd.getFullClassName() + "#" + tuples;
+      AbstractMemberMetaData embeddedAmmd = currentPlan.embeddedMemberMetaData.get(memberPath);
+      if (embeddedAmmd != null) {
+        return embeddedAmmd;
+      }
+    }
+
     // more than one tuple, so it must be embedded data
     String parentFullClassName = acmd.getFullClassName();
     for (String tuple : tuples.subList(1, tuples.size())) {
@@ -1307,6 +1804,9 @@ public class DatastoreQuery implements Serializable {
         break;
       }
     }
+    if (memberPath != null && ammd != null) {
+      currentPlan.embeddedMemberMetaData.put(memberPath, ammd);
+    }
     return ammd;
   }
 
@@ -1525,6 +2025,14 @@ public class DatastoreQuery implements Serializable {
     return latestDatastoreQuery;
   }
 
+  // Keep track of the plan used by the last compile for tests
+  private transient QueryPlanCache.QueryPlan latestPlan;
+
+  // Exposed for tests
+  QueryPlanCache.QueryPlan getLatestPlan() {
+    return latestPlan;
+  }
+
   private ExecutionContext getExecutionContext() {
     return query.getExecutionContext();
   }
@@ -0,0 +1,509 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.users.User;
+
+import com.google.appengine.datanucleus.Utils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Executes a query that has been split into several datastore queries, one per branch of an OR and per value
+ * of an IN filter. All of the queries are started at once on the {@link AsyncDatastoreService} so that they run
+ * concurrently, and their results are merged in the order of the sorts of the query, dropping any entity that
+ * more than one query returns.
+ * <p>
+ * When every query returns its results in the order of the sorts the merge is done while iterating, and the
+ * offset and limit are applied as the merged results are read. A query with an inequality filter on a property
+ * other than the first sort has to be sorted on that property first, and in that case all results are read and
+ * sorted in memory when iteration starts. Values are compared in the order the datastore uses across types, and
+ * multi-valued properties are compared using their smallest value for ascending sorts and their largest for
+ * descending sorts.
+ */
+final class FanOutHelper {
+
+  /**
+   * Method to return how many queries the provided query is split into, one for each combination of the
+   * values of its IN filters.
+   * @param query The datastore query
+   * @return The number of queries
+   */
+  static int getNumberOfQueries(Query query) {
+    int num = 1;
+    for (Query.FilterPredicate filter : query.getFilterPredicates()) {
+      if (filter.getOperator() == Query.FilterOperator.IN) {
+        num *= ((Collection<?>) filter.getValue()).size();
+      }
+    }
+    return num;
+  }
+
+  /**
+   * Method to split the provided query into a query with equality filters for each combination of the values
+   * of its IN filters. The queries have no sorts.
+   * @param query The datastore query
+   * @return The queries
+   */
+  static List<Query> splitInFilters(Query query) {
+    List<Query> queries = Utils.newArrayList(copyFilters(query, false));
+    for (Query.FilterPredicate filter : query.getFilterPredicates()) {
+      if (filter.getOperator() != Query.FilterOperator.IN) {
+        continue;
+      }
+      List<Query> split = Utils.newArrayList();
+      for (Query partial : queries) {
+        for (Object value : (Collection<?>) filter.getValue()) {
+          Query subQuery = copyFilters(partial, true);
+          subQuery.addFilter(filter.getPropertyName(), Query.FilterOperator.EQUAL, value);
+          split.add(subQuery);
+        }
+      }
+      queries = split;
+    }
+    return queries;
+  }
+
+  /**
+   * Method to create a query of the same kind and ancestor as the provided query, with the same filters.
+   * @param query The datastore query
+   * @param includeInFilters Whether to copy IN filters too
+   * @return The new query
+   */
+  static Query copyFilters(Query query, boolean includeInFilters) {
+    Query copy = new Query(query.getKind(), query.getAncestor());
+    for (Query.FilterPredicate filter : query.getFilterPredicates()) {
+      if (includeInFilters || filter.getOperator() != Query.FilterOperator.IN) {
+        copy.addFilter(filter.getPropertyName(), filter.getOperator(), filter.getValue());
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Execute the queries of the provided {@link QueryData}.
+   * @param qd The {@link QueryData} holding the queries and (in its primary query) the sorts to apply.
+   * @param ads The async datastore service to use.
+   * @param txn The transaction to execute the queries in. Can be {@code null}.
+   * @param opts The fetch options to apply to the query.  Can be {@code null}.
+   * @return The merged results, which are merged as they are iterated and can only be iterated once.
+   */
+  Iterable<Entity> executeFanOutQuery(QueryData qd, AsyncDatastoreService ads, Transaction txn,
+      FetchOptions opts) {
+    List<Query.SortPredicate> sorts = qd.primaryDatastoreQuery.getSortPredicates();
+    int offset = 0;
+    Integer limit = null;
+    if (opts != null) {
+      if (opts.getOffset() != null) {
+        offset = opts.getOffset();
+      }
+      limit = opts.getLimit();
+    }
+
+    boolean ordered = true;
+    List<Iterator<Entity>> iterators = Utils.newArrayList();
+    for (Query query : qd.fanOutQueries) {
+      Query subQuery = copyFilters(query, true);
+      String inequalityProperty = getInequalityProperty(subQuery);
+      boolean subQueryOrdered = true;
+      if (inequalityProperty != null &&
+          (sorts.isEmpty() || !sorts.get(0).getPropertyName().equals(inequalityProperty))) {
+        // The datastore needs the inequality property to be sorted first
+        subQuery.addSort(inequalityProperty);
+        subQueryOrdered = false;
+        ordered = false;
+      }
+      for (Query.SortPredicate sort : sorts) {
+        subQuery.addSort(sort.getPropertyName(), sort.getDirection());
+      }
+      if (qd.primaryDatastoreQuery.isKeysOnly() && sorts.isEmpty()) {
+        // Entities are only compared by key, so the properties aren't needed
+        subQuery.setKeysOnly();
+      }
+      // Each query starts running as soon as it is prepared
+      FetchOptions subOpts = getSubQueryFetchOptions(opts, offset, limit, subQueryOrdered);
+      iterators.add(ads.prepare(txn, subQuery).asIterator(subOpts));
+    }
+
+    return new MergedResults(iterators, new EntityComparator(sorts), ordered, offset, limit);
+  }
+
+  /**
+   * Method to return the fetch options for one of the queries. Only a query returning its results in the order
+   * of the merge is limited, since one sorted on its inequality property first could have results in the range
+   * after the limit.
+   */
+  private static FetchOptions getSubQueryFetchOptions(FetchOptions opts, int offset, Integer limit,
+      boolean ordered) {
+    FetchOptions subOpts = FetchOptions.Builder.withDefaults();
+    if (opts != null) {
+      if (limit != null && ordered) {
+        // Any query could supply all of the results, including those skipped by the offset
+        subOpts.limit(offset + limit);
+      }
+      if (opts.getChunkSize() != null) {
+        subOpts.chunkSize(opts.getChunkSize());
+      }
+      if (opts.getPrefetchSize() != null) {
+        subOpts.prefetchSize(opts.getPrefetchSize());
+      }
+    }
+    return subOpts;
+  }
+
+  private static String getInequalityProperty(Query query) {
+    for (Query.FilterPredicate filter : query.getFilterPredicates()) {
+      Query.FilterOperator op = filter.getOperator();
+      if (op != Query.FilterOperator.EQUAL && op != Query.FilterOperator.IN) {
+        return filter.getPropertyName();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The merged results of the queries, which are only read from the queries as they are iterated.
+   */
+  private static final class MergedResults implements Iterable<Entity> {
+    private final List<Iterator<Entity>> iterators;
+    private final Comparator<Entity> comparator;
+    /** Whether every query returns its results in the order of the comparator. */
+    private final boolean ordered;
+    private final int offset;
+    private final Integer limit;
+    private boolean iterated = false;
+
+    MergedResults(List<Iterator<Entity>> iterators, Comparator<Entity> comparator, boolean ordered, int offset,
+        Integer limit) {
+      this.iterators = iterators;
+      this.comparator = comparator;
+      this.ordered = ordered;
+      this.offset = offset;
+      this.limit = limit;
+    }
+
+    public Iterator<Entity> iterator() {
+      if (iterated) {
+        throw new IllegalStateException("The results of a query split into several queries can only be read once");
+      }
+      iterated = true;
+
+      Iterator<Entity> merged;
+      if (ordered) {
+        merged = new MergingIterator(iterators, comparator);
+      } else {
+        List<Entity> entities = Utils.newArrayList();
+        Set<Key> keys = Utils.newHashSet();
+        for (Iterator<Entity> iter : iterators) {
+          while (iter.hasNext()) {
+            Entity entity = iter.next();
+            if (keys.add(entity.getKey())) {
+              entities.add(entity);
+            }
+          }
+        }
+        Collections.sort(entities, comparator);
+        merged = entities.iterator();
+      }
+      return new RangeIterator(merged, offset, limit);
+    }
+  }
+
+  /**
+   * Iterator skipping the first results of another iterator and stopping after a number of results.
+   */
+  private static final class RangeIterator implements Iterator<Entity> {
+    private final Iterator<Entity> iter;
+    private int toSkip;
+    /** Number of results still to return, or -1 for no limit. */
+    private int remaining;
+
+    RangeIterator(Iterator<Entity> iter, int offset, Integer limit) {
+      this.iter = iter;
+      this.toSkip = offset;
+      this.remaining = limit == null ? -1 : limit;
+    }
+
+    public boolean hasNext() {
+      while (toSkip > 0 && iter.hasNext()) {
+        iter.next();
+        toSkip--;
+      }
+      return remaining != 0 && iter.hasNext();
+    }
+
+    public Entity next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      if (remaining > 0) {
+        remaining--;
+      }
+      return iter.next();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Iterator merging iterators that return entities in the same order, skipping entities already returned.
+   */
+  private static final class MergingIterator implements Iterator<Entity> {
+    private final PriorityQueue<PeekingIterator> queue;
+    private final Set<Key> returnedKeys = Utils.newHashSet();
+    private Entity next;
+
+    MergingIterator(List<Iterator<Entity>> iterators, final Comparator<Entity> comparator) {
+      queue = new PriorityQueue<PeekingIterator>(Math.max(1, iterators.size()), new Comparator<PeekingIterator>() {
+        public int compare(PeekingIterator iter1, PeekingIterator iter2) {
+          return comparator.compare(iter1.peek, iter2.peek);
+        }
+      });
+      for (Iterator<Entity> iter : iterators) {
+        PeekingIterator peekingIter = new PeekingIterator(iter);
+        if (peekingIter.peek != null) {
+          queue.add(peekingIter);
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      while (next == null && !queue.isEmpty()) {
+        PeekingIterator iter = queue.poll();
+        Entity entity = iter.advance();
+        if (iter.peek != null) {
+          queue.add(iter);
+        }
+        if (returnedKeys.add(entity.getKey())) {
+          next = entity;
+        }
+      }
+      return next != null;
+    }
+
+    public Entity next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entity entity = next;
+      next = null;
+      return entity;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final class PeekingIterator {
+    private final Iterator<Entity> iter;
+    private Entity peek;
+
+    PeekingIterator(Iterator<Entity> iter) {
+      this.iter = iter;
+      this.peek = iter.hasNext() ? iter.next() : null;
+    }
+
+    Entity advance() {
+      Entity entity = peek;
+      peek = iter.hasNext() ? iter.next() : null;
+      return entity;
+    }
+  }
+
+  /**
+   * Comparator ordering entities by the provided sorts and then by key, as the datastore does.
+   */
+  static final class EntityComparator implements Comparator<Entity> {
+    private final List<Query.SortPredicate> sorts;
+
+    EntityComparator(List<Query.SortPredicate> sorts) {
+      this.sorts = sorts;
+    }
+
+    public int compare(Entity entity1, Entity entity2) {
+      for (Query.SortPredicate sort : sorts) {
+        boolean descending = sort.getDirection() == Query.SortDirection.DESCENDING;
+        int result;
+        if (sort.getPropertyName().equals(Entity.KEY_RESERVED_PROPERTY)) {
+          result = entity1.getKey().compareTo(entity2.getKey());
+        } else {
+          result = compareValues(getSortValue(entity1, sort.getPropertyName(), descending),
+              getSortValue(entity2, sort.getPropertyName(), descending));
+        }
+        if (result != 0) {
+          return descending ? -result : result;
+        }
+      }
+      return entity1.getKey().compareTo(entity2.getKey());
+    }
+
+    private static Object getSortValue(Entity entity, String propertyName, boolean descending) {
+      Object value = entity.getProperty(propertyName);
+      if (value instanceof Collection) {
+        Object sortValue = null;
+        for (Object element : (Collection<?>) value) {
+          if (sortValue == null) {
+            sortValue = element;
+          } else {
+            int result = compareValues(element, sortValue);
+            if (descending ? result > 0 : result < 0) {
+              sortValue = element;
+            }
+          }
+        }
+        return sortValue;
+      }
+      return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object value1, Object value2) {
+      int rank1 = getTypeRank(value1);
+      int rank2 = getTypeRank(value2);
+      if (rank1 != rank2) {
+        return rank1 < rank2 ? -1 : 1;
+      }
+      switch (rank1) {
+        case RANK_NULL:
+          return 0;
+        case RANK_INTEGER:
+          long long1 = getIntegerValue(value1);
+          long long2 = getIntegerValue(value2);
+          return long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+        case RANK_BYTES:
+          return compareBytes(getBytes(value1), getBytes(value2));
+        case RANK_DOUBLE:
+          return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+        default:
+          if (value1.getClass() == value2.getClass() && value1 instanceof Comparable) {
+            return ((Comparable<Object>) value1).compareTo(value2);
+          }
+          return value1.getClass().getName().compareTo(value2.getClass().getName());
+      }
+    }
+
+    // Order of the types of values in the datastore. Dates are stored as integers, strings as their UTF-8 bytes
+    private static final int RANK_NULL = 0;
+    private static final int RANK_INTEGER = 1;
+    private static final int RANK_BOOLEAN = 2;
+    private static final int RANK_BYTES = 3;
+    private static final int RANK_DOUBLE = 4;
+    private static final int RANK_GEOPT = 5;
+    private static final int RANK_USER = 6;
+    private static final int RANK_KEY = 7;
+    private static final int RANK_OTHER = 8;
+
+    private static int getTypeRank(Object value) {
+      if (value == null) {
+        return RANK_NULL;
+      } else if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+          value instanceof Byte || value instanceof Date || value instanceof Rating) {
+        return RANK_INTEGER;
+      } else if (value instanceof Boolean) {
+        return RANK_BOOLEAN;
+      } else if (value instanceof String || value instanceof ShortBlob || value instanceof Category ||
+          value instanceof Email || value instanceof Link || value instanceof PhoneNumber ||
+          value instanceof PostalAddress || value instanceof BlobKey) {
+        return RANK_BYTES;
+      } else if (value instanceof Double || value instanceof Float) {
+        return RANK_DOUBLE;
+      } else if (value instanceof GeoPt) {
+        return RANK_GEOPT;
+      } else if (value instanceof User) {
+        return RANK_USER;
+      } else if (value instanceof Key) {
+        return RANK_KEY;
+      }
+      return RANK_OTHER;
+    }
+
+    private static long getIntegerValue(Object value) {
+      if (value instanceof Date) {
+        // Stored in microseconds
+        return ((Date) value).getTime() * 1000L;
+      } else if (value instanceof Rating) {
+        return ((Rating) value).getRating();
+      }
+      return ((Number) value).longValue();
+    }
+
+    private static byte[] getBytes(Object value) {
+      if (value instanceof ShortBlob) {
+        return ((ShortBlob) value).getBytes();
+      }
+      String str;
+      if (value instanceof Category) {
+        str = ((Category) value).getCategory();
+      } else if (value instanceof Email) {
+        str = ((Email) value).getEmail();
+      } else if (value instanceof Link) {
+        str = ((Link) value).getValue();
+      } else if (value instanceof PhoneNumber) {
+        str = ((PhoneNumber) value).getNumber();
+      } else if (value instanceof PostalAddress) {
+        str = ((PostalAddress) value).getAddress();
+      } else if (value instanceof BlobKey) {
+        str = ((BlobKey) value).getKeyString();
+      } else {
+        str = (String) value;
+      }
+      try {
+        return str.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private static int compareBytes(byte[] bytes1, byte[] bytes2) {
+      int length = Math.min(bytes1.length, bytes2.length);
+      for (int i = 0; i < length; i++) {
+        int b1 = bytes1[i] & 0xff;
+        int b2 = bytes2[i] & 0xff;
+        if (b1 != b2) {
+          return b1 < b2 ? -1 : 1;
+        }
+      }
+      return bytes1.length - bytes2.length;
+    }
+  }
+}
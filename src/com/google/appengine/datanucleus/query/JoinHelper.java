@@ -26,6 +26,7 @@ import com.google.appengine.datanucleus.Utils;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * A userland implementation of joins that only supports equality filters.
@@ -42,10 +43,13 @@ import java.util.Set;
 final class JoinHelper {
 
   /**
-   * Child keys that we've already consumed.  We maintain this here instead of
-   * the {@link Iterable} so that we can look at it in our tests.
+   * Child keys that we've already consumed and that a parent can still refer to.
+   * Parents arrive in ascending order of their smallest join key, so keys
+   * smaller than that of the current parent are dropped as we consume more.
+   * We maintain this here instead of the {@link Iterable} so that we can look
+   * at it in our tests.
    */
-  private final Set<Key> materializedChildKeys = Utils.newHashSet();
+  private final TreeSet<Key> materializedChildKeys = new TreeSet<Key>();
 
   /**
    * Execute the join query described by the provided {@link QueryData}.
@@ -65,6 +69,9 @@ final class JoinHelper {
 
     validateJoinQuery(qd, query, joinSortProp);
 
+    // Only the keys of the children are compared
+    qd.joinQuery.setKeysOnly();
+
     if (!sortAlreadyExists(joinSortProp, Query.SortDirection.ASCENDING, qd.primaryDatastoreQuery)) {
       qd.primaryDatastoreQuery.addSort(joinSortProp);
     }
@@ -97,8 +104,9 @@ final class JoinHelper {
     if (offset == null && limit == null) {
       return result;
     }
-    return new SlicingIterable<Entity>(offset == null ? 0 : offset, limit,
-                                       mergeJoin(keyProperty, primaryResult, joinResult));
+    // The merge drops parents without a matching child, so the offset can't be
+    // given to the parent query. Skipped parents are streamed past rather than held.
+    return new SlicingIterable<Entity>(offset == null ? 0 : offset, limit, result);
   }
 
   private FetchOptions getFetchOptionsWithoutOffsetAndLimit(
@@ -208,6 +216,15 @@ final class JoinHelper {
               continue;
             }
 
+            // No later parent can refer to a child key smaller than the
+            // smallest join key of this parent
+            Key minJoinKey = null;
+            for (Object element : curJoinKeyList) {
+              if (element instanceof Key && (minJoinKey == null || minJoinKey.compareTo((Key) element) > 0)) {
+                minJoinKey = (Key) element;
+              }
+            }
+
             for (Object element : curJoinKeyList) {
               if (!(element instanceof Key)) {
                 continue;
@@ -220,6 +237,7 @@ final class JoinHelper {
                   break;
                 }
                 curChildKey = childIter.next().getKey();
+                materializedChildKeys.headSet(minJoinKey).clear();
                 materializedChildKeys.add(curChildKey);
               }
               if (materializedChildKeys.contains(joinKey)) {
@@ -59,6 +59,16 @@ public class LazyResult<T> implements Iterable<T> {
   /** List of the Keys of the entities in this result (used when caching the results). */
   private final List<Object> resultKeys;
 
+  /**
+   * Whether this result can only be walked once, front to back. When set nothing is
+   * added to {@link #resolvedPojos}, so each pojo is eligible for garbage collection
+   * as soon as the caller has finished with it.
+   */
+  private final boolean forwardOnly;
+
+  /** Whether the single iterator permitted for a forward-only result has been handed out. */
+  private boolean forwardOnlyIteratorCreated = false;
+
   /**
    * Constructor for a lazy result.
    * @param lazyEntities The result of the query.
@@ -67,12 +77,37 @@ public class LazyResult<T> implements Iterable<T> {
    */
   public LazyResult(Iterable<Entity> lazyEntities,
       Function<Entity, T> entityTransformer, boolean cacheKeys) {
+    this(lazyEntities, entityTransformer, cacheKeys, false);
+  }
+
+  /**
+   * Constructor for a lazy result.
+   * @param lazyEntities The result of the query.
+   * @param entityTransformer A function that can convert a {@link Entity} into a pojo.
+   * @param cacheKeys Whether we should cache the Keys of the entities, to be used later caching the query results
+   * @param forwardOnly Whether the result only supports a single pass with one iterator. Indexed access and
+   * size are then unsupported, and resolved pojos are not retained.
+   */
+  public LazyResult(Iterable<Entity> lazyEntities,
+      Function<Entity, T> entityTransformer, boolean cacheKeys, boolean forwardOnly) {
     this.lazyEntityIterator = lazyEntities.iterator();
     this.entityTransformer = entityTransformer;
-    this.resultKeys = (cacheKeys ? new ArrayList() : null);
+    this.resultKeys = (cacheKeys && !forwardOnly ? new ArrayList() : null);
+    this.forwardOnly = forwardOnly;
+  }
+
+  /**
+   * Accessor for whether this result only supports a single forward pass.
+   * @return Whether the result is forward-only
+   */
+  boolean isForwardOnly() {
+    return forwardOnly;
   }
 
   T get(int index) {
+    if (forwardOnly) {
+      throw new UnsupportedOperationException("Forward-only query results do not support access by index");
+    }
     // See if we've resolved the pojo at this index.  If we have we just return
     // the pojo at that index.  If we haven't and our iterator still has more
     // elements we need to keep resolving until we actually have an element
@@ -92,6 +127,9 @@ public class LazyResult<T> implements Iterable<T> {
    * @throws java.util.NoSuchElementException if there are no more elements to resolve.
    */
   void resolveNext() {
+    if (forwardOnly) {
+      throw new UnsupportedOperationException("Forward-only query results can only be read through their iterator");
+    }
     Entity entity = lazyEntityIterator.next();
     resolvedPojos.add(entityTransformer.apply(entity));
     if (resultKeys != null) {
@@ -100,10 +138,20 @@ public class LazyResult<T> implements Iterable<T> {
   }
 
   public Iterator<T> iterator() {
+    if (forwardOnly) {
+      if (forwardOnlyIteratorCreated) {
+        throw new UnsupportedOperationException("Forward-only query results can only be iterated once");
+      }
+      forwardOnlyIteratorCreated = true;
+      return new ForwardOnlyIterator();
+    }
     return listIterator();
   }
 
   public ListIterator<T> listIterator() {
+    if (forwardOnly) {
+      throw new UnsupportedOperationException("Forward-only query results do not support ListIterator");
+    }
     if (!lazyEntityIterator.hasNext()) {
       return resolvedPojos.listIterator();
     }
@@ -111,12 +159,26 @@ public class LazyResult<T> implements Iterable<T> {
   }
 
   public int size() {
+    if (forwardOnly) {
+      throw new UnsupportedOperationException("Forward-only query results do not support size()");
+    }
     // We're forced to resolve everything.
     resolveAll();
     return resolvedPojos.size();
   }
 
+  /**
+   * Accessor for whether any pojos have been created from this result yet.
+   * @return Whether any results have been resolved
+   */
+  boolean hasResolvedResults() {
+    return !resolvedPojos.isEmpty();
+  }
+
   void resolveAll() {
+    if (forwardOnly) {
+      throw new UnsupportedOperationException("Forward-only query results can only be read through their iterator");
+    }
     while (lazyEntityIterator.hasNext()) {
       resolveNext();
     }
@@ -235,4 +297,23 @@ public class LazyResult<T> implements Iterable<T> {
       return lazyEntityIterator;
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Single-use iterator for a forward-only result. Each pojo is created as it is requested
+   * and is not referenced by this result once it has been returned.
+   */
+  final class ForwardOnlyIterator extends AbstractIterator<T> {
+    @Override
+    protected T computeNext() {
+      if (!lazyEntityIterator.hasNext()) {
+        endOfData();
+        return null;
+      }
+      return entityTransformer.apply(lazyEntityIterator.next());
+    }
+
+    Iterator<?> getInnerIterator() {
+      return lazyEntityIterator;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * {@link QueryResultIterable} that reads a query in chunks, each chunk being a separate datastore query starting
+ * at the end cursor of the previous one. Once the number of results left to read in a chunk falls to the
+ * prefetch threshold the rest of the chunk is buffered, giving its end cursor, and the next chunk is requested
+ * on the asynchronous {@link PreparedQuery}. The datastore fetches chunk N+1 while the caller is still
+ * converting the results of chunk N.
+ * <p>
+ * The iterator returns the same cursors as a single query would : the cursor after each buffered result is
+ * recorded as it is buffered, and otherwise the cursor of the chunk being read is used.
+ */
+final class PrefetchingQueryResultIterable implements QueryResultIterable<Entity> {
+
+  private final PreparedQuery preparedQuery;
+  private final FetchOptions opts;
+  private final int chunkSize;
+  private final int prefetchThreshold;
+
+  /**
+   * Constructor.
+   * @param preparedQuery The query, prepared on an asynchronous datastore service
+   * @param opts The fetch options of the query (can be null). Must not have a limit.
+   * @param prefetchThreshold Number of results left in a chunk at which the next chunk is requested
+   */
+  PrefetchingQueryResultIterable(PreparedQuery preparedQuery, FetchOptions opts, int prefetchThreshold) {
+    if (opts != null && opts.getLimit() != null) {
+      throw new IllegalArgumentException("Queries with a limit are read in a single chunk");
+    }
+    this.preparedQuery = preparedQuery;
+    this.opts = opts;
+    this.chunkSize = opts != null && opts.getChunkSize() != null ?
+        opts.getChunkSize() : FetchOptions.DEFAULT_CHUNK_SIZE;
+    this.prefetchThreshold = prefetchThreshold;
+  }
+
+  public QueryResultIterator<Entity> iterator() {
+    return new PrefetchingIterator();
+  }
+
+  private QueryResultIterator<Entity> startChunk(Cursor startCursor, boolean first) {
+    FetchOptions chunkOpts = FetchOptions.Builder.withLimit(chunkSize).chunkSize(chunkSize).prefetchSize(chunkSize);
+    if (first && opts != null && opts.getOffset() != null) {
+      chunkOpts.offset(opts.getOffset());
+    }
+    if (startCursor != null) {
+      chunkOpts.startCursor(startCursor);
+    }
+    if (opts != null && opts.getEndCursor() != null) {
+      chunkOpts.endCursor(opts.getEndCursor());
+    }
+    return preparedQuery.asQueryResultIterator(chunkOpts);
+  }
+
+  private final class PrefetchingIterator extends AbstractIterator<Entity> implements QueryResultIterator<Entity> {
+
+    /** The chunk results are being read from. */
+    private QueryResultIterator<Entity> chunk =
+        startChunk(opts != null ? opts.getStartCursor() : null, true);
+
+    /** Number of results read from {@link #chunk}, including any buffered. */
+    private int readFromChunk = 0;
+
+    /** The chunk requested ahead of time, if any. */
+    private QueryResultIterator<Entity> nextChunk;
+
+    /** Results of the current chunk read ahead of the caller, and the cursor after each. */
+    private final LinkedList<Entity> buffered = new LinkedList<Entity>();
+    private final LinkedList<Cursor> bufferedCursors = new LinkedList<Cursor>();
+
+    /** Cursor after the last result returned, or null when {@link #chunk} is positioned there. */
+    private Cursor cursor;
+
+    @Override
+    protected Entity computeNext() {
+      while (true) {
+        if (!buffered.isEmpty()) {
+          cursor = bufferedCursors.removeFirst();
+          return buffered.removeFirst();
+        }
+        if (chunk.hasNext()) {
+          Entity entity = chunk.next();
+          readFromChunk++;
+          if (chunkSize - readFromChunk <= prefetchThreshold && nextChunk == null) {
+            cursor = chunk.getCursor();
+            bufferRestOfChunk();
+          } else {
+            cursor = null;
+          }
+          return entity;
+        }
+
+        if (nextChunk == null && readFromChunk == chunkSize) {
+          // Chunk read before reaching the threshold (only for a threshold of 0)
+          nextChunk = startNextChunk();
+        }
+        if (nextChunk == null) {
+          // A chunk with fewer results than requested is the last one
+          endOfData();
+          return null;
+        }
+        if (cursor == null) {
+          cursor = chunk.getCursor();
+        }
+        chunk = nextChunk;
+        nextChunk = null;
+        readFromChunk = 0;
+      }
+    }
+
+    /**
+     * Reads the rest of the current chunk, which was fetched in full by its first request, and starts the
+     * request for the next chunk from its end cursor.
+     */
+    private void bufferRestOfChunk() {
+      while (chunk.hasNext()) {
+        buffered.add(chunk.next());
+        bufferedCursors.add(chunk.getCursor());
+        readFromChunk++;
+      }
+      if (readFromChunk == chunkSize) {
+        nextChunk = startNextChunk();
+      }
+    }
+
+    private QueryResultIterator<Entity> startNextChunk() {
+      Cursor endCursor = chunk.getCursor();
+      if (endCursor == null) {
+        // Would otherwise restart from the first result
+        throw new IllegalStateException("Query does not support cursors so cannot be read in chunks");
+      }
+      return startChunk(endCursor, false);
+    }
+
+    public Cursor getCursor() {
+      return cursor != null ? cursor : chunk.getCursor();
+    }
+
+    public List<Index> getIndexList() {
+      // Every chunk runs the same query, so uses the same indexes
+      return chunk.getIndexList();
+    }
+  }
+}
@@ -60,6 +60,8 @@ final class QueryData {
 
   OrderExpression joinOrderExpression;
   Query joinQuery;
+  // only used when the query is split into several datastore queries
+  List<Query> fanOutQueries;
   String currentOrProperty;
   boolean isOrExpression = false;
 
@@ -122,6 +124,7 @@ final class QueryData {
   public enum QueryType {
     BATCH_GET,
     JOIN,
+    FAN_OUT,
     NORMAL
   }
 }
@@ -0,0 +1,163 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.datastore.Query;
+
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.MetaDataManager;
+import org.datanucleus.query.expression.Expression;
+import org.datanucleus.store.query.AbstractJavaQuery;
+
+import com.google.appengine.datanucleus.mapping.DatastoreTable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the parts of a datastore query compilation that don't depend on parameter values, shared by all
+ * ExecutionContexts of a DatastoreManager (see
+ * {@link com.google.appengine.datanucleus.DatastoreManager#QUERY_PLAN_CACHE_PROPERTY}). Plans are keyed by the
+ * query language, candidate class, single-string form of the query and the types of its parameters. A plan holds
+ * the candidate metadata, table and result type, the discriminator values to restrict to, the sorts, and
+ * the embedded members that field paths resolve to. When the filter is a conjunction of comparisons of simple
+ * members with literals or parameters, the plan also holds a template of those filters, so each execution only
+ * binds the parameter values. Other filters are built again from the filter expression for each execution.
+ * <p>
+ * Plans are discarded when more classes have had metadata loaded since the plan was made, since a new subclass
+ * changes the discriminator values. When the cache is full it is emptied.
+ * </p>
+ */
+public class QueryPlanCache {
+
+  private final int maxSize;
+
+  private final ConcurrentMap<String, QueryPlan> plans = new ConcurrentHashMap<String, QueryPlan>();
+
+  public QueryPlanCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Convenience method to build the key of the plan for the supplied query.
+   * @param query The query
+   * @param parameters Parameter values for this execution
+   * @param inmemoryWhenUnsupported Whether unsupported parts of the query are evaluated in-memory
+   * @return The key
+   */
+  static String getKey(AbstractJavaQuery query, Map<String, ?> parameters, boolean inmemoryWhenUnsupported) {
+    StringBuilder key = new StringBuilder();
+    key.append(query.getLanguage()).append(':').append(query.getCandidateClass().getName());
+    key.append(':').append(query.isSubclasses()).append(':').append(inmemoryWhenUnsupported);
+    if (parameters != null) {
+      // Sort the names so that the key doesn't depend on the iteration order of the parameter map
+      Map<String, Object> sortedParameters = new TreeMap<String, Object>();
+      for (Map.Entry<String, ?> entry : parameters.entrySet()) {
+        sortedParameters.put(String.valueOf(entry.getKey()), entry.getValue());
+      }
+      key.append('(');
+      for (Map.Entry<String, Object> entry : sortedParameters.entrySet()) {
+        Object value = entry.getValue();
+        key.append(entry.getKey()).append('=').append(value == null ? "null" : value.getClass().getName()).append(',');
+      }
+      key.append(')');
+    }
+    key.append(query.getSingleStringQuery());
+    return key.toString();
+  }
+
+  /**
+   * Accessor for the plan with the supplied key.
+   * @param key The key
+   * @param mmgr MetaData manager, to check that no classes have been added since the plan was made
+   * @return The plan, or null if there is no current plan
+   */
+  QueryPlan get(String key, MetaDataManager mmgr) {
+    QueryPlan plan = plans.get(key);
+    if (plan != null && plan.numClassesWithMetaData != mmgr.getClassesWithMetaData().size()) {
+      plans.remove(key);
+      return null;
+    }
+    return plan;
+  }
+
+  int size() {
+    return plans.size();
+  }
+
+  void put(String key, QueryPlan plan) {
+    if (plans.size() >= maxSize) {
+      plans.clear();
+    }
+    plans.put(key, plan);
+  }
+
+  /**
+   * The parameter-independent parts of a compiled query.
+   */
+  static final class QueryPlan {
+    final AbstractClassMetaData acmd;
+    final DatastoreTable table;
+    final DatastoreQuery.ResultType resultType;
+    final int numClassesWithMetaData;
+
+    /** Discriminator property to restrict, or null if the class has no discriminator. */
+    String discriminatorPropertyName;
+    List<Object> discriminatorValues;
+
+    /** Sorts of the datastore query, or null if they have to be worked out on each execution (joins). */
+    List<Query.SortPredicate> sorts;
+    boolean orderComplete = true;
+
+    /** Templates of the filters of the datastore query, or null if they have to be built on each execution. */
+    List<FilterTemplate> filters;
+
+    /** Member metadata for field paths into embedded objects, keyed by class name and path. */
+    final ConcurrentMap<String, AbstractMemberMetaData> embeddedMemberMetaData =
+        new ConcurrentHashMap<String, AbstractMemberMetaData>();
+
+    QueryPlan(AbstractClassMetaData acmd, DatastoreTable table, DatastoreQuery.ResultType resultType,
+        int numClassesWithMetaData) {
+      this.acmd = acmd;
+      this.table = table;
+      this.resultType = resultType;
+      this.numClassesWithMetaData = numClassesWithMetaData;
+    }
+  }
+
+  /**
+   * A filter of a datastore query whose value is a literal or a parameter, to be bound on each execution.
+   */
+  static final class FilterTemplate {
+    final String propertyName;
+    final Query.FilterOperator operator;
+    final AbstractMemberMetaData ammd;
+    /** The literal or parameter expression giving the value. */
+    final Expression valueExpr;
+
+    FilterTemplate(String propertyName, Query.FilterOperator operator, AbstractMemberMetaData ammd,
+        Expression valueExpr) {
+      this.propertyName = propertyName;
+      this.operator = operator;
+      this.ammd = ammd;
+      this.valueExpr = valueExpr;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+import com.google.appengine.datanucleus.Utils;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the entities returned by datastore queries, shared by all ExecutionContexts of a DatastoreManager
+ * (see {@link com.google.appengine.datanucleus.DatastoreManager#QUERY_RESULT_CACHE_PROPERTY}).
+ * Results are keyed by the datastore query, including its filter values, together with the range of results
+ * required. Only ancestor queries are cached, since the results of other queries are eventually consistent and
+ * could be stale before they are even cached.
+ * <p>
+ * Each kind has a generation counter, which the plugin bumps whenever it writes or deletes an entity of that
+ * kind (and again when the datastore transaction making the change completes). A cached result is only used
+ * while the generation of its kind is the same as when the query was run, so results never outlive a write
+ * made through this JVM. Writes made elsewhere are only noticed once the result expires.
+ * </p>
+ */
+public class QueryResultCache {
+
+  /** Largest number of entities held for a single query. */
+  static final int MAX_CACHED_RESULTS = 1000;
+
+  private final long expiryMillis;
+
+  private final ConcurrentMap<String, AtomicLong> generationByKind = new ConcurrentHashMap<String, AtomicLong>();
+
+  private final Map<CacheKey, CachedResult> results;
+
+  /**
+   * Constructor.
+   * @param maxSize Maximum number of query results to hold
+   * @param expirySeconds Number of seconds a result can be held for, or 0 for no limit
+   */
+  public QueryResultCache(final int maxSize, int expirySeconds) {
+    this.expiryMillis = expirySeconds * 1000L;
+    this.results = new LinkedHashMap<CacheKey, CachedResult>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedResult> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Method to invalidate the cached results of queries of the supplied kinds, because entities of those kinds
+   * have been written or deleted.
+   * @param kinds The kinds
+   */
+  public void invalidateKinds(Collection<String> kinds) {
+    for (String kind : kinds) {
+      AtomicLong generation = generationByKind.get(kind);
+      if (generation != null) {
+        // Only kinds that have been queried have a generation
+        generation.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Accessor for the current generation of the supplied kind. Must be called before a query is run, so that a
+   * write made while it runs prevents its result being used.
+   * @param kind The kind
+   * @return The generation
+   */
+  long getGeneration(String kind) {
+    AtomicLong generation = generationByKind.get(kind);
+    if (generation == null) {
+      AtomicLong newGeneration = new AtomicLong();
+      generation = generationByKind.putIfAbsent(kind, newGeneration);
+      if (generation == null) {
+        generation = newGeneration;
+      }
+    }
+    return generation.get();
+  }
+
+  /**
+   * Accessor for the cached result of a query.
+   * @param key Key for the query
+   * @return The cached result, or null if there is no valid cached result
+   */
+  synchronized CachedResult get(CacheKey key) {
+    CachedResult result = results.get(key);
+    if (result == null) {
+      return null;
+    }
+    if (result.generation != getGeneration(key.query.getKind()) ||
+        (result.expiresAt != 0 && result.expiresAt < System.currentTimeMillis())) {
+      results.remove(key);
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Method to cache the result of a query, unless the kind has been written since the query was run.
+   * @param key Key for the query
+   * @param generation Generation of the kind when the query was run
+   * @param entities The entities returned
+   * @param endCursor Cursor at the end of the results (or null)
+   */
+  synchronized void put(CacheKey key, long generation, List<Entity> entities, Cursor endCursor) {
+    if (entities.size() > MAX_CACHED_RESULTS || generation != getGeneration(key.query.getKind())) {
+      return;
+    }
+    List<Entity> copies = Utils.newArrayList();
+    for (Entity entity : entities) {
+      copies.add(entity.clone());
+    }
+    long expiresAt = expiryMillis == 0 ? 0 : System.currentTimeMillis() + expiryMillis;
+    results.put(key, new CachedResult(copies, endCursor, generation, expiresAt));
+  }
+
+  /**
+   * Key of a cached query result : the datastore query and the range of results fetched.
+   */
+  static final class CacheKey {
+    private final Query query;
+    private final Integer offset;
+    private final Integer limit;
+    private final String startCursor;
+    private final String endCursor;
+
+    CacheKey(Query query, FetchOptions opts) {
+      this.query = query;
+      this.offset = opts == null ? null : opts.getOffset();
+      this.limit = opts == null ? null : opts.getLimit();
+      this.startCursor = opts == null || opts.getStartCursor() == null ? null : opts.getStartCursor().toWebSafeString();
+      this.endCursor = opts == null || opts.getEndCursor() == null ? null : opts.getEndCursor().toWebSafeString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey that = (CacheKey) o;
+      return query.equals(that.query) && equal(offset, that.offset) && equal(limit, that.limit) &&
+          equal(startCursor, that.startCursor) && equal(endCursor, that.endCursor);
+    }
+
+    private static boolean equal(Object a, Object b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = query.hashCode();
+      result = 31 * result + (offset != null ? offset.hashCode() : 0);
+      result = 31 * result + (limit != null ? limit.hashCode() : 0);
+      result = 31 * result + (startCursor != null ? startCursor.hashCode() : 0);
+      result = 31 * result + (endCursor != null ? endCursor.hashCode() : 0);
+      return result;
+    }
+  }
+
+  /**
+   * A cached query result.
+   */
+  static final class CachedResult {
+    private final List<Entity> entities;
+    final Cursor endCursor;
+    final long generation;
+    final long expiresAt;
+
+    CachedResult(List<Entity> entities, Cursor endCursor, long generation, long expiresAt) {
+      this.entities = entities;
+      this.endCursor = endCursor;
+      this.generation = generation;
+      this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Accessor for the entities, copied since the caller may update them.
+     * @return Copies of the cached entities
+     */
+    List<Entity> getEntities() {
+      List<Entity> copies = Utils.newArrayList();
+      for (Entity entity : entities) {
+        copies.add(entity.clone());
+      }
+      return copies;
+    }
+  }
+}
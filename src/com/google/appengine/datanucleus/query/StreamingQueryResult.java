@@ -20,7 +20,9 @@ import com.google.appengine.api.datastore.Entity;
 
 import org.datanucleus.exceptions.NucleusUserException;
 
+import com.google.appengine.datanucleus.DatastoreManager;
 import com.google.appengine.datanucleus.Utils.Function;
+import com.google.appengine.datanucleus.Utils.Supplier;
 
 import org.datanucleus.store.query.AbstractQueryResult;
 import org.datanucleus.store.query.Query;
@@ -51,6 +53,12 @@ class StreamingQueryResult extends AbstractQueryResult {
 
   private RuntimeExceptionWrappingIterable inputIterable;
 
+  /** Supplier for the number of results without reading them. Can be null. */
+  private final Supplier<Integer> sizeSupplier;
+
+  /** Number of results obtained from {@link #sizeSupplier}, once it has been called. */
+  private Integer countedSize;
+
   /**
    * Constructs a StreamingQueryResult.
    * @param query The query which yields the results.
@@ -60,12 +68,29 @@ class StreamingQueryResult extends AbstractQueryResult {
    */
   public StreamingQueryResult(Query query, Iterable<Entity> lazyEntities,
       Function<Entity, Object> entityToPojoFunc, Cursor endCursor) {
+    this(query, lazyEntities, entityToPojoFunc, endCursor, null);
+  }
+
+  /**
+   * Constructs a StreamingQueryResult.
+   * @param query The query which yields the results.
+   * @param lazyEntities The result of the query.
+   * @param entityToPojoFunc A function that can convert a {@link Entity} into a pojo.
+   * @param endCursor Provides a cursor that points to the end of the result set. Can be null.
+   * @param sizeSupplier Provides the number of results without reading them, used by {@link #size()}
+   * while nothing has been read. Can be null.
+   */
+  public StreamingQueryResult(Query query, Iterable<Entity> lazyEntities,
+      Function<Entity, Object> entityToPojoFunc, Cursor endCursor, Supplier<Integer> sizeSupplier) {
     super(query);
     if (lazyEntities instanceof RuntimeExceptionWrappingIterable) {
       this.inputIterable = (RuntimeExceptionWrappingIterable) lazyEntities;
     }
-    this.lazyResult = new LazyResult<Object>(lazyEntities, entityToPojoFunc, query.useResultsCaching());
+    boolean forwardOnly = query.getBooleanExtensionProperty(DatastoreManager.QUERYEXT_FORWARD_ONLY, false);
+    this.lazyResult = new LazyResult<Object>(lazyEntities, entityToPojoFunc,
+        query.useResultsCaching(), forwardOnly);
     this.endCursor = endCursor;
+    this.sizeSupplier = sizeSupplier;
   }
 
   @Override
@@ -81,7 +106,7 @@ class StreamingQueryResult extends AbstractQueryResult {
   @Override
   protected void closingConnection() {
     // Connection is being closed so last chance to grab any results not yet loaded
-    if (loadResultsAtCommit && isOpen()) {
+    if (loadResultsAtCommit && isOpen() && !lazyResult.isForwardOnly()) {
       if (hasError) {
         NucleusLogger.QUERY.info("Skipping resolution of remaining results due to earlier error.");
       } else {
@@ -113,7 +138,7 @@ class StreamingQueryResult extends AbstractQueryResult {
    * Method to cache the results (List of the Entity keys) if it has been requested. 
    */
   protected void cacheQueryResults() {
-    if (query != null && query.useResultsCaching()) {
+    if (query != null && query.useResultsCaching() && !lazyResult.isForwardOnly()) {
       lazyResult.resolveAll();
       query.getQueryManager().addDatastoreQueryResult(query, query.getInputParameters(), lazyResult.getEntityKeys());
     }
@@ -138,7 +163,7 @@ class StreamingQueryResult extends AbstractQueryResult {
 
   @Override
   public Iterator<Object> iterator() {
-    return lazyResult.listIterator();
+    return lazyResult.iterator();
   }
 
   @Override
@@ -148,6 +173,13 @@ class StreamingQueryResult extends AbstractQueryResult {
 
   @Override
   public int size() {
+    if (sizeSupplier != null && !lazyResult.isForwardOnly() && !lazyResult.hasResolvedResults()) {
+      // Nothing read yet, so count rather than creating an object per result
+      if (countedSize == null) {
+        countedSize = sizeSupplier.get();
+      }
+      return countedSize;
+    }
     return lazyResult.size();
   }
 
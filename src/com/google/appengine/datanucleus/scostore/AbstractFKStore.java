@@ -15,6 +15,7 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus.scostore;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.Entity;
@@ -28,6 +29,7 @@ import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
 import com.google.appengine.datanucleus.EntityUtils;
 import com.google.appengine.datanucleus.MetaDataUtils;
 import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.query.LazyResult;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.exceptions.NucleusUserException;
@@ -50,7 +52,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.ListIterator;
 
 /**
  * Abstract base class for backing stores using a "FK" in the element.
@@ -217,6 +219,12 @@ public abstract class AbstractFKStore {
   protected int getSizeUsingParentKeyInChildren(ObjectProvider op) {
     Entity ownerEntity = getOwnerEntity(op);
 
+    EntityUtils.flushPendingWrites(op.getExecutionContext());
+    int sizeInOwner = getSizeFromOwner(ownerEntity);
+    if (sizeInOwner >= 0) {
+      return sizeInOwner;
+    }
+
     // Get size from child keys by doing a query with the owner as the parent Entity
     String kindName = elementTable.getIdentifier().getIdentifierName();
     Iterable<Entity> children = prepareChildrenQuery(ownerEntity.getKey(),
@@ -233,6 +241,23 @@ public abstract class AbstractFKStore {
     return count;
   }
 
+  /**
+   * Method to return the number of children recorded in the owner entity, when owned collection sizes are
+   * maintained (see {@link DatastoreManager#OWNED_COLLECTION_SIZE_PROPERTY}).
+   * @param ownerEntity Entity of the owner
+   * @return The size, or -1 if the owner doesn't record it
+   */
+  protected int getSizeFromOwner(Entity ownerEntity) {
+    if (storeMgr.isMaintainOwnedCollectionSize()) {
+      Object size = ownerEntity.getProperty(
+          EntityUtils.getCollectionSizePropertyName(storeMgr.getIdentifierFactory(), ownerMemberMetaData));
+      if (size instanceof Long) {
+        return ((Long) size).intValue();
+      }
+    }
+    return -1;
+  }
+
   /* (non-Javadoc)
    * @see org.datanucleus.store.scostore.CollectionStore#contains(org.datanucleus.store.ObjectProvider, java.lang.Object)
    */
@@ -288,6 +313,7 @@ public abstract class AbstractFKStore {
     List<Object> result = new ArrayList<Object>();
     int numChildren = 0;
     String kindName = elementTable.getIdentifier().getIdentifierName();
+    EntityUtils.flushPendingWrites(ec);
     for (Entity e : prepareChildrenQuery(parentKey, filterPredicates, sortPredicates, false, kindName).asIterable()) {
       // We only want direct children
       if (parentKey.equals(e.getKey().getParent())) {
@@ -303,51 +329,61 @@ public abstract class AbstractFKStore {
   }
 
   /**
-   * Method to return the List of children for this collection using the "List<Key>" stored in the owner field.
+   * Method to return the children for this collection using the "List<Key>" stored in the owner field.
+   * Only the keys in the requested range are fetched, with batch gets of bounded size as the returned
+   * iterator advances, and each child is converted to a pojo when it is reached.
    * @param op ObjectProvider for the owner
    * @param ec ExecutionContext
    * @param startIdx Start index of range (or -1 if not needed)
-   * @param endIdx End index of range (or -1 if not needed)
-   * @return The child objects list
+   * @param endIdx End index of range (or -1 if not needed), or the start index for just that element
+   * @return Iterator over the child objects
    */
-  List<?> getChildrenFromParentField(ObjectProvider op, ExecutionContext ec, int startIdx, int endIdx) {
+  ListIterator<?> getChildrenFromParentField(ObjectProvider op, final ExecutionContext ec, int startIdx, int endIdx) {
     Entity datastoreEntity = getOwnerEntity(op);
     String propName = EntityUtils.getPropertyName(storeMgr.getIdentifierFactory(), ownerMemberMetaData);
-    if (datastoreEntity.hasProperty(propName)) {
-      Object value = datastoreEntity.getProperty(propName);
-      if (value == null || (value instanceof Collection && ((Collection)value).isEmpty())) {
-        // No elements so just return
-        return Utils.newArrayList();
-      }
-
-      List children = new ArrayList();
-      List<Key> keys = (List<Key>)value;
-      DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-      DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
-      Map<Key, Entity> entitiesByKey = ds.get(keys);
-      int i = 0;
-      for (Key key : keys) {
-        if (i < startIdx) {
-          continue;
-        } else if (endIdx > 0 && i >= endIdx) {
-          continue;
-        }
+    Object value = datastoreEntity.getProperty(propName);
+    if (value == null || (value instanceof Collection && ((Collection)value).isEmpty())) {
+      // No elements so just return
+      return Utils.newArrayList().listIterator();
+    }
 
-        Entity entity = entitiesByKey.get(key);
-        if (entity == null) {
-          // User must have deleted it? Ignore the entry
-          NucleusLogger.DATASTORE_RETRIEVE.info("Field " + ownerMemberMetaData.getFullFieldName() + " of " + datastoreEntity.getKey() +
-              " was marked as having child " + key + " but doesn't exist, so must have been deleted. Ignoring");
-          continue;
-        }
+    List<Key> keys = (List<Key>)value;
+    int fromIdx = Math.max(0, Math.min(startIdx, keys.size()));
+    int toIdx = keys.size();
+    if (startIdx >= 0 && endIdx == startIdx) {
+      // Particular index required
+      toIdx = Math.min(fromIdx + 1, keys.size());
+    } else if (endIdx >= 0) {
+      toIdx = Math.max(fromIdx, Math.min(endIdx, keys.size()));
+    }
+    // Copy the range, since the owner's list can change while the children are read
+    keys = new ArrayList<Key>(keys.subList(fromIdx, toIdx));
 
-        Object pojo = EntityUtils.entityToPojo(entity, elementCmd, clr, ec, false, ec.getFetchPlan());
-        children.add(pojo);
-        i++;
-      }
-      return children;
+    DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
+    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
+    int batchSize = storeMgr.getIntProperty(DatastoreManager.CHILD_FETCH_BATCH_SIZE_PROPERTY);
+    int maxBatchesInFlight = storeMgr.getIntProperty(DatastoreManager.CHILD_FETCH_MAX_BATCHES_IN_FLIGHT_PROPERTY);
+    int pageSize = MetaDataUtils.getPageSize(ownerMemberMetaData);
+    if (pageSize > 0) {
+      // Paged collection, so read a page at a time with the next page requested ahead
+      batchSize = pageSize;
+      maxBatchesInFlight = Math.max(2, maxBatchesInFlight);
     }
-    return Utils.newArrayList();
+    AsyncDatastoreService ads = maxBatchesInFlight > 1 ?
+        DatastoreServiceFactoryInternal.getAsyncDatastoreService(config) : null;
+    EntityUtils.flushPendingWrites(ec);
+    // Only use the entity cache outside a txn, as for EntityUtils.getEntityFromDatastore
+    ExecutionContext cacheEc = storeMgr.getDatastoreTransaction(ec) == null ? ec : null;
+    Iterable<Entity> children = new ChildBatchGetIterable(keys, ds, ads, batchSize > 0 ? batchSize : 1000,
+        maxBatchesInFlight, "Field " + ownerMemberMetaData.getFullFieldName() + " of " + datastoreEntity.getKey(),
+        cacheEc);
+
+    Utils.Function<Entity, Object> func = new Utils.Function<Entity, Object>() {
+      public Object apply(Entity from) {
+        return EntityUtils.entityToPojo(from, elementCmd, clr, ec, false, ec.getFetchPlan());
+      }
+    };
+    return new LazyResult<Object>(children, func, false).listIterator();
   }
 
   /**
@@ -0,0 +1,226 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.scostore;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.Utils;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.util.NucleusLogger;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Iterable over the child entities with the provided keys, in key order, fetched with batch gets of a bounded
+ * number of keys as iteration proceeds. Batches can be fetched asynchronously, with a bounded number of gets in
+ * flight ahead of the batch being read. Keys whose entity no longer exists are skipped. Outside a datastore
+ * transaction, children in the entity cache are taken from there and only the rest are fetched.
+ */
+final class ChildBatchGetIterable implements Iterable<Entity> {
+
+  private final List<Key> keys;
+  private final DatastoreService ds;
+  /** Service to get batches ahead with, or null if each batch is fetched when it is reached. */
+  private final AsyncDatastoreService ads;
+  private final int batchSize;
+  private final int maxBatchesInFlight;
+  /** Description of the owner field, for logging children that no longer exist. */
+  private final String ownerDescription;
+  /** ExecutionContext whose entity cache to use, or null if the entity cache isn't to be used. */
+  private final ExecutionContext cacheEc;
+
+  /**
+   * @param keys Keys of the children, in the order to return them
+   * @param ds The datastore service
+   * @param ads The async datastore service, or null to fetch each batch synchronously
+   * @param batchSize Number of keys per get
+   * @param maxBatchesInFlight Number of asynchronous gets that can be outstanding
+   * @param ownerDescription Description of the owner field, used when logging missing children
+   * @param cacheEc ExecutionContext whose entity cache to use, or null when reading in a datastore transaction
+   */
+  ChildBatchGetIterable(List<Key> keys, DatastoreService ds, AsyncDatastoreService ads, int batchSize,
+      int maxBatchesInFlight, String ownerDescription, ExecutionContext cacheEc) {
+    this.keys = keys;
+    this.ds = ds;
+    this.ads = ads;
+    this.batchSize = batchSize;
+    this.maxBatchesInFlight = maxBatchesInFlight;
+    this.ownerDescription = ownerDescription;
+    this.cacheEc = cacheEc;
+  }
+
+  public Iterator<Entity> iterator() {
+    return new BatchIterator();
+  }
+
+  private final class BatchIterator implements Iterator<Entity> {
+    /** Start of the next batch to request. */
+    private int nextBatchStart = 0;
+
+    private final LinkedList<PendingBatch> inFlight = new LinkedList<PendingBatch>();
+
+    /** Keys of the batch being read, and its entities. */
+    private Iterator<Key> batchKeys;
+    private Map<Key, Entity> batchEntities;
+
+    private Entity next;
+
+    public boolean hasNext() {
+      while (next == null) {
+        if (batchKeys != null && batchKeys.hasNext()) {
+          Key key = batchKeys.next();
+          next = batchEntities.get(key);
+          if (next == null) {
+            // User must have deleted it? Ignore the entry
+            NucleusLogger.DATASTORE_RETRIEVE.info(ownerDescription + " was marked as having child " + key +
+                " but doesn't exist, so must have been deleted. Ignoring");
+          }
+        } else if (!nextBatch()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public Entity next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entity result = next;
+      next = null;
+      return result;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Moves on to the next batch, requesting further batches so that up to the maximum are in flight.
+     * @return Whether there was another batch
+     */
+    private boolean nextBatch() {
+      if (ads == null) {
+        List<Key> batch = takeBatch();
+        if (batch == null) {
+          return false;
+        }
+        batchKeys = batch.iterator();
+        batchEntities = getCachedEntities(batch);
+        List<Key> keysToGet = getKeysToGet(batch, batchEntities);
+        if (!keysToGet.isEmpty()) {
+          addFetchedEntities(batchEntities, ds.get(keysToGet));
+        }
+        return true;
+      }
+
+      while (inFlight.size() < maxBatchesInFlight) {
+        List<Key> batch = takeBatch();
+        if (batch == null) {
+          break;
+        }
+        Map<Key, Entity> cached = getCachedEntities(batch);
+        List<Key> keysToGet = getKeysToGet(batch, cached);
+        inFlight.add(new PendingBatch(batch, cached, keysToGet.isEmpty() ? null : ads.get(keysToGet)));
+      }
+      if (inFlight.isEmpty()) {
+        return false;
+      }
+      PendingBatch pending = inFlight.removeFirst();
+      batchKeys = pending.keys.iterator();
+      batchEntities = pending.cached;
+      if (pending.future == null) {
+        return true;
+      }
+      try {
+        addFetchedEntities(batchEntities, pending.future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new NucleusDataStoreException("Interrupted waiting for child entities", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new NucleusDataStoreException("Failed to get child entities", e.getCause());
+      }
+      return true;
+    }
+
+    private Map<Key, Entity> getCachedEntities(List<Key> batch) {
+      if (cacheEc == null) {
+        return Utils.newHashMap();
+      }
+      return EntityUtils.getCachedEntities(cacheEc, batch);
+    }
+
+    private List<Key> getKeysToGet(List<Key> batch, Map<Key, Entity> cached) {
+      if (cached.isEmpty()) {
+        return batch;
+      }
+      List<Key> keysToGet = Utils.newArrayList();
+      for (Key key : batch) {
+        if (!cached.containsKey(key)) {
+          keysToGet.add(key);
+        }
+      }
+      return keysToGet;
+    }
+
+    private void addFetchedEntities(Map<Key, Entity> entities, Map<Key, Entity> fetched) {
+      entities.putAll(fetched);
+      if (cacheEc != null) {
+        EntityUtils.cacheEntities(cacheEc, fetched.values());
+      }
+    }
+
+    private List<Key> takeBatch() {
+      if (nextBatchStart >= keys.size()) {
+        return null;
+      }
+      int end = Math.min(keys.size(), nextBatchStart + batchSize);
+      List<Key> batch = keys.subList(nextBatchStart, end);
+      nextBatchStart = end;
+      return batch;
+    }
+  }
+
+  /**
+   * A batch of keys, with those of its entities taken from the entity cache and the get of the rest.
+   */
+  private static final class PendingBatch {
+    private final List<Key> keys;
+    private final Map<Key, Entity> cached;
+    /** Get of the keys that weren't cached, or null if they all were. */
+    private final Future<Map<Key, Entity>> future;
+
+    private PendingBatch(List<Key> keys, Map<Key, Entity> cached, Future<Map<Key, Entity>> future) {
+      this.keys = keys;
+      this.cached = cached;
+      this.future = future;
+    }
+  }
+}
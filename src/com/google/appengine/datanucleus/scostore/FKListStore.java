@@ -38,7 +38,6 @@ import org.datanucleus.ExecutionContext;
 import org.datanucleus.store.FieldValues;
 import org.datanucleus.state.ObjectProvider;
 import org.datanucleus.store.mapped.DatastoreClass;
-import org.datanucleus.store.mapped.exceptions.MappedDatastoreException;
 import org.datanucleus.store.mapped.mapping.JavaTypeMapping;
 import org.datanucleus.store.mapped.mapping.MappingConsumer;
 import org.datanucleus.store.scostore.ListStore;
@@ -71,6 +70,9 @@ public class FKListStore extends AbstractFKStore implements ListStore {
   /** Whether the list is indexed (like with JDO). If false then it will have no orderMapping (like with JPA). */
   protected boolean indexedList = true;
 
+  /** Maximum number of entities written back in a single put when shifting list positions. */
+  private static final int SHIFT_BATCH_SIZE = 500;
+
   private final ThreadLocal<Boolean> removing = new ThreadLocal<Boolean>() {
     @Override
     protected Boolean initialValue() {
@@ -163,19 +165,11 @@ public class FKListStore extends AbstractFKStore implements ListStore {
         if (shiftingElements)
         {
           // We need to shift existing elements before positioning the new ones
-          try {
-            // Calculate the amount we need to shift any existing elements by
-            // This is used where inserting between existing elements and have to shift down all elements after the start point
-            int shift = elements.size();
-            // shift up existing elements after start position by "shift"
-            for (int i=currentListSize-1; i>=startAt; i--) {
-              internalShift(ownerOP, false, i, shift);
-            }
-          }
-          catch (MappedDatastoreException e) {
-            // An error was encountered during the shift process so abort here
-            throw new NucleusDataStoreException(LOCALISER.msg("056009", e.getMessage()), e.getCause());
-          }
+          // Calculate the amount we need to shift any existing elements by
+          // This is used where inserting between existing elements and have to shift down all elements after the start point
+          int shift = elements.size();
+          // shift up existing elements from the start position by "shift", in a single pass
+          internalShift(ownerOP, startAt, shift);
         }
       }
 
@@ -219,10 +213,18 @@ public class FKListStore extends AbstractFKStore implements ListStore {
     return success;
   }
 
-  protected int[] internalShift(ObjectProvider op, boolean batched, int oldIndex, int amount) 
-  throws MappedDatastoreException {
+  /**
+   * Method to shift the index of all elements at or after the supplied position by the supplied amount.
+   * The elements are found with a single ancestor query, have their positions rewritten in memory, and
+   * are then written back with batch puts of at most {@link #SHIFT_BATCH_SIZE} entities each.
+   * Does nothing if the list has no order mapping.
+   * @param op ObjectProvider for the owner
+   * @param oldIndex The first index to shift
+   * @param amount The amount to shift by
+   */
+  protected void internalShift(ObjectProvider op, int oldIndex, int amount) {
     if (orderMapping == null) {
-      return null;
+      return;
     }
 
     DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
@@ -241,12 +243,20 @@ public class FKListStore extends AbstractFKStore implements ListStore {
     orderMapping.setObject(ec, entity, new int[] {1}, oldIndex);
     String indexProp = entity.getProperties().keySet().iterator().next();
     q.addFilter(indexProp, Query.FilterOperator.GREATER_THAN_OR_EQUAL, oldIndex);
+
+    // The query has to see any positions we have written but not yet joined
+    EntityUtils.flushPendingWrites(ec);
+
+    // Read everything before writing anything, otherwise the query could pick up entities we have already shifted
+    List<Entity> shifted = Utils.newArrayList();
     for (Entity shiftMe : service.prepare(service.getCurrentTransaction(null), q).asIterable()) {
       Long pos = (Long) shiftMe.getProperty(indexProp);
       shiftMe.setProperty(indexProp, pos + amount);
-      EntityUtils.putEntityIntoDatastore(ec, shiftMe);
+      shifted.add(shiftMe);
+    }
+    for (int i = 0; i < shifted.size(); i += SHIFT_BATCH_SIZE) {
+      EntityUtils.putEntitiesIntoDatastore(ec, shifted.subList(i, Math.min(i + SHIFT_BATCH_SIZE, shifted.size())));
     }
-    return null;
   }
 
   /**
@@ -357,7 +367,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
       String propName = EntityUtils.getPropertyName(storeMgr.getIdentifierFactory(), ownerMemberMetaData);
       if (datastoreEntity.hasProperty(propName)) {
         if (indexedList) {
-          return getChildrenFromParentField(op, ec, startIdx, endIdx).listIterator();
+          return getChildrenFromParentField(op, ec, startIdx, endIdx);
         } else if (!MetaDataUtils.isOwnedRelation(ownerMemberMetaData, storeMgr)) {
           Object value = datastoreEntity.getProperty(propName);
           if (value == null || (value instanceof Collection && ((Collection)value).isEmpty())) {
@@ -398,6 +408,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
 
     DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
     DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
+    EntityUtils.flushPendingWrites(ec);
 
     Utils.Function<Entity, Object> func = new Utils.Function<Entity, java.lang.Object>() {
       @Override
@@ -609,6 +620,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
       orderMapping.setObject(ec, entity, new int[] {1}, index);
       String indexProp = entity.getProperties().keySet().iterator().next();
       q.addFilter(indexProp, Query.FilterOperator.GREATER_THAN, index);
+      EntityUtils.flushPendingWrites(ec);
       for (Entity shiftMe : service.prepare(service.getCurrentTransaction(null), q).asIterable()) {
         Long pos = (Long) shiftMe.getProperty(indexProp);
         shiftMe.setProperty(indexProp, pos - 1);
@@ -666,10 +678,29 @@ public class FKListStore extends AbstractFKStore implements ListStore {
 
         List<Key> keys = (List<Key>)value;
         Key indexKey = keys.get(index);
+        int pageSize = MetaDataUtils.getPageSize(ownerMemberMetaData);
+        if (pageSize > 0) {
+          List<Object> page = getPage(op, keys, index - index % pageSize, pageSize);
+          if (page != null) {
+            return page.get(index % pageSize);
+          }
+        }
         DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
         DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
         try {
-          return EntityUtils.entityToPojo(ds.get(indexKey), elementCmd, clr, ec, false, ec.getFetchPlan());
+          // Make sure we see our own writes, and don't cache an entity they are about to replace
+          EntityUtils.flushPendingWrites(ec, Collections.singletonList(indexKey));
+          // Use the entity cache unless in a datastore txn
+          boolean useCache = storeMgr.getDatastoreTransaction(ec) == null;
+          Entity child = useCache ?
+              EntityUtils.getCachedEntities(ec, Collections.singletonList(indexKey)).get(indexKey) : null;
+          if (child == null) {
+            child = ds.get(indexKey);
+            if (useCache) {
+              EntityUtils.cacheEntities(ec, Collections.singletonList(child));
+            }
+          }
+          return EntityUtils.entityToPojo(child, elementCmd, clr, ec, false, ec.getFetchPlan());
         } catch (EntityNotFoundException enfe) {
           throw new NucleusDataStoreException("Could not determine entity for index=" + index + " with key=" + indexKey, enfe);
         }
@@ -797,6 +828,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
       DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(config);
       int[] indices = new int[keys.size()];
       int index = 0;
+      EntityUtils.flushPendingWrites(ec);
       for (Entity e : service.prepare(service.getCurrentTransaction(null), q).asIterable()) {
         if (keySet.contains(e.getKey())) {
           Long indexVal = (Long) orderMapping.getObject(ec, e, new int[1]);
@@ -815,6 +847,51 @@ public class FKListStore extends AbstractFKStore implements ListStore {
     return new int[0];
   }
 
+  /**
+   * Method to return the elements of the page of a paged list starting at the specified index. The page last
+   * read for the owner is kept with it, and reused while the owner still has the same keys in that range.
+   * @param op ObjectProvider for the owner
+   * @param keys The keys of the children, from the owner entity
+   * @param pageStart Index of the first element of the page
+   * @param pageSize Size of the pages
+   * @return The elements of the page, or null if any of its children couldn't be found
+   */
+  private List<Object> getPage(ObjectProvider op, List<Key> keys, int pageStart, int pageSize) {
+    List<Key> pageKeys = keys.subList(pageStart, Math.min(pageStart + pageSize, keys.size()));
+    ChildPage page = (ChildPage) op.getAssociatedValue(this);
+    if (page != null && page.start == pageStart && page.keys.equals(pageKeys)) {
+      return page.elements;
+    }
+
+    List<Object> elements = new ArrayList<Object>(pageKeys.size());
+    ListIterator<?> iter = getChildrenFromParentField(op, op.getExecutionContext(), pageStart,
+        pageStart + pageKeys.size());
+    while (iter.hasNext()) {
+      elements.add(iter.next());
+    }
+    if (elements.size() != pageKeys.size()) {
+      // Missing children would shift the positions in the page
+      return null;
+    }
+    op.setAssociatedValue(this, new ChildPage(pageStart, new ArrayList<Key>(pageKeys), elements));
+    return elements;
+  }
+
+  /**
+   * The page of a paged list last read for an owner.
+   */
+  private static final class ChildPage {
+    private final int start;
+    private final List<Key> keys;
+    private final List<Object> elements;
+
+    private ChildPage(int start, List<Key> keys, List<Object> elements) {
+      this.start = start;
+      this.keys = keys;
+      this.elements = elements;
+    }
+  }
+
   /* (non-Javadoc)
    * @see org.datanucleus.store.scostore.ListStore#indexOf(org.datanucleus.store.ObjectProvider, java.lang.Object)
    */
@@ -850,6 +927,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
       DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
       DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(config);
       try {
+        EntityUtils.flushPendingWrites(ec, Collections.singletonList(elementKey));
         Entity e = service.get(elementKey);
         Long indexVal = (Long) orderMapping.getObject(ec, e, new int[1]);
         if (indexVal == null) {
@@ -242,7 +242,7 @@ public class FKSetStore extends AbstractFKStore implements SetStore {
       Entity datastoreEntity = getOwnerEntity(op);
       String propName = EntityUtils.getPropertyName(storeMgr.getIdentifierFactory(), ownerMemberMetaData);
       if (datastoreEntity.hasProperty(propName)) {
-        return getChildrenFromParentField(op, ec, -1, -1).listIterator();
+        return getChildrenFromParentField(op, ec, -1, -1);
       } else {
         if (MetaDataUtils.isOwnedRelation(ownerMemberMetaData, storeMgr)) {
           // Not yet got the property in the parent, so this entity has not yet been migrated to latest storage version
@@ -15,6 +15,7 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus.valuegenerator;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.KeyRange;
@@ -36,7 +37,12 @@ import org.datanucleus.store.valuegenerator.AbstractDatastoreGenerator;
 import org.datanucleus.store.valuegenerator.ValueGenerationBlock;
 
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A database sequence abstraction on top of the
@@ -53,17 +59,47 @@ import java.util.Properties;
  * just by the child kind.  These id-spaces overlap, so you have to pick
  * one or the other and stick with it.
  *
+ * Ids are handed out straight from the bounds of the current {@link KeyRange}
+ * without locking.  When a low-water mark is configured (see
+ * {@link DatastoreManager#SEQUENCE_PREFETCH_LOW_WATER_MARK_PROPERTY}) the next
+ * block is requested asynchronously once that many ids remain, so callers
+ * rarely wait on the datastore at a block boundary.  The thread that requested
+ * the block collects it once the request completes, after which any thread can
+ * use it.
+ *
  * @author Max Ross <maxr@google.com>
  */
 public class SequenceGenerator extends AbstractDatastoreGenerator {
 
   private static final String SEQUENCE_POSTFIX = "_SEQUENCE__";
   private static final String KEY_CACHE_SIZE_PROPERTY = "key-cache-size";
+  private static final String KEY_CACHE_LOW_WATER_MARK_PROPERTY = "key-cache-low-water-mark";
 
   // can't be final because we need the storeMgr to derive it, and storeMgr
   // isn't set until setStoreManager is invoked.
   private String sequenceName;
 
+  /** Number of remaining ids at which the next block is prefetched, or 0 to never prefetch. */
+  private int lowWaterMark;
+
+  /** The block ids are currently handed out from. */
+  private volatile IdRange currentRange;
+
+  /** Block requested ahead of time and not yet collected, if any.  Guarded by this. */
+  private Future<KeyRange> prefetchedRange;
+
+  /**
+   * Thread that requested {@link #prefetchedRange}.  The future of an async call belongs to the
+   * request that started it, so no other thread waits on it.  Written while holding this.
+   */
+  private volatile Thread prefetchingThread;
+
+  /** Block to hand out ids from next, once collected from {@link #prefetchedRange}.  Guarded by this. */
+  private KeyRange nextRange;
+
+  /** The last id handed out. */
+  private volatile Long currentId;
+
   public SequenceGenerator(String name, Properties props) {
     super(name, props);
   }
@@ -71,6 +107,8 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
   @Override
   public void setStoreManager(StoreManager storeMgr) {
     super.setStoreManager(storeMgr);
+    lowWaterMark = ((DatastoreManager) storeMgr).getIntProperty(
+        DatastoreManager.SEQUENCE_PREFETCH_LOW_WATER_MARK_PROPERTY);
     NucleusContext nucCtx = storeMgr.getNucleusContext();
     MetaDataManager mdm = nucCtx.getMetaDataManager();
     ClassLoaderResolver clr = nucCtx.getClassLoaderResolver(getClass().getClassLoader());
@@ -90,6 +128,9 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
         } else {
           allocationSize = sequenceMetaData.getAllocationSize();
         }
+        if (sequenceMetaData.hasExtension(KEY_CACHE_LOW_WATER_MARK_PROPERTY)) {
+          lowWaterMark = Integer.parseInt(sequenceMetaData.getValueForExtension(KEY_CACHE_LOW_WATER_MARK_PROPERTY));
+        }
         sequenceName = sequenceMetaData.getDatastoreSequence();
       } else {
         // key cache size is passed in as a prop for JDO when the sequence
@@ -97,6 +138,9 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
         if (properties.getProperty(KEY_CACHE_SIZE_PROPERTY) != null) {
           allocationSize = Integer.parseInt(properties.getProperty(KEY_CACHE_SIZE_PROPERTY));
         }
+        if (properties.getProperty(KEY_CACHE_LOW_WATER_MARK_PROPERTY) != null) {
+          lowWaterMark = Integer.parseInt(properties.getProperty(KEY_CACHE_LOW_WATER_MARK_PROPERTY));
+        }
       }
     }
     // derive the sequence name from the class meta data
@@ -129,15 +173,132 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
         SEQUENCE_POSTFIX + SEQUENCE_POSTFIX_APPENDAGE.get();
   }
 
-  protected ValueGenerationBlock reserveBlock(long size) {
+  @Override
+  public Object next() {
+    return nextValue();
+  }
+
+  @Override
+  public long nextValue() {
+    while (true) {
+      IdRange range = currentRange;
+      if (range != null) {
+        long id = range.take();
+        if (id != IdRange.EXHAUSTED) {
+          if (lowWaterMark > 0 && range.remaining() <= lowWaterMark && range.markPrefetched()) {
+            prefetch();
+          }
+          if (prefetchingThread == Thread.currentThread()) {
+            // Wait for the next block at the latest when this thread has taken the last id
+            collectPrefetchedRange(range.remaining() == 0);
+          }
+          currentId = id;
+          return id;
+        }
+      }
+      replaceRange(range, allocationSize);
+    }
+  }
+
+  @Override
+  public Object current() {
+    Long id = currentId;
+    if (id == null) {
+      throw new NoSuchElementException("No ids have been handed out by sequence " + sequenceName);
+    }
+    return id;
+  }
+
+  @Override
+  public long currentValue() {
+    return (Long) current();
+  }
+
+  @Override
+  public void allocate(int additional) {
+    IdRange range = currentRange;
+    if (range == null || range.remaining() < additional) {
+      // The unused ids of the current block are abandoned, same as when a generator is discarded.
+      replaceRange(range, Math.max(additional, allocationSize));
+    }
+  }
+
+  /**
+   * Installs a new block of ids unless another thread has already replaced
+   * {@code exhausted}.  Uses the prefetched block once it has been collected, otherwise a block
+   * is allocated synchronously.  A block still being prefetched for another thread is left for
+   * that thread to collect.
+   */
+  private synchronized void replaceRange(IdRange exhausted, long size) {
+    if (currentRange != exhausted) {
+      return;
+    }
+    if (prefetchingThread == Thread.currentThread()) {
+      collectPrefetchedRange(true);
+    }
+    KeyRange range = null;
+    if (nextRange != null && size <= allocationSize) {
+      range = nextRange;
+      nextRange = null;
+    }
+    currentRange = new IdRange(range != null ? range : reserveRange(size));
+  }
+
+  private synchronized void prefetch() {
+    if (prefetchedRange == null && nextRange == null) {
+      DatastoreServiceConfig config = ((DatastoreManager) storeMgr).getDefaultDatastoreServiceConfigForWrites();
+      AsyncDatastoreService ads = DatastoreServiceFactoryInternal.getAsyncDatastoreService(config);
+      prefetchedRange = ads.allocateIds(sequenceName, allocationSize);
+      prefetchingThread = Thread.currentThread();
+    }
+  }
+
+  /**
+   * Called by the thread that requested the prefetched block to make it the next block, which
+   * any thread can then use.
+   * @param wait Whether to wait for the allocation, rather than only collecting it when it has completed
+   */
+  private synchronized void collectPrefetchedRange(boolean wait) {
+    if (prefetchingThread != Thread.currentThread() || (!wait && !prefetchedRange.isDone())) {
+      return;
+    }
+    Future<KeyRange> future = prefetchedRange;
+    prefetchedRange = null;
+    prefetchingThread = null;
+    nextRange = getPrefetchedRange(future);
+  }
+
+  /**
+   * Waits for a prefetched block, returning null if its allocation failed so that
+   * the caller falls back to a synchronous allocation.
+   */
+  private KeyRange getPrefetchedRange(Future<KeyRange> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      return null;
+    }
+  }
+
+  private KeyRange reserveRange(long size) {
     if (sequenceName == null) {
       // shouldn't happen
       throw new IllegalStateException("sequence name is null");
     }
     DatastoreServiceConfig config = ((DatastoreManager) storeMgr).getDefaultDatastoreServiceConfigForWrites();
     DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
-    KeyRange range = ds.allocateIds(sequenceName, size);
-    // Too bad we can't pass an iterable and construct the ids on demand.
+    return ds.allocateIds(sequenceName, size);
+  }
+
+  /**
+   * Only used by the block-based paths of the superclass, since ids are
+   * normally handed out by {@link #nextValue()} without building blocks.
+   */
+  protected ValueGenerationBlock reserveBlock(long size) {
+    KeyRange range = reserveRange(size);
     List<Long> ids = Utils.newArrayList();
     long current = range.getStart().getId();
     for (int i = 0; i < size; i++) {
@@ -146,6 +307,36 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
     return new ValueGenerationBlock(ids);
   }
 
+  /**
+   * The ids of a {@link KeyRange}, handed out from its bounds.
+   */
+  private static final class IdRange {
+    static final long EXHAUSTED = Long.MIN_VALUE;
+
+    private final AtomicLong next;
+    private final long end;
+    private final AtomicBoolean prefetched = new AtomicBoolean();
+
+    IdRange(KeyRange range) {
+      this.next = new AtomicLong(range.getStart().getId());
+      this.end = range.getEnd().getId();
+    }
+
+    long take() {
+      long id = next.getAndIncrement();
+      return id <= end ? id : EXHAUSTED;
+    }
+
+    long remaining() {
+      return Math.max(0, end - next.get() + 1);
+    }
+
+    /** Returns true for the first caller only, so each block triggers at most one prefetch. */
+    boolean markPrefetched() {
+      return prefetched.compareAndSet(false, true);
+    }
+  }
+
   // This postfix is for testing only. TODO Remove when local datastore id allocation behaviour mirrors prod
   private static final ThreadLocal<String> SEQUENCE_POSTFIX_APPENDAGE = new ThreadLocal<String>() {
     @Override
@@ -20,6 +20,17 @@ import junit.framework.TestSuite;
 import com.google.appengine.datanucleus.jdo.JDOPersistenceManagerFactoryTest;
 import com.google.appengine.datanucleus.jdo.JDOAbstractBaseClassTest;
 import com.google.appengine.datanucleus.jdo.JDOAncestorTest;
+import com.google.appengine.datanucleus.jdo.JDOAsyncWritesTest;
+import com.google.appengine.datanucleus.jdo.JDOBatchVersionCheckTest;
+import com.google.appengine.datanucleus.jdo.JDOBatchUpdateTest;
+import com.google.appengine.datanucleus.jdo.JDOOwnedCollectionSizeTest;
+import com.google.appengine.datanucleus.jdo.JDOPagedCollectionTest;
+import com.google.appengine.datanucleus.jdo.JDOSkipUnchangedPutsTest;
+import com.google.appengine.datanucleus.jdo.JDOSkipVersionCheckInTxnTest;
+import com.google.appengine.datanucleus.jdo.JDODatastoreRpcMetricsTest;
+import com.google.appengine.datanucleus.jdo.JDOEntityCacheTest;
+import com.google.appengine.datanucleus.jdo.JDOChildFetchTest;
+import com.google.appengine.datanucleus.jdo.JDOPreallocateKeysTest;
 import com.google.appengine.datanucleus.jdo.JDOAttachDetachTest;
 import com.google.appengine.datanucleus.jdo.JDOBatchDeleteTest;
 import com.google.appengine.datanucleus.jdo.JDOBatchInsertTest;
@@ -162,6 +173,7 @@ public class AllTests {
     suite.addTestSuite(JPAMetaDataValidatorTest.class);
     suite.addTestSuite(MetaDataValidatorTest.class);
     suite.addTestSuite(EntityUtilsTest.class);
+    suite.addTestSuite(EntityFingerprintTest.class);
     suite.addTestSuite(BigDecimalsTest.class);
     suite.addTestSuite(JDOBytesTest.class);
     suite.addTestSuite(JPABytesTest.class);
@@ -217,6 +229,17 @@ public class AllTests {
     suite.addTestSuite(JDOOneToManyPolymorphicSetTest.class);
     suite.addTestSuite(JPAOneToManyPolymorphicListTest.class);
     suite.addTestSuite(JPAOneToManyPolymorphicSetTest.class);
+    suite.addTestSuite(JDOAsyncWritesTest.class);
+    suite.addTestSuite(JDOPreallocateKeysTest.class);
+    suite.addTestSuite(JDOBatchVersionCheckTest.class);
+    suite.addTestSuite(JDOBatchUpdateTest.class);
+    suite.addTestSuite(JDOOwnedCollectionSizeTest.class);
+    suite.addTestSuite(JDOPagedCollectionTest.class);
+    suite.addTestSuite(JDOSkipUnchangedPutsTest.class);
+    suite.addTestSuite(JDOSkipVersionCheckInTxnTest.class);
+    suite.addTestSuite(JDODatastoreRpcMetricsTest.class);
+    suite.addTestSuite(JDOEntityCacheTest.class);
+    suite.addTestSuite(JDOChildFetchTest.class);
     
     return suite;
   }
@@ -18,6 +18,7 @@ package com.google.appengine.datanucleus;
 //import com.google.appengine.testing.cloudcover.util.CloudCoverLocalServiceTestHelper;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.apphosting.api.ApiProxy;
 import junit.framework.TestCase;
@@ -45,13 +46,20 @@ public class DatastoreTestCase extends TestCase {
     return new LocalDatastoreServiceTestConfig();
   }
 
+  /**
+   * Override this if your test needs local services other than the datastore.
+   */
+  protected LocalServiceTestConfig[] newLocalServiceTestConfigs() {
+    return new LocalServiceTestConfig[] {newLocalDatastoreServiceTestConfig()};
+  }
+
   // TODO(maxr): Put this back once we have a maven project for cloudcover
 //  private final CloudCoverLocalServiceTestHelper helper = new CloudCoverLocalServiceTestHelper(
 //      new LocalDatastoreServiceTestConfig());
 
   private synchronized LocalServiceTestHelper getHelper() {
     if (helper == null) {
-      helper = new LocalServiceTestHelper(newLocalDatastoreServiceTestConfig()).setEnvAppId(getAppId());
+      helper = new LocalServiceTestHelper(newLocalServiceTestConfigs()).setEnvAppId(getAppId());
     }
     return helper;
   }
@@ -0,0 +1,70 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Tests for {@link EntityFingerprint}.
+ */
+public class EntityFingerprintTest extends DatastoreTestCase {
+
+  public void testIndependentOfPropertyOrder() {
+    Entity e1 = new Entity("Foo");
+    e1.setProperty("a", "yam");
+    e1.setProperty("b", 3L);
+    Entity e2 = new Entity("Foo");
+    e2.setProperty("b", 3L);
+    e2.setProperty("a", "yam");
+    assertEquals(EntityFingerprint.of(e1), EntityFingerprint.of(e2));
+  }
+
+  public void testIntegralValuesMatchStoredLong() {
+    Entity e1 = new Entity("Foo");
+    e1.setProperty("a", 3);
+    Entity e2 = new Entity("Foo");
+    e2.setProperty("a", 3L);
+    assertEquals(EntityFingerprint.of(e1), EntityFingerprint.of(e2));
+  }
+
+  public void testValueChangeDetected() {
+    // "Aa" and "BB" have the same String hashCode
+    Entity e1 = new Entity("Foo");
+    e1.setProperty("a", "Aa");
+    Entity e2 = new Entity("Foo");
+    e2.setProperty("a", "BB");
+    assertFalse(EntityFingerprint.of(e1) == EntityFingerprint.of(e2));
+
+    e2.setProperty("a", new Text("Aa"));
+    assertFalse(EntityFingerprint.of(e1) == EntityFingerprint.of(e2));
+  }
+
+  public void testIndexingChangeDetected() {
+    Entity e1 = new Entity("Foo");
+    e1.setProperty("a", "yam");
+    Entity e2 = new Entity("Foo");
+    e2.setUnindexedProperty("a", "yam");
+    assertFalse(EntityFingerprint.of(e1) == EntityFingerprint.of(e2));
+  }
+
+  public void testNullAndMissingPropertyDiffer() {
+    Entity e1 = new Entity("Foo");
+    e1.setProperty("a", null);
+    Entity e2 = new Entity("Foo");
+    assertFalse(EntityFingerprint.of(e1) == EntityFingerprint.of(e2));
+  }
+}
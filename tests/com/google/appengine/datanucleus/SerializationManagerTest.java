@@ -26,6 +26,15 @@ import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.ExtensionMetaData;
 
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * SerializationManager tests.
@@ -98,4 +107,95 @@ public class SerializationManagerTest extends TestCase {
       // good
     }
   }
-}
\ No newline at end of file
+
+  public void testCustomSerializerIsCached() {
+    SerializationManager mgr = new SerializationManager();
+    AbstractMemberMetaData ammd = new AbstractMemberMetaData(null, "yar") {
+      @Override
+      public ExtensionMetaData[] getExtensions() {
+        ExtensionMetaData emd = new ExtensionMetaData(
+            "datanucleus",
+            SerializationManager.SERIALIZATION_STRATEGY_KEY,
+            CompactSerializationStrategy.class.getName());
+        return new ExtensionMetaData[] {emd};
+      }
+    };
+    SerializationStrategy serializationStrategy = mgr.getSerializationStrategy(new ClassLoaderResolverImpl(), ammd);
+    assertTrue(serializationStrategy instanceof CompactSerializationStrategy);
+    assertSame(serializationStrategy, mgr.getSerializationStrategy(new ClassLoaderResolverImpl(), ammd));
+  }
+
+  enum Color {RED, GREEN}
+
+  public void testCompactSerialization() {
+    assertRoundTrip(new CompactSerializationStrategy());
+  }
+
+  public void testDeflateSerialization() {
+    assertRoundTrip(new DeflateSerializationStrategy());
+
+    // Repetitive values compress
+    List<String> strs = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      strs.add("the same string");
+    }
+    Blob compact = new CompactSerializationStrategy().serialize(strs);
+    Blob deflated = new DeflateSerializationStrategy().serialize(strs);
+    assertTrue(deflated.getBytes().length < compact.getBytes().length);
+    assertEquals(strs, new DeflateSerializationStrategy().deserialize(deflated, List.class));
+  }
+
+  public void testCompactSerialization_BytesAreOfWrongType() {
+    SerializationStrategy strategy = new CompactSerializationStrategy();
+    Blob blob = strategy.serialize("yar");
+    try {
+      strategy.deserialize(blob, Integer.class);
+      fail("Expected NucleusException");
+    } catch (NucleusException ne) {
+      // good
+    }
+    try {
+      strategy.deserialize(SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.serialize("yar"), String.class);
+      fail("Expected NucleusException");
+    } catch (NucleusException ne) {
+      // good
+    }
+  }
+
+  private void assertRoundTrip(SerializationStrategy strategy) {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("str", "yar\u00e9");
+    map.put("int", -23);
+    map.put("long", Long.MAX_VALUE);
+    map.put("double", 2.5d);
+    map.put("float", -1.5f);
+    map.put("bool", true);
+    map.put("null", null);
+    map.put("date", new Date(1234567L));
+    map.put("bigDecimal", new BigDecimal("-12345.6789"));
+    map.put("bigInteger", new BigInteger("123456789012345678901234567890"));
+    map.put("enum", Color.GREEN);
+    map.put("enum2", Color.RED);
+    map.put("set", new HashSet<Object>(Arrays.asList(1L, "two")));
+    map.put("list", new ArrayList<Object>(Arrays.asList('c', (short) 3, (byte) -4)));
+    map.put("serializable", new MySerializable1());
+
+    Map<?, ?> result = (Map<?, ?>) strategy.deserialize(strategy.serialize(map), Map.class);
+    assertEquals(LinkedHashMap.class, result.getClass());
+    assertEquals(new ArrayList<String>(map.keySet()), new ArrayList<Object>(result.keySet()));
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      if (entry.getKey().equals("serializable")) {
+        assertTrue(result.get(entry.getKey()) instanceof MySerializable1);
+      } else {
+        assertEquals(entry.getValue(), result.get(entry.getKey()));
+      }
+    }
+
+    String[] strs = new String[] {"a", null, "c"};
+    assertTrue(Arrays.equals(strs, (String[]) strategy.deserialize(strategy.serialize(strs), String[].class)));
+    long[] longs = new long[] {Long.MIN_VALUE, 0, 7};
+    assertTrue(Arrays.equals(longs, (long[]) strategy.deserialize(strategy.serialize(longs), long[].class)));
+    byte[] bytes = new byte[] {1, 2, 3};
+    assertTrue(Arrays.equals(bytes, (byte[]) strategy.deserialize(strategy.serialize(bytes), byte[].class)));
+  }
+}
@@ -0,0 +1,208 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for writes issued with "datanucleus.appengine.datastoreAsyncWrites" enabled.
+ */
+public class JDOAsyncWritesTest extends JDOTestCase {
+
+  /** Names of the methods called on the async datastore service used for the writes. */
+  private final List<String> asyncCalls = Utils.newArrayList();
+
+  /** Whether writes only reach the datastore once their future is waited on. */
+  private boolean deferWrites;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final AsyncDatastoreService delegate = DatastoreServiceFactory.getAsyncDatastoreService();
+    InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        asyncCalls.add(method.getName());
+        if (deferWrites && (method.getName().equals("put") || method.getName().equals("delete"))) {
+          return newDeferredCall(delegate, method, args);
+        }
+        try {
+          return method.invoke(delegate, args);
+        } catch (InvocationTargetException ite) {
+          throw ite.getTargetException();
+        }
+      }
+    };
+    DatastoreServiceFactoryInternal.setAsyncDatastoreService((AsyncDatastoreService) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class[] {AsyncDatastoreService.class}, handler));
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.DATASTORE_ASYNC_WRITES_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    DatastoreServiceFactoryInternal.setAsyncDatastoreService(null);
+    asyncCalls.clear();
+    deferWrites = false;
+    super.tearDown();
+  }
+
+  /**
+   * Returns a future that only makes the supplied call when it is waited on, so a read that doesn't wait for
+   * outstanding writes is sure not to see them.
+   */
+  private static Future<Object> newDeferredCall(final Object target, final Method method, final Object[] args) {
+    return new FutureTask<Object>(new Callable<Object>() {
+      public Object call() throws Exception {
+        return ((Future<?>) method.invoke(target, args)).get();
+      }
+    }) {
+      @Override
+      public Object get() throws InterruptedException, ExecutionException {
+        run();
+        return super.get();
+      }
+
+      @Override
+      public Object get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException, TimeoutException {
+        run();
+        return super.get(timeout, unit);
+      }
+    };
+  }
+
+  public void testUpdateInTxn() throws EntityNotFoundException {
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+
+    beginTxn();
+    Flight flight = pm.getObjectById(Flight.class, KeyFactory.keyToString(key));
+    flight.setName("2");
+    commitTxn();
+    assertTrue(asyncCalls.toString(), asyncCalls.contains("put"));
+
+    Entity flightCheck = ds.get(key);
+    assertEquals("2", flightCheck.getProperty("name"));
+    assertEquals(2L, flightCheck.getProperty("VERSION"));
+  }
+
+  public void testInsertThenUpdateInTxn() throws EntityNotFoundException {
+    Flight flight = new Flight();
+    flight.setName("1");
+    flight.setOrigin("yam");
+    flight.setDest("bam");
+    beginTxn();
+    pm.makePersistent(flight);
+    commitTxn();
+
+    beginTxn();
+    flight = pm.getObjectById(Flight.class, flight.getId());
+    flight.setName("2");
+    pm.flush();
+    flight.setOrigin("yar");
+    commitTxn();
+
+    Entity flightCheck = ds.get(KeyFactory.stringToKey(flight.getId()));
+    assertEquals("2", flightCheck.getProperty("name"));
+    assertEquals("yar", flightCheck.getProperty("origin"));
+  }
+
+  public void testDeleteInTxn() {
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+
+    beginTxn();
+    Flight flight = pm.getObjectById(Flight.class, KeyFactory.keyToString(key));
+    pm.deletePersistent(flight);
+    commitTxn();
+    assertTrue(asyncCalls.toString(), asyncCalls.contains("delete"));
+
+    try {
+      ds.get(key);
+      fail("expected enfe");
+    } catch (EntityNotFoundException e) {
+      // good
+    }
+  }
+
+  public void testUpdateNonTransactional() throws EntityNotFoundException {
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.DATASTORE_ASYNC_WRITES_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, props);
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+
+    Flight flight = pm.getObjectById(Flight.class, KeyFactory.keyToString(key));
+    flight.setName("2");
+    pm.close();
+    assertTrue(asyncCalls.toString(), asyncCalls.contains("put"));
+
+    Entity flightCheck = ds.get(key);
+    assertEquals("2", flightCheck.getProperty("name"));
+  }
+
+  public void testChildQueriesSeeAsyncDelete() {
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.DATASTORE_ASYNC_WRITES_PROPERTY, Boolean.TRUE.toString());
+    props.put("javax.jdo.option.NontransactionalRead", Boolean.TRUE.toString());
+    props.put("javax.jdo.option.NontransactionalWrite", Boolean.TRUE.toString());
+    // Children are found by querying on the parent key in this storage version
+    switchDatasource(PersistenceManagerFactoryName.originalStorageVersion, props);
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    for (String name : new String[] {"1", "2"}) {
+      Flight flight = new Flight();
+      flight.setName(name);
+      flight.setOrigin("yam");
+      flight.setDest("bam");
+      parent.addFlight(flight);
+    }
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+    String flightId = parent.getFlights().get(0).getId();
+    pm.close();
+
+    pm = pmf.getPersistenceManager();
+    deferWrites = true;
+    pm.deletePersistent(pm.getObjectById(Flight.class, flightId));
+    assertTrue(asyncCalls.toString(), asyncCalls.contains("delete"));
+
+    parent = pm.getObjectById(HasOneToManyListJDO.class, parent.getId());
+    assertEquals(1, parent.getFlights().size());
+    assertEquals("2", parent.getFlights().get(0).getName());
+  }
+}
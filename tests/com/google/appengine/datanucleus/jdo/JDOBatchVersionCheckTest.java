@@ -0,0 +1,99 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import javax.jdo.JDOOptimisticVerificationException;
+
+/**
+ * Tests for version checks with "datanucleus.appengine.batchVersionChecks" enabled.
+ */
+public class JDOBatchVersionCheckTest extends JDOBatchTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.BATCH_VERSION_CHECKS_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+  }
+
+  BatchRecorder newBatchRecorder() {
+    DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
+    return new BatchRecorder(config) {
+      boolean isBatchMethod(Method method) {
+        return method.getName().equals("get") && method.getParameterTypes().length == 1 &&
+            Iterable.class.isAssignableFrom(method.getParameterTypes()[0]);
+      }
+    };
+  }
+
+  public void testUpdatesCheckedWithOneGet() throws EntityNotFoundException {
+    Key key1 = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    Key key2 = ds.put(Flight.newFlightEntity("2", "yam", "bam", 1, 2));
+    Key key3 = ds.put(Flight.newFlightEntity("3", "yam", "bam", 1, 2));
+
+    beginTxn();
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key1)).setName("a");
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key2)).setName("b");
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key3)).setName("c");
+    commitTxn();
+
+    assertEquals(1, batchRecorder.batchOps);
+    assertEquals("a", ds.get(key1).getProperty("name"));
+    assertEquals(2L, ds.get(key2).getProperty("VERSION"));
+    assertEquals("c", ds.get(key3).getProperty("name"));
+  }
+
+  public void testMismatchesReportedTogether() throws EntityNotFoundException {
+    Key key1 = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    Key key2 = ds.put(Flight.newFlightEntity("2", "yam", "bam", 1, 2));
+
+    beginTxn();
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key1)).setName("a");
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key2)).setName("b");
+
+    // Update both entities underneath the pm
+    for (Key key : Utils.newArrayList(key1, key2)) {
+      Entity entity = ds.get(key);
+      entity.setProperty("VERSION", 2L);
+      ds.put(entity);
+    }
+
+    try {
+      commitTxn();
+      fail("expected optimistic exception");
+    } catch (JDOOptimisticVerificationException e) {
+      assertEquals(2, e.getNestedExceptions().length);
+    } finally {
+      rollbackTxn();
+    }
+
+    assertEquals("1", ds.get(key1).getProperty("name"));
+    assertEquals("2", ds.get(key2).getProperty("name"));
+  }
+}
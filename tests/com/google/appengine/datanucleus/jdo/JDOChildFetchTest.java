@@ -0,0 +1,184 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+import com.google.appengine.datanucleus.test.jdo.HasPagedOneToManyListJDO;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for reading the children of a list from the child keys stored in the owner, in batches of
+ * "datanucleus.appengine.childFetch.batchSize" keys.
+ */
+public class JDOChildFetchTest extends JDOTestCase {
+
+  private static final String[] ORIGINS = {"bos", "mia", "sfo", "lax", "ord"};
+
+  /** Keys of each batch get issued on the async datastore service. */
+  private final List<List<Key>> batches = Utils.newArrayList();
+
+  private String parentId;
+  private Long pagedParentId;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final AsyncDatastoreService delegate = DatastoreServiceFactory.getAsyncDatastoreService();
+    InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("get") && args.length == 1 && args[0] instanceof Iterable) {
+          List<Key> keys = Utils.newArrayList();
+          for (Object key : (Iterable<?>) args[0]) {
+            keys.add((Key) key);
+          }
+          batches.add(keys);
+        }
+        try {
+          return method.invoke(delegate, args);
+        } catch (InvocationTargetException ite) {
+          throw ite.getTargetException();
+        }
+      }
+    };
+    DatastoreServiceFactoryInternal.setAsyncDatastoreService((AsyncDatastoreService) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class[] {AsyncDatastoreService.class}, handler));
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.CHILD_FETCH_BATCH_SIZE_PROPERTY, "2");
+    props.put(DatastoreManager.CHILD_FETCH_MAX_BATCHES_IN_FLIGHT_PROPERTY, "2");
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    DatastoreServiceFactoryInternal.setAsyncDatastoreService(null);
+    batches.clear();
+    super.tearDown();
+  }
+
+  public void testBatchBoundaries() {
+    List<Key> keys = persistParent(ORIGINS.length);
+
+    beginTxn();
+    HasOneToManyListJDO parent = pm.getObjectById(HasOneToManyListJDO.class, parentId);
+    batches.clear();
+    int i = 0;
+    for (Flight f : parent.getFlights()) {
+      assertEquals(ORIGINS[i++], f.getOrigin());
+    }
+    assertEquals(ORIGINS.length, i);
+    commitTxn();
+
+    // the last batch only holds the key left over
+    assertEquals(Utils.newArrayList(keys.subList(0, 2), keys.subList(2, 4), keys.subList(4, 5)), batches);
+  }
+
+  public void testBatchBoundaryAtEnd() {
+    List<Key> keys = persistParent(4);
+
+    beginTxn();
+    HasOneToManyListJDO parent = pm.getObjectById(HasOneToManyListJDO.class, parentId);
+    batches.clear();
+    int i = 0;
+    for (Flight f : parent.getFlights()) {
+      assertEquals(ORIGINS[i++], f.getOrigin());
+    }
+    assertEquals(4, i);
+    commitTxn();
+
+    assertEquals(Utils.newArrayList(keys.subList(0, 2), keys.subList(2, 4)), batches);
+  }
+
+  public void testRangeStartingAfterFirstChild() {
+    List<Key> keys = persistPagedParent();
+
+    beginTxn();
+    HasPagedOneToManyListJDO parent = pm.getObjectById(HasPagedOneToManyListJDO.class, pagedParentId);
+    batches.clear();
+    // only the keys of the page holding the element are read, starting at the page rather than the list
+    assertEquals("lax", parent.getFlights().get(3).getOrigin());
+    assertEquals(Utils.newArrayList(keys.subList(2, 4)), batches);
+    commitTxn();
+  }
+
+  public void testRangeEndingAtLastChild() {
+    List<Key> keys = persistPagedParent();
+
+    beginTxn();
+    HasPagedOneToManyListJDO parent = pm.getObjectById(HasPagedOneToManyListJDO.class, pagedParentId);
+    batches.clear();
+    // the last page is cut short by the end of the list
+    assertEquals("ord", parent.getFlights().get(4).getOrigin());
+    assertEquals(Utils.newArrayList(keys.subList(4, 5)), batches);
+    commitTxn();
+  }
+
+  private List<Key> persistParent(int numChildren) {
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    List<Flight> flights = Utils.newArrayList();
+    for (int i = 0; i < numChildren; i++) {
+      flights.add(newFlight(ORIGINS[i]));
+      parent.addFlight(flights.get(i));
+    }
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+    parentId = parent.getId();
+    return getKeys(flights);
+  }
+
+  private List<Key> persistPagedParent() {
+    HasPagedOneToManyListJDO parent = new HasPagedOneToManyListJDO();
+    List<Flight> flights = Utils.newArrayList();
+    for (String origin : ORIGINS) {
+      flights.add(newFlight(origin));
+      parent.getFlights().add(flights.get(flights.size() - 1));
+    }
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+    pagedParentId = parent.getId();
+    return getKeys(flights);
+  }
+
+  private static Flight newFlight(String origin) {
+    Flight f = new Flight();
+    f.setOrigin(origin);
+    f.setDest("jfk");
+    return f;
+  }
+
+  private static List<Key> getKeys(List<Flight> flights) {
+    List<Key> keys = Utils.newArrayList();
+    for (Flight f : flights) {
+      keys.add(KeyFactory.stringToKey(f.getId()));
+    }
+    return keys;
+  }
+}
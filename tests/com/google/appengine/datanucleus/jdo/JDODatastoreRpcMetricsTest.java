@@ -0,0 +1,136 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreRpcListener;
+import com.google.appengine.datanucleus.DatastoreRpcMetrics;
+import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for the datastore call metrics enabled by "datanucleus.appengine.datastoreRpcMetrics".
+ */
+public class JDODatastoreRpcMetricsTest extends JDOTestCase {
+
+  private static final List<String> calls = Collections.synchronizedList(Utils.<String>newArrayList());
+
+  public static class RecordingListener implements DatastoreRpcListener {
+    public void rpcCompleted(String operation, String kind, long durationNanos, int numEntities, int numKeys,
+        long approximateBytes, boolean succeeded) {
+      calls.add(operation + ":" + kind + ":" + numEntities + ":" + numKeys + ":" + succeeded);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.DATASTORE_RPC_LISTENER_PROPERTY, RecordingListener.class.getName());
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+    DatastoreRpcMetrics.getInstance().reset();
+    calls.clear();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    calls.clear();
+    DatastoreRpcMetrics.getInstance().reset();
+    // Close the factory that enabled the metrics, so that they are disabled again
+    if (!pm.isClosed()) {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+    if (!pmf.isClosed()) {
+      pmf.close();
+    }
+    super.tearDown();
+  }
+
+  public void testPutAndGet() {
+    Flight flight = new Flight();
+    flight.setName("1");
+    flight.setOrigin("yam");
+    flight.setDest("bam");
+    beginTxn();
+    pm.makePersistent(flight);
+    commitTxn();
+    assertTrue(calls.toString(), calls.contains("put:Flight:1:0:true"));
+
+    calls.clear();
+    Key key = KeyFactory.stringToKey(flight.getId());
+    beginTxn();
+    pm.getObjectById(Flight.class, flight.getId());
+    commitTxn();
+    assertTrue(calls.toString(), calls.contains("beginTransaction:(none):0:0:true"));
+    assertTrue(calls.toString(), calls.contains("get:Flight:1:1:true"));
+
+    DatastoreRpcMetrics metrics = DatastoreRpcMetrics.getInstance();
+    assertTrue(metrics.isEnabled());
+    assertEquals(1, metrics.getCallCount("put:" + key.getKind()));
+    assertEquals(1, metrics.getEntityCount("get:" + key.getKind()));
+    assertTrue(metrics.getApproximateBytes("get:" + key.getKind()) > 0);
+    long[] histogram = metrics.getLatencyHistogram("get:" + key.getKind());
+    assertEquals(metrics.getLatencyBucketBoundsMillis().length + 1, histogram.length);
+    long histogramTotal = 0;
+    for (long count : histogram) {
+      histogramTotal += count;
+    }
+    assertEquals(1, histogramTotal);
+    assertEquals(0, metrics.getTotalFailures());
+  }
+
+  public void testQuery() {
+    ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    calls.clear();
+    beginTxn();
+    List<Flight> flights = (List<Flight>) pm.newQuery(Flight.class).execute();
+    assertEquals(1, flights.size());
+    commitTxn();
+    assertTrue(calls.toString(), calls.contains("query:Flight:1:0:true"));
+  }
+
+  public void testAsyncCalls() throws Exception {
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    calls.clear();
+    AsyncDatastoreService ads = DatastoreServiceFactoryInternal.getAsyncDatastoreService(
+        getStoreManager().getDefaultDatastoreServiceConfigForReads());
+    Future<Map<Key, Entity>> future = ads.get(Collections.singletonList(key));
+    assertTrue(calls.toString(), calls.isEmpty());
+    assertEquals(1, future.get().size());
+    assertTrue(calls.toString(), calls.contains("get:Flight:1:1:true"));
+  }
+
+  public void testDisabledWhenFactoryClosed() {
+    assertTrue(DatastoreRpcMetrics.getInstance().isEnabled());
+    pm.close();
+    pmf.close();
+    assertFalse(DatastoreRpcMetrics.getInstance().isEnabled());
+    assertEquals(0, DatastoreRpcMetrics.getInstance().getStatisticKeys().length);
+  }
+}
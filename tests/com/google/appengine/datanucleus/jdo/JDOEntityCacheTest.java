@@ -0,0 +1,169 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasPagedOneToManyListJDO;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestConfig;
+
+import java.util.Map;
+
+import javax.jdo.JDOObjectNotFoundException;
+
+/**
+ * Tests for reads and writes with the entity cache enabled by "datanucleus.appengine.entityCache".
+ */
+public class JDOEntityCacheTest extends JDOTestCase {
+
+  @Override
+  protected LocalServiceTestConfig[] newLocalServiceTestConfigs() {
+    return new LocalServiceTestConfig[] {newLocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig()};
+  }
+
+  private void switchDatasource(PersistenceManagerFactoryName name, String cacheType, String kinds) {
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.ENTITY_CACHE_PROPERTY, cacheType);
+    if (kinds != null) {
+      props.put(DatastoreManager.ENTITY_CACHE_KINDS_PROPERTY, kinds);
+    }
+    switchDatasource(name, props);
+  }
+
+  private Flight readFlight(Key key) {
+    if (!pm.isClosed()) {
+      pm.close();
+    }
+    pm = pmf.getPersistenceManager();
+    return pm.getObjectById(Flight.class, KeyFactory.keyToString(key));
+  }
+
+  private void changeNameDirectly(Key key, String name) throws EntityNotFoundException {
+    Entity entity = ds.get(key);
+    entity.setProperty("name", name);
+    ds.put(entity);
+  }
+
+  public void testReadServedFromMemcache() throws EntityNotFoundException {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, "memcache", null);
+    assertReadServedFromCache();
+  }
+
+  public void testReadServedFromLru() throws EntityNotFoundException {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, "lru", null);
+    assertReadServedFromCache();
+  }
+
+  private void assertReadServedFromCache() throws EntityNotFoundException {
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    assertEquals("1", readFlight(key).getName());
+
+    // Change behind the plugin's back, so the cached entity is now stale
+    changeNameDirectly(key, "2");
+    assertEquals("1", readFlight(key).getName());
+
+    // Our own update removes the cached entity
+    readFlight(key).setName("3");
+    pm.close();
+    assertEquals("3", ds.get(key).getProperty("name"));
+    changeNameDirectly(key, "4");
+    assertEquals("4", readFlight(key).getName());
+  }
+
+  public void testDeleteInvalidates() {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, "memcache", null);
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    Flight flight = readFlight(key);
+    pm.deletePersistent(flight);
+    pm.close();
+    try {
+      readFlight(key);
+      fail("expected onfe");
+    } catch (JDOObjectNotFoundException e) {
+      // good
+    }
+  }
+
+  public void testCommitInvalidates() throws EntityNotFoundException {
+    switchDatasource(PersistenceManagerFactoryName.transactional, "memcache", null);
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    assertEquals("1", readFlight(key).getName());
+
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    beginTxn();
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key)).setName("2");
+    commitTxn();
+    changeNameDirectly(key, "3");
+    assertEquals("3", readFlight(key).getName());
+  }
+
+  public void testRollbackInvalidates() throws EntityNotFoundException {
+    switchDatasource(PersistenceManagerFactoryName.transactional, "lru", null);
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    assertEquals("1", readFlight(key).getName());
+    changeNameDirectly(key, "2");
+
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    beginTxn();
+    // Reads in a txn don't use the cache
+    Flight flight = pm.getObjectById(Flight.class, KeyFactory.keyToString(key));
+    assertEquals("2", flight.getName());
+    flight.setName("3");
+    pm.flush();
+    rollbackTxn();
+
+    assertEquals("2", readFlight(key).getName());
+  }
+
+  public void testChildrenReadThroughCache() throws EntityNotFoundException {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, "lru", null);
+    HasPagedOneToManyListJDO parent = new HasPagedOneToManyListJDO();
+    Flight flight = new Flight();
+    flight.setName("1");
+    flight.setOrigin("yam");
+    flight.setDest("bam");
+    parent.getFlights().add(flight);
+    pm.makePersistent(parent);
+    Long id = parent.getId();
+    Key flightKey = KeyFactory.stringToKey(flight.getId());
+    pm.close();
+
+    pm = pmf.getPersistenceManager();
+    assertEquals("1", pm.getObjectById(HasPagedOneToManyListJDO.class, id).getFlights().get(0).getName());
+
+    // Change behind the plugin's back, so the cached child is now stale
+    changeNameDirectly(flightKey, "2");
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    assertEquals("1", pm.getObjectById(HasPagedOneToManyListJDO.class, id).getFlights().get(0).getName());
+  }
+
+  public void testUncachedKind() throws EntityNotFoundException {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, "lru", "SomeOtherKind");
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    assertEquals("1", readFlight(key).getName());
+    changeNameDirectly(key, "2");
+    assertEquals("2", readFlight(key).getName());
+  }
+}
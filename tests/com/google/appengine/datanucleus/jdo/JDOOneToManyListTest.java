@@ -18,6 +18,7 @@ package com.google.appengine.datanucleus.jdo;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.datanucleus.StorageVersion;
 import com.google.appengine.datanucleus.TestUtils;
 import com.google.appengine.datanucleus.Utils;
@@ -45,6 +46,7 @@ import com.google.appengine.repackaged.com.google.common.collect.Lists;
 import static com.google.appengine.datanucleus.TestUtils.assertKeyParentEquals;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * @author Max Ross <maxr@google.com>
@@ -851,6 +853,36 @@ public class JDOOneToManyListTest extends JDOOneToManyTestCase {
     startEnd.end();
   }
 
+  public void testAddInMiddleShiftsIndexes_OriginalStorageVersion() {
+    switchDatasource(PersistenceManagerFactoryName.originalStorageVersion);
+    HasOneToManyKeyPkListJDO parent = new HasOneToManyKeyPkListJDO();
+    for (int i = 0; i < 4; i++) {
+      Flight f = newFlight();
+      f.setName("f" + i);
+      parent.addFlight(f);
+    }
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+
+    beginTxn();
+    parent = pm.getObjectById(HasOneToManyKeyPkListJDO.class, parent.getId());
+    Flight inserted = newFlight();
+    inserted.setName("inserted");
+    ((List<Flight>) parent.getFlights()).add(1, inserted);
+    commitTxn();
+
+    Query q = new Query(Flight.class.getSimpleName(), parent.getId());
+    q.addSort("flights_INTEGER_IDX_keypk");
+    List<String> names = Utils.newArrayList();
+    long expectedIndex = 0;
+    for (Entity e : ds.prepare(q).asIterable()) {
+      assertEquals(expectedIndex++, e.getProperty("flights_INTEGER_IDX_keypk"));
+      names.add((String) e.getProperty("name"));
+    }
+    assertEquals(Utils.newArrayList("f0", "inserted", "f1", "f2", "f3"), names);
+  }
+
   @Override
   boolean isIndexed() {
     return true;
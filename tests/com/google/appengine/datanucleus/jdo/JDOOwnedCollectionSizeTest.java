@@ -0,0 +1,79 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListWithOrderByJDO;
+
+import java.util.Map;
+
+/**
+ * Tests for owned collections with "datanucleus.appengine.maintainOwnedCollectionSize" enabled.
+ */
+public class JDOOwnedCollectionSizeTest extends JDOTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.OWNED_COLLECTION_SIZE_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+  }
+
+  public void testSizeMaintainedOnAddAndRemove() throws EntityNotFoundException {
+    HasOneToManyListWithOrderByJDO parent = new HasOneToManyListWithOrderByJDO();
+    parent.getFlightsByOrigAndDest().add(newFlight("bos"));
+    parent.getFlightsByOrigAndDest().add(newFlight("mia"));
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+    Key parentKey = KeyFactory.createKey(kindForClass(HasOneToManyListWithOrderByJDO.class), parent.getId());
+    assertEquals(2L, ds.get(parentKey).getProperty("flightsByOrigAndDest__size"));
+    assertEquals(0L, ds.get(parentKey).getProperty("flightsByIdAndOrig__size"));
+
+    beginTxn();
+    parent = pm.getObjectById(HasOneToManyListWithOrderByJDO.class, parent.getId());
+    parent.getFlightsByOrigAndDest().add(newFlight("sfo"));
+    commitTxn();
+    assertEquals(3L, ds.get(parentKey).getProperty("flightsByOrigAndDest__size"));
+
+    beginTxn();
+    parent = pm.getObjectById(HasOneToManyListWithOrderByJDO.class, parent.getId());
+    parent.getFlightsByOrigAndDest().remove(0);
+    commitTxn();
+    Entity parentEntity = ds.get(parentKey);
+    assertEquals(2L, parentEntity.getProperty("flightsByOrigAndDest__size"));
+    assertTrue(parentEntity.isUnindexedProperty("flightsByOrigAndDest__size"));
+
+    beginTxn();
+    parent = pm.getObjectById(HasOneToManyListWithOrderByJDO.class, parent.getId());
+    assertEquals(2, parent.getFlightsByOrigAndDest().size());
+    commitTxn();
+  }
+
+  private static Flight newFlight(String origin) {
+    Flight f = new Flight();
+    f.setOrigin(origin);
+    f.setDest("jfk");
+    return f;
+  }
+}
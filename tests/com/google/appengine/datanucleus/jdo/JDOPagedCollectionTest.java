@@ -0,0 +1,164 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasPagedOneToManyListJDO;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * Tests for owned collections marked with "gae.page-size".
+ */
+public class JDOPagedCollectionTest extends JDOBatchTestCase {
+
+  private static final String[] ORIGINS = {"bos", "mia", "sfo", "lax", "ord"};
+
+  /** Keys of each batch get issued on the async datastore service, which reads the pages. */
+  private final List<List<Key>> batches = Utils.newArrayList();
+
+  private List<Key> keys;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final AsyncDatastoreService delegate = DatastoreServiceFactory.getAsyncDatastoreService();
+    InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("get") && args.length == 1 && args[0] instanceof Iterable) {
+          List<Key> keys = Utils.newArrayList();
+          for (Object key : (Iterable<?>) args[0]) {
+            keys.add((Key) key);
+          }
+          batches.add(keys);
+        }
+        try {
+          return method.invoke(delegate, args);
+        } catch (InvocationTargetException ite) {
+          throw ite.getTargetException();
+        }
+      }
+    };
+    DatastoreServiceFactoryInternal.setAsyncDatastoreService((AsyncDatastoreService) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class[] {AsyncDatastoreService.class}, handler));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    DatastoreServiceFactoryInternal.setAsyncDatastoreService(null);
+    batches.clear();
+    super.tearDown();
+  }
+
+  BatchRecorder newBatchRecorder() {
+    DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
+    return new BatchRecorder(config) {
+      boolean isBatchMethod(Method method) {
+        // Counts synchronous gets of several children, which a page is never read with
+        return method.getName().equals("get") && method.getParameterTypes().length == 1 &&
+            method.getParameterTypes()[0] == Iterable.class;
+      }
+    };
+  }
+
+  public void testIterateAcrossPages() {
+    Long id = persistParent();
+
+    beginTxn();
+    HasPagedOneToManyListJDO parent = pm.getObjectById(HasPagedOneToManyListJDO.class, id);
+    batches.clear();
+    int i = 0;
+    for (Flight f : parent.getFlights()) {
+      assertEquals(ORIGINS[i++], f.getOrigin());
+    }
+    assertEquals(ORIGINS.length, i);
+    assertEquals(ORIGINS.length, parent.getFlights().size());
+    commitTxn();
+
+    // one get per page, the last page cut short by the end of the list
+    assertEquals(Utils.newArrayList(keys.subList(0, 2), keys.subList(2, 4), keys.subList(4, 5)), batches);
+    assertEquals(0, batchRecorder.batchOps);
+  }
+
+  public void testGetByIndex() {
+    Long id = persistParent();
+
+    beginTxn();
+    HasPagedOneToManyListJDO parent = pm.getObjectById(HasPagedOneToManyListJDO.class, id);
+    batches.clear();
+    List<Flight> flights = parent.getFlights();
+    assertEquals("sfo", flights.get(2).getOrigin());
+    assertEquals(Utils.newArrayList(keys.subList(2, 4)), batches);
+    // same page, so no further get
+    assertEquals("lax", flights.get(3).getOrigin());
+    assertEquals(1, batches.size());
+    assertEquals("bos", flights.get(0).getOrigin());
+    assertEquals(keys.subList(0, 2), batches.get(1));
+    assertEquals("ord", flights.get(4).getOrigin());
+    assertEquals(keys.subList(4, 5), batches.get(2));
+    assertEquals(3, batches.size());
+    commitTxn();
+    assertEquals(0, batchRecorder.batchOps);
+  }
+
+  public void testGetByIndexAfterChange() {
+    Long id = persistParent();
+
+    beginTxn();
+    HasPagedOneToManyListJDO parent = pm.getObjectById(HasPagedOneToManyListJDO.class, id);
+    assertEquals("mia", parent.getFlights().get(1).getOrigin());
+    parent.getFlights().remove(0);
+    commitTxn();
+
+    beginTxn();
+    parent = pm.getObjectById(HasPagedOneToManyListJDO.class, id);
+    assertEquals(ORIGINS.length - 1, parent.getFlights().size());
+    assertEquals("mia", parent.getFlights().get(0).getOrigin());
+    assertEquals("sfo", parent.getFlights().get(1).getOrigin());
+    commitTxn();
+  }
+
+  private Long persistParent() {
+    HasPagedOneToManyListJDO parent = new HasPagedOneToManyListJDO();
+    List<Flight> flights = Utils.newArrayList();
+    for (String origin : ORIGINS) {
+      Flight f = new Flight();
+      f.setOrigin(origin);
+      f.setDest("jfk");
+      flights.add(f);
+      parent.getFlights().add(f);
+    }
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+    keys = Utils.newArrayList();
+    for (Flight f : flights) {
+      keys.add(KeyFactory.stringToKey(f.getId()));
+    }
+    return parent.getId();
+  }
+}
@@ -0,0 +1,96 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.BidirectionalChildListJDO;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Tests for inserts with "datanucleus.appengine.preallocateKeysOnInsert" enabled.
+ */
+public class JDOPreallocateKeysTest extends JDOBatchTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.PREALLOCATE_KEYS_ON_INSERT_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+  }
+
+  BatchRecorder newBatchRecorder() {
+    DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
+    return new BatchRecorder(config) {
+      boolean isBatchMethod(Method method) {
+        return method.getName().equals("put");
+      }
+    };
+  }
+
+  public void testInsertParentAndChildrenInOnePut() throws EntityNotFoundException {
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    parent.setVal("yar");
+    Flight f1 = new Flight();
+    f1.setName("f1");
+    Flight f2 = new Flight();
+    f2.setName("f2");
+    parent.addFlight(f1);
+    parent.addFlight(f2);
+    BidirectionalChildListJDO bidir = new BidirectionalChildListJDO();
+    parent.addBidirChild(bidir);
+
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+
+    assertEquals(1, batchRecorder.batchOps);
+
+    Key parentKey = KeyFactory.stringToKey(parent.getId());
+    Key f1Key = KeyFactory.stringToKey(f1.getId());
+    Key f2Key = KeyFactory.stringToKey(f2.getId());
+    Key bidirKey = KeyFactory.stringToKey(bidir.getId());
+    Entity parentEntity = ds.get(parentKey);
+    assertEquals("yar", parentEntity.getProperty("val"));
+    assertEquals(Utils.newArrayList(f1Key, f2Key), parentEntity.getProperty("flights"));
+    assertEquals(Utils.newArrayList(bidirKey), parentEntity.getProperty("bidirChildren"));
+    assertEquals(parentKey, f1Key.getParent());
+    assertEquals("f2", ds.get(f2Key).getProperty("name"));
+    assertEquals(parentKey, ds.get(bidirKey).getKey().getParent());
+  }
+
+  public void testInsertWithoutChildren() throws EntityNotFoundException {
+    Flight f = new Flight();
+    f.setName("solo");
+
+    beginTxn();
+    pm.makePersistent(f);
+    commitTxn();
+
+    assertEquals(1, batchRecorder.batchOps);
+    assertEquals("solo", ds.get(KeyFactory.stringToKey(f.getId())).getProperty("name"));
+  }
+}
@@ -27,10 +27,12 @@ import com.google.appengine.datanucleus.Utils;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequence;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceOnNonPkFields;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithNoSequenceName;
+import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithPrefetch;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithSequenceGenerator;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithSequenceGenerator2;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithUnencodedStringPk;
 import com.google.appengine.datanucleus.valuegenerator.SequenceGenerator;
+import com.google.apphosting.api.ApiProxy;
 
 import java.util.List;
 
@@ -158,6 +160,71 @@ public class JDOSequenceTest extends JDOTestCase {
     assertEquals(Utils.newArrayList(12L), sequenceBatchSizes);
   }
 
+  public void testInsertWithPrefetchedBlocks() throws EntityNotFoundException {
+    String kind = getKind(HasSequenceWithPrefetch.class);
+    long previousId = 0;
+    for (int i = 0; i < 7; i++) {
+      HasSequenceWithPrefetch pojo = new HasSequenceWithPrefetch();
+      beginTxn();
+      pm.makePersistent(pojo);
+      commitTxn();
+      ds.get(KeyFactory.createKey(kind, pojo.getId()));
+      assertTrue(previousId < pojo.getId());
+      previousId = pojo.getId();
+    }
+    // only the first block is allocated synchronously, the others are
+    // requested asynchronously when one id of the current block remains
+    assertEquals(Utils.newArrayList("jdothat3"), sequenceNames);
+    assertEquals(Utils.newArrayList(3L), sequenceBatchSizes);
+  }
+
+  public void testPrefetchedBlockUsedByOtherThread() throws Exception {
+    final Sequence seq = pm.getSequence("jdo1c");
+    // one id of the block remains, so the next block is requested asynchronously on this thread
+    long id = (Long) seq.next();
+    assertTrue(id < (Long) seq.next());
+    // this thread takes the last id of the block, so collects the next block for any thread to use
+    final long lastId = (Long) seq.next();
+    assertTrue(id < lastId);
+    assertEquals(Utils.newArrayList("jdothat3"), sequenceNames);
+
+    final ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    final DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
+    final List<String> otherThreadSequenceNames = Utils.newArrayList();
+    final List<Long> otherThreadIds = Utils.newArrayList();
+    final Throwable[] failure = new Throwable[1];
+    Thread thread = new Thread() {
+      public void run() {
+        ApiProxy.setEnvironmentForCurrentThread(env);
+        DatastoreServiceFactoryInternal.setDatastoreService(
+            new BaseDatastoreServiceDelegate(DatastoreServiceFactoryInternal.getDatastoreService(config)) {
+          @Override
+          public KeyRange allocateIds(String kind, long size) {
+            otherThreadSequenceNames.add(kind);
+            return super.allocateIds(kind, size);
+          }
+        });
+        try {
+          // the block is exhausted, so the block prefetched by the other thread is used without an allocation
+          otherThreadIds.add((Long) seq.next());
+        } catch (Throwable t) {
+          failure[0] = t;
+        } finally {
+          DatastoreServiceFactoryInternal.setDatastoreService(null);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    if (failure[0] != null) {
+      throw new RuntimeException(failure[0]);
+    }
+    assertTrue(otherThreadSequenceNames.isEmpty());
+    assertEquals(Utils.newArrayList("jdothat3"), sequenceNames);
+    assertEquals(1, otherThreadIds.size());
+    assertTrue(lastId < otherThreadIds.get(0));
+  }
+
   public void testSequenceWithUnencodedStringPk() throws EntityNotFoundException {
     String kind = getKind(HasSequenceWithUnencodedStringPk.class);
     HasSequenceWithUnencodedStringPk pojo = new HasSequenceWithUnencodedStringPk();
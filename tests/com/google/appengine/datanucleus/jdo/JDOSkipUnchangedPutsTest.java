@@ -0,0 +1,88 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.HasKeyPkJDO;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Tests for updates with "datanucleus.appengine.skipUnchangedPuts" enabled.
+ */
+public class JDOSkipUnchangedPutsTest extends JDOBatchTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.SKIP_UNCHANGED_PUTS_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+  }
+
+  BatchRecorder newBatchRecorder() {
+    DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForWrites();
+    return new BatchRecorder(config) {
+      boolean isBatchMethod(Method method) {
+        return method.getName().equals("put");
+      }
+    };
+  }
+
+  public void testUnchangedDetachedObjectNotPut() throws EntityNotFoundException {
+    HasKeyPkJDO pojo = persistAndDetach("yam");
+    pojo.setStr("yam");
+    int puts = batchRecorder.batchOps;
+
+    beginTxn();
+    pm.makePersistent(pojo);
+    commitTxn();
+
+    assertEquals(puts, batchRecorder.batchOps);
+    assertEquals("yam", ds.get(pojo.getKey()).getProperty("str"));
+  }
+
+  public void testChangedDetachedObjectPut() throws EntityNotFoundException {
+    // "Aa" and "BB" have the same String hashCode
+    HasKeyPkJDO pojo = persistAndDetach("Aa");
+    pojo.setStr("BB");
+    int puts = batchRecorder.batchOps;
+
+    beginTxn();
+    pm.makePersistent(pojo);
+    commitTxn();
+
+    assertEquals(puts + 1, batchRecorder.batchOps);
+    assertEquals("BB", ds.get(pojo.getKey()).getProperty("str"));
+  }
+
+  private HasKeyPkJDO persistAndDetach(String str) {
+    Entity entity = new Entity(kindForClass(HasKeyPkJDO.class));
+    entity.setProperty("str", str);
+    Key key = ds.put(entity);
+
+    beginTxn();
+    HasKeyPkJDO pojo = pm.detachCopy(pm.getObjectById(HasKeyPkJDO.class, key));
+    commitTxn();
+    return pojo;
+  }
+}
@@ -0,0 +1,98 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.JDOOptimisticVerificationException;
+
+/**
+ * Tests for version checks with "datanucleus.appengine.skipVersionCheckForEntitiesReadInTxn" enabled.
+ */
+public class JDOSkipVersionCheckInTxnTest extends JDOBatchTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.SKIP_VERSION_CHECK_IN_TXN_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(getPersistenceManagerFactoryName(), props);
+  }
+
+  BatchRecorder newBatchRecorder() {
+    DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
+    return new BatchRecorder(config) {
+      boolean isBatchMethod(Method method) {
+        // Counts the gets made outside the txn to check versions
+        return method.getName().equals("get") && method.getParameterTypes().length == 1 &&
+            method.getParameterTypes()[0] == Key.class;
+      }
+    };
+  }
+
+  public void testGetInTxnSkipsVersionCheck() throws EntityNotFoundException {
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+
+    beginTxn();
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key)).setName("2");
+    commitTxn();
+
+    assertEquals(0, batchRecorder.batchOps);
+    Entity flightCheck = ds.get(key);
+    assertEquals("2", flightCheck.getProperty("name"));
+    assertEquals(2L, flightCheck.getProperty("VERSION"));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testNonAncestorQueryInTxnIsVersionChecked() throws EntityNotFoundException {
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+
+    beginTxn();
+    // A non-ancestor query isn't executed in the txn, so the datastore won't notice a later change
+    List<Flight> flights = (List<Flight>) pm.newQuery(Flight.class).execute();
+    assertEquals(1, flights.size());
+    Flight flight = flights.get(0);
+
+    // Update the entity from another pm
+    Entity entity = ds.get(key);
+    entity.setProperty("name", "other");
+    entity.setProperty("VERSION", 2L);
+    ds.put(entity);
+
+    flight.setName("2");
+    try {
+      commitTxn();
+      fail("expected optimistic exception");
+    } catch (JDOOptimisticVerificationException e) {
+      // good
+    } finally {
+      rollbackTxn();
+    }
+
+    assertEquals("other", ds.get(key).getProperty("name"));
+  }
+}
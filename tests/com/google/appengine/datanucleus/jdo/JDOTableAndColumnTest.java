@@ -19,10 +19,17 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.TypeConversionUtils;
+import com.google.appengine.datanucleus.mapping.DatastoreTable;
 import com.google.appengine.datanucleus.test.jdo.Flight;
 import com.google.appengine.datanucleus.test.jdo.HasTableAndColumnsInMappingJDO;
 
 
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.store.types.TypeManager;
+
 import java.util.List;
 import java.util.Properties;
 
@@ -136,4 +143,46 @@ public class JDOTableAndColumnTest extends JDOTestCase {
     assertEquals(1, result2.size());
     assertEquals(f1, result2.get(0));
   }
+
+  public void testGetDatastoreClassFromManyThreads() throws Exception {
+    final DatastoreManager storeMgr = getStoreManager();
+    final ClassLoaderResolver clr = getExecutionContext().getClassLoaderResolver();
+    final String className = HasTableAndColumnsInMappingJDO.class.getName();
+    final DatastoreTable[] tables = new DatastoreTable[8];
+    Thread[] threads = new Thread[tables.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        public void run() {
+          tables[index] = storeMgr.getDatastoreClass(className, clr);
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    DatastoreTable table = storeMgr.getDatastoreClass(className, clr);
+    assertEquals(HasTableAndColumnsInMappingJDO.TABLE_NAME, table.getIdentifier().getIdentifierName());
+    for (DatastoreTable threadTable : tables) {
+      assertSame(table, threadTable);
+    }
+  }
+
+  public void testMemberCodecIsCachedOnTable() {
+    DatastoreManager storeMgr = getStoreManager();
+    ClassLoaderResolver clr = getExecutionContext().getClassLoaderResolver();
+    TypeManager typeMgr = getExecutionContext().getNucleusContext().getTypeManager();
+    DatastoreTable table = storeMgr.getDatastoreClass(Flight.class.getName(), clr);
+    AbstractMemberMetaData mmd = getExecutionContext().getMetaDataManager()
+        .getMetaDataForClass(Flight.class, clr).getMetaDataForMember("you");
+
+    TypeConversionUtils.MemberCodec codec = table.getMemberCodec(mmd, typeMgr);
+    assertSame(mmd, codec.getMemberMetaData());
+    assertSame(codec, table.getMemberCodec(mmd, typeMgr));
+    // int member is stored as a Long and read back as an Integer
+    assertEquals(3L, codec.toDatastoreValue(clr, 3));
+    assertEquals(3, codec.toPojoValue(clr, 3L));
+  }
 }
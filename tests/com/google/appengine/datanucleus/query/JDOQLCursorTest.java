@@ -21,6 +21,7 @@ import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.datanucleus.DatastoreManager;
 import com.google.appengine.datanucleus.Utils;
 import com.google.appengine.datanucleus.jdo.JDOTestCase;
 import com.google.appengine.datanucleus.test.jdo.Flight;
@@ -154,6 +155,45 @@ public class JDOQLCursorTest extends JDOTestCase {
     }
   }
 
+  public void testGetCursor_ForwardOnlyIterator() {
+    List<Key> keys = Utils.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      keys.add(ds.put(Book.newBookEntity("auth" + i, "34", "yar")));
+    }
+
+    beginTxn();
+    Query q = pm.newQuery("select from " + Book.class.getName());
+    q.addExtension(DatastoreManager.QUERYEXT_FORWARD_ONLY, "true");
+    List<Book> bookList = (List<Book>) q.execute();
+    Iterator<Book> bookIter = bookList.iterator();
+    int index = 0;
+    while (bookIter.hasNext()) {
+      assertEquals(keys.get(index), KeyFactory.stringToKey(bookIter.next().getId()));
+      assertCursorResults(JDOCursorHelper.getCursor(bookIter), keys.subList(++index, keys.size()));
+    }
+    assertEquals(keys.size(), index);
+
+    try {
+      bookList.iterator();
+      fail("expected uoe");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+    try {
+      bookList.get(0);
+      fail("expected uoe");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+    try {
+      bookList.size();
+      fail("expected uoe");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+    commitTxn();
+  }
+
   private <T> Iterator<T> asIterator(Query q) {
     return ((List) q.execute()).iterator();
   }
@@ -19,12 +19,15 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
 import com.google.appengine.datanucleus.Utils;
 import com.google.appengine.datanucleus.jdo.JDOTestCase;
 import com.google.appengine.datanucleus.test.jdo.Flight;
 import com.google.appengine.datanucleus.test.jdo.HasKeyAncestorKeyPkJDO;
 import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
 
+import java.util.Map;
+
 import javax.jdo.JDOFatalUserException;
 import javax.jdo.Query;
 
@@ -74,6 +77,29 @@ public class JDOQLDeleteTest extends JDOTestCase {
     assertEquals(0, countForClass(Flight.class));
   }
 
+  public void testDelete_NoTxn_Batched() {
+    assertBatchedDelete("1");
+  }
+
+  public void testDelete_NoTxn_BatchedAsync() {
+    assertBatchedDelete("3");
+  }
+
+  private void assertBatchedDelete(String maxBatchesInFlight) {
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.BULK_DELETE_BATCH_SIZE_PROPERTY, "2");
+    props.put(DatastoreManager.BULK_DELETE_MAX_BATCHES_IN_FLIGHT_PROPERTY, maxBatchesInFlight);
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, props);
+    for (int i = 0; i < 7; i++) {
+      ds.put(Flight.newFlightEntity("jimmy", "bos", "mia", 23, 24));
+    }
+    ds.put(Flight.newFlightEntity("jimmy", "sfo", "mia", 23, 24));
+
+    Query q = pm.newQuery(Flight.class, "origin == 'bos'");
+    assertEquals(7, q.deletePersistentAll());
+    assertEquals(1, countForClass(Flight.class));
+  }
+
   public void testDeleteAncestorQuery_Txn() {
     Key parentKey = KeyFactory.createKey("yar", 23);
     Entity pojo1 = new Entity(HasKeyAncestorKeyPkJDO.class.getSimpleName(), parentKey);
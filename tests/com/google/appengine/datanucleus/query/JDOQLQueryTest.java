@@ -17,6 +17,7 @@ package com.google.appengine.datanucleus.query;
 
 import static com.google.appengine.datanucleus.test.jdo.Flight.newFlightEntity;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.api.datastore.Entity;
@@ -79,6 +80,7 @@ import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
 import org.datanucleus.api.jdo.JDOQuery;
 import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.query.expression.Expression;
+import org.datanucleus.store.query.AbstractJavaQuery;
 import org.datanucleus.store.query.cache.QueryResultsCache;
 import org.easymock.EasyMock;
 
@@ -92,6 +94,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -2504,6 +2507,261 @@ public class JDOQLQueryTest extends JDOTestCase {
     }
   }
 
+  public void testSizeByCount() {
+    for (int i = 0; i < 5; i++) {
+      ds.put(Flight.newFlightEntity("name" + i, "bos", "mia", 23, 24));
+    }
+
+    beginTxn();
+    Query q = pm.newQuery(Flight.class);
+    q.addExtension(DatastoreManager.QUERYEXT_SIZE_BY_COUNT, "true");
+    List<Flight> flights = (List<Flight>) q.execute();
+    assertEquals(5, flights.size());
+    // size came from a count so no objects were created
+    assertTrue(pm.getManagedObjects().isEmpty());
+
+    q = pm.newQuery(Flight.class);
+    q.addExtension(DatastoreManager.QUERYEXT_SIZE_BY_COUNT, "true");
+    q.setRange(1, 3);
+    flights = (List<Flight>) q.execute();
+    assertEquals(2, flights.size());
+    assertTrue(pm.getManagedObjects().isEmpty());
+
+    // once results have been read size is taken from the results themselves
+    q = pm.newQuery(Flight.class);
+    q.addExtension(DatastoreManager.QUERYEXT_SIZE_BY_COUNT, "true");
+    flights = (List<Flight>) q.execute();
+    assertNotNull(flights.get(0));
+    assertEquals(5, flights.size());
+    assertEquals(5, pm.getManagedObjects().size());
+    commitTxn();
+  }
+
+  public void testResultCache() {
+    String kind = HasKeyAncestorStringPkJDO.class.getSimpleName();
+    Key parentKey1 = ds.put(new Entity("parent"));
+    Key parentKey2 = ds.put(new Entity("parent"));
+    for (int i = 0; i < 3; i++) {
+      ds.put(new Entity(kind, parentKey1));
+    }
+
+    assertEquals(3, executeCachedAncestorQuery(parentKey1).size());
+
+    // Written behind the plugin's back, so the cached result is used
+    ds.put(new Entity(kind, parentKey1));
+    assertEquals(3, executeCachedAncestorQuery(parentKey1).size());
+    // Different parameter values are cached separately
+    assertEquals(0, executeCachedAncestorQuery(parentKey2).size());
+
+    // Our own write to the kind invalidates the cached results
+    HasKeyAncestorStringPkJDO child = new HasKeyAncestorStringPkJDO();
+    child.setAncestorKey(parentKey1);
+    beginTxn();
+    pm.makePersistent(child);
+    commitTxn();
+    assertEquals(5, executeCachedAncestorQuery(parentKey1).size());
+  }
+
+  public void testResultCacheNotUsedForNonAncestorQuery() {
+    for (int i = 0; i < 3; i++) {
+      ds.put(Flight.newFlightEntity("name" + i, "bos", "mia", 23, 24));
+    }
+
+    beginTxn();
+    assertEquals(3, executeCachedFlightQuery("bos").size());
+    commitTxn();
+
+    // Non-ancestor queries are eventually consistent, so their results are never cached
+    ds.put(Flight.newFlightEntity("name3", "bos", "mia", 23, 24));
+    beginTxn();
+    assertEquals(4, executeCachedFlightQuery("bos").size());
+    commitTxn();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<HasKeyAncestorStringPkJDO> executeCachedAncestorQuery(Key parentKey) {
+    Query q = pm.newQuery(
+        "select from " + HasKeyAncestorStringPkJDO.class.getName()
+            + " where ancestorKey == ancId parameters " + Key.class.getName() + " ancId");
+    q.addExtension(DatastoreManager.QUERYEXT_RESULT_CACHE, "true");
+    q.setRange(0, 10);
+    return (List<HasKeyAncestorStringPkJDO>) q.execute(parentKey);
+  }
+
+  private List<Flight> executeCachedFlightQuery(String origin) {
+    Query q = pm.newQuery(Flight.class, "origin == o");
+    q.declareParameters("String o");
+    q.addExtension(DatastoreManager.QUERYEXT_RESULT_CACHE, "true");
+    q.setRange(0, 10);
+    return (List<Flight>) q.execute(origin);
+  }
+
+  public void testPlanCache() {
+    ds.put(Flight.newFlightEntity("name1", "bos", "mia", 23, 24));
+    ds.put(Flight.newFlightEntity("name2", "bos", "sfo", 25, 26));
+    ds.put(Flight.newFlightEntity("name3", "sfo", "mia", 27, 28));
+
+    QueryPlanCache planCache = getStoreManager().getQueryPlanCache();
+    int numPlans = planCache.size();
+    beginTxn();
+    Query q = newPlanCachedFlightQuery();
+    List<Flight> flights = (List<Flight>) q.execute("bos");
+    assertEquals(2, flights.size());
+    assertEquals("name2", flights.get(0).getName());
+    assertEquals("name1", flights.get(1).getName());
+    assertEquals(numPlans + 1, planCache.size());
+    QueryPlanCache.QueryPlan plan = getDatastoreQuery(q).getLatestPlan();
+    assertNotNull(plan);
+    assertNotNull(plan.filters);
+    assertEquals(1, plan.filters.size());
+
+    // Second execution uses the plan, binding the new parameter value
+    q = newPlanCachedFlightQuery();
+    flights = (List<Flight>) q.execute("sfo");
+    assertEquals(1, flights.size());
+    assertEquals("name3", flights.get(0).getName());
+    assertEquals(numPlans + 1, planCache.size());
+    assertSame(plan, getDatastoreQuery(q).getLatestPlan());
+    List<FilterPredicate> filters = getFilterPredicates(q);
+    assertEquals(1, filters.size());
+    assertEquals("origin", filters.get(0).getPropertyName());
+    assertEquals("sfo", filters.get(0).getValue());
+    commitTxn();
+  }
+
+  public void testPlanCacheKeyIgnoresParameterOrder() {
+    Query q = pm.newQuery(Flight.class, "origin == o && dest == d");
+    q.declareParameters("String o, String d");
+    AbstractJavaQuery query = (AbstractJavaQuery) ((JDOQuery) q).getInternalQuery();
+    Map<String, Object> params = new LinkedHashMap<String, Object>();
+    params.put("o", "bos");
+    params.put("d", "mia");
+    Map<String, Object> reversedParams = new LinkedHashMap<String, Object>();
+    reversedParams.put("d", "sfo");
+    reversedParams.put("o", "lax");
+    assertEquals(QueryPlanCache.getKey(query, params, false), QueryPlanCache.getKey(query, reversedParams, false));
+  }
+
+  private Query newPlanCachedFlightQuery() {
+    Query q = pm.newQuery(Flight.class, "origin == o");
+    q.declareParameters("String o");
+    q.setOrdering("name desc");
+    q.addExtension(DatastoreManager.QUERYEXT_PLAN_CACHE, "true");
+    return q;
+  }
+
+  public void testFanOut() {
+    ds.put(Flight.newFlightEntity("name1", "bos", "mia", 23, 24));
+    ds.put(Flight.newFlightEntity("name2", "bos", "sfo", 25, 26));
+    ds.put(Flight.newFlightEntity("name3", "sfo", "mia", 27, 28));
+    ds.put(Flight.newFlightEntity("name4", "lax", "jfk", 29, 30));
+
+    beginTxn();
+    // 'or' on different properties, name2 matches both branches
+    Query q = pm.newQuery(Flight.class, "origin == 'bos' || dest == 'sfo'");
+    q.setOrdering("name desc");
+    q.addExtension(DatastoreManager.QUERYEXT_FAN_OUT, "true");
+    List<Flight> flights = (List<Flight>) q.execute();
+    assertEquals(2, flights.size());
+    assertEquals("name2", flights.get(0).getName());
+    assertEquals("name1", flights.get(1).getName());
+
+    // offset and limit apply while the results are merged
+    q.setRange(1, 2);
+    flights = (List<Flight>) q.execute();
+    assertEquals(1, flights.size());
+    assertEquals("name1", flights.get(0).getName());
+
+    // 'or' with an inequality, sorted in memory
+    q = pm.newQuery(Flight.class, "you > 26 || origin == 'bos'");
+    q.setOrdering("name asc");
+    q.addExtension(DatastoreManager.QUERYEXT_FAN_OUT, "true");
+    flights = (List<Flight>) q.execute();
+    assertEquals(4, flights.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals("name" + (i + 1), flights.get(i).getName());
+    }
+
+    // offset and limit apply to the merged results
+    q.setRange(1, 3);
+    flights = (List<Flight>) q.execute();
+    assertEquals(2, flights.size());
+    assertEquals("name2", flights.get(0).getName());
+    assertEquals("name3", flights.get(1).getName());
+
+    // more values than a single datastore query accepts
+    List<String> names = Utils.newArrayList();
+    for (int i = 0; i < 40; i++) {
+      names.add("name" + i);
+    }
+    q = pm.newQuery(Flight.class, ":p.contains(name)");
+    q.setOrdering("name desc");
+    q.addExtension(DatastoreManager.QUERYEXT_FAN_OUT, "true");
+    flights = (List<Flight>) q.execute(names);
+    assertEquals(4, flights.size());
+    assertEquals("name4", flights.get(0).getName());
+    assertEquals("name1", flights.get(3).getName());
+    commitTxn();
+  }
+
+  public void testFanOutRangeWithInequalityNotSortedFirst() {
+    // 'you' decreases as 'name' increases, so the inequality branch returns the results in reverse
+    ds.put(Flight.newFlightEntity("name1", "bos", "mia", 30, 24));
+    ds.put(Flight.newFlightEntity("name2", "bos", "sfo", 29, 26));
+    ds.put(Flight.newFlightEntity("name3", "sfo", "mia", 28, 28));
+    ds.put(Flight.newFlightEntity("name4", "lax", "jfk", 27, 30));
+
+    beginTxn();
+    Query q = pm.newQuery(Flight.class, "you > 26 || origin == 'yyz'");
+    q.setOrdering("name asc");
+    q.setRange(0, 2);
+    q.addExtension(DatastoreManager.QUERYEXT_FAN_OUT, "true");
+    List<Flight> flights = (List<Flight>) q.execute();
+    assertEquals(2, flights.size());
+    assertEquals("name1", flights.get(0).getName());
+    assertEquals("name2", flights.get(1).getName());
+
+    q.setRange(1, 3);
+    flights = (List<Flight>) q.execute();
+    assertEquals(2, flights.size());
+    assertEquals("name2", flights.get(0).getName());
+    assertEquals("name3", flights.get(1).getName());
+    commitTxn();
+  }
+
+  public void testChunkPrefetch() {
+    for (int i = 1; i <= 7; i++) {
+      ds.put(Flight.newFlightEntity("name" + i, "bos", "mia", i, i));
+    }
+
+    Query q = pm.newQuery(Flight.class);
+    q.setOrdering("name asc");
+    q.getFetchPlan().setFetchSize(3);
+    q.addExtension(DatastoreManager.QUERYEXT_CHUNK_PREFETCH, "1");
+    List<Flight> flights = (List<Flight>) q.execute();
+    Iterator<Flight> iter = flights.iterator();
+    for (int i = 1; i <= 4; i++) {
+      assertEquals("name" + i, iter.next().getName());
+    }
+    // the cursor points after the last result read, as for a query read in a single chunk
+    Cursor cursor = JDOCursorHelper.getCursor(iter);
+    assertNotNull(cursor);
+    for (int i = 5; i <= 7; i++) {
+      assertEquals("name" + i, iter.next().getName());
+    }
+    assertFalse(iter.hasNext());
+
+    q = pm.newQuery(Flight.class);
+    q.setOrdering("name asc");
+    q.getFetchPlan().setFetchSize(3);
+    q.addExtension(DatastoreManager.QUERYEXT_CHUNK_PREFETCH, "1");
+    q.addExtension(JDOCursorHelper.CURSOR_EXTENSION, cursor);
+    flights = (List<Flight>) q.execute();
+    assertEquals(3, flights.size());
+    assertEquals("name5", flights.get(0).getName());
+    assertEquals("name7", flights.get(2).getName());
+  }
+
   public void testSetKeysOnly() {
     DatastoreServiceFactoryInternal.setDatastoreService(null);
     ApiProxy.Delegate original = getDelegateForThread();
@@ -225,7 +225,8 @@ public class JoinHelperTest extends JDOTestCase {
     assertEquals(
         Utils.newArrayList(p1, p2, p3, p4, p5),
         mergeJoin(Utils.newArrayList(p1, p2, p3, p4, p5, p6), childEntities.subList(0, 50)));
-    assertEquals(Utils.newHashSet(childKeys.subList(0, 50)), joinHelper.getMaterializedChildKeys());
+    // Only the keys that p6 or a later parent could refer to are kept
+    assertEquals(Collections.singleton(childKeys.get(49)), joinHelper.getMaterializedChildKeys());
   }
 
   public void testStreaming() {
@@ -241,7 +242,7 @@ public class JoinHelperTest extends JDOTestCase {
     int i = 0;
     for (Entity e : mergeJoin(parentEntities, childEntities)) {
       assertEquals(parentEntities.get(i++), e);
-      assertEquals(Utils.newHashSet(childKeys.subList(0, i)), joinHelper.getMaterializedChildKeys());
+      assertEquals(Collections.singleton(childKeys.get(i - 1)), joinHelper.getMaterializedChildKeys());
     }
   }
 
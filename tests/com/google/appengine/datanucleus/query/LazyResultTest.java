@@ -281,4 +281,52 @@ public class LazyResultTest extends DatastoreTestCase {
     assertEquals(2, iterable.nextCount);
   }
 
+  public void testForwardOnly_Iterator() {
+    Entity e1 = new Entity("yar1");
+    Entity e2 = new Entity("yar2");
+    CountingIterable iterable = new CountingIterable(Utils.<Entity>newArrayList(e1, e2));
+    LazyResult lr = new LazyResult<Object>(iterable, NULL_FUNC, true, true);
+    assertTrue(lr.isForwardOnly());
+    assertNull(lr.getEntityKeys());
+    Iterator iter = lr.iterator();
+    assertEquals(0, iterable.nextCount);
+    assertTrue(iter.hasNext());
+    assertSame(e1, iter.next());
+    assertEquals(1, iterable.nextCount);
+    assertSame(e2, iter.next());
+    assertFalse(iter.hasNext());
+    assertEquals(2, iterable.nextCount);
+
+    try {
+      lr.iterator();
+      fail("expected uoe");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+  }
+
+  public void testForwardOnly_RandomAccessUnsupported() {
+    Entity e1 = new Entity("yar1");
+    CountingIterable iterable = new CountingIterable(Utils.<Entity>newArrayList(e1));
+    LazyResult lr = new LazyResult<Object>(iterable, NULL_FUNC, false, true);
+    try {
+      lr.get(0);
+      fail("expected uoe");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+    try {
+      lr.size();
+      fail("expected uoe");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+    try {
+      lr.listIterator();
+      fail("expected uoe");
+    } catch (UnsupportedOperationException uoe) {
+      // good
+    }
+    assertEquals(0, iterable.nextCount);
+  }
 }
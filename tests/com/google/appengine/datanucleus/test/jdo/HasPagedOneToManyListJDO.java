@@ -0,0 +1,50 @@
+/**********************************************************************
+Copyright (c) 2009 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.test.jdo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.annotations.Element;
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Owner of a list marked with "gae.page-size".
+ */
+@PersistenceCapable(detachable = "true")
+public class HasPagedOneToManyListJDO {
+
+  @PrimaryKey
+  @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+  private Long id;
+
+  @Persistent
+  @Element(dependent = "true")
+  @Extension(vendorName = "datanucleus", key = "gae.page-size", value = "2")
+  private List<Flight> flights = new ArrayList<Flight>();
+
+  public Long getId() {
+    return id;
+  }
+
+  public List<Flight> getFlights() {
+    return flights;
+  }
+}
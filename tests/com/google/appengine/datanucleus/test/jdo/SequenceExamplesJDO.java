@@ -102,6 +102,21 @@ public final class SequenceExamplesJDO {
     }
   }
 
+  @PersistenceCapable(identityType = IdentityType.APPLICATION)
+  @Sequence(name = "jdo1c", datastoreSequence = "jdothat3", strategy = SequenceStrategy.NONTRANSACTIONAL,
+            extensions = {@Extension(vendorName = "datanucleus", key="key-cache-size", value="3"),
+                          @Extension(vendorName = "datanucleus", key="key-cache-low-water-mark", value="1")})
+  public static class HasSequenceWithPrefetch {
+
+    @PrimaryKey
+    @Persistent(valueStrategy = IdGeneratorStrategy.SEQUENCE, sequence = "jdo1c")
+    private Long id;
+
+    public Long getId() {
+      return id;
+    }
+  }
+
   @PersistenceCapable(identityType = IdentityType.APPLICATION)
   @Sequence(name = "jdo2", strategy = SequenceStrategy.NONTRANSACTIONAL,
             extensions = @Extension(vendorName = "datanucleus", key="key-cache-size", value="12"))